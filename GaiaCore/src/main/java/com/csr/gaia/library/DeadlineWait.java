@@ -0,0 +1,63 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * <p>The wait for an acknowledgement of the services which block their caller, such as the data channel, the UART
+ * bridge and the file stream: the caller waits on the monitor of the service, which the reader thread of the link
+ * notifies on each answer of the device, until a deadline.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class DeadlineWait {
+
+    private DeadlineWait() {
+    }
+
+    /**
+     * To wait to be notified on a monitor until a deadline. This method must be called while holding the monitor and
+     * can return before the deadline without being notified: the caller checks its condition again.
+     *
+     * @param monitor
+     *            the object to wait on.
+     * @param deadline
+     *            the deadline, from {@link System#nanoTime()}.
+     * @param command
+     *            the name of the command which is waited for, for the exceptions.
+     *
+     * @throws IOException
+     *             if the deadline has passed.
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting.
+     */
+    public static void waitUntil(Object monitor, long deadline, String command) throws IOException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new IOException("No acknowledgement of " + command + " from the device.");
+        }
+        try {
+            monitor.wait(remaining / 1000000L + 1);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + command + ".");
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * <p>This class sends a Device Firmware Upgrade image to the device over the COMMAND_DFU_* commands.</p>
+ * <p>The steps are: the {@link Gaia.EventId#DFU_STATE DFU_STATE} notifications are registered, COMMAND_DFU_BEGIN
+ * gives the size and the CRC-32 of the image, the image is sent with COMMAND_DFU_WRITE, the device verifies it and
+ * notifies the result, and COMMAND_DFU_COMMIT makes the device install it and restart.</p>
+ * <p>The writes are flow controlled: a {@link #setWindow(int) window} of DFU_WRITE commands is kept outstanding and
+ * each acknowledgement sends the next chunk. While the image is sent the link holds back the other commands of the
+ * application and sends them, in order, once the DFU ends - see {@link GaiaLinkCore#isDfuBusy()}.</p>
+ * <p>The packets are handled on the reader thread of the link, the listener is called on the main executor of its
+ * dispatcher.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class DfuEngine implements GaiaDispatcher.IPacketListener {
+
+    /**
+     * All the steps of a DFU.
+     */
+    public enum Step {
+        BEGIN, WRITE, VERIFICATION, COMMIT
+    }
+
+    /**
+     * The default number of outstanding DFU_WRITE commands.
+     */
+    public static final int DEFAULT_WINDOW = 4;
+    /**
+     * The default time without any answer after which the DFU fails, in milliseconds. The verification of the
+     * image by the device can take a few seconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 15000;
+    private static final int[] COMMANDS = { Gaia.COMMAND_DFU_BEGIN, Gaia.COMMAND_DFU_WRITE, Gaia.COMMAND_DFU_COMMIT };
+    /**
+     * The position of the state in a DFU_STATE notification payload, after the event.
+     */
+    private static final int OFFS_DFU_STATE = 1;
+
+    private final GaiaLinkCore mLink;
+    private final IDfuListener mListener;
+    private int mWindow = DEFAULT_WINDOW;
+    private long mTimeout = DEFAULT_TIMEOUT;
+
+    /**
+     * The current step, null if no DFU is running.
+     */
+    private Step mStep;
+    private ByteBuffer mImage;
+    private long mCrc;
+    private int mSentBytes;
+    private int mAckedBytes;
+    private int mOutstanding;
+    private long mStart;
+    private long mWriteStart;
+    private long mWriteDuration;
+    private long mLastActivity;
+    private Watchdog mWatchdog;
+
+    /**
+     * To build a new engine.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param listener
+     *            the listener to inform of the progress of the DFU.
+     */
+    public DfuEngine(GaiaLinkCore link, IDfuListener listener) {
+        mLink = link;
+        mListener = listener;
+    }
+
+    /**
+     * @param window
+     *            the number of DFU_WRITE commands sent without waiting for their acknowledgement, at least 1.
+     */
+    public synchronized void setWindow(int window) {
+        mWindow = Math.max(1, window);
+    }
+
+    /**
+     * @param timeout
+     *            the time without any answer after which the DFU fails, in milliseconds.
+     */
+    public synchronized void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * @return true if a DFU is running.
+     */
+    public synchronized boolean isBusy() {
+        return mStep != null;
+    }
+
+    /**
+     * To send an image file to the device. The file is mapped in memory, it is not copied.
+     *
+     * @param image
+     *            the image file.
+     *
+     * @return false if a DFU is already running.
+     *
+     * @throws IOException
+     *             if the file cannot be mapped.
+     */
+    public boolean start(File image) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(image, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            return start(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * To send an image to the device, from the position to the limit of the buffer.
+     *
+     * @param image
+     *            the image, the buffer must not be modified until the DFU is complete.
+     *
+     * @return false if a DFU is already running.
+     */
+    public boolean start(ByteBuffer image) {
+        ByteBuffer slice = image.slice();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[4096];
+        ByteBuffer source = slice.duplicate();
+        while (source.hasRemaining()) {
+            int length = Math.min(buffer.length, source.remaining());
+            source.get(buffer, 0, length);
+            crc.update(buffer, 0, length);
+        }
+
+        synchronized (this) {
+            if (mStep != null) {
+                return false;
+            }
+            mStep = Step.BEGIN;
+            mImage = slice;
+            mCrc = crc.getValue();
+            mSentBytes = 0;
+            mAckedBytes = 0;
+            mOutstanding = 0;
+            mWriteDuration = 0;
+            mStart = System.nanoTime();
+            mLastActivity = mStart;
+        }
+
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        for (int command : COMMANDS) {
+            dispatcher.subscribe(command, GaiaDispatcher.Delivery.READER_THREAD, this);
+        }
+        dispatcher.subscribe(Gaia.EventId.DFU_STATE, GaiaDispatcher.Delivery.READER_THREAD, this);
+        startWatchdog();
+
+        int size = slice.remaining();
+        long value = mCrc;
+        mLink.registerNotification(Gaia.VENDOR_CSR, Gaia.EventId.DFU_STATE);
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_DFU_BEGIN, new byte[] { (byte) (size >>> 24),
+                (byte) (size >>> 16), (byte) (size >>> 8), (byte) size, (byte) (value >>> 24), (byte) (value >>> 16),
+                (byte) (value >>> 8), (byte) value });
+        return true;
+    }
+
+    /**
+     * To stop the running DFU. The commands held by the link are sent.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mStep == null) {
+                return;
+            }
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        mLink.setDfuBusy(false);
+    }
+
+    /**
+     * To request the result of the last DFU of the device, it is given to the subscribers of
+     * COMMAND_DFU_GET_RESULT.
+     */
+    public void requestResult() {
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_DFU_GET_RESULT);
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        if (packet.getCommand() == Gaia.COMMAND_EVENT_NOTIFICATION) {
+            if (!packet.isAcknowledgement() && packet.getEvent() == Gaia.EventId.DFU_STATE) {
+                mLink.sendAcknowledgement(packet, Gaia.Status.SUCCESS);
+                byte[] payload = packet.getPayload();
+                if (payload.length > OFFS_DFU_STATE) {
+                    receiveState(Gaia.DfuState.valueOf(payload[OFFS_DFU_STATE] & 0xFF));
+                }
+            }
+            return;
+        }
+
+        if (!packet.isAcknowledgement()) {
+            return;
+        }
+
+        Step step;
+        synchronized (this) {
+            step = mStep;
+            if (step == null || packet.getCommand() != getCommand(step)) {
+                return;
+            }
+            mLastActivity = System.nanoTime();
+        }
+
+        Gaia.Status status = packet.getStatus();
+        if (status == Gaia.Status.IN_PROGRESS) {
+            // the device is alive
+            return;
+        }
+        if (status != Gaia.Status.SUCCESS) {
+            fail(step, status, null);
+            return;
+        }
+
+        switch (step) {
+        case BEGIN:
+            synchronized (this) {
+                mWriteStart = System.nanoTime();
+            }
+            mLink.setDfuBusy(true);
+            if (mImage.remaining() == 0) {
+                // nothing to write: no DFU_WRITE would be acknowledged, the device goes on with the verification
+                next(Step.VERIFICATION);
+                break;
+            }
+            next(Step.WRITE);
+            sendWrites();
+            break;
+
+        case WRITE:
+            int acked;
+            int total;
+            double throughput;
+            boolean complete;
+            synchronized (this) {
+                mOutstanding--;
+                mAckedBytes = Math.min(mAckedBytes + Gaia.MAX_PAYLOAD, mImage.remaining());
+                acked = mAckedBytes;
+                total = mImage.remaining();
+                complete = acked == total && mOutstanding == 0;
+                long elapsed = System.nanoTime() - mWriteStart;
+                throughput = elapsed > 0 ? acked * 1000000000.0 / elapsed : 0;
+                if (complete) {
+                    mWriteDuration = elapsed;
+                }
+            }
+            postProgress(acked, total, throughput);
+            if (complete) {
+                // the device notifies the result of the verification
+                next(Step.VERIFICATION);
+            }
+            else {
+                sendWrites();
+            }
+            break;
+
+        case COMMIT:
+            complete();
+            break;
+        }
+    }
+
+    /**
+     * To follow the DFU_STATE notifications of the device.
+     */
+    private void receiveState(final Gaia.DfuState state) {
+        if (state == null) {
+            return;
+        }
+        Step step;
+        synchronized (this) {
+            step = mStep;
+            if (step == null) {
+                return;
+            }
+            mLastActivity = System.nanoTime();
+        }
+
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStateChanged(state);
+            }
+        });
+
+        switch (state) {
+        case DOWNLOAD_FAILURE:
+        case VERIFICATION_FAILURE:
+            fail(step, null, state);
+            break;
+
+        case VERIFICATION_SUCCESS:
+            if (step == Step.VERIFICATION) {
+                next(Step.COMMIT);
+                mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_DFU_COMMIT);
+            }
+            break;
+        }
+    }
+
+    /**
+     * To send the DFU_WRITE commands which fit in the window, each one with the next bytes of the image. The engine is
+     * not locked while the link writes: the DFU_WRITE acknowledgements which open the window need the lock.
+     */
+    private void sendWrites() {
+        while (true) {
+            byte[] payload;
+            synchronized (this) {
+                if (mStep != Step.WRITE || mOutstanding >= mWindow || mSentBytes >= mImage.remaining()) {
+                    return;
+                }
+                payload = new byte[Math.min(Gaia.MAX_PAYLOAD, mImage.remaining() - mSentBytes)];
+                ByteBuffer source = mImage.duplicate();
+                source.position(mSentBytes);
+                source.get(payload);
+                mSentBytes += payload.length;
+                mOutstanding++;
+            }
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_DFU_WRITE, payload);
+        }
+    }
+
+    private synchronized void next(Step step) {
+        if (mStep != null) {
+            mStep = step;
+        }
+    }
+
+    /**
+     * To end the DFU once the device has accepted the commit.
+     */
+    private void complete() {
+        final Result result;
+        synchronized (this) {
+            if (mStep == null) {
+                return;
+            }
+            result = new Result(mImage.remaining(), mCrc, System.nanoTime() - mStart, mWriteDuration);
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        mLink.setDfuBusy(false);
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onComplete(result);
+            }
+        });
+    }
+
+    /**
+     * To end the DFU because of an error.
+     */
+    private void fail(final Step step, final Gaia.Status status, final Gaia.DfuState state) {
+        synchronized (this) {
+            if (mStep == null) {
+                return;
+            }
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        mLink.setDfuBusy(false);
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onError(step, status, state);
+            }
+        });
+    }
+
+    /**
+     * To reset the state at the end of a DFU. This method must be called while holding the lock.
+     */
+    private void end() {
+        mStep = null;
+        if (mWatchdog != null) {
+            mWatchdog.stop();
+            mWatchdog = null;
+        }
+    }
+
+    private void postProgress(final int done, final int total, final double throughput) {
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(done, total, throughput);
+            }
+        });
+    }
+
+    private void startWatchdog() {
+        Watchdog watchdog;
+        long timeout;
+        synchronized (this) {
+            timeout = mTimeout;
+            watchdog = new Watchdog() {
+                @Override
+                protected void check() {
+                    checkTimeout(this);
+                }
+            };
+            mWatchdog = watchdog;
+        }
+        watchdog.start(timeout);
+    }
+
+    private void checkTimeout(Watchdog watchdog) {
+        Step step;
+        synchronized (this) {
+            if (mWatchdog != watchdog || mStep == null) {
+                watchdog.stop();
+                return;
+            }
+            if (System.nanoTime() - mLastActivity < mTimeout * 1000000L) {
+                return;
+            }
+            step = mStep;
+        }
+        fail(step, null, null);
+    }
+
+    /**
+     * @return the command acknowledged at a step, -1 if the step waits for a notification.
+     */
+    private static int getCommand(Step step) {
+        switch (step) {
+        case BEGIN:
+            return Gaia.COMMAND_DFU_BEGIN;
+        case WRITE:
+            return Gaia.COMMAND_DFU_WRITE;
+        case COMMIT:
+            return Gaia.COMMAND_DFU_COMMIT;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * The results of a successful DFU.
+     */
+    public static final class Result {
+        private final int mLength;
+        private final long mCrc;
+        private final long mDuration;
+        private final long mWriteDuration;
+
+        private Result(int length, long crc, long duration, long writeDuration) {
+            mLength = length;
+            mCrc = crc;
+            mDuration = duration;
+            mWriteDuration = writeDuration;
+        }
+
+        /**
+         * @return the size of the image in bytes.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return the CRC-32 of the image given to COMMAND_DFU_BEGIN.
+         */
+        public long getCrc() {
+            return mCrc;
+        }
+
+        /**
+         * @return the time from DFU_BEGIN to the commit, in nanoseconds.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return the time taken to send the image, in nanoseconds.
+         */
+        public long getWriteDuration() {
+            return mWriteDuration;
+        }
+
+        /**
+         * @return the number of image bytes sent per second.
+         */
+        public double getThroughput() {
+            return mWriteDuration > 0 ? mLength * 1000000000.0 / mWriteDuration : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "DFU: " + mLength + " bytes in " + mDuration / 1000000 + " ms, " + (long) getThroughput()
+                    + " B/s, CRC 0x" + Long.toHexString(mCrc);
+        }
+    }
+
+    /**
+     * The interface to implement to follow a {@link DfuEngine}. All methods are called on the main executor of the
+     * dispatcher of the link.
+     */
+    public interface IDfuListener {
+
+        /**
+         * Called when the device notifies a new DFU state.
+         *
+         * @param state
+         *            the state of the device.
+         */
+        void onStateChanged(Gaia.DfuState state);
+
+        /**
+         * Called each time a DFU_WRITE has been acknowledged.
+         *
+         * @param done
+         *            the number of bytes acknowledged.
+         * @param total
+         *            the size of the image.
+         * @param throughput
+         *            the bytes acknowledged per second since the first write.
+         */
+        void onProgress(int done, int total, double throughput);
+
+        /**
+         * Called when the device has accepted the commit: it installs the image and restarts.
+         *
+         * @param result
+         *            the results of the DFU.
+         */
+        void onComplete(Result result);
+
+        /**
+         * Called when the DFU failed, the commands held by the link are then sent.
+         *
+         * @param step
+         *            the step which failed.
+         * @param status
+         *            the status of the failed command, null if the failure is not an acknowledgement.
+         * @param state
+         *            the failure state notified by the device, null if the failure is not a notification.
+         */
+        void onError(Step step, Gaia.Status status, Gaia.DfuState state);
+    }
+}
@@ -0,0 +1,127 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+/**
+ * <p>This class cuts a stream of received bytes into GAIA frames.</p>
+ * <p>The bytes can be given in chunks of any size: a frame which spans several chunks is kept until it is complete.
+ * The bytes found before a start of frame are discarded and reported as a resynchronisation.</p>
+ * <p>A deframer keeps the state of one stream and must only be fed by one thread at a time, it does not allocate
+ * anything per byte nor per frame: the frame given to the listener is its own buffer, only valid during the
+ * call.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaDeframer {
+
+    private final IFrameListener mListener;
+    /**
+     * The frame being received.
+     */
+    private final byte[] mPacket = new byte[Gaia.MAX_PACKET];
+    private int mFlags;
+    private int mPacketLength = 0;
+    private int mExpected = Gaia.MAX_PAYLOAD;
+
+    /**
+     * To build a new deframer.
+     *
+     * @param listener
+     *            the listener to give the frames to.
+     */
+    public GaiaDeframer(IFrameListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * To forget the frame being received, for instance when a new connection starts.
+     */
+    public void reset() {
+        mPacketLength = 0;
+        mExpected = Gaia.MAX_PAYLOAD;
+    }
+
+    /**
+     * To give received bytes to this deframer: the listener is called for each frame they complete.
+     *
+     * @param buffer
+     *            the received bytes.
+     * @param offset
+     *            the position of the first byte in the buffer.
+     * @param length
+     *            the number of bytes.
+     */
+    public void feed(byte[] buffer, int offset, int length) {
+        int discarded = 0;
+
+        for (int i = offset; i < offset + length; ++i) {
+            if ((mPacketLength > 0) && (mPacketLength < Gaia.MAX_PACKET)) {
+                mPacket[mPacketLength] = buffer[i];
+
+                if (mPacketLength == Gaia.OFFS_FLAGS)
+                    mFlags = buffer[i];
+
+                else if (mPacketLength == Gaia.OFFS_PAYLOAD_LENGTH)
+                    mExpected = (buffer[i] & 0xFF) + Gaia.OFFS_PAYLOAD + (((mFlags & Gaia.FLAG_CHECK) != 0) ? 1 : 0);
+
+                ++mPacketLength;
+
+                if (mPacketLength == mExpected) {
+                    mListener.onFrame(mPacket, mPacketLength);
+                    mPacketLength = 0;
+                    mExpected = Gaia.MAX_PAYLOAD;
+                }
+            } else if (buffer[i] == Gaia.SOF) {
+                if (discarded > 0) {
+                    mListener.onResync(discarded);
+                    discarded = 0;
+                }
+                mPacketLength = 1;
+            }
+            else
+                ++discarded;
+        }
+
+        if (discarded > 0)
+            mListener.onResync(discarded);
+    }
+
+    /**
+     * The interface to implement to receive the frames of a {@link GaiaDeframer}. It is called on the thread which
+     * feeds the deframer.
+     */
+    public interface IFrameListener {
+
+        /**
+         * Called for each complete frame.
+         *
+         * @param frame
+         *            the buffer of the deframer which contains the frame, only valid during this call.
+         * @param length
+         *            the length of the frame.
+         */
+        void onFrame(byte[] frame, int length);
+
+        /**
+         * Called when bytes have been discarded to find the start of a frame.
+         *
+         * @param discarded
+         *            the number of discarded bytes.
+         */
+        void onResync(int discarded);
+    }
+}
@@ -0,0 +1,443 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>This class dispatches the packets received by a link to any number of subscribers.</p>
+ * <p>Subscribers are registered for a command, for a notification {@link Gaia.EventId event} or for all packets.
+ * Finding the subscribers of a packet is a direct lookup: the commands are indexed by a two-level table - the high
+ * byte of the command selects a page, the low byte a slot in it - and the events by their ordinal.</p>
+ * <p>Each slot holds an array of subscribers which is replaced on each change - copy-on-write - so the reader thread
+ * dispatches without any lock while subscribers come and go from other threads.</p>
+ * <p>Each subscriber chooses where its packets are delivered: directly on the reader thread or on the thread of the
+ * main executor given to this dispatcher, usually the UI thread.</p>
+ * <p>The link also tells the {@link ILinkListener link listeners} when it closes, so that a subscriber which waits for
+ * packets does not wait for ever.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaDispatcher {
+
+    private static final String TAG = "GaiaDispatcher";
+
+    /**
+     * All threads a subscriber can get its packets on.
+     */
+    public enum Delivery {
+        /**
+         * The packets are delivered on the thread which reads them from the device: the listener must be quick and
+         * must not access the UI.
+         */
+        READER_THREAD,
+        /**
+         * The packets are delivered through the main executor of the dispatcher.
+         */
+        MAIN_THREAD
+    }
+
+    /**
+     * The number of pages of the command table and of slots in a page.
+     */
+    private static final int PAGE_SIZE = 256;
+    /**
+     * The array used when a slot has no subscriber.
+     */
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+
+    /**
+     * The subscribers by command: the pages are indexed by the high byte of the command, the slots by the low byte.
+     * Pages are created when a first subscriber registers for one of their commands.
+     */
+    private final AtomicReferenceArray<AtomicReferenceArray<Subscriber[]>> mCommands =
+            new AtomicReferenceArray<>(PAGE_SIZE);
+    /**
+     * The subscribers by event ordinal.
+     */
+    private final AtomicReferenceArray<Subscriber[]> mEvents =
+            new AtomicReferenceArray<>(Gaia.EventId.values().length);
+    /**
+     * The subscribers to all packets.
+     */
+    private volatile Subscriber[] mAll = EMPTY;
+    /**
+     * The listeners to tell when the link closes.
+     */
+    private volatile ILinkListener[] mLinkListeners = new ILinkListener[0];
+    /**
+     * The executor which delivers packets to the {@link Delivery#MAIN_THREAD MAIN_THREAD} subscribers.
+     */
+    private final Executor mMainExecutor;
+    /**
+     * The number of exceptions thrown by listeners on the reader thread.
+     */
+    private final AtomicLong mListenerErrors = new AtomicLong();
+
+    /**
+     * To build a new dispatcher.
+     *
+     * @param mainExecutor
+     *            the executor used for the {@link Delivery#MAIN_THREAD MAIN_THREAD} subscribers.
+     */
+    public GaiaDispatcher(Executor mainExecutor) {
+        mMainExecutor = mainExecutor;
+        for (int i = 0; i < mEvents.length(); i++) {
+            mEvents.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * To subscribe to all the packets of a command: acknowledgements and commands from the device.
+     *
+     * @param command
+     *            the command identifier without the acknowledgement bit.
+     * @param delivery
+     *            the thread to get the packets on.
+     * @param listener
+     *            the listener to give the packets to.
+     */
+    public void subscribe(int command, Delivery delivery, IPacketListener listener) {
+        int page = (command & Gaia.COMMAND_MASK) >>> 8;
+        synchronized (this) {
+            AtomicReferenceArray<Subscriber[]> slots = mCommands.get(page);
+            if (slots == null) {
+                slots = new AtomicReferenceArray<>(PAGE_SIZE);
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    slots.set(i, EMPTY);
+                }
+                mCommands.set(page, slots);
+            }
+            int slot = command & 0xFF;
+            slots.set(slot, add(slots.get(slot), new Subscriber(listener, delivery)));
+        }
+    }
+
+    /**
+     * To subscribe to the notifications of an event.
+     *
+     * @param event
+     *            the event to get the notifications of.
+     * @param delivery
+     *            the thread to get the packets on.
+     * @param listener
+     *            the listener to give the packets to.
+     */
+    public void subscribe(Gaia.EventId event, Delivery delivery, IPacketListener listener) {
+        synchronized (this) {
+            mEvents.set(event.ordinal(), add(mEvents.get(event.ordinal()), new Subscriber(listener, delivery)));
+        }
+    }
+
+    /**
+     * To subscribe to all packets.
+     *
+     * @param delivery
+     *            the thread to get the packets on.
+     * @param listener
+     *            the listener to give the packets to.
+     */
+    public void subscribeAll(Delivery delivery, IPacketListener listener) {
+        synchronized (this) {
+            mAll = add(mAll, new Subscriber(listener, delivery));
+        }
+    }
+
+    /**
+     * To unsubscribe a listener from a command.
+     *
+     * @param command
+     *            the command identifier without the acknowledgement bit.
+     * @param listener
+     *            the listener to unsubscribe.
+     */
+    public void unsubscribe(int command, IPacketListener listener) {
+        synchronized (this) {
+            AtomicReferenceArray<Subscriber[]> slots = mCommands.get((command & Gaia.COMMAND_MASK) >>> 8);
+            if (slots != null) {
+                int slot = command & 0xFF;
+                slots.set(slot, remove(slots.get(slot), listener));
+            }
+        }
+    }
+
+    /**
+     * To unsubscribe a listener from an event.
+     *
+     * @param event
+     *            the event.
+     * @param listener
+     *            the listener to unsubscribe.
+     */
+    public void unsubscribe(Gaia.EventId event, IPacketListener listener) {
+        synchronized (this) {
+            mEvents.set(event.ordinal(), remove(mEvents.get(event.ordinal()), listener));
+        }
+    }
+
+    /**
+     * To unsubscribe a listener from everything it has subscribed to.
+     *
+     * @param listener
+     *            the listener to unsubscribe.
+     */
+    public void unsubscribe(IPacketListener listener) {
+        synchronized (this) {
+            mAll = remove(mAll, listener);
+            for (int i = 0; i < mEvents.length(); i++) {
+                mEvents.set(i, remove(mEvents.get(i), listener));
+            }
+            for (int page = 0; page < PAGE_SIZE; page++) {
+                AtomicReferenceArray<Subscriber[]> slots = mCommands.get(page);
+                if (slots != null) {
+                    for (int slot = 0; slot < PAGE_SIZE; slot++) {
+                        slots.set(slot, remove(slots.get(slot), listener));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * To be told when the link closes.
+     *
+     * @param listener
+     *            the listener to tell.
+     */
+    public void addLinkListener(ILinkListener listener) {
+        synchronized (this) {
+            ILinkListener[] listeners = new ILinkListener[mLinkListeners.length + 1];
+            System.arraycopy(mLinkListeners, 0, listeners, 0, mLinkListeners.length);
+            listeners[mLinkListeners.length] = listener;
+            mLinkListeners = listeners;
+        }
+    }
+
+    /**
+     * To not be told anymore when the link closes.
+     *
+     * @param listener
+     *            the listener to remove.
+     */
+    public void removeLinkListener(ILinkListener listener) {
+        synchronized (this) {
+            for (int i = 0; i < mLinkListeners.length; i++) {
+                if (mLinkListeners[i] == listener) {
+                    ILinkListener[] listeners = new ILinkListener[mLinkListeners.length - 1];
+                    System.arraycopy(mLinkListeners, 0, listeners, 0, i);
+                    System.arraycopy(mLinkListeners, i + 1, listeners, i, listeners.length - i);
+                    mLinkListeners = listeners;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * To tell the link listeners that the link has closed: it has been disconnected or its reader has stopped. This
+     * method is called on the thread which closes the link, it may be called more than once for one disconnection.
+     */
+    public void dispatchLinkClosed() {
+        for (ILinkListener listener : mLinkListeners) {
+            try {
+                listener.onLinkClosed();
+            }
+            catch (RuntimeException e) {
+                mListenerErrors.incrementAndGet();
+                GaiaLog.w(TAG, "listener failed on link closed", e);
+            }
+        }
+    }
+
+    /**
+     * To get the executor which delivers the packets to the {@link Delivery#MAIN_THREAD MAIN_THREAD} subscribers.
+     *
+     * @return the main executor of this dispatcher.
+     */
+    public Executor getMainExecutor() {
+        return mMainExecutor;
+    }
+
+    /**
+     * To know if a command has subscribers.
+     *
+     * @param command
+     *            the command identifier without the acknowledgement bit.
+     *
+     * @return true if at least one listener is subscribed to this command.
+     */
+    public boolean hasSubscribers(int command) {
+        return getSubscribers(command).length > 0;
+    }
+
+    /**
+     * To get the number of exceptions thrown by the listeners when they were given a packet on the reader thread.
+     *
+     * @return the number of exceptions.
+     */
+    public long getListenerErrors() {
+        return mListenerErrors.get();
+    }
+
+    /**
+     * To give a packet to all its subscribers: the subscribers to its command, the subscribers to its event if it is
+     * a notification and the subscribers to all packets. This method is called on the reader thread.
+     *
+     * @param packet
+     *            the received packet.
+     *
+     * @return true if the packet had at least one subscriber.
+     */
+    public boolean dispatch(final GaiaPacket packet) {
+        Subscriber[] command = getSubscribers(packet.getCommand());
+        Gaia.EventId event = packet.getEvent();
+        Subscriber[] events = event == null ? EMPTY : mEvents.get(event.ordinal());
+        Subscriber[] all = mAll;
+
+        boolean hasMain = deliver(command, packet) | deliver(events, packet) | deliver(all, packet);
+
+        if (hasMain) {
+            final Subscriber[][] targets = { command, events, all };
+            mMainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Subscriber[] subscribers : targets) {
+                        for (Subscriber subscriber : subscribers) {
+                            if (subscriber.mDelivery == Delivery.MAIN_THREAD) {
+                                subscriber.mListener.onPacketReceived(packet);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        return command.length + events.length + all.length > 0;
+    }
+
+    /**
+     * To get the subscribers of a command.
+     */
+    private Subscriber[] getSubscribers(int command) {
+        AtomicReferenceArray<Subscriber[]> slots = mCommands.get((command & Gaia.COMMAND_MASK) >>> 8);
+        return slots == null ? EMPTY : slots.get(command & 0xFF);
+    }
+
+    /**
+     * To give a packet to the subscribers which want it on the reader thread.
+     *
+     * @return true if some subscribers want the packet on the main thread.
+     */
+    private boolean deliver(Subscriber[] subscribers, GaiaPacket packet) {
+        boolean hasMain = false;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.mDelivery == Delivery.READER_THREAD) {
+                try {
+                    subscriber.mListener.onPacketReceived(packet);
+                }
+                catch (RuntimeException e) {
+                    // a listener must not stop the reader thread
+                    mListenerErrors.incrementAndGet();
+                    GaiaLog.w(TAG, "listener failed on packet 0x" + Gaia.hexw(packet.getCommand()), e);
+                }
+            }
+            else {
+                hasMain = true;
+            }
+        }
+        return hasMain;
+    }
+
+    /**
+     * To get a copy of an array of subscribers with one more subscriber.
+     */
+    private static Subscriber[] add(Subscriber[] subscribers, Subscriber subscriber) {
+        Subscriber[] result = new Subscriber[subscribers.length + 1];
+        System.arraycopy(subscribers, 0, result, 0, subscribers.length);
+        result[subscribers.length] = subscriber;
+        return result;
+    }
+
+    /**
+     * To get a copy of an array of subscribers without the subscriptions of a listener, the same array if the listener
+     * is not in it.
+     */
+    private static Subscriber[] remove(Subscriber[] subscribers, IPacketListener listener) {
+        int count = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.mListener != listener) {
+                count++;
+            }
+        }
+        if (count == subscribers.length) {
+            return subscribers;
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        Subscriber[] result = new Subscriber[count];
+        int i = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.mListener != listener) {
+                result[i++] = subscriber;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A listener and the thread it wants its packets on.
+     */
+    private static final class Subscriber {
+        final IPacketListener mListener;
+        final Delivery mDelivery;
+
+        Subscriber(IPacketListener listener, Delivery delivery) {
+            mListener = listener;
+            mDelivery = delivery;
+        }
+    }
+
+    /**
+     * The interface to implement to receive packets from a {@link GaiaDispatcher}.
+     */
+    public interface IPacketListener {
+
+        /**
+         * Called when a packet the listener subscribed to has been received.
+         *
+         * @param packet
+         *            the received packet.
+         */
+        void onPacketReceived(GaiaPacket packet);
+    }
+
+    /**
+     * The interface to implement to know when the link of a {@link GaiaDispatcher} closes.
+     */
+    public interface ILinkListener {
+
+        /**
+         * Called when the link has closed: no packet is received anymore until it connects again. It is called on
+         * the thread which closes the link and must not block.
+         */
+        void onLinkClosed();
+    }
+}
@@ -0,0 +1,72 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+/**
+ * <p>The receiver of the events of a link: connection, disconnection, received packets and errors. It does not
+ * depend on a platform: the Android library gives the events to a Handler, a server can give them to its own
+ * queue.</p>
+ * <p>The methods are called on the threads of the link - its reader thread for the packets - and do nothing by
+ * default: a sink only overrides the events it needs. They must return quickly.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public abstract class GaiaEventSink {
+
+    /**
+     * Called when the link is connected to the device.
+     *
+     * @param address
+     *            the address of the device.
+     */
+    public void onConnected(String address) {
+    }
+
+    /**
+     * Called when the link is disconnected from the device.
+     */
+    public void onDisconnected() {
+    }
+
+    /**
+     * Called for each packet received from the device, after it has been dispatched to the subscribers of the
+     * {@link GaiaDispatcher}.
+     *
+     * @param packet
+     *            the packet.
+     */
+    public void onPacket(GaiaPacket packet) {
+    }
+
+    /**
+     * Called when an error occurs on the link.
+     *
+     * @param error
+     *            the error.
+     */
+    public void onError(GaiaError error) {
+    }
+
+    /**
+     * Called when unframed data has been sent to the device.
+     *
+     * @param length
+     *            the number of bytes sent.
+     */
+    public void onStreamed(int length) {
+    }
+}
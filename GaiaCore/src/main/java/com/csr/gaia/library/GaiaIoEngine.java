@@ -0,0 +1,572 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>This class reads many {@link GaiaLinkCore links} with a small fixed pool of threads instead of one thread per link.
+ * A link uses it once it is given with {@link GaiaLinkCore#setIoEngine(GaiaIoEngine)}, from its next connection.</p>
+ * <p>Each link is given to the worker thread which reads the fewest links. A worker polls its links in turn: it
+ * reads the bytes a link has available into its own buffer - reused for all its links - and feeds them to the
+ * {@link GaiaDeframer} of this link, the frames are then dispatched on the worker thread as they are by the thread of
+ * a link. Bluetooth sockets cannot be used with a selector so the workers rely on
+ * {@link InputStream#available() available()}: a worker which finds nothing to read parks for a time which doubles up
+ * to {@link #MAX_IDLE_TIME} and goes back to {@link #MIN_IDLE_TIME} as soon as a link has bytes. This polling adds
+ * between 1 and 10 ms to the time a frame waits before being read, see {@link ReadStatistics#getMeanWaitTime()}. A
+ * link which has had no bytes for {@link #PROBE_DELAY} is only polled every {@link #IDLE_POLL_INTERVAL}.</p>
+ * <p>{@link InputStream#available() available()} returns 0 at the end of a stream as it does when no bytes have been
+ * received. So each worker may also wait for the next byte of one of its idle links with a blocking read on a probe
+ * thread - the engine has one probe thread per worker at most. This read returns the byte as soon as it is received -
+ * the link is then polled again and the worker can probe another idle link - or detects the end of the stream or a
+ * failure, then the link is told its reader stopped. The other idle links stop being read when they are
+ * disconnected, see {@link GaiaLinkCore#disconnect()}.</p>
+ * <p>The engine keeps the read statistics of each link, see {@link #getStatistics(GaiaLinkCore)}.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaIoEngine {
+
+    /**
+     * The default number of worker threads.
+     */
+    public static final int DEFAULT_THREADS = 1;
+    /**
+     * The default size of the buffer of a worker, in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+    /**
+     * The time a worker parks when none of its links has bytes to read, in nanoseconds.
+     */
+    public static final long MIN_IDLE_TIME = 1000000;
+    /**
+     * The longest time a worker parks when its links stay idle, in nanoseconds.
+     */
+    public static final long MAX_IDLE_TIME = 10000000;
+    /**
+     * The time without bytes after which a link is read with a blocking read instead of being polled, in nanoseconds.
+     */
+    public static final long PROBE_DELAY = 100000000;
+    /**
+     * The time between two polls of a link which has had no bytes for {@link #PROBE_DELAY}, in nanoseconds.
+     */
+    public static final long IDLE_POLL_INTERVAL = 50000000;
+
+    private final Worker[] mWorkers;
+    /**
+     * The links read by this engine.
+     */
+    private final ConcurrentHashMap<GaiaLinkCore, Channel> mChannels = new ConcurrentHashMap<>();
+    /**
+     * The threads which wait in a blocking read for the next byte of an idle link, one for each worker at most.
+     */
+    private final ExecutorService mProbes;
+    private volatile boolean mRunning = true;
+
+    /**
+     * To build an engine with {@link #DEFAULT_THREADS} worker threads.
+     */
+    public GaiaIoEngine() {
+        this(DEFAULT_THREADS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * To build an engine and to start its worker threads.
+     *
+     * @param threads
+     *            the number of worker threads, at least 1.
+     * @param bufferSize
+     *            the size of the buffer of each worker: the largest read from a link.
+     */
+    public GaiaIoEngine(int threads, int bufferSize) {
+        if (threads < 1 || bufferSize < 1) {
+            throw new IllegalArgumentException("threads and buffer size must be positive");
+        }
+        mProbes = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GaiaIoEngine-probe-" + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mWorkers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            mWorkers[i] = new Worker(i, bufferSize);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * To start reading a link which has just connected.
+     *
+     * @param link
+     *            the link.
+     * @param input
+     *            the stream to read the device from.
+     * @param deframer
+     *            the deframer to feed with the bytes read.
+     */
+    void register(GaiaLinkCore link, InputStream input, GaiaDeframer deframer) {
+        if (!mRunning) {
+            throw new IllegalStateException("The engine has been shut down.");
+        }
+
+        Worker worker = mWorkers[0];
+        for (Worker candidate : mWorkers) {
+            if (candidate.mChannels.size() < worker.mChannels.size()) {
+                worker = candidate;
+            }
+        }
+
+        Channel channel = new Channel(link, input, deframer, worker);
+        Channel previous = mChannels.put(link, channel);
+        if (previous != null) {
+            stop(previous);
+        }
+        link.onReaderStarted();
+        worker.mChannels.add(channel);
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * To stop reading a link which is disconnecting. The link is told its reader stopped.
+     *
+     * @param link
+     *            the link.
+     */
+    void unregister(GaiaLinkCore link) {
+        Channel channel = mChannels.get(link);
+        if (channel != null) {
+            stop(channel);
+        }
+    }
+
+    /**
+     * To get the read statistics of a link.
+     *
+     * @param link
+     *            the link.
+     *
+     * @return the statistics since the link connected, null if the link is not read by this engine.
+     */
+    public ReadStatistics getStatistics(GaiaLinkCore link) {
+        Channel channel = mChannels.get(link);
+        if (channel == null) {
+            return null;
+        }
+        synchronized (channel) {
+            return new ReadStatistics(channel);
+        }
+    }
+
+    /**
+     * @return the number of links read by this engine.
+     */
+    public int getLinkCount() {
+        return mChannels.size();
+    }
+
+    /**
+     * @return the number of worker threads of this engine.
+     */
+    public int getThreadCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * To stop the worker threads. The links read by this engine are told their reader stopped, they must be
+     * disconnected by the application: their streams are closed then, which ends the blocking reads of the idle ones.
+     */
+    public void shutdown() {
+        mRunning = false;
+        for (Channel channel : mChannels.values()) {
+            stop(channel);
+        }
+        mProbes.shutdown();
+        for (Worker worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * To stop reading a link: it is removed from its worker and told its reader stopped, once.
+     *
+     * @param channel
+     *            the channel of the link.
+     */
+    private void stop(Channel channel) {
+        synchronized (channel) {
+            if (channel.mStopped) {
+                return;
+            }
+            channel.mStopped = true;
+        }
+        mChannels.remove(channel.mLink, channel);
+        channel.mWorker.mChannels.remove(channel);
+        channel.mLink.onReaderStopped();
+    }
+
+    /**
+     * To read the bytes available from a link and to feed them to its deframer.
+     *
+     * @param channel
+     *            the channel of the link.
+     * @param buffer
+     *            the buffer of the worker.
+     *
+     * @return true if bytes have been read.
+     */
+    private boolean read(Channel channel, byte[] buffer) {
+        IOException failure = null;
+        boolean ended = false;
+
+        synchronized (channel) {
+            if (channel.mStopped || channel.mProbing) {
+                return false;
+            }
+
+            long start = System.nanoTime();
+            boolean idle = start - channel.mLastData >= PROBE_DELAY;
+            if (idle && start - channel.mLastPoll < IDLE_POLL_INTERVAL) {
+                return false;
+            }
+            long gap = start - channel.mLastPoll;
+            channel.mLastPoll = start;
+
+            try {
+                int available = channel.mInput.available();
+                if (available <= 0) {
+                    if (idle && channel.mWorker.mProbe == null) {
+                        startProbe(channel);
+                    }
+                    return false;
+                }
+
+                int read = channel.mInput.read(buffer, 0, Math.min(available, buffer.length));
+                if (read < 0) {
+                    ended = true;
+                }
+                else {
+                    channel.mDeframer.feed(buffer, 0, read);
+                    channel.mLink.getMetrics().setGauge(GaiaLinkMetrics.GAUGE_RECEIVE_BACKLOG,
+                            channel.mInput.available());
+                    channel.mLastData = System.nanoTime();
+                    channel.record(read, channel.mLastData - start, gap);
+                }
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        return !onReadEnd(channel, failure, ended);
+    }
+
+    /**
+     * To stop polling an idle link and to wait for its next byte with a blocking read on a probe thread. To call by
+     * the worker of the link, with the lock of the channel, when this worker has no probe running.
+     *
+     * @param channel
+     *            the channel of the link.
+     */
+    private void startProbe(final Channel channel) {
+        channel.mWorker.mProbe = channel;
+        try {
+            mProbes.execute(new Runnable() {
+                @Override
+                public void run() {
+                    probe(channel);
+                }
+            });
+            channel.mProbing = true;
+        }
+        catch (RejectedExecutionException e) {
+            // the engine is shutting down: the link keeps being polled until it is stopped
+            channel.mWorker.mProbe = null;
+        }
+    }
+
+    /**
+     * To wait for the next byte of an idle link: it is fed to the deframer of the link which is then polled again.
+     * The read is done outside of the lock of the channel as it blocks, the worker doesn't poll the link meanwhile.
+     * Once the read returns, the worker can probe another of its links.
+     *
+     * @param channel
+     *            the channel of the link.
+     */
+    private void probe(Channel channel) {
+        IOException failure = null;
+        boolean ended = false;
+
+        try {
+            int value = channel.mInput.read();
+            synchronized (channel) {
+                if (channel.mStopped) {
+                    return;
+                }
+                if (value < 0) {
+                    ended = true;
+                }
+                else {
+                    long start = System.nanoTime();
+                    channel.mDeframer.feed(new byte[] { (byte) value }, 0, 1);
+                    channel.mLastData = System.nanoTime();
+                    channel.mLastPoll = channel.mLastData;
+                    // the byte has been read as soon as it was received
+                    channel.record(1, channel.mLastData - start, 0);
+                    channel.mProbing = false;
+                }
+            }
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+        finally {
+            channel.mWorker.mProbe = null;
+        }
+
+        if (!onReadEnd(channel, failure, ended)) {
+            LockSupport.unpark(channel.mWorker);
+        }
+    }
+
+    /**
+     * To stop reading a link if a read failed or found the end of its stream.
+     *
+     * @param channel
+     *            the channel of the link.
+     * @param failure
+     *            the exception thrown by the read, null if there is none.
+     * @param ended
+     *            true if the read found the end of the stream.
+     *
+     * @return true if the link is not read anymore.
+     */
+    private boolean onReadEnd(Channel channel, IOException failure, boolean ended) {
+        // the link is called outside of the lock as it may disconnect
+        if (failure != null && !channel.mStopped) {
+            channel.mLink.onReadFailed(failure);
+        }
+        if (failure != null || ended) {
+            stop(channel);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A worker thread which polls its links in turn.
+     */
+    private class Worker extends Thread {
+        final List<Channel> mChannels = new CopyOnWriteArrayList<>();
+        final byte[] mBuffer;
+        /**
+         * The link of this worker which is waited for on a probe thread, null if there is none.
+         */
+        volatile Channel mProbe;
+
+        Worker(int index, int bufferSize) {
+            super("GaiaIoEngine-" + index);
+            setDaemon(true);
+            mBuffer = new byte[bufferSize];
+        }
+
+        @Override
+        public void run() {
+            long idle = MIN_IDLE_TIME;
+
+            while (mRunning) {
+                boolean active = false;
+                for (Channel channel : mChannels) {
+                    if (read(channel, mBuffer)) {
+                        active = true;
+                    }
+                }
+
+                if (active) {
+                    idle = MIN_IDLE_TIME;
+                }
+                else {
+                    LockSupport.parkNanos(this, idle);
+                    idle = Math.min(idle * 2, MAX_IDLE_TIME);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a link read by this engine. Its statistics are guarded by its lock.
+     */
+    private static class Channel {
+        final GaiaLinkCore mLink;
+        final InputStream mInput;
+        final GaiaDeframer mDeframer;
+        final Worker mWorker;
+        final long mStartTime = System.nanoTime();
+        boolean mStopped = false;
+        /**
+         * To know if a pooled thread waits in a blocking read for the next byte of the link: the worker doesn't poll
+         * it meanwhile.
+         */
+        boolean mProbing = false;
+        long mLastPoll = mStartTime;
+        long mLastData = mStartTime;
+        long mReads = 0;
+        long mBytes = 0;
+        int mMaxReadSize = 0;
+        long mReadTime = 0;
+        long mMaxReadTime = 0;
+        long mWaitTime = 0;
+        long mMaxWaitTime = 0;
+
+        Channel(GaiaLinkCore link, InputStream input, GaiaDeframer deframer, Worker worker) {
+            mLink = link;
+            mInput = input;
+            mDeframer = deframer;
+            mWorker = worker;
+        }
+
+        /**
+         * To record one read.
+         *
+         * @param size
+         *            the number of bytes read.
+         * @param time
+         *            the time to read and deframe the bytes, in nanoseconds.
+         * @param wait
+         *            the time since the previous poll of this link, in nanoseconds.
+         */
+        void record(int size, long time, long wait) {
+            mReads++;
+            mBytes += size;
+            mMaxReadSize = Math.max(mMaxReadSize, size);
+            mReadTime += time;
+            mMaxReadTime = Math.max(mMaxReadTime, time);
+            mWaitTime += wait;
+            mMaxWaitTime = Math.max(mMaxWaitTime, wait);
+        }
+    }
+
+    /**
+     * The read statistics of one link as copied by {@link #getStatistics(GaiaLinkCore)}.
+     */
+    public static final class ReadStatistics {
+        private final long mDuration;
+        private final long mReads;
+        private final long mBytes;
+        private final int mMaxReadSize;
+        private final long mReadTime;
+        private final long mMaxReadTime;
+        private final long mWaitTime;
+        private final long mMaxWaitTime;
+
+        private ReadStatistics(Channel channel) {
+            mDuration = System.nanoTime() - channel.mStartTime;
+            mReads = channel.mReads;
+            mBytes = channel.mBytes;
+            mMaxReadSize = channel.mMaxReadSize;
+            mReadTime = channel.mReadTime;
+            mMaxReadTime = channel.mMaxReadTime;
+            mWaitTime = channel.mWaitTime;
+            mMaxWaitTime = channel.mMaxWaitTime;
+        }
+
+        /**
+         * @return the time since the link connected in nanoseconds.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return the number of reads which returned bytes.
+         */
+        public long getReads() {
+            return mReads;
+        }
+
+        /**
+         * @return the number of bytes read.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return the mean number of bytes of a read.
+         */
+        public int getMeanReadSize() {
+            return mReads == 0 ? 0 : (int) (mBytes / mReads);
+        }
+
+        /**
+         * @return the largest read in bytes.
+         */
+        public int getMaxReadSize() {
+            return mMaxReadSize;
+        }
+
+        /**
+         * @return the mean time to read and deframe the bytes of a read, in microseconds.
+         */
+        public long getMeanReadTime() {
+            return mReads == 0 ? 0 : mReadTime / mReads / 1000;
+        }
+
+        /**
+         * @return the longest time to read and deframe the bytes of a read, in microseconds.
+         */
+        public long getMaxReadTime() {
+            return mMaxReadTime / 1000;
+        }
+
+        /**
+         * @return the mean time bytes could have waited before being read - the time since the previous poll of the
+         *         link - in microseconds.
+         */
+        public long getMeanWaitTime() {
+            return mReads == 0 ? 0 : mWaitTime / mReads / 1000;
+        }
+
+        /**
+         * @return the longest time bytes could have waited before being read, in microseconds.
+         */
+        public long getMaxWaitTime() {
+            return mMaxWaitTime / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "reads " + mReads + " (" + mBytes + " bytes, mean " + getMeanReadSize() + ", max " + mMaxReadSize
+                    + "), read time mean " + getMeanReadTime() + " us, max " + getMaxReadTime()
+                    + " us, wait mean " + getMeanWaitTime() + " us, max " + getMaxWaitTime() + " us";
+        }
+    }
+}
@@ -0,0 +1,1288 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import com.csr.gaia.library.Gaia.Status;
+import com.csr.gaia.library.data.GaiaDataChannel;
+import com.csr.gaia.library.exceptions.GaiaFrameException;
+import com.csr.gaia.library.notifications.NotificationCenter;
+import com.csr.gaia.library.recorder.GaiaTrafficRecorder;
+import com.csr.gaia.library.values.DeviceValueDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>This class is the part of the link with a Gaia device which does not depend on the platform: it frames the
+ * commands, reads and dispatches the packets, holds the commands during a DFU and keeps the metrics of the link. It
+ * runs on any JVM over the streams given to {@link #connect(InputStream, OutputStream, String)}, for instance to a
+ * {@link com.csr.gaia.library.tools.SimulatedDevice SimulatedDevice} in a test.</p>
+ * <p>The link gives its events to a {@link GaiaEventSink} and delivers the packets of the subscribers which ask for
+ * the main thread on the executor given to its constructor. The Android library extends it with the Bluetooth
+ * connections and a {@link GaiaEventSink} which posts to a Handler.</p>
+ */
+@SuppressWarnings("unused")
+public class GaiaLinkCore {
+
+    /**
+     * All types of transports which could be used to communicate with the device.
+     */
+    public enum Transport {
+        BT_SPP, BT_GAIA,
+        /**
+         * A connection over streams given by the application, for instance to an in-process device.
+         */
+        STREAM
+    }
+
+    // End of public fields
+
+    private static final String TAG = "GaiaLink";
+    private static boolean mDebug = true;
+
+    /**
+     * The executor of the links which have no main thread: the tasks run on the thread which gives them.
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @SuppressWarnings("FieldCanBeLocal")
+    private final int MAX_BUFFER = 1024;
+    private boolean mVerbose = false;
+    /**
+     * The maximum number of frames held while a DFU is running.
+     */
+    private static final int MAX_HELD_FRAMES = 256;
+    /**
+     * The time during which the late acknowledgement of a request which timed out is still expected, in milliseconds.
+     */
+    private static final long LATE_ACKNOWLEDGEMENT_TIME = 10000;
+    /**
+     * True while a DFU image is sent: the other commands are held until it ends.
+     */
+    private volatile boolean mDfuBusy = false;
+    /**
+     * The frames sent by the application while a DFU is running, sent once it ends.
+     */
+    private final Queue<byte[]> mHeldFrames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mHeldCount = new AtomicInteger();
+
+    private InputStream mInputStream = null;
+    private OutputStream mOutputStream = null;
+    /**
+     * Held while a frame is written so that frames sent from several threads are not interleaved.
+     */
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    /**
+     * The address given to the application when the link connects.
+     */
+    private String mAddress = null;
+    /**
+     * The thread which reads this link when it has no I/O engine, null once the link is disconnected.
+     */
+    private volatile Thread mReader;
+    /**
+     * The factory of the reader threads, null to create plain threads.
+     */
+    private volatile ThreadFactory mReaderFactory = null;
+    /**
+     * The engine which reads this link with the other links, null to read it with its own thread.
+     */
+    private volatile GaiaIoEngine mIoEngine = null;
+    /**
+     * The deframer of the bytes received from the device, fed by the thread which reads this link.
+     */
+    private final GaiaDeframer mDeframer = new GaiaDeframer(new GaiaDeframer.IFrameListener() {
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            onFrameReceived(frame, length);
+        }
+
+        @Override
+        public void onResync(int discarded) {
+            mMetrics.onResync(discarded);
+        }
+    });
+    /**
+     * The sink which receives the events of this link, null if nothing listens to them.
+     */
+    private volatile GaiaEventSink mEventSink = null;
+
+    private Transport mTransport = Transport.BT_GAIA;
+    private boolean mIsConnected = false;
+
+    /**
+     * The performance counters of this link.
+     */
+    private final GaiaLinkMetrics mMetrics = new GaiaLinkMetrics();
+    /**
+     * The recorder of the raw frames exchanged with the device, null if the traffic is not recorded.
+     */
+    private volatile GaiaTrafficRecorder mRecorder = null;
+    /**
+     * The dispatcher which gives the received packets to their subscribers.
+     */
+    private final GaiaDispatcher mDispatcher;
+    /**
+     * The decoder of the device state values, it decodes the packets on the reader thread.
+     */
+    private final DeviceValueDecoder mValueDecoder;
+    /**
+     * The publishers of the notifications, they deliver on the main thread by default.
+     */
+    private final NotificationCenter mNotifications;
+    /**
+     * The commands sent with {@link #request(int, int, byte[], long) request} waiting for their acknowledgement, by
+     * command identifier in the order they were sent.
+     */
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Waiter>> mWaiters = new ConcurrentHashMap<>();
+
+    /**
+     * To build a link for a host which has no main thread, such as a tool or a test: the packets of the subscribers
+     * which ask for the main thread are delivered on the reader thread.
+     */
+    public GaiaLinkCore() {
+        this(DIRECT_EXECUTOR);
+    }
+
+    /**
+     * To build a link.
+     *
+     * @param mainExecutor
+     *            the executor of the main thread of the application: the packets and the results of the services are
+     *            delivered on it when their subscribers ask for the main thread.
+     */
+    public GaiaLinkCore(Executor mainExecutor) {
+        mDispatcher = new GaiaDispatcher(mainExecutor);
+        mValueDecoder = new DeviceValueDecoder(mDispatcher);
+        mNotifications = new NotificationCenter(mDispatcher);
+    }
+
+    /**
+     * Returns the used transport.
+     * 
+     * @return The transport used to connect to a device.
+     */
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Establishes a connection over the given streams, using the {@link Transport#STREAM STREAM} transport. The
+     * streams are closed when the link is disconnected.
+     *
+     * @param input
+     *            The stream to read the device frames from.
+     * @param output
+     *            The stream to write the frames for the device to.
+     * @param address
+     *            The name which identifies the device for the application.
+     */
+    public void connect(InputStream input, OutputStream output, String address) {
+
+        if (mIsConnected) {
+            handleError("connect: already connected.", GaiaError.TypeException.ALREADY_CONNECTED);
+        }
+
+        else if (input == null || output == null) {
+            handleError("connect: at least one argument is null.", GaiaError.TypeException.ILLEGAL_ARGUMENT);
+        }
+
+        else {
+            mTransport = Transport.STREAM;
+            attachStreams(input, output, address);
+        }
+    }
+
+    /**
+     * To start the connection over the streams of a transport opened by a subclass, for instance a Bluetooth socket.
+     * The transport has to be set first with {@link #setTransport(Transport)}.
+     *
+     * @param input
+     *            The stream to read the device frames from.
+     * @param output
+     *            The stream to write the frames for the device to.
+     * @param address
+     *            The address of the device given to the application.
+     */
+    protected void attachStreams(InputStream input, OutputStream output, String address) {
+        mAddress = address;
+        mInputStream = input;
+        mOutputStream = output;
+        startReading();
+    }
+
+    /**
+     * To set the transport of the next connection, for the subclasses which open their own connections.
+     *
+     * @param transport
+     *            the transport.
+     */
+    protected void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Set the debug level which controls how verbose we are with debugging information sent to logcat.
+     * 
+     * @param level
+     *            The debug level. Set to zero for no debug logging, 1 for standard debug messages, 2 for verbose debug
+     *            messages.
+     */
+    @SuppressWarnings("unused")
+    public void setDebugLevel(int level) {
+        mDebug = level > 0;
+        mVerbose = level > 1;
+    }
+
+    /**
+     * Disconnects from the remote device.
+     */
+    public void disconnect() {
+        mIsConnected = false;
+        mDfuBusy = false;
+        // nothing can be sent anymore
+        mHeldFrames.clear();
+        mHeldCount.set(0);
+        mValueDecoder.clear();
+
+        GaiaIoEngine engine = mIoEngine;
+        if (engine != null) {
+            engine.unregister(this);
+        }
+
+        closeConnection();
+        releaseWaiters();
+        mDispatcher.dispatchLinkClosed();
+    }
+
+    /**
+     * Sends unframed data to the remote device
+     *
+     * @param buffer
+     *            The data to send
+     */
+    public void sendRaw(byte[] buffer) throws IOException {
+        sendRaw(buffer, buffer.length);
+    }
+
+    /**
+     * Sends unframed data to the remote device
+     *
+     * @param buffer
+     *            The data to send
+     * @param count
+     *            The number of bytes to send
+     */
+    public void sendRaw(byte[] buffer, int count) throws IOException {
+        OutputStream o = mOutputStream;
+        if (o == null) {
+            throw new IOException("sendRaw: not connected.");
+        }
+        mWriteLock.lock();
+        try {
+            o.write(buffer, 0, count);
+            o.flush();
+        }
+        finally {
+            mWriteLock.unlock();
+        }
+        mMetrics.onRawSent(count);
+
+        GaiaEventSink sink = mEventSink;
+        if (sink != null) {
+            sink.onStreamed(count);
+        }
+    }
+
+    /**
+     * Sends a Gaia command to the remote device.
+     * 
+     * @param vendorId
+     *            The vendor identifier qualifying the command.
+     * @param commandId
+     *            The command identifier.
+     * @param payload
+     *            Array of command-specific bytes.
+     * @param payloadLength
+     *            The number of payload bytes to send.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void sendCommand(int vendorId, int commandId, byte[] payload, int payloadLength) {
+        byte[] data;
+        try {
+            data = Gaia.frame(vendorId, commandId, payload, payloadLength);
+            sendCommandData(data, commandId);
+        }
+        catch (GaiaFrameException e) {
+            handleException("sendCommand", GaiaError.TypeException.SENDING_FAILED, e, commandId);
+        }
+    }
+
+    /**
+     * Sends a Gaia command to the remote device.
+     * 
+     * @param vendorId
+     *            The vendor identifier qualifying the command.
+     * @param commandId
+     *            The command identifier.
+     * @param payload
+     *            Array of command-specific bytes.
+     */
+    public void sendCommand(int vendorId, int commandId, byte[] payload) {
+        if (payload == null)
+            sendCommand(vendorId, commandId);
+
+        else
+            sendCommand(vendorId, commandId, payload, payload.length);
+    }
+
+    /**
+     * Sends a Gaia command to the remote device.
+     * 
+     * @param vendorId
+     *            The vendor identifier qualifying the command.
+     * @param commandId
+     *            The command identifier.
+     * @param param
+     *            Command-specific integers.
+     */
+    public void sendCommand(int vendorId, int commandId, int... param) {
+        if (param == null || param.length == 0) {
+            byte[] data;
+            try {
+                data = Gaia.frame(vendorId, commandId);
+                sendCommandData(data, commandId);
+            }
+            catch (GaiaFrameException e) {
+                handleException("sendCommand", GaiaError.TypeException.SENDING_FAILED, e, commandId);
+            }
+        }
+
+        else {
+            // Convenient but involves copying the payload twice. It's usually short.
+            byte[] payload;
+            payload = new byte[param.length];
+
+            for (int idx = 0; idx < param.length; ++idx)
+                payload[idx] = (byte) param[idx];
+
+            sendCommand(vendorId, commandId, payload);
+        }
+    }
+
+    /**
+     * Sends a Gaia enable-style command to the remote device.
+     * 
+     * @param vendorId
+     *            The vendor identifier qualifying the command.
+     * @param commandId
+     *            The command identifier.
+     * @param enable
+     *            Enable (true) or disable (false).
+     */
+    @SuppressWarnings("SameParameterValue")
+    public void sendCommand(int vendorId, int commandId, boolean enable) {
+        sendCommand(vendorId, commandId, enable ? Gaia.FEATURE_ENABLED : Gaia.FEATURE_DISABLED);
+    }
+
+    /**
+     * Sends a Gaia acknowledgement to the remote device.
+     * 
+     * @param vendorId
+     *            The vendor identifier qualifying the command.
+     * @param commandId
+     *            The command identifier.
+     * @param status
+     *            The status of the command.
+     * @param param
+     *            Acknowledgement-specific integers.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void sendAcknowledgement(int vendorId, int commandId, Gaia.Status status, int... param) {
+        // Convenient but involves copying the payload twice. It's usually short.
+        byte[] payload;
+
+        if (param == null)
+            payload = new byte[1];
+
+        else {
+            payload = new byte[param.length + 1];
+
+            for (int idx = 0; idx < param.length; ++idx)
+                payload[idx + 1] = (byte) param[idx];
+        }
+
+        payload[0] = (byte) status.ordinal();
+        sendCommand(vendorId, commandId | Gaia.ACK_MASK, payload);
+    }
+
+    /**
+     * Sends a Gaia acknowledgement to the remote device.
+     *
+     * @param packet
+     *            The packet which contains the vendorId and the command id for this acknowledgment.
+     * @param status
+     *            The status of the command.
+     */
+    public void sendAcknowledgement(GaiaPacket packet, Status status) {
+        sendAcknowledgement(packet.getVendorId(), packet.getCommandId(), status);
+    }
+
+    /**
+     * Sends a Gaia acknowledgement to the remote device.
+     *
+     * @param packet
+     *            The packet which contains the vendorId and the command id for this acknowledgment.
+     * @param status
+     *            The status of the command.
+     *
+     * @param payload
+     *            Any complementary information for this acknowledgment packet.
+     */
+    public void sendAcknowledgement(GaiaPacket packet, Status status, int... payload) {
+        sendAcknowledgement(packet.getVendorId(), packet.getCommandId(), status, payload);
+    }
+
+    /**
+     * <p>To send a command and to wait for its acknowledgement, for the hosts which call the device synchronously such
+     * as the tools. Several threads can send at once: the acknowledgements of a same command are matched in the order
+     * the commands were sent. The acknowledgement is also dispatched as any other packet.</p>
+     * <p>A command which times out keeps its place for a while: its late acknowledgement is dropped instead of being
+     * given to the next command sent.</p>
+     * <p>A command sent during a DFU is held as the ones of {@link #sendCommand(int, int, byte[]) sendCommand}: the
+     * timeout has to allow for the DFU. It fails at once if too many commands are already held.</p>
+     *
+     * @param vendorId
+     *            The vendor identifier qualifying the command.
+     * @param commandId
+     *            The command identifier.
+     * @param payload
+     *            Array of command-specific bytes, can be null.
+     * @param timeout
+     *            The time to wait for the acknowledgement, in milliseconds.
+     *
+     * @return the acknowledgement, its status has to be checked by the caller.
+     *
+     * @throws IOException
+     *             if the command cannot be sent, if the device does not acknowledge it in time or if the link is
+     *             disconnected meanwhile.
+     */
+    public GaiaPacket request(int vendorId, int commandId, byte[] payload, long timeout) throws IOException {
+        byte[] data;
+        try {
+            data = Gaia.frame(vendorId, commandId, payload);
+        }
+        catch (GaiaFrameException e) {
+            throw new IOException("Cannot build frame: " + e.toString());
+        }
+
+        Waiter waiter = new Waiter();
+        ConcurrentLinkedQueue<Waiter> queue = getWaiters(commandId & Gaia.COMMAND_MASK);
+        // the commands whose acknowledgement never came are not waited for anymore
+        long now = System.nanoTime();
+        Waiter first;
+        while ((first = queue.peek()) != null && first.isForgotten(now)) {
+            queue.remove(first);
+        }
+        // queued before the write so that a fast acknowledgement finds its command
+        queue.add(waiter);
+        try {
+            if (mDfuBusy && !isDfuTraffic(commandId)) {
+                if (!holdFrame(data, commandId)) {
+                    throw new IOException(mAddress + ": DFU in progress, too many held commands");
+                }
+            }
+            else {
+                writeFrame(data, commandId);
+            }
+        }
+        catch (IOException e) {
+            queue.remove(waiter);
+            throw e;
+        }
+
+        try {
+            if (!waiter.mLatch.await(timeout, TimeUnit.MILLISECONDS)) {
+                waiter.expire();
+                throw new IOException(mAddress + ": no acknowledgement of 0x" + Gaia.hexw(commandId) + " after "
+                        + timeout + " ms");
+            }
+        }
+        catch (InterruptedException e) {
+            waiter.expire();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(mAddress + ": interrupted while waiting for 0x" + Gaia.hexw(commandId));
+        }
+
+        if (waiter.mPacket == null) {
+            throw new IOException(mAddress + ": connection closed");
+        }
+        return waiter.mPacket;
+    }
+
+    /**
+     * Requests notification of the given event
+     * 
+     * @param event
+     *            The Event for which notifications are to be raised
+     */
+    @SuppressWarnings("SameParameterValue")
+    public void registerNotification(int vendorID, Gaia.EventId event) throws IllegalArgumentException {
+        byte[] args;
+
+        switch (event) {
+        case START:
+        case DEVICE_STATE_CHANGED:
+        case DEBUG_MESSAGE:
+        case BATTERY_CHARGED:
+        case CHARGER_CONNECTION:
+        case CAPSENSE_UPDATE:
+        case USER_ACTION:
+        case SPEECH_RECOGNITION:
+        case AV_COMMAND:
+        case REMOTE_BATTERY_LEVEL:
+        case VMU_PACKET:
+        case DFU_STATE:
+        case UART_RECEIVED_DATA:
+            args = new byte[1];
+            break;
+
+        default:
+            handleException("registerNotification", GaiaError.TypeException.ILLEGAL_ARGUMENT, null,
+                    Gaia.COMMAND_REGISTER_NOTIFICATION);
+            return;
+        }
+
+        args[0] = (byte) event.ordinal();
+        sendCommand(vendorID, Gaia.COMMAND_REGISTER_NOTIFICATION, args);
+    }
+
+    /**
+     * Requests notification of the given event
+     * 
+     * @param event
+     *            The Event for which notifications are to be raised
+     * @param level
+     *            The level at which events are to be raised
+     */
+    public void registerNotification(int vendorID, Gaia.EventId event, int level) {
+        byte[] args;
+
+        switch (event) {
+        case RSSI_LOW_THRESHOLD:
+        case RSSI_HIGH_THRESHOLD:
+            args = new byte[2];
+            args[1] = (byte) level;
+            vendorID = Gaia.VENDOR_CSR;
+            break;
+
+        case BATTERY_LOW_THRESHOLD:
+        case BATTERY_HIGH_THRESHOLD:
+            args = new byte[3];
+            args[1] = (byte) (level >>> 8);
+            args[2] = (byte) level;
+            vendorID = Gaia.VENDOR_CSR;
+            break;
+
+        case PIO_CHANGED:
+            args = new byte[5];
+            args[1] = (byte) (level >>> 24);
+            args[2] = (byte) (level >>> 16);
+            args[3] = (byte) (level >>> 8);
+            args[4] = (byte) level;
+            break;
+
+        default:
+            handleException("registerNotification", GaiaError.TypeException.ILLEGAL_ARGUMENT, null,
+                    Gaia.COMMAND_REGISTER_NOTIFICATION);
+            return;
+        }
+
+        args[0] = (byte) event.ordinal();
+        sendCommand(vendorID, Gaia.COMMAND_REGISTER_NOTIFICATION, args);
+    }
+
+    /**
+     * Requests notification of the given event
+     * 
+     * @param event
+     *            The Event for which notifications are to be raised
+     * @param level1
+     *            The first level at which events are to be raised
+     * @param level2
+     *            The second level at which events are to be raised
+     */
+    public void registerNotification(Gaia.EventId event, int level1, int level2) {
+        byte[] args;
+
+        switch (event) {
+        case RSSI_LOW_THRESHOLD:
+        case RSSI_HIGH_THRESHOLD:
+            args = new byte[3];
+            args[1] = (byte) level1;
+            args[2] = (byte) level2;
+            break;
+
+        case BATTERY_LOW_THRESHOLD:
+        case BATTERY_HIGH_THRESHOLD:
+            args = new byte[5];
+            args[1] = (byte) (level1 >>> 8);
+            args[2] = (byte) level1;
+            args[3] = (byte) (level2 >>> 8);
+            args[4] = (byte) level2;
+            break;
+
+        default:
+            handleException("registerNotification", GaiaError.TypeException.ILLEGAL_ARGUMENT, null,
+                    Gaia.COMMAND_REGISTER_NOTIFICATION);
+            return;
+        }
+
+        args[0] = (byte) event.ordinal();
+        sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_REGISTER_NOTIFICATION, args);
+    }
+
+    /**
+     * Requests the status of notifications for the given event
+     * 
+     * @param event
+     *            The Event for which the status is requested
+     */
+    public void getNotification(int vendorID, Gaia.EventId event) {
+        byte[] args = new byte[1];
+        args[0] = (byte) event.ordinal();
+        sendCommand(vendorID, Gaia.COMMAND_GET_NOTIFICATION, args);
+    }
+
+    /**
+     * Cancels notification of the given event
+     * 
+     * @param event
+     *            The Event for which notifications are no longer to be raised.
+     */
+    @SuppressWarnings("SameParameterValue")
+    public void cancelNotification(int vendorID, Gaia.EventId event) {
+        byte[] args = new byte[1];
+        args[0] = (byte) event.ordinal();
+        sendCommand(vendorID, Gaia.COMMAND_CANCEL_NOTIFICATION, args);
+    }
+
+    /**
+     * Sets the sink for the events of this link.
+     *
+     * @param sink
+     *            The sink for the events of this link, null to stop receiving them.
+     */
+    public void setEventSink(GaiaEventSink sink) {
+        mEventSink = sink;
+    }
+
+    /**
+     * @return the sink for the events of this link, null if nothing listens to them.
+     */
+    public GaiaEventSink getEventSink() {
+        return mEventSink;
+    }
+
+    /**
+     * To create the threads which read this link, for instance virtual threads. This has no effect on a link read by
+     * an I/O engine or on a link which is already connected.
+     *
+     * @param factory
+     *            the factory of the reader threads, null to create plain threads.
+     */
+    public void setReaderThreadFactory(ThreadFactory factory) {
+        mReaderFactory = factory;
+    }
+
+    /**
+     * Task of the thread which reads incoming packets from SPP, GAIA or the streams.
+     */
+    private class Reader implements Runnable {
+        boolean going;
+
+        public void run() {
+            runSppReader();
+            onReaderStopped();
+        }
+
+        private void runSppReader() {
+            byte[] buffer = new byte[MAX_BUFFER];
+            int bytes;
+
+            GaiaLog.i(TAG, "runSppReader start...");
+
+            onReaderStarted();
+            going = true;
+
+            while (going) {
+                try {
+                    bytes = mInputStream.read(buffer);
+
+                    if (bytes < 0) {
+                        going = false;
+                    }
+                    else {
+                        mDeframer.feed(buffer, 0, bytes);
+                        mMetrics.setGauge(GaiaLinkMetrics.GAUGE_RECEIVE_BACKLOG, mInputStream.available());
+                    }
+                }
+                catch (IOException e) {
+                    // closing the link on a disconnection is not a failure
+                    if (mReader == Thread.currentThread())
+                        onReadFailed(e);
+                    going = false;
+                }
+            }
+
+        }
+    }
+
+    /**
+     * To start reading the frames from the device: with the I/O engine of this link if there is one, with a
+     * dedicated thread otherwise.
+     */
+    private void startReading() {
+        mDeframer.reset();
+        GaiaIoEngine engine = mIoEngine;
+        if (engine != null) {
+            engine.register(this, mInputStream, mDeframer);
+        }
+        else {
+            ThreadFactory factory = mReaderFactory;
+            Thread reader = factory == null ? new Thread(new Reader(), "GaiaLink-" + mAddress)
+                    : factory.newThread(new Reader());
+            mReader = reader;
+            reader.start();
+        }
+    }
+
+    /**
+     * Called by the thread which reads this link when it starts reading.
+     */
+    void onReaderStarted() {
+        GaiaEventSink sink = mEventSink;
+        if (sink != null)
+            sink.onConnected(mAddress);
+        mIsConnected = true;
+    }
+
+    /**
+     * Called by the thread which reads this link when it stops reading: the link is disconnected.
+     */
+    void onReaderStopped() {
+        mIsConnected = false;
+        // the values of this connection are stale, as on a disconnection from the application
+        mValueDecoder.clear();
+        releaseWaiters();
+        mDispatcher.dispatchLinkClosed();
+        GaiaEventSink sink = mEventSink;
+        if (sink == null)
+            GaiaLog.e(TAG, "reader: no event sink");
+        else
+            sink.onDisconnected();
+    }
+
+    /**
+     * Called by the thread which reads this link when reading fails.
+     *
+     * @param e
+     *            the exception thrown by the input stream.
+     */
+    void onReadFailed(IOException e) {
+        handleError("RunSPPReader failed: " + e.toString(), GaiaError.TypeException.RECEIVING_FAILED);
+    }
+
+    /**
+     * To handle a frame received from the device.
+     *
+     * @param packet
+     *            the buffer which contains the frame.
+     * @param length
+     *            the length of the frame.
+     */
+    private void onFrameReceived(byte[] packet, int length) {
+        if (mVerbose)
+            GaiaLog.d(TAG, "got " + length);
+
+        GaiaTrafficRecorder recorder = mRecorder;
+        if (recorder != null)
+            recorder.record(GaiaTrafficRecorder.DIRECTION_RECEIVED, packet, 0, length);
+
+        mMetrics.onFrameReceived(
+                ((packet[Gaia.OFFS_COMMAND_ID] & 0xFF) << 8) | (packet[Gaia.OFFS_COMMAND_ID + 1] & 0xFF), length);
+
+        GaiaPacket command = new GaiaPacket(packet, length);
+
+        if (command.getEvent() == Gaia.EventId.START && !mIsConnected) {
+            if (mDebug)
+                GaiaLog.i(TAG, "connection starts");
+            GaiaEventSink sink = mEventSink;
+            if (sink != null)
+                sink.onConnected(mAddress);
+            mIsConnected = true;
+        }
+
+        else {
+            if (mDebug)
+                GaiaLog.i(TAG, "received command 0x" + Gaia.hexw(command.getCommand()));
+
+            if (command.isAcknowledgement()) {
+                ConcurrentLinkedQueue<Waiter> queue = mWaiters.get(command.getCommand());
+                if (queue != null) {
+                    matchWaiter(queue, command);
+                }
+            }
+
+            boolean dispatched = mDispatcher.dispatch(command);
+
+            GaiaEventSink sink = mEventSink;
+            if (sink != null)
+                sink.onPacket(command);
+            else if (!dispatched && mDebug)
+                GaiaLog.e(TAG, "No receiver");
+        }
+    }
+
+    /**
+     * To get the address of the connected device: its Bluetooth address or the name given to a stream connection.
+     *
+     * @return the address of the device, null if no device has been connected.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * To share the threads which read the device with other links: the next connections of this link are read by the
+     * given engine instead of a dedicated thread. This has no effect on a link which is already connected.
+     *
+     * @param engine
+     *            the engine to read this link with, null to read it with its own thread.
+     */
+    public void setIoEngine(GaiaIoEngine engine) {
+        mIoEngine = engine;
+    }
+
+    /**
+     * @return the engine which reads this link, null if the link is read by its own thread.
+     */
+    public GaiaIoEngine getIoEngine() {
+        return mIoEngine;
+    }
+
+    /**
+     * To get the performance counters of this link: frames and bytes sent and received, command latencies, errors.
+     *
+     * @return the metrics registry of this link, use {@link GaiaLinkMetrics#snapshot()} to export its values.
+     */
+    public GaiaLinkMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * <p>To get the dispatcher of the received packets.</p>
+     * <p>Any number of subscribers can register to it for a command, an event or all packets. The packets are also
+     * given to the sink set with {@link #setEventSink(GaiaEventSink)}.</p>
+     *
+     * @return the dispatcher of this link.
+     */
+    public GaiaDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * To get the decoder of the device state values: battery level, RSSI, API version, EQ parameters, TWS volume and
+     * routing. Its subscribers only get the values which changed.
+     *
+     * @return the value decoder of this link.
+     */
+    public DeviceValueDecoder getValueDecoder() {
+        return mValueDecoder;
+    }
+
+    /**
+     * <p>To get the notifications of this link as streams delivered on demand, one for each event. A slow subscriber
+     * never slows down the reader thread: its overflow policy decides which notifications it loses.</p>
+     * <p>The subscriptions stay across the connections of this link. The notifications still have to be registered
+     * to the device with {@link #registerNotification(int, Gaia.EventId)}.</p>
+     *
+     * @return the notification publishers of this link.
+     */
+    public NotificationCenter getNotifications() {
+        return mNotifications;
+    }
+
+    /**
+     * To open a full-duplex channel for application data with the default settings of {@link GaiaDataChannel}. This
+     * method blocks until the device has opened the session.
+     *
+     * @return the channel, to close once the transfer is complete.
+     *
+     * @throws IOException
+     *             if the device does not open a session.
+     */
+    public GaiaDataChannel openDataChannel() throws IOException {
+        return GaiaDataChannel.open(this);
+    }
+
+    /**
+     * To record all the frames exchanged with the device.
+     *
+     * @param recorder
+     *            the recorder to give the frames to, null to stop recording.
+     */
+    public void setTrafficRecorder(GaiaTrafficRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * To get the recorder of the frames exchanged with the device.
+     *
+     * @return the recorder or null if the traffic is not recorded.
+     */
+    public GaiaTrafficRecorder getTrafficRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * To know if we are connected to a device, using this library.
+     * 
+     * @return true if we are connected, else otherwise.
+     */
+    public boolean isConnected() {
+        return mIsConnected;
+    }
+
+    /**
+     * Write data to the device, or hold it while a DFU is running.
+     *
+     * @param data
+     *            Array of bytes to send.
+     */
+    private void sendCommandData(byte[] data, int commandId) {
+        if (mDfuBusy && !isDfuTraffic(commandId)) {
+            holdFrame(data, commandId);
+        }
+        else {
+            OutputStream output = mOutputStream;
+            if (output == null) {
+                handleError("sendCommandData: not connected.", GaiaError.TypeException.NOT_CONNECTED);
+            }
+            else {
+                try {
+                    writeFrame(data, commandId);
+                }
+                catch (IOException e) {
+                    handleException("sendCommandData", GaiaError.TypeException.SENDING_FAILED, e, commandId);
+                }
+            }
+        }
+    }
+
+    /**
+     * To write a frame to the device.
+     *
+     * @param data
+     *            the frame.
+     * @param commandId
+     *            the command of the frame.
+     *
+     * @throws IOException
+     *             if the link is not connected or the write fails.
+     */
+    private void writeFrame(byte[] data, int commandId) throws IOException {
+        OutputStream output = mOutputStream;
+        if (output == null) {
+            throw new IOException("writeFrame: not connected.");
+        }
+        if (mDebug)
+            GaiaLog.i(TAG, "send command 0x" + Gaia.hexw(commandId));
+        // a frame is written whole: the streams don't keep the writes of several threads apart
+        mWriteLock.lock();
+        try {
+            // recorded before the write so that a fast acknowledgement finds its command
+            mMetrics.onFrameSent(commandId, data.length);
+            GaiaTrafficRecorder recorder = mRecorder;
+            if (recorder != null)
+                recorder.record(GaiaTrafficRecorder.DIRECTION_SENT, data, 0, data.length);
+
+            output.write(data);
+        }
+        finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private ConcurrentLinkedQueue<Waiter> getWaiters(int commandId) {
+        ConcurrentLinkedQueue<Waiter> queue = mWaiters.get(commandId);
+        if (queue == null) {
+            ConcurrentLinkedQueue<Waiter> created = new ConcurrentLinkedQueue<>();
+            queue = mWaiters.putIfAbsent(commandId, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * To give an acknowledgement to the oldest command waiting for it. A command which timed out is still first in
+     * line until it is forgotten: the acknowledgement is then its late one and it is dropped.
+     */
+    private static void matchWaiter(ConcurrentLinkedQueue<Waiter> queue, GaiaPacket acknowledgement) {
+        long now = System.nanoTime();
+        Waiter waiter;
+        while ((waiter = queue.poll()) != null) {
+            if (!waiter.isExpired) {
+                waiter.mPacket = acknowledgement;
+                waiter.mLatch.countDown();
+                return;
+            }
+            if (!waiter.isForgotten(now)) {
+                return;
+            }
+            // the acknowledgement of a forgotten command has been lost, this one is for the next command
+        }
+    }
+
+    /**
+     * To fail the commands waiting for their acknowledgement: the link is disconnected.
+     */
+    private void releaseWaiters() {
+        for (ConcurrentLinkedQueue<Waiter> queue : mWaiters.values()) {
+            Waiter waiter;
+            while ((waiter = queue.poll()) != null) {
+                waiter.mLatch.countDown();
+            }
+        }
+    }
+
+    /**
+     * To know if a frame can be sent while a DFU is running: the DFU commands and all acknowledgements.
+     */
+    private static boolean isDfuTraffic(int commandId) {
+        int command = commandId & Gaia.COMMAND_MASK;
+        return (commandId & Gaia.ACK_MASK) != 0
+                || (command >= Gaia.COMMAND_DFU_REQUEST && command <= Gaia.COMMAND_DFU_GET_RESULT);
+    }
+
+    /**
+     * To keep a frame until the running DFU ends. The frame is refused if too many frames are already held.
+     *
+     * @return true if the frame is held, false if it is refused.
+     */
+    private boolean holdFrame(byte[] data, int commandId) {
+        if (mHeldCount.incrementAndGet() > MAX_HELD_FRAMES) {
+            mHeldCount.decrementAndGet();
+            handleException("sendCommandData: DFU in progress, too many held commands.",
+                    GaiaError.TypeException.SENDING_FAILED, null, commandId);
+            return false;
+        }
+        mHeldFrames.add(data);
+        if (!mDfuBusy) {
+            // the DFU ended meanwhile
+            flushHeldFrames();
+        }
+        return true;
+    }
+
+    /**
+     * To send the frames held during a DFU, in the order they were given.
+     */
+    private void flushHeldFrames() {
+        byte[] frame;
+        while (!mDfuBusy && (frame = mHeldFrames.poll()) != null) {
+            mHeldCount.decrementAndGet();
+            int commandId = ((frame[Gaia.OFFS_COMMAND_ID] & 0xFF) << 8) | (frame[Gaia.OFFS_COMMAND_ID + 1] & 0xFF);
+            sendCommandData(frame, commandId);
+        }
+    }
+
+    /**
+     * To start or end a DFU: while it runs only the DFU commands and the acknowledgements are sent, the other
+     * commands are held and sent in order once it ends.
+     *
+     * @param busy
+     *            true when the DFU starts, false when it ends.
+     */
+    void setDfuBusy(boolean busy) {
+        mDfuBusy = busy;
+        if (!busy) {
+            flushHeldFrames();
+        }
+    }
+
+    /**
+     * @return true while a DFU is running.
+     */
+    public boolean isDfuBusy() {
+        return mDfuBusy;
+    }
+
+    /**
+     * @return the number of commands held until the running DFU ends.
+     */
+    public int getHeldCommandCount() {
+        return mHeldCount.get();
+    }
+
+    /**
+     * To close the streams of the connection, called by {@link #disconnect()}. The subclasses which open their own
+     * connections close them after calling this method.
+     */
+    protected void closeConnection() {
+        if (mDebug)
+            GaiaLog.i(TAG, "disconnect " + mTransport);
+
+        mReader = null;
+        OutputStream output = mOutputStream;
+        mOutputStream = null;
+
+        try {
+            if (mInputStream != null)
+                mInputStream.close();
+
+            if (output != null)
+                output.close();
+        }
+        catch (IOException e) {
+            if (mDebug)
+                GaiaLog.e(TAG, e.toString());
+        }
+
+        mMetrics.clearPending();
+    }
+
+    /**
+     * @return true if the debug messages of the links are logged.
+     */
+    protected static boolean isDebug() {
+        return mDebug;
+    }
+
+    /**
+     * To handle exceptions when it needs to inform the related application.
+     *
+     * @param name
+     *            The method name from where this method is called.
+     * @param type
+     *            The type of errors to inform the application.
+     * @param exception
+     *            If there is an exception, add it here, otherwise "null".
+     */
+    @SuppressWarnings("SameParameterValue")
+    protected void handleException(String name, GaiaError.TypeException type, Exception exception) {
+        mMetrics.onError(type);
+        if (mDebug) {
+            GaiaLog.e(TAG, exception == null ? name : name + ": " + exception.toString());
+        }
+        GaiaEventSink sink = mEventSink;
+        if (sink != null) {
+            GaiaError error = new GaiaError(type, exception);
+            sink.onError(error);
+        }
+    }
+
+    /**
+     * To handle exceptions when it needs to inform the related application.
+     *
+     * @param name
+     *            The method name from where this method is called.
+     * @param type
+     *            The type of errors to inform the application.
+     * @param exception
+     *            If there is an exception, add it here, otherwise "null".
+     * @param command
+     *            The command where the error occurs.
+     */
+    protected void handleException(String name, GaiaError.TypeException type, Exception exception, int command) {
+        mMetrics.onError(type);
+        if (mDebug) {
+            GaiaLog.e(TAG, exception == null ? name : name + ": " + exception.toString());
+        }
+        GaiaEventSink sink = mEventSink;
+        if (sink != null) {
+            GaiaError error = new GaiaError(type, exception, command);
+            sink.onError(error);
+        }
+    }
+
+    /**
+     * To handle errors when it needs to inform the related application.
+     *
+     * @param message
+     *            The message to display for a log.
+     * @param type
+     *            The type of errors to inform the application.
+     */
+    protected void handleError(String message, GaiaError.TypeException type) {
+        mMetrics.onError(type);
+        if (mDebug) {
+            GaiaLog.e(TAG, message);
+        }
+        GaiaEventSink sink = mEventSink;
+        if (sink != null) {
+            GaiaError error = new GaiaError(type);
+            sink.onError(error);
+        }
+    }
+
+    /**
+     * A command sent with {@link #request(int, int, byte[], long) request} waiting for its acknowledgement.
+     */
+    private static final class Waiter {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile GaiaPacket mPacket;
+        /**
+         * The time after which the acknowledgement of a command which timed out is not expected anymore, from
+         * {@link System#nanoTime()}.
+         */
+        private volatile long mForgetTime;
+        private volatile boolean isExpired = false;
+
+        /**
+         * To stop waiting for the acknowledgement: a late one is still expected for
+         * {@link #LATE_ACKNOWLEDGEMENT_TIME}.
+         */
+        void expire() {
+            mForgetTime = System.nanoTime() + LATE_ACKNOWLEDGEMENT_TIME * 1000000L;
+            isExpired = true;
+        }
+
+        boolean isForgotten(long now) {
+            return isExpired && now - mForgetTime >= 0;
+        }
+    }
+}
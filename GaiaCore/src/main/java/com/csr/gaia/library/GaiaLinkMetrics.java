@@ -0,0 +1,670 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>This class is the registry of the performance counters of a link: frames and bytes sent and
+ * received, resynchronisations of the frame reader, errors by type, gauges for queue depths and, for each command, a
+ * histogram of the latency between the sending of the command and the reception of its acknowledgement.</p>
+ * <p>All counters are updated without locks by the reader thread and the sending threads. A {@link Snapshot} of all
+ * values can be taken at any time, it only copies the counters.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaLinkMetrics {
+
+    /**
+     * The upper bounds, in microseconds, of the buckets of the latency histograms. The last bucket of a histogram
+     * counts all latencies bigger than the last bound.
+     */
+    public static final long[] LATENCY_BUCKETS = { 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000,
+            500000, 1000000, 2000000 };
+    /**
+     * The name of the gauge which gives the number of commands waiting for their acknowledgement.
+     */
+    public static final String GAUGE_PENDING_COMMANDS = "pending_commands";
+    /**
+     * The name of the gauge which gives the number of received bytes waiting to be read.
+     */
+    public static final String GAUGE_RECEIVE_BACKLOG = "receive_backlog";
+    /**
+     * The maximum number of commands of a same type waiting for their acknowledgement. When a command is sent while
+     * this number is reached, the oldest one is considered as lost. It is a power of two.
+     */
+    private static final int PENDING_MAX = 1024;
+    /**
+     * The mask which gives the index of a position in the ring of sending times of a command.
+     */
+    private static final int PENDING_MASK = PENDING_MAX - 1;
+    /**
+     * The value returned by {@link CommandStatistics#poll()} when no command is waiting for its acknowledgement.
+     */
+    private static final long NO_SENT_TIME = Long.MIN_VALUE;
+    /**
+     * The number of nanoseconds in a microsecond.
+     */
+    private static final long NANOS_IN_MICROSECOND = 1000;
+
+    private final AtomicLong mTxFrames = new AtomicLong();
+    private final AtomicLong mTxBytes = new AtomicLong();
+    private final AtomicLong mRxFrames = new AtomicLong();
+    private final AtomicLong mRxBytes = new AtomicLong();
+    private final AtomicLong mResyncs = new AtomicLong();
+    private final AtomicLong mDiscardedBytes = new AtomicLong();
+    private final AtomicLong mUnmatchedAcknowledgements = new AtomicLong();
+    private final AtomicLong mLostCommands = new AtomicLong();
+    /**
+     * The number of errors for each type of error, indexed by the type ordinal.
+     */
+    private final AtomicLongArray mErrors = new AtomicLongArray(GaiaError.TypeException.values().length);
+    /**
+     * The statistics for each command identifier - without the acknowledgement bit.
+     */
+    private final ConcurrentHashMap<Integer, CommandStatistics> mCommands = new ConcurrentHashMap<>();
+    /**
+     * The gauges by name.
+     */
+    private final ConcurrentHashMap<String, AtomicInteger> mGauges = new ConcurrentHashMap<>();
+    /**
+     * The number of commands waiting for their acknowledgement.
+     */
+    private final AtomicInteger mPendingCommands = new AtomicInteger();
+    /**
+     * The time at which the counters were last reset.
+     */
+    private volatile long mStartTime = System.nanoTime();
+
+    /**
+     * To record a frame which has been sent to the device. The frames are recorded one at a time: the link records
+     * them under its write lock.
+     *
+     * @param commandId
+     *            the command identifier of the frame, acknowledgement bit included.
+     * @param length
+     *            the length of the frame in bytes.
+     */
+    public void onFrameSent(int commandId, int length) {
+        mTxFrames.incrementAndGet();
+        mTxBytes.addAndGet(length);
+
+        if ((commandId & Gaia.ACK_MASK) == 0) {
+            CommandStatistics statistics = getStatistics(commandId & Gaia.COMMAND_MASK);
+            statistics.mSent.incrementAndGet();
+            if (statistics.offer(System.nanoTime())) {
+                mLostCommands.incrementAndGet();
+            }
+            else {
+                mPendingCommands.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * To record bytes which have been sent to the device outside of any frame.
+     *
+     * @param length
+     *            the number of sent bytes.
+     */
+    public void onRawSent(int length) {
+        mTxBytes.addAndGet(length);
+    }
+
+    /**
+     * To record a frame which has been received from the device. If the frame is an acknowledgement, the latency of
+     * the corresponding command is recorded.
+     *
+     * @param commandId
+     *            the command identifier of the frame, acknowledgement bit included.
+     * @param length
+     *            the length of the frame in bytes.
+     */
+    public void onFrameReceived(int commandId, int length) {
+        long now = System.nanoTime();
+        mRxFrames.incrementAndGet();
+        mRxBytes.addAndGet(length);
+
+        if ((commandId & Gaia.ACK_MASK) != 0) {
+            CommandStatistics statistics = mCommands.get(commandId & Gaia.COMMAND_MASK);
+            long sentTime = statistics == null ? NO_SENT_TIME : statistics.poll();
+            if (sentTime == NO_SENT_TIME) {
+                mUnmatchedAcknowledgements.incrementAndGet();
+            }
+            else {
+                mPendingCommands.decrementAndGet();
+                statistics.record((now - sentTime) / NANOS_IN_MICROSECOND);
+            }
+        }
+    }
+
+    /**
+     * To record that the frame reader had to skip bytes to find the start of the next frame.
+     *
+     * @param discardedBytes
+     *            the number of skipped bytes.
+     */
+    public void onResync(int discardedBytes) {
+        mResyncs.incrementAndGet();
+        mDiscardedBytes.addAndGet(discardedBytes);
+        mRxBytes.addAndGet(discardedBytes);
+    }
+
+    /**
+     * To record an error.
+     *
+     * @param type
+     *            the type of the error.
+     */
+    public void onError(GaiaError.TypeException type) {
+        mErrors.incrementAndGet(type.ordinal());
+    }
+
+    /**
+     * To set the value of a gauge, the gauge is created if it doesn't exist.
+     *
+     * @param name
+     *            the name of the gauge.
+     * @param value
+     *            the current value.
+     */
+    public void setGauge(String name, int value) {
+        AtomicInteger gauge = mGauges.get(name);
+        if (gauge == null) {
+            AtomicInteger created = new AtomicInteger();
+            gauge = mGauges.putIfAbsent(name, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        gauge.set(value);
+    }
+
+    /**
+     * To forget the commands which are waiting for their acknowledgement, for instance when the link is
+     * disconnected.
+     */
+    public void clearPending() {
+        for (CommandStatistics statistics : mCommands.values()) {
+            mPendingCommands.addAndGet(-statistics.clear());
+        }
+    }
+
+    /**
+     * To reset all counters and histograms. Gauges keep their values.
+     */
+    public void reset() {
+        mTxFrames.set(0);
+        mTxBytes.set(0);
+        mRxFrames.set(0);
+        mRxBytes.set(0);
+        mResyncs.set(0);
+        mDiscardedBytes.set(0);
+        mUnmatchedAcknowledgements.set(0);
+        mLostCommands.set(0);
+        for (int i = 0; i < mErrors.length(); i++) {
+            mErrors.set(i, 0);
+        }
+        clearPending();
+        mCommands.clear();
+        mStartTime = System.nanoTime();
+    }
+
+    /**
+     * To take a snapshot of all counters.
+     *
+     * @return an immutable copy of the current values.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * To get the statistics for a command, they are created if they don't exist.
+     *
+     * @param command
+     *            the command identifier without the acknowledgement bit.
+     *
+     * @return the statistics for the command.
+     */
+    private CommandStatistics getStatistics(int command) {
+        CommandStatistics statistics = mCommands.get(command);
+        if (statistics == null) {
+            CommandStatistics created = new CommandStatistics();
+            statistics = mCommands.putIfAbsent(command, created);
+            if (statistics == null) {
+                statistics = created;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * To get the index of the histogram bucket for a latency.
+     *
+     * @param latency
+     *            the latency in microseconds.
+     *
+     * @return the index of the bucket.
+     */
+    private static int getBucket(long latency) {
+        int low = 0;
+        int high = LATENCY_BUCKETS.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (LATENCY_BUCKETS[middle] < latency) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The lock-free statistics of one command.
+     */
+    private static class CommandStatistics {
+        final AtomicLong mSent = new AtomicLong();
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mSum = new AtomicLong();
+        final AtomicLong mMax = new AtomicLong();
+        final AtomicLongArray mBuckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        /**
+         * The sending times of the commands waiting for their acknowledgement: a ring which holds them from the
+         * position mHead, the oldest, to the position mTail excluded. A time is written before mTail moves past it,
+         * and it is read before mHead moves past it: a reader which wins the move of mHead has read a time which was
+         * not overwritten.
+         */
+        final long[] mSentTimes = new long[PENDING_MAX];
+        final AtomicLong mHead = new AtomicLong();
+        final AtomicLong mTail = new AtomicLong();
+
+        /**
+         * To add the sending time of a command. When the ring is full, the oldest time is dropped. This method must
+         * not be called by several threads at once.
+         *
+         * @param time
+         *            the sending time from {@link System#nanoTime()}.
+         *
+         * @return true if the oldest time has been dropped to make room.
+         */
+        boolean offer(long time) {
+            boolean isDropped = false;
+            long tail = mTail.get();
+            long head;
+            while (tail - (head = mHead.get()) >= PENDING_MAX) {
+                isDropped |= mHead.compareAndSet(head, head + 1);
+            }
+            mSentTimes[(int) (tail & PENDING_MASK)] = time;
+            mTail.set(tail + 1);
+            return isDropped;
+        }
+
+        /**
+         * To take the sending time of the oldest command waiting for its acknowledgement.
+         *
+         * @return the sending time, {@link #NO_SENT_TIME} if no command is waiting.
+         */
+        long poll() {
+            while (true) {
+                long head = mHead.get();
+                if (head >= mTail.get()) {
+                    return NO_SENT_TIME;
+                }
+                long time = mSentTimes[(int) (head & PENDING_MASK)];
+                if (mHead.compareAndSet(head, head + 1)) {
+                    return time;
+                }
+            }
+        }
+
+        /**
+         * To forget all the commands waiting for their acknowledgement.
+         *
+         * @return the number of forgotten commands.
+         */
+        int clear() {
+            long head;
+            long tail;
+            do {
+                head = mHead.get();
+                tail = mTail.get();
+                if (head >= tail) {
+                    return 0;
+                }
+            }
+            while (!mHead.compareAndSet(head, tail));
+            return (int) (tail - head);
+        }
+
+        /**
+         * To record the latency of one command.
+         *
+         * @param latency
+         *            the latency in microseconds.
+         */
+        void record(long latency) {
+            mCount.incrementAndGet();
+            mSum.addAndGet(latency);
+            mBuckets.incrementAndGet(getBucket(latency));
+            long max = mMax.get();
+            while (latency > max && !mMax.compareAndSet(max, latency)) {
+                max = mMax.get();
+            }
+        }
+    }
+
+    /**
+     * The latency statistics of one command as copied by a {@link Snapshot}.
+     */
+    public static final class CommandSnapshot {
+        private final int mCommand;
+        private final long mSent;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+        private final long[] mBuckets;
+
+        private CommandSnapshot(int command, CommandStatistics statistics) {
+            mCommand = command;
+            mSent = statistics.mSent.get();
+            mBuckets = new long[statistics.mBuckets.length()];
+            long count = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = statistics.mBuckets.get(i);
+                count += mBuckets[i];
+            }
+            mCount = count;
+            mSum = statistics.mSum.get();
+            mMax = statistics.mMax.get();
+        }
+
+        /**
+         * To build the statistics of all the given commands together.
+         */
+        private CommandSnapshot(List<CommandSnapshot> commands) {
+            mCommand = -1;
+            mBuckets = new long[LATENCY_BUCKETS.length + 1];
+            long sent = 0;
+            long count = 0;
+            long sum = 0;
+            long max = 0;
+            for (CommandSnapshot command : commands) {
+                sent += command.mSent;
+                count += command.mCount;
+                sum += command.mSum;
+                max = Math.max(max, command.mMax);
+                for (int i = 0; i < mBuckets.length; i++) {
+                    mBuckets[i] += command.mBuckets[i];
+                }
+            }
+            mSent = sent;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        /**
+         * @return the command identifier without the acknowledgement bit, -1 for the statistics of all commands.
+         */
+        public int getCommand() {
+            return mCommand;
+        }
+
+        /**
+         * @return the number of times this command has been sent.
+         */
+        public long getSent() {
+            return mSent;
+        }
+
+        /**
+         * @return the number of acknowledgements received for this command.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the mean latency in microseconds.
+         */
+        public long getMean() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        /**
+         * @return the maximum latency in microseconds.
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return a copy of the histogram buckets, see {@link #LATENCY_BUCKETS} for their bounds.
+         */
+        public long[] getBuckets() {
+            return mBuckets.clone();
+        }
+
+        /**
+         * To get an approximation of a latency percentile: the upper bound of the bucket which contains it.
+         *
+         * @param percentile
+         *            the percentile between 0 and 100.
+         *
+         * @return the latency in microseconds, the maximum latency for values beyond the last bucket bound.
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && mBuckets[i] > 0) {
+                    return i < LATENCY_BUCKETS.length ? Math.min(LATENCY_BUCKETS[i], mMax) : mMax;
+                }
+            }
+            return mMax;
+        }
+    }
+
+    /**
+     * An immutable copy of the counters of a {@link GaiaLinkMetrics}.
+     */
+    public static final class Snapshot {
+        private final long mDuration;
+        private final long mTxFrames;
+        private final long mTxBytes;
+        private final long mRxFrames;
+        private final long mRxBytes;
+        private final long mResyncs;
+        private final long mDiscardedBytes;
+        private final long mUnmatchedAcknowledgements;
+        private final long mLostCommands;
+        private final int mPendingCommands;
+        private final Map<GaiaError.TypeException, Long> mErrors;
+        private final Map<String, Integer> mGauges;
+        private final List<CommandSnapshot> mCommands;
+
+        private Snapshot(GaiaLinkMetrics metrics) {
+            mDuration = System.nanoTime() - metrics.mStartTime;
+            mTxFrames = metrics.mTxFrames.get();
+            mTxBytes = metrics.mTxBytes.get();
+            mRxFrames = metrics.mRxFrames.get();
+            mRxBytes = metrics.mRxBytes.get();
+            mResyncs = metrics.mResyncs.get();
+            mDiscardedBytes = metrics.mDiscardedBytes.get();
+            mUnmatchedAcknowledgements = metrics.mUnmatchedAcknowledgements.get();
+            mLostCommands = metrics.mLostCommands.get();
+            mPendingCommands = metrics.mPendingCommands.get();
+
+            Map<GaiaError.TypeException, Long> errors = new LinkedHashMap<>();
+            for (GaiaError.TypeException type : GaiaError.TypeException.values()) {
+                long count = metrics.mErrors.get(type.ordinal());
+                if (count > 0) {
+                    errors.put(type, count);
+                }
+            }
+            mErrors = Collections.unmodifiableMap(errors);
+
+            Map<String, Integer> gauges = new LinkedHashMap<>();
+            for (Map.Entry<String, AtomicInteger> entry : metrics.mGauges.entrySet()) {
+                gauges.put(entry.getKey(), entry.getValue().get());
+            }
+            gauges.put(GAUGE_PENDING_COMMANDS, mPendingCommands);
+            mGauges = Collections.unmodifiableMap(gauges);
+
+            List<CommandSnapshot> commands = new ArrayList<>(metrics.mCommands.size());
+            for (Map.Entry<Integer, CommandStatistics> entry : metrics.mCommands.entrySet()) {
+                commands.add(new CommandSnapshot(entry.getKey(), entry.getValue()));
+            }
+            mCommands = Collections.unmodifiableList(commands);
+        }
+
+        /**
+         * @return the time covered by this snapshot in nanoseconds: since the creation or the last reset.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        public long getTxFrames() {
+            return mTxFrames;
+        }
+
+        public long getTxBytes() {
+            return mTxBytes;
+        }
+
+        public long getRxFrames() {
+            return mRxFrames;
+        }
+
+        public long getRxBytes() {
+            return mRxBytes;
+        }
+
+        /**
+         * @return the number of times the frame reader had to skip bytes to find the start of a frame.
+         */
+        public long getResyncs() {
+            return mResyncs;
+        }
+
+        public long getDiscardedBytes() {
+            return mDiscardedBytes;
+        }
+
+        /**
+         * @return the number of acknowledgements which did not match any sent command.
+         */
+        public long getUnmatchedAcknowledgements() {
+            return mUnmatchedAcknowledgements;
+        }
+
+        /**
+         * @return the number of commands which never got their acknowledgement.
+         */
+        public long getLostCommands() {
+            return mLostCommands;
+        }
+
+        public int getPendingCommands() {
+            return mPendingCommands;
+        }
+
+        /**
+         * @return the number of errors for each type of error which occurred at least once.
+         */
+        public Map<GaiaError.TypeException, Long> getErrors() {
+            return mErrors;
+        }
+
+        public Map<String, Integer> getGauges() {
+            return mGauges;
+        }
+
+        public List<CommandSnapshot> getCommands() {
+            return mCommands;
+        }
+
+        /**
+         * To get the latency statistics of all commands together.
+         *
+         * @return the statistics, their command identifier is -1.
+         */
+        public CommandSnapshot getAllCommands() {
+            return new CommandSnapshot(mCommands);
+        }
+
+        /**
+         * To get the latency statistics of one command.
+         *
+         * @param command
+         *            the command identifier without the acknowledgement bit.
+         *
+         * @return the statistics or null if this command has not been sent.
+         */
+        public CommandSnapshot getCommand(int command) {
+            for (CommandSnapshot snapshot : mCommands) {
+                if (snapshot.mCommand == command) {
+                    return snapshot;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("GAIA link over ").append(mDuration / 1000000).append(" ms: tx ")
+                    .append(mTxFrames).append(" frames/").append(mTxBytes).append(" bytes, rx ")
+                    .append(mRxFrames).append(" frames/").append(mRxBytes).append(" bytes, ")
+                    .append(mResyncs).append(" resyncs (").append(mDiscardedBytes).append(" bytes), ")
+                    .append(mUnmatchedAcknowledgements).append(" unmatched acks, ")
+                    .append(mLostCommands).append(" lost commands");
+
+            if (!mErrors.isEmpty()) {
+                builder.append("\nerrors: ").append(mErrors);
+            }
+            builder.append("\ngauges: ").append(mGauges);
+
+            for (CommandSnapshot command : mCommands) {
+                builder.append("\n0x").append(Gaia.hexw(command.mCommand))
+                        .append(": sent ").append(command.mSent)
+                        .append(", acked ").append(command.mCount)
+                        .append(", mean ").append(command.getMean())
+                        .append(" us, p50 ").append(command.getPercentile(50))
+                        .append(" us, p99 ").append(command.getPercentile(99))
+                        .append(" us, max ").append(command.mMax).append(" us");
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+/**
+ * <p>The logging facade of the GAIA classes: they log through it so they do not depend on a platform. By default
+ * the messages from {@link #INFO} are written to the standard outputs, the Android library gives them to the Android
+ * log instead and an application can give its own logger with {@link #setLogger(ILogger)}.</p>
+ * <p>The levels have the values of the Android log priorities.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class GaiaLog {
+
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * The logger which writes to the standard outputs: the warnings and errors to the error output.
+     */
+    private static final ILogger CONSOLE = new ILogger() {
+        @Override
+        public void log(int level, String tag, String message, Throwable error) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(getLabel(level)).append('/').append(tag).append(": ").append(message);
+            if (error != null) {
+                builder.append(": ").append(error.toString());
+            }
+            if (level >= WARN) {
+                System.err.println(builder);
+            }
+            else {
+                System.out.println(builder);
+            }
+        }
+    };
+
+    private static volatile ILogger sLogger = CONSOLE;
+    /**
+     * True once the application has given its own logger.
+     */
+    private static volatile boolean isSetByApplication = false;
+    private static volatile int sLevel = INFO;
+
+    private GaiaLog() {
+    }
+
+    /**
+     * To give the logger for all messages.
+     *
+     * @param logger
+     *            the logger, null to write to the standard outputs.
+     */
+    public static void setLogger(ILogger logger) {
+        sLogger = logger == null ? CONSOLE : logger;
+        isSetByApplication = logger != null;
+    }
+
+    /**
+     * To give the logger of a platform, for instance the Android log. It is only used if the application has not
+     * given its own logger.
+     *
+     * @param logger
+     *            the logger of the platform.
+     */
+    public static void setPlatformLogger(ILogger logger) {
+        if (!isSetByApplication && logger != null) {
+            sLogger = logger;
+        }
+    }
+
+    /**
+     * To set the lowest level of the messages given to the logger.
+     *
+     * @param level
+     *            {@link #DEBUG}, {@link #INFO}, {@link #WARN} or {@link #ERROR}.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * @param level
+     *            the level of a message.
+     *
+     * @return true if the messages of this level are given to the logger.
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    public static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        log(WARN, tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        log(ERROR, tag, message, error);
+    }
+
+    private static void log(int level, String tag, String message, Throwable error) {
+        if (level >= sLevel) {
+            sLogger.log(level, tag, message, error);
+        }
+    }
+
+    private static String getLabel(int level) {
+        switch (level) {
+        case DEBUG:
+            return "D";
+        case INFO:
+            return "I";
+        case WARN:
+            return "W";
+        default:
+            return "E";
+        }
+    }
+
+    /**
+     * The interface to implement to receive the messages of the GAIA classes.
+     */
+    public interface ILogger {
+
+        /**
+         * Called for each message from the level set with {@link #setLevel(int)}, on the thread which logs it.
+         *
+         * @param level
+         *            the level of the message.
+         * @param tag
+         *            the name of the class which logs the message.
+         * @param message
+         *            the message.
+         * @param error
+         *            the error which caused the message, can be null.
+         */
+        void log(int level, String tag, String message, Throwable error);
+    }
+}
@@ -0,0 +1,282 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A GAIA connection over a pair of streams for the hosts which do not run Android, for instance a tool which
+ * reaches the devices through a serial or a TCP bridge. It is a {@link GaiaLinkCore} with a blocking interface: the
+ * services of the library can be used on the same connection through {@link #getLink()}.</p>
+ * <p>Commands are sent with {@link #sendCommand(int, int, byte[], long) sendCommand} which blocks until the device
+ * acknowledges them, see {@link GaiaLinkCore#request(int, int, byte[], long)}. The packets which are not
+ * acknowledgements - the notifications - are given to the {@link IPacketListener listener} on the thread which reads
+ * the connection.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaStreamSession implements Closeable {
+
+    private static final String TAG = "GaiaStreamSession";
+
+    /**
+     * The default time to wait for an acknowledgement, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 2000;
+
+    private final InputStream mInput;
+    private final OutputStream mOutput;
+    private final String mName;
+    /**
+     * The link which frames, reads and matches the acknowledgements. Its main thread deliveries run on the reader
+     * thread.
+     */
+    private final GaiaLinkCore mLink = new GaiaLinkCore();
+    private volatile IPacketListener mListener;
+    private volatile boolean isClosed = false;
+    private boolean isStarted = false;
+
+    /**
+     * To build a session over a connection: the streams are read and written once the session is started.
+     *
+     * @param input
+     *            the stream of the bytes sent by the device.
+     * @param output
+     *            the stream to send bytes to the device.
+     * @param name
+     *            the name of the connection, for the logs and the reader thread.
+     */
+    public GaiaStreamSession(InputStream input, OutputStream output, String name) {
+        mInput = input;
+        mOutput = output;
+        mName = name;
+        mLink.setEventSink(new GaiaEventSink() {
+            @Override
+            public void onDisconnected() {
+                close();
+            }
+
+            @Override
+            public void onPacket(GaiaPacket packet) {
+                if (!packet.isAcknowledgement()) {
+                    onNotification(packet);
+                }
+            }
+
+            @Override
+            public void onError(GaiaError error) {
+                if (!isClosed) {
+                    GaiaLog.w(TAG, mName + ": " + error.getType());
+                }
+            }
+        });
+    }
+
+    /**
+     * To set the listener of the packets which are not acknowledgements.
+     *
+     * @param listener
+     *            the listener, null to ignore these packets.
+     */
+    public void setPacketListener(IPacketListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return the name of the connection.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * To get the link of this session, for instance to run a service of the library on it. The link must not be
+     * disconnected directly: the session is closed instead.
+     *
+     * @return the link of this session.
+     */
+    public GaiaLinkCore getLink() {
+        return mLink;
+    }
+
+    /**
+     * @return true until the session is closed or the connection is lost.
+     */
+    public boolean isConnected() {
+        return !isClosed;
+    }
+
+    /**
+     * To start reading the connection on a new daemon thread.
+     */
+    public void start() {
+        start(null);
+    }
+
+    /**
+     * To start reading the connection on a thread of a factory, for instance a virtual thread.
+     *
+     * @param factory
+     *            the factory of the reader thread, null for a daemon thread.
+     */
+    public synchronized void start(ThreadFactory factory) {
+        if (!isStarted && !isClosed) {
+            isStarted = true;
+            mLink.setReaderThreadFactory(factory != null ? factory : new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GaiaStreamSession-" + mName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mLink.connect(mInput, mOutput, mName);
+        }
+    }
+
+    /**
+     * To send a command and to wait for its acknowledgement.
+     *
+     * @param vendorId
+     *            the vendor identifier.
+     * @param commandId
+     *            the command identifier.
+     * @param payload
+     *            the payload, can be null.
+     * @param timeout
+     *            the time to wait for the acknowledgement, in milliseconds.
+     *
+     * @return the acknowledgement, its status has to be checked by the caller.
+     *
+     * @throws IOException
+     *             if the command cannot be sent, if the session is closed or if the device does not acknowledge the
+     *             command in time.
+     */
+    public GaiaPacket sendCommand(int vendorId, int commandId, byte[] payload, long timeout) throws IOException {
+        if (isClosed) {
+            throw new IOException(mName + ": connection closed");
+        }
+        return mLink.request(vendorId, commandId, payload, timeout);
+    }
+
+    /**
+     * To send a command with the default timeout.
+     *
+     * @see #sendCommand(int, int, byte[], long)
+     */
+    public GaiaPacket sendCommand(int vendorId, int commandId, byte[] payload) throws IOException {
+        return sendCommand(vendorId, commandId, payload, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * To send a packet without waiting for any answer, for instance to acknowledge a notification. A failure to send
+     * it is logged.
+     *
+     * @param vendorId
+     *            the vendor identifier.
+     * @param commandId
+     *            the command identifier.
+     * @param payload
+     *            the payload, can be null.
+     *
+     * @throws IOException
+     *             if the session is closed.
+     */
+    public void sendPacket(int vendorId, int commandId, byte[] payload) throws IOException {
+        if (isClosed) {
+            throw new IOException(mName + ": connection closed");
+        }
+        mLink.sendCommand(vendorId, commandId, payload);
+    }
+
+    /**
+     * To close the session and the connection: the commands waiting for their acknowledgement fail.
+     */
+    @Override
+    public void close() {
+        boolean started;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            started = isStarted;
+        }
+        if (started) {
+            mLink.disconnect();
+        }
+        else {
+            closeQuietly(mInput);
+            closeQuietly(mOutput);
+        }
+        IPacketListener listener = mListener;
+        if (listener != null) {
+            listener.onClosed();
+        }
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        try {
+            stream.close();
+        }
+        catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+    /**
+     * To give a packet which is not an acknowledgement to the listener.
+     *
+     * @param packet
+     *            the received packet.
+     */
+    private void onNotification(GaiaPacket packet) {
+        IPacketListener listener = mListener;
+        if (listener != null) {
+            try {
+                listener.onPacket(packet);
+            }
+            catch (RuntimeException e) {
+                GaiaLog.w(TAG, mName + ": listener failed on packet 0x" + Gaia.hexw(packet.getCommand()), e);
+            }
+        }
+    }
+
+    /**
+     * The interface to implement to receive the packets of a {@link GaiaStreamSession} which are not
+     * acknowledgements. It is called on the thread which reads the connection.
+     */
+    public interface IPacketListener {
+
+        /**
+         * Called for each packet which is not an acknowledgement, usually a notification.
+         *
+         * @param packet
+         *            the packet.
+         */
+        void onPacket(GaiaPacket packet);
+
+        /**
+         * Called once when the session is closed or the connection is lost.
+         */
+        void onClosed();
+    }
+}
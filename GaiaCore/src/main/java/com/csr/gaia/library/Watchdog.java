@@ -0,0 +1,73 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * <p>A watchdog for the services which run an operation as a window of commands, such as the DFU, the partition
+ * writes and the PS key operations: while the operation runs, the service is asked to {@link #check() check} it four
+ * times per timeout so that it can fail the operation if the device stopped answering.</p>
+ * <p>The checks run on one timer thread shared by all the watchdogs: they must be quick and must not block.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public abstract class Watchdog {
+
+    /**
+     * The timer which runs the checks of all watchdogs, created with the first one.
+     */
+    private static Timer sTimer;
+
+    private final TimerTask mTask = new TimerTask() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    /**
+     * To start the checks, the first one comes after a quarter of the timeout. A watchdog can be started only once.
+     *
+     * @param timeout
+     *            the time without an answer of the device after which the operation fails, in milliseconds.
+     */
+    public void start(long timeout) {
+        long period = Math.max(timeout / 4, 1);
+        getTimer().schedule(mTask, period, period);
+    }
+
+    /**
+     * To stop the checks. This can be called from a check.
+     */
+    public void stop() {
+        mTask.cancel();
+    }
+
+    /**
+     * Called on the timer thread while the watchdog runs.
+     */
+    protected abstract void check();
+
+    private static synchronized Timer getTimer() {
+        if (sTimer == null) {
+            sTimer = new Timer("GaiaWatchdog", true);
+        }
+        return sTimer;
+    }
+}
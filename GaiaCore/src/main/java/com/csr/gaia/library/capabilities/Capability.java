@@ -0,0 +1,120 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.capabilities;
+
+import com.csr.gaia.library.Gaia;
+
+/**
+ * All the features of a device the application can find out by probing: a feature is supported if the device
+ * doesn't answer {@link Gaia.Status#NOT_SUPPORTED NOT_SUPPORTED} to at least one of its probe commands.
+ */
+public enum Capability {
+    /**
+     * The equalizer: 3D enhancement, bass boost or user EQ.
+     */
+    EQUALIZER(Gaia.COMMAND_GET_3D_ENHANCEMENT_CONTROL, Gaia.COMMAND_GET_BASS_BOOST_CONTROL,
+            Gaia.COMMAND_GET_USER_EQ_CONTROL),
+    /**
+     * True Wireless Stereo: audio routing or volume of the speakers.
+     */
+    TWS(Gaia.COMMAND_GET_TWS_AUDIO_ROUTING, Gaia.COMMAND_GET_TWS_VOLUME),
+    /**
+     * The VM upgrade over GAIA. A successful probe opens an upgrade session which has to be closed.
+     */
+    VM_UPGRADE(Gaia.COMMAND_VM_UPGRADE_CONNECT),
+    /**
+     * The AV remote control.
+     */
+    REMOTE_CONTROL(Gaia.COMMAND_AV_REMOTE_CONTROL);
+
+    /**
+     * To keep constantly this array without calling the values() method which is copying an array when it's called.
+     */
+    private static final Capability[] values = Capability.values();
+
+    /**
+     * The commands which are sent to find out if the device supports this capability.
+     */
+    private final int[] mProbeCommands;
+
+    Capability(int... probeCommands) {
+        mProbeCommands = probeCommands;
+    }
+
+    /**
+     * To get the commands which are sent to find out if the device supports this capability.
+     *
+     * @return a copy of the probe commands.
+     */
+    public int[] getProbeCommands() {
+        return mProbeCommands.clone();
+    }
+
+    /**
+     * To get the bit of this capability in a {@link CapabilitySet}.
+     *
+     * @return the mask of this capability.
+     */
+    int getMask() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * To get the capability matching the corresponding int value in this enumeration.
+     *
+     * @param value
+     *            the int value from which we want the matching capability.
+     *
+     * @return the matching capability or null if there is none.
+     */
+    public static Capability valueOf(int value) {
+        if (value < 0 || value >= values.length) {
+            return null;
+        }
+
+        return values[value];
+    }
+
+    /**
+     * To get the capability a probe command belongs to.
+     *
+     * @param command
+     *            the command identifier without the acknowledgement bit.
+     *
+     * @return the capability or null if this command is not a probe command.
+     */
+    public static Capability fromProbeCommand(int command) {
+        for (Capability capability : values) {
+            for (int probe : capability.mProbeCommands) {
+                if (probe == command) {
+                    return capability;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * To get the number of capabilities in this enumeration.
+     *
+     * @return the number of capabilities.
+     */
+    public static int getLength() {
+        return values.length;
+    }
+}
@@ -0,0 +1,426 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.capabilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>This class keeps the {@link CapabilitySet capabilities} of the devices the application has been connected to,
+ * by Bluetooth address, in a small binary file. Each set is stored with the application version of the device it was
+ * probed on: once the firmware of the device changes, its cached set is not used anymore.</p>
+ * <p>The file is read once when the cache is built and written again after changes. Both are done on a background
+ * executor so that neither the UI thread nor the reader thread of a link waits for the disk: a lookup only waits if
+ * the file is still being read, and the changes made while a write is pending are written together. The file is
+ * written to a temporary file first, which is then renamed, so a crash while writing does not lose the previous
+ * content.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CapabilityCache {
+
+    /**
+     * The first bytes of the file: "GCAP".
+     */
+    private static final int MAGIC = 0x47434150;
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The maximum number of devices kept in the cache, the least recently updated ones are removed first.
+     */
+    private static final int MAX_ENTRIES = 32;
+    /**
+     * The executor used by the caches built without one: a single daemon thread shared by all the caches.
+     */
+    private static ExecutorService sDefaultExecutor;
+
+    /**
+     * The file the cache is stored in.
+     */
+    private final File mFile;
+    /**
+     * The cached entries by device address.
+     */
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    /**
+     * The executor the file is read and written on.
+     */
+    private final Executor mExecutor;
+    /**
+     * Released once the file has been read.
+     */
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    /**
+     * True while a write of the file is scheduled and has not started yet. Access is synchronized on this cache.
+     */
+    private boolean isSavePending = false;
+
+    /**
+     * To build a cache stored in the given file, the file is read in the background if it exists.
+     *
+     * @param file
+     *            the file to store the cache in, for instance in the application files directory.
+     */
+    public CapabilityCache(File file) {
+        this(file, getDefaultExecutor());
+    }
+
+    /**
+     * To build a cache stored in the given file, the file is read on the given executor if it exists.
+     *
+     * @param file
+     *            the file to store the cache in, for instance in the application files directory.
+     * @param executor
+     *            the executor to read and write the file on, it should run the tasks in order.
+     */
+    public CapabilityCache(File file, Executor executor) {
+        mFile = file;
+        mExecutor = executor;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                }
+                finally {
+                    mLoaded.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * To get the executor shared by the caches built without one.
+     */
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CapabilityCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * To get the cached capabilities of a device whatever the version of its firmware: used to display something at
+     * once while the version is requested.
+     *
+     * @param address
+     *            the Bluetooth address of the device.
+     *
+     * @return the cached entry or null if the device is not in the cache.
+     */
+    public Entry get(String address) {
+        awaitLoaded();
+        synchronized (this) {
+            return mEntries.get(address);
+        }
+    }
+
+    /**
+     * To get the cached capabilities of a device if they have been probed on the given firmware.
+     *
+     * @param address
+     *            the Bluetooth address of the device.
+     * @param version
+     *            the application version reported by the device.
+     *
+     * @return the capabilities or null if the device is not in the cache or its firmware has changed.
+     */
+    public CapabilitySet get(String address, byte[] version) {
+        awaitLoaded();
+        synchronized (this) {
+            Entry entry = mEntries.get(address);
+            return entry != null && entry.matches(version) ? entry.mCapabilities : null;
+        }
+    }
+
+    /**
+     * To store the capabilities of a device, the cache file is written in the background.
+     *
+     * @param address
+     *            the Bluetooth address of the device.
+     * @param version
+     *            the application version reported by the device.
+     * @param capabilities
+     *            the probed capabilities.
+     */
+    public void put(String address, byte[] version, CapabilitySet capabilities) {
+        awaitLoaded();
+        synchronized (this) {
+            Entry entry = new Entry(address, version.clone(), capabilities, System.currentTimeMillis());
+            if (entry.equals(mEntries.get(address))) {
+                return;
+            }
+            mEntries.put(address, entry);
+            trim();
+            scheduleSave();
+        }
+    }
+
+    /**
+     * To remove a device from the cache, for instance to force its capabilities to be probed again. The cache file
+     * is written in the background.
+     *
+     * @param address
+     *            the Bluetooth address of the device.
+     */
+    public void remove(String address) {
+        awaitLoaded();
+        synchronized (this) {
+            if (mEntries.remove(address) != null) {
+                scheduleSave();
+            }
+        }
+    }
+
+    /**
+     * To remove all devices from the cache, the cache file is deleted in the background.
+     */
+    public void clear() {
+        awaitLoaded();
+        synchronized (this) {
+            mEntries.clear();
+            scheduleSave();
+        }
+    }
+
+    /**
+     * To wait until the file has been read, so that no entry of the file is missed or overwritten.
+     */
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (mLoaded.getCount() > 0) {
+            try {
+                mLoaded.await();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * To write the file in the background unless a write is already scheduled: this one will include the change.
+     * Called with the lock of this cache held.
+     */
+    private void scheduleSave() {
+        if (isSavePending) {
+            return;
+        }
+        isSavePending = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Entry> entries;
+                synchronized (CapabilityCache.this) {
+                    isSavePending = false;
+                    entries = new ArrayList<>(mEntries.values());
+                }
+                save(entries);
+            }
+        });
+    }
+
+    /**
+     * To remove the least recently updated entries over {@link #MAX_ENTRIES}.
+     */
+    private void trim() {
+        while (mEntries.size() > MAX_ENTRIES) {
+            Entry oldest = null;
+            for (Entry entry : mEntries.values()) {
+                if (oldest == null || entry.mUpdated < oldest.mUpdated) {
+                    oldest = entry;
+                }
+            }
+            //noinspection ConstantConditions
+            mEntries.remove(oldest.mAddress);
+        }
+    }
+
+    /**
+     * To read the entries from the file, an unreadable file is ignored: the devices will be probed again.
+     */
+    private synchronized void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION) {
+                return;
+            }
+            int count = input.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                String address = input.readUTF();
+                byte[] version = new byte[input.readUnsignedByte()];
+                input.readFully(version);
+                CapabilitySet capabilities = new CapabilitySet(input.readInt(), input.readInt());
+                long updated = input.readLong();
+                mEntries.put(address, new Entry(address, version, capabilities, updated));
+            }
+        }
+        catch (IOException e) {
+            mEntries.clear();
+        }
+        finally {
+            close(input);
+        }
+    }
+
+    /**
+     * To write the entries to a temporary file which then replaces the cache file. The file is deleted if there is no
+     * entry.
+     *
+     * @param entries
+     *            the entries to write.
+     *
+     * @return true if the file has been written.
+     */
+    private boolean save(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return mFile.delete() || !mFile.exists();
+        }
+        File temporary = new File(mFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+            output.writeShort(entries.size());
+            for (Entry entry : entries) {
+                output.writeUTF(entry.mAddress);
+                output.writeByte(entry.mVersion.length);
+                output.write(entry.mVersion);
+                output.writeInt(entry.mCapabilities.getKnown());
+                output.writeInt(entry.mCapabilities.getSupported());
+                output.writeLong(entry.mUpdated);
+            }
+            output.close();
+            output = null;
+            return temporary.renameTo(mFile);
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            close(output);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                // nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * The capabilities of one device.
+     */
+    public static final class Entry {
+        private final String mAddress;
+        private final byte[] mVersion;
+        private final CapabilitySet mCapabilities;
+        private final long mUpdated;
+
+        private Entry(String address, byte[] version, CapabilitySet capabilities, long updated) {
+            mAddress = address;
+            // the length is written on one byte
+            mVersion = version.length > 0xFF ? Arrays.copyOf(version, 0xFF) : version;
+            mCapabilities = capabilities;
+            mUpdated = updated;
+        }
+
+        /**
+         * @return the Bluetooth address of the device.
+         */
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return the capabilities of the device.
+         */
+        public CapabilitySet getCapabilities() {
+            return mCapabilities;
+        }
+
+        /**
+         * @return the time the capabilities have been stored, in milliseconds since the epoch.
+         */
+        public long getUpdated() {
+            return mUpdated;
+        }
+
+        /**
+         * @return true if the capabilities have been probed on this application version.
+         */
+        public boolean matches(byte[] version) {
+            int length = Math.min(version.length, 0xFF);
+            return Arrays.equals(mVersion, length == version.length ? version : Arrays.copyOf(version, length));
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) object;
+            return mAddress.equals(other.mAddress) && Arrays.equals(mVersion, other.mVersion)
+                    && mCapabilities.equals(other.mCapabilities);
+        }
+
+        @Override
+        public int hashCode() {
+            return mAddress.hashCode();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.capabilities;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+
+import java.util.Arrays;
+
+/**
+ * <p>This class finds out the {@link Capability capabilities} of the connected device.</p>
+ * <p>It first gives the capabilities cached for the device, if any, and requests the application version of the
+ * device. If the cache has a set probed on this version, it is used as it is. Otherwise all the probe commands are
+ * sent at once and each capability is known as soon as one of its probe commands is supported or all of them are
+ * not. A complete set is then stored in the cache for the next connection.</p>
+ * <p>The prober subscribes to the {@link GaiaDispatcher} of the link while it runs: it decodes the acknowledgements
+ * on the reader thread and calls its listener on the main executor of the dispatcher.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CapabilityProber implements GaiaDispatcher.IPacketListener {
+
+    /**
+     * The link to send the commands to.
+     */
+    private final GaiaLinkCore mLink;
+    /**
+     * The cache to read and store the capabilities, can be null.
+     */
+    private final CapabilityCache mCache;
+    /**
+     * The listener to inform of the progress of the probing.
+     */
+    private final ICapabilityListener mListener;
+    /**
+     * The Bluetooth address of the probed device.
+     */
+    private String mAddress;
+    /**
+     * The application version of the device, null while it is not known or if the device does not support the
+     * command.
+     */
+    private byte[] mVersion;
+    /**
+     * The capabilities known so far.
+     */
+    private CapabilitySet mCapabilities = CapabilitySet.UNKNOWN;
+    /**
+     * The number of probe commands answered with {@link Gaia.Status#NOT_SUPPORTED NOT_SUPPORTED} by capability.
+     */
+    private final int[] mNotSupported = new int[Capability.getLength()];
+    /**
+     * To know if the prober is subscribed to the dispatcher.
+     */
+    private boolean isRunning = false;
+
+    /**
+     * To build a new prober.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param cache
+     *            the cache to use, null to always probe the device.
+     * @param listener
+     *            the listener to inform of the progress of the probing.
+     */
+    public CapabilityProber(GaiaLinkCore link, CapabilityCache cache, ICapabilityListener listener) {
+        mLink = link;
+        mCache = cache;
+        mListener = listener;
+    }
+
+    /**
+     * <p>To start finding out the capabilities of the device.</p>
+     * <p>If the device is in the cache, its cached capabilities are given at once to
+     * {@link ICapabilityListener#onCapabilitiesChanged(CapabilitySet) onCapabilitiesChanged} - on the calling
+     * thread.</p>
+     *
+     * @param address
+     *            the Bluetooth address of the connected device.
+     */
+    public void start(String address) {
+        CapabilityCache.Entry cached = mCache == null || address == null ? null : mCache.get(address);
+
+        synchronized (this) {
+            if (isRunning) {
+                return;
+            }
+            isRunning = true;
+            mAddress = address;
+            mVersion = null;
+            mCapabilities = CapabilitySet.UNKNOWN;
+            Arrays.fill(mNotSupported, 0);
+        }
+
+        if (cached != null) {
+            mListener.onCapabilitiesChanged(cached.getCapabilities());
+        }
+
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        dispatcher.subscribe(Gaia.COMMAND_GET_APPLICATION_VERSION, GaiaDispatcher.Delivery.READER_THREAD, this);
+        for (int i = 0; i < Capability.getLength(); i++) {
+            for (int command : Capability.valueOf(i).getProbeCommands()) {
+                dispatcher.subscribe(command, GaiaDispatcher.Delivery.READER_THREAD, this);
+            }
+        }
+
+        if (mCache == null || address == null) {
+            sendProbes();
+        }
+        else {
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_GET_APPLICATION_VERSION);
+        }
+    }
+
+    /**
+     * To stop the probing, the listener is not called anymore.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (!isRunning) {
+                return;
+            }
+            isRunning = false;
+        }
+        mLink.getDispatcher().unsubscribe(this);
+    }
+
+    /**
+     * @return true if the probing has been started and is not complete.
+     */
+    public synchronized boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * @return the capabilities known so far.
+     */
+    public synchronized CapabilitySet getCapabilities() {
+        return mCapabilities;
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        if (!packet.isAcknowledgement()) {
+            return;
+        }
+
+        int command = packet.getCommand();
+        if (command == Gaia.COMMAND_GET_APPLICATION_VERSION) {
+            receiveApplicationVersion(packet);
+            return;
+        }
+
+        Capability capability = Capability.fromProbeCommand(command);
+        if (capability == null) {
+            return;
+        }
+        if (capability == Capability.VM_UPGRADE && packet.getStatus() == Gaia.Status.SUCCESS) {
+            // the probe has opened an upgrade session
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_VM_UPGRADE_DISCONNECT);
+        }
+
+        final CapabilitySet capabilities;
+        boolean complete;
+        synchronized (this) {
+            if (!isRunning || mCapabilities.isKnown(capability)) {
+                return;
+            }
+            if (packet.getStatus() != Gaia.Status.NOT_SUPPORTED) {
+                mCapabilities = mCapabilities.with(capability, true);
+            }
+            else if (++mNotSupported[capability.ordinal()] == capability.getProbeCommands().length) {
+                mCapabilities = mCapabilities.with(capability, false);
+            }
+            else {
+                return;
+            }
+            capabilities = mCapabilities;
+            complete = capabilities.isComplete();
+        }
+
+        if (complete) {
+            finish(capabilities, false);
+        }
+        else {
+            mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isRunning()) {
+                        mListener.onCapabilitiesChanged(capabilities);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * To use the cached capabilities if they have been probed on the application version of the device, or to
+     * probe it otherwise.
+     */
+    private void receiveApplicationVersion(GaiaPacket packet) {
+        CapabilitySet cached = null;
+        synchronized (this) {
+            if (!isRunning || mVersion != null) {
+                return;
+            }
+            if (packet.getStatus() == Gaia.Status.SUCCESS) {
+                byte[] payload = packet.getPayload();
+                mVersion = Arrays.copyOfRange(payload, 1, payload.length);
+                cached = mCache.get(mAddress, mVersion);
+            }
+        }
+
+        if (cached != null) {
+            finish(cached, true);
+        }
+        else {
+            sendProbes();
+        }
+    }
+
+    /**
+     * To send all the probe commands without waiting for the acknowledgements.
+     */
+    private void sendProbes() {
+        for (int i = 0; i < Capability.getLength(); i++) {
+            for (int command : Capability.valueOf(i).getProbeCommands()) {
+                mLink.sendCommand(Gaia.VENDOR_CSR, command);
+            }
+        }
+    }
+
+    /**
+     * To end the probing: the capabilities are stored if they come from the device and the listener is informed.
+     */
+    private void finish(final CapabilitySet capabilities, final boolean fromCache) {
+        byte[] version;
+        synchronized (this) {
+            mCapabilities = capabilities;
+            version = mVersion;
+        }
+        cancel();
+
+        if (!fromCache && version != null) {
+            mCache.put(mAddress, version, capabilities);
+        }
+
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onCapabilitiesChanged(capabilities);
+                mListener.onProbeComplete(capabilities, fromCache);
+            }
+        });
+    }
+
+    /**
+     * The interface to implement to be informed of the capabilities found by a {@link CapabilityProber}. All methods
+     * are called on the main executor of the dispatcher of the link.
+     */
+    public interface ICapabilityListener {
+
+        /**
+         * Called each time the state of a capability is known, and with the cached capabilities when the probing
+         * starts.
+         *
+         * @param capabilities
+         *            the capabilities known so far, the other ones are not known yet.
+         */
+        void onCapabilitiesChanged(CapabilitySet capabilities);
+
+        /**
+         * Called once the state of all capabilities is known.
+         *
+         * @param capabilities
+         *            the capabilities of the device.
+         * @param fromCache
+         *            true if the capabilities come from the cache: the device has not been probed.
+         */
+        void onProbeComplete(CapabilitySet capabilities, boolean fromCache);
+    }
+}
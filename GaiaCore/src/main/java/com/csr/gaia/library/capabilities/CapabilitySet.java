@@ -0,0 +1,135 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.capabilities;
+
+/**
+ * <p>An immutable set of {@link Capability} states stored as two bitmaps: the capabilities which are known and,
+ * among them, the ones which are supported.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class CapabilitySet {
+
+    /**
+     * The set where no capability is known.
+     */
+    public static final CapabilitySet UNKNOWN = new CapabilitySet(0, 0);
+
+    /**
+     * The bitmap of the known capabilities.
+     */
+    private final int mKnown;
+    /**
+     * The bitmap of the supported capabilities, always included in the known ones.
+     */
+    private final int mSupported;
+
+    /**
+     * To build a set from its bitmaps.
+     *
+     * @param known
+     *            the bitmap of the known capabilities, the bit of a capability is its ordinal.
+     * @param supported
+     *            the bitmap of the supported capabilities.
+     */
+    public CapabilitySet(int known, int supported) {
+        mKnown = known;
+        mSupported = supported & known;
+    }
+
+    /**
+     * To get a copy of this set where the state of a capability is known.
+     *
+     * @param capability
+     *            the capability.
+     * @param supported
+     *            true if the device supports the capability.
+     *
+     * @return the new set.
+     */
+    public CapabilitySet with(Capability capability, boolean supported) {
+        int mask = capability.getMask();
+        return new CapabilitySet(mKnown | mask, supported ? mSupported | mask : mSupported & ~mask);
+    }
+
+    /**
+     * @return true if the state of the capability is known.
+     */
+    public boolean isKnown(Capability capability) {
+        return (mKnown & capability.getMask()) != 0;
+    }
+
+    /**
+     * @return true if the capability is known to be supported.
+     */
+    public boolean isSupported(Capability capability) {
+        return (mSupported & capability.getMask()) != 0;
+    }
+
+    /**
+     * @return true if the state of all capabilities is known.
+     */
+    public boolean isComplete() {
+        int all = (1 << Capability.getLength()) - 1;
+        return (mKnown & all) == all;
+    }
+
+    /**
+     * @return the bitmap of the known capabilities.
+     */
+    public int getKnown() {
+        return mKnown;
+    }
+
+    /**
+     * @return the bitmap of the supported capabilities.
+     */
+    public int getSupported() {
+        return mSupported;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof CapabilitySet)) {
+            return false;
+        }
+        CapabilitySet other = (CapabilitySet) object;
+        return mKnown == other.mKnown && mSupported == other.mSupported;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mKnown + mSupported;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Capabilities [");
+        for (int i = 0; i < Capability.getLength(); i++) {
+            Capability capability = Capability.valueOf(i);
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(capability).append('=')
+                    .append(!isKnown(capability) ? "?" : isSupported(capability) ? "yes" : "no");
+        }
+        return builder.append(']').toString();
+    }
+}
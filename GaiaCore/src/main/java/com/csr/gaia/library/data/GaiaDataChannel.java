@@ -0,0 +1,536 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.data;
+
+import com.csr.gaia.library.DeadlineWait;
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A full-duplex channel for application data, over a session of COMMAND_DATA_TRANSFER_SETUP,
+ * COMMAND_HOST_TO_DEVICE_DATA, COMMAND_DEVICE_TO_HOST_DATA and COMMAND_DATA_TRANSFER_CLOSE.</p>
+ * <p>The bytes written are cut in segments which fill a GAIA payload. A window of HOST_TO_DEVICE_DATA commands is
+ * kept outstanding: a write blocks only when the window is full, until the device acknowledges a segment.</p>
+ * <p>The segments sent by the device are kept in order until they are read. Each one is acknowledged as soon as it
+ * is received while less than the receive buffer size is waiting to be read; beyond it the acknowledgements are
+ * delayed until the application reads, so a device which keeps a window of unacknowledged segments is slowed down
+ * to the pace of the reader.</p>
+ * <p>The payloads used are:</p>
+ * <ul>
+ *     <li>DATA_TRANSFER_SETUP: no parameter; acknowledged with the status and the session identifier on 2
+ *     octets.</li>
+ *     <li>HOST_TO_DEVICE_DATA and DEVICE_TO_HOST_DATA: the session identifier and the data.</li>
+ *     <li>DATA_TRANSFER_CLOSE: the session identifier, sent by the host or by the device.</li>
+ * </ul>
+ * <p>The methods of this channel block: they must not be called on the UI thread nor on the reader thread of the
+ * link. They fail once the link closes.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaDataChannel implements ByteChannel, GaiaDispatcher.IPacketListener, GaiaDispatcher.ILinkListener {
+
+    /**
+     * The default number of outstanding HOST_TO_DEVICE_DATA commands.
+     */
+    public static final int DEFAULT_WINDOW = 4;
+    /**
+     * The default number of received bytes kept before the acknowledgements are delayed.
+     */
+    public static final int DEFAULT_RECEIVE_BUFFER = 4096;
+    /**
+     * The default time to wait for an acknowledgement, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 3000;
+    /**
+     * The largest segment: the data payloads start with the session identifier.
+     */
+    public static final int MAX_SEGMENT = Gaia.MAX_PAYLOAD - 2;
+    private static final int OFFS_SESSION = 1;
+    private static final int OFFS_DATA = 2;
+
+    private final GaiaLinkCore mLink;
+    private final int mWindow;
+    private final int mReceiveBuffer;
+    private final long mTimeout;
+    /**
+     * The identifier given by the device to the session, -1 while it is not known.
+     */
+    private int mSession = -1;
+    private boolean isSetupAnswered = false;
+    /**
+     * The number of HOST_TO_DEVICE_DATA commands not acknowledged yet.
+     */
+    private int mOutstanding = 0;
+    /**
+     * The segments received and not read yet, in their order of arrival.
+     */
+    private final ArrayDeque<byte[]> mSegments = new ArrayDeque<>();
+    /**
+     * The position of the reader in the first segment.
+     */
+    private int mPosition = 0;
+    /**
+     * The number of received bytes not read yet.
+     */
+    private int mBuffered = 0;
+    /**
+     * The DEVICE_TO_HOST_DATA commands whose acknowledgement waits for the reader.
+     */
+    private final ArrayDeque<GaiaPacket> mDelayedAcknowledgements = new ArrayDeque<>();
+    /**
+     * The error which stopped the channel, reported on the next call.
+     */
+    private IOException mError;
+    private boolean isClosed = false;
+    /**
+     * True once the device has closed the session: the reader gets the end of the stream after the buffered bytes.
+     */
+    private boolean isClosedByDevice = false;
+    private long mOpenTime;
+    private long mSentBytes = 0;
+    private long mAcknowledgedBytes = 0;
+    private long mReceivedBytes = 0;
+    private long mSentSegments = 0;
+    private long mReceivedSegments = 0;
+
+    private GaiaDataChannel(GaiaLinkCore link, int window, int receiveBuffer, long timeout) {
+        mLink = link;
+        mWindow = Math.max(1, window);
+        mReceiveBuffer = Math.max(MAX_SEGMENT, receiveBuffer);
+        mTimeout = timeout;
+    }
+
+    /**
+     * To open a data channel with the default window, receive buffer and timeout.
+     *
+     * @see #open(GaiaLinkCore, int, int, long)
+     */
+    public static GaiaDataChannel open(GaiaLinkCore link) throws IOException {
+        return open(link, DEFAULT_WINDOW, DEFAULT_RECEIVE_BUFFER, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * To open a data channel: this method blocks until the device has acknowledged the session setup.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param window
+     *            the number of HOST_TO_DEVICE_DATA commands sent without waiting for their acknowledgement.
+     * @param receiveBuffer
+     *            the number of received bytes kept before the acknowledgements are delayed.
+     * @param timeout
+     *            the time to wait for each acknowledgement, in milliseconds.
+     *
+     * @return the channel.
+     *
+     * @throws IOException
+     *             if the device does not open a session.
+     */
+    public static GaiaDataChannel open(GaiaLinkCore link, int window, int receiveBuffer, long timeout)
+            throws IOException {
+        GaiaDataChannel channel = new GaiaDataChannel(link, window, receiveBuffer, timeout);
+        channel.setup();
+        return channel;
+    }
+
+    /**
+     * @return the identifier of the session given by the device.
+     */
+    public synchronized int getSession() {
+        return mSession;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int written = 0;
+        while (source.hasRemaining()) {
+            byte[] payload;
+            int session;
+            synchronized (this) {
+                long deadline = System.nanoTime() + mTimeout * 1000000L;
+                while (true) {
+                    checkOpen();
+                    if (isClosedByDevice) {
+                        throw new ClosedChannelException();
+                    }
+                    if (mOutstanding < mWindow) {
+                        break;
+                    }
+                    DeadlineWait.waitUntil(this, deadline, "HOST_TO_DEVICE_DATA");
+                }
+                int length = Math.min(source.remaining(), MAX_SEGMENT);
+                payload = new byte[length + OFFS_DATA];
+                session = mSession;
+                source.get(payload, OFFS_DATA, length);
+                mOutstanding++;
+                mSentBytes += length;
+                mSentSegments++;
+                written += length;
+            }
+            payload[0] = (byte) (session >>> 8);
+            payload[1] = (byte) session;
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_HOST_TO_DEVICE_DATA, payload);
+        }
+        return written;
+    }
+
+    /**
+     * To write bytes to the device.
+     *
+     * @see #write(ByteBuffer)
+     */
+    public int write(byte[] buffer, int offset, int length) throws IOException {
+        return write(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * To wait until the device has acknowledged all the bytes written.
+     *
+     * @throws IOException
+     *             if an acknowledgement is not received in time or reports an error.
+     */
+    public synchronized void flush() throws IOException {
+        long deadline = System.nanoTime() + mTimeout * 1000000L;
+        while (true) {
+            checkOpen();
+            if (mOutstanding == 0) {
+                return;
+            }
+            DeadlineWait.waitUntil(this, deadline, "HOST_TO_DEVICE_DATA");
+        }
+    }
+
+    /**
+     * To read the bytes sent by the device: this method blocks until at least one byte is available.
+     *
+     * @return the number of bytes read, -1 once the device has closed the session and all its bytes have been read.
+     */
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (!destination.hasRemaining()) {
+            return 0;
+        }
+
+        int read = 0;
+        List<GaiaPacket> acknowledgements;
+        synchronized (this) {
+            while (true) {
+                checkOpen();
+                if (mBuffered > 0) {
+                    break;
+                }
+                if (isClosedByDevice) {
+                    return -1;
+                }
+                try {
+                    // the device sends when it has something to send: there is no deadline, the link closing ends it
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for DEVICE_TO_HOST_DATA.");
+                }
+            }
+
+            while (destination.hasRemaining() && !mSegments.isEmpty()) {
+                byte[] segment = mSegments.peekFirst();
+                int length = Math.min(destination.remaining(), segment.length - mPosition);
+                destination.put(segment, mPosition, length);
+                mPosition += length;
+                read += length;
+                if (mPosition == segment.length) {
+                    mSegments.pollFirst();
+                    mPosition = 0;
+                }
+            }
+            mBuffered -= read;
+            acknowledgements = releaseAcknowledgements();
+        }
+
+        for (GaiaPacket packet : acknowledgements) {
+            mLink.sendAcknowledgement(packet, Gaia.Status.SUCCESS);
+        }
+        return read;
+    }
+
+    /**
+     * To read the bytes sent by the device.
+     *
+     * @see #read(ByteBuffer)
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * @return the number of received bytes which can be read without blocking.
+     */
+    public synchronized int available() {
+        return mBuffered;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !isClosed;
+    }
+
+    /**
+     * To close the session. The bytes written and not acknowledged yet are still delivered by the device, use
+     * {@link #flush()} before to know they have been.
+     */
+    @Override
+    public void close() {
+        int session;
+        List<GaiaPacket> acknowledgements;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            session = isClosedByDevice ? -1 : mSession;
+            acknowledgements = new ArrayList<>(mDelayedAcknowledgements);
+            mDelayedAcknowledgements.clear();
+            mSegments.clear();
+            mBuffered = 0;
+            notifyAll();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        mLink.getDispatcher().removeLinkListener(this);
+        for (GaiaPacket packet : acknowledgements) {
+            mLink.sendAcknowledgement(packet, Gaia.Status.SUCCESS);
+        }
+        if (session >= 0) {
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_DATA_TRANSFER_CLOSE, session >>> 8, session & 0xFF);
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the device.
+     */
+    public synchronized long getSentBytes() {
+        return mSentBytes;
+    }
+
+    /**
+     * @return the number of bytes written and acknowledged by the device.
+     */
+    public synchronized long getAcknowledgedBytes() {
+        return mAcknowledgedBytes;
+    }
+
+    /**
+     * @return the number of bytes received from the device.
+     */
+    public synchronized long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    /**
+     * @return the number of HOST_TO_DEVICE_DATA commands sent.
+     */
+    public synchronized long getSentSegments() {
+        return mSentSegments;
+    }
+
+    /**
+     * @return the number of DEVICE_TO_HOST_DATA commands received.
+     */
+    public synchronized long getReceivedSegments() {
+        return mReceivedSegments;
+    }
+
+    /**
+     * @return the number of bytes acknowledged by the device per second since the channel was opened.
+     */
+    public synchronized double getSendThroughput() {
+        long elapsed = System.nanoTime() - mOpenTime;
+        return elapsed > 0 ? mAcknowledgedBytes * 1000000000.0 / elapsed : 0;
+    }
+
+    /**
+     * @return the number of bytes received per second since the channel was opened.
+     */
+    public synchronized double getReceiveThroughput() {
+        long elapsed = System.nanoTime() - mOpenTime;
+        return elapsed > 0 ? mReceivedBytes * 1000000000.0 / elapsed : 0;
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        byte[] payload = packet.getPayload();
+        if (payload == null) {
+            payload = new byte[0];
+        }
+        boolean acknowledge = false;
+
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            if (packet.isAcknowledgement()) {
+                boolean success = packet.getStatus() == Gaia.Status.SUCCESS;
+                switch (packet.getCommand()) {
+                case Gaia.COMMAND_DATA_TRANSFER_SETUP:
+                    if (isSetupAnswered) {
+                        return;
+                    }
+                    isSetupAnswered = true;
+                    if (success && payload.length >= OFFS_SESSION + 2) {
+                        mSession = packet.getShort(OFFS_SESSION);
+                        mOpenTime = System.nanoTime();
+                    }
+                    else {
+                        mError = new IOException("Device cannot open a data session: " + packet.getStatus());
+                    }
+                    break;
+
+                case Gaia.COMMAND_HOST_TO_DEVICE_DATA:
+                    if (mOutstanding == 0) {
+                        return;
+                    }
+                    mOutstanding--;
+                    if (success) {
+                        // the segments are acknowledged in order, all of them but the last one are full
+                        mAcknowledgedBytes = Math.min(mAcknowledgedBytes + MAX_SEGMENT, mSentBytes);
+                        if (mOutstanding == 0) {
+                            mAcknowledgedBytes = mSentBytes;
+                        }
+                    }
+                    else {
+                        mError = new IOException("Device cannot receive data: " + packet.getStatus());
+                    }
+                    break;
+
+                default:
+                    return;
+                }
+            }
+            else {
+                if (payload.length < OFFS_DATA || getSession(payload) != mSession) {
+                    return;
+                }
+                switch (packet.getCommand()) {
+                case Gaia.COMMAND_DEVICE_TO_HOST_DATA:
+                    byte[] segment = new byte[payload.length - OFFS_DATA];
+                    System.arraycopy(payload, OFFS_DATA, segment, 0, segment.length);
+                    if (segment.length > 0) {
+                        mSegments.addLast(segment);
+                        mBuffered += segment.length;
+                    }
+                    mReceivedBytes += segment.length;
+                    mReceivedSegments++;
+                    if (mBuffered > mReceiveBuffer) {
+                        mDelayedAcknowledgements.addLast(packet);
+                    }
+                    else {
+                        acknowledge = true;
+                    }
+                    break;
+
+                case Gaia.COMMAND_DATA_TRANSFER_CLOSE:
+                    isClosedByDevice = true;
+                    acknowledge = true;
+                    break;
+
+                default:
+                    return;
+                }
+            }
+            notifyAll();
+        }
+
+        if (acknowledge) {
+            mLink.sendAcknowledgement(packet, Gaia.Status.SUCCESS);
+        }
+    }
+
+    @Override
+    public synchronized void onLinkClosed() {
+        if (!isClosed && mError == null) {
+            mError = new IOException("The link to the device is closed.");
+            notifyAll();
+        }
+    }
+
+    /**
+     * To request a session and to wait for its identifier.
+     */
+    private void setup() throws IOException {
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        dispatcher.subscribe(Gaia.COMMAND_DATA_TRANSFER_SETUP, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.subscribe(Gaia.COMMAND_DATA_TRANSFER_CLOSE, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.subscribe(Gaia.COMMAND_HOST_TO_DEVICE_DATA, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.subscribe(Gaia.COMMAND_DEVICE_TO_HOST_DATA, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.addLinkListener(this);
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_DATA_TRANSFER_SETUP);
+
+        try {
+            synchronized (this) {
+                long deadline = System.nanoTime() + mTimeout * 1000000L;
+                while (!isSetupAnswered && mError == null) {
+                    DeadlineWait.waitUntil(this, deadline, "DATA_TRANSFER_SETUP");
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * To get the delayed acknowledgements which can be sent now the reader made room. This method must be called
+     * while holding the lock.
+     */
+    private List<GaiaPacket> releaseAcknowledgements() {
+        List<GaiaPacket> acknowledgements = new ArrayList<>();
+        while (!mDelayedAcknowledgements.isEmpty() && mBuffered <= mReceiveBuffer) {
+            acknowledgements.add(mDelayedAcknowledgements.pollFirst());
+        }
+        return acknowledgements;
+    }
+
+    /**
+     * To check the channel can still be used. This method must be called while holding the lock.
+     */
+    private void checkOpen() throws IOException {
+        if (isClosed) {
+            throw new ClosedChannelException();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private static int getSession(byte[] payload) {
+        return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+    }
+}
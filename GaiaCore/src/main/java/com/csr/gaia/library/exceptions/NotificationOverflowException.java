@@ -0,0 +1,62 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.exceptions;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.notifications.NotificationPublisher;
+
+/**
+ * The failure of a subscription with the {@link NotificationPublisher.Overflow#BUFFER BUFFER} policy whose
+ * subscriber did not keep up with the notifications.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class NotificationOverflowException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Gaia.EventId mEvent;
+    private final int mCapacity;
+
+    /**
+     * To build an exception.
+     *
+     * @param event
+     *            the event of the notifications.
+     * @param capacity
+     *            the capacity of the queue of the subscriber.
+     */
+    public NotificationOverflowException(Gaia.EventId event, int capacity) {
+        super("More than " + capacity + " " + event + " notifications waiting for the subscriber");
+        mEvent = event;
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return the event of the notifications.
+     */
+    public Gaia.EventId getEvent() {
+        return mEvent;
+    }
+
+    /**
+     * @return the capacity of the queue of the subscriber.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
@@ -0,0 +1,465 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.files;
+
+import com.csr.gaia.library.DeadlineWait;
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * <p>A stream over a file of the device, read with COMMAND_OPEN_FILE, COMMAND_READ_FILE and COMMAND_CLOSE_FILE.</p>
+ * <p>The file is read in chunks. A window of READ_FILE requests is kept outstanding: each chunk consumed by the
+ * caller requests the chunk which is a window ahead, so the device always has requests to answer and the file is
+ * read at the speed of the link instead of one round trip per chunk. The acknowledgements are stored on the reader
+ * thread of the link in one buffer per chunk of the window, and copied from there into the buffers of the
+ * caller.</p>
+ * <p>The payloads used are:</p>
+ * <ul>
+ *     <li>GET_FILE_STATUS: the path; acknowledged with the status and the size of the file on 4 octets.</li>
+ *     <li>OPEN_FILE: the mode - 0 to read - and the path; acknowledged with the status and the file handle.</li>
+ *     <li>READ_FILE: the handle, the offset on 4 octets and the number of bytes to read; acknowledged with the
+ *     status, the handle, the offset and the data. A short chunk is the end of the file.</li>
+ *     <li>CLOSE_FILE: the handle.</li>
+ * </ul>
+ * <p>The methods of this stream block: they must not be called on the UI thread nor on the reader thread of the
+ * link.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class DeviceFileInputStream extends InputStream implements ReadableByteChannel,
+        GaiaDispatcher.IPacketListener {
+
+    /**
+     * The default number of outstanding READ_FILE requests.
+     */
+    public static final int DEFAULT_WINDOW = 4;
+    /**
+     * The largest chunk: the READ_FILE acknowledgement holds the status, the handle and the offset before the data.
+     */
+    public static final int MAX_CHUNK = Gaia.MAX_PAYLOAD - 6;
+    /**
+     * The default time to wait for an acknowledgement, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 3000;
+    /**
+     * The mode of OPEN_FILE to read a file.
+     */
+    private static final int MODE_READ = 0;
+    private static final int OFFS_HANDLE = 1;
+    private static final int OFFS_OFFSET = 2;
+    private static final int OFFS_DATA = 6;
+    private static final int OFFS_SIZE = 1;
+    private static final Charset PATH_CHARSET = Charset.forName("UTF-8");
+
+    private final GaiaLinkCore mLink;
+    private final int mWindow;
+    private final int mChunk;
+    private final long mTimeout;
+    /**
+     * The buffers of the chunks of the window, the chunk <code>n</code> is in <code>n % window</code>.
+     */
+    private final byte[][] mSlots;
+    /**
+     * The length of the data in each buffer, -1 while the chunk has not been received.
+     */
+    private final int[] mSlotLengths;
+    /**
+     * The failure of the READ_FILE request of each chunk of the window, only reported once the caller reaches the
+     * chunk: a request after the end of the file may fail while all the data is already received.
+     */
+    private final IOException[] mSlotErrors;
+    /**
+     * The handle of the file, -1 while it is not open.
+     */
+    private int mHandle = -1;
+    /**
+     * True once OPEN_FILE has been acknowledged.
+     */
+    private boolean isOpenAnswered = false;
+    /**
+     * The size of the file given by GET_FILE_STATUS, -1 if it is not known.
+     */
+    private long mSize = -1;
+    /**
+     * The chunk the caller reads from.
+     */
+    private long mChunkIndex = 0;
+    /**
+     * The position of the caller in the current chunk.
+     */
+    private int mPosition = 0;
+    /**
+     * The next chunk to request.
+     */
+    private long mNextRequest = 0;
+    /**
+     * The first chunk after the end of the file, {@link Long#MAX_VALUE} while it is not known.
+     */
+    private long mEndChunk = Long.MAX_VALUE;
+    /**
+     * The error which prevented the opening of the file, reported on the next call.
+     */
+    private IOException mError;
+    private boolean isClosed = false;
+
+    private DeviceFileInputStream(GaiaLinkCore link, int window, int chunk, long timeout) {
+        mLink = link;
+        mWindow = Math.max(1, window);
+        mChunk = Math.max(1, Math.min(chunk, MAX_CHUNK));
+        mTimeout = timeout;
+        mSlots = new byte[mWindow][mChunk];
+        mSlotLengths = new int[mWindow];
+        mSlotErrors = new IOException[mWindow];
+        for (int i = 0; i < mWindow; i++) {
+            mSlotLengths[i] = -1;
+        }
+    }
+
+    /**
+     * To open a file of the device with the default window, chunk and timeout.
+     *
+     * @see #open(GaiaLinkCore, String, int, int, long)
+     */
+    public static DeviceFileInputStream open(GaiaLinkCore link, String path) throws IOException {
+        return open(link, path, DEFAULT_WINDOW, MAX_CHUNK, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * To open a file of the device. This method blocks until the device has acknowledged the opening, then the first
+     * window of chunks is requested.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param path
+     *            the path of the file on the device.
+     * @param window
+     *            the number of outstanding READ_FILE requests.
+     * @param chunk
+     *            the number of bytes requested by each READ_FILE, at most {@link #MAX_CHUNK}.
+     * @param timeout
+     *            the time to wait for each acknowledgement, in milliseconds.
+     *
+     * @return the stream to read the file.
+     *
+     * @throws IOException
+     *             if the device does not open the file.
+     */
+    public static DeviceFileInputStream open(GaiaLinkCore link, String path, int window, int chunk, long timeout)
+            throws IOException {
+        DeviceFileInputStream stream = new DeviceFileInputStream(link, window, chunk, timeout);
+        stream.open(path);
+        return stream;
+    }
+
+    /**
+     * @return the size of the file given by the device, -1 if it is not known.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        int read;
+        synchronized (this) {
+            int slot = waitForChunk();
+            if (slot < 0) {
+                return -1;
+            }
+            read = Math.min(length, mSlotLengths[slot] - mPosition);
+            System.arraycopy(mSlots[slot], mPosition, buffer, offset, read);
+            mPosition += read;
+            if (mPosition < mSlotLengths[slot]) {
+                return read;
+            }
+            // the chunk is consumed: its buffer is used for the chunk a window ahead
+            mSlotLengths[slot] = -1;
+            mChunkIndex++;
+            mPosition = 0;
+        }
+
+        requestChunks();
+        return read;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (destination.hasArray()) {
+            int read = read(destination.array(), destination.arrayOffset() + destination.position(),
+                    destination.remaining());
+            if (read > 0) {
+                destination.position(destination.position() + read);
+            }
+            return read;
+        }
+
+        byte[] buffer = new byte[Math.min(destination.remaining(), mChunk)];
+        int read = read(buffer, 0, buffer.length);
+        if (read > 0) {
+            destination.put(buffer, 0, read);
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        int slot = (int) (mChunkIndex % mWindow);
+        return mSlotLengths[slot] < 0 ? 0 : mSlotLengths[slot] - mPosition;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !isClosed;
+    }
+
+    /**
+     * To close the file on the device and to stop receiving its chunks.
+     */
+    @Override
+    public void close() {
+        int handle;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            handle = mHandle;
+            notifyAll();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        if (handle >= 0) {
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_CLOSE_FILE, new byte[] { (byte) handle });
+        }
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        if (!packet.isAcknowledgement()) {
+            return;
+        }
+        byte[] payload = packet.getPayload();
+        boolean success = packet.getStatus() == Gaia.Status.SUCCESS;
+
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            switch (packet.getCommand()) {
+            case Gaia.COMMAND_GET_FILE_STATUS:
+                if (success && payload.length >= OFFS_SIZE + 4 && mSize < 0) {
+                    mSize = getInt(payload, OFFS_SIZE);
+                    mEndChunk = Math.min(mEndChunk, (mSize + mChunk - 1) / mChunk);
+                }
+                break;
+
+            case Gaia.COMMAND_OPEN_FILE:
+                if (isOpenAnswered) {
+                    return;
+                }
+                isOpenAnswered = true;
+                if (success && payload.length > OFFS_HANDLE) {
+                    mHandle = payload[OFFS_HANDLE] & 0xFF;
+                }
+                else {
+                    mError = new IOException("Device cannot open the file: " + packet.getStatus());
+                }
+                break;
+
+            case Gaia.COMMAND_READ_FILE:
+                if (payload.length > OFFS_HANDLE && (payload[OFFS_HANDLE] & 0xFF) != mHandle) {
+                    // an acknowledgement for another file
+                    return;
+                }
+                if (!success) {
+                    failChunk(payload, packet.getStatus());
+                }
+                else if (payload.length >= OFFS_DATA) {
+                    receiveChunk(payload);
+                }
+                break;
+
+            default:
+                return;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * To store a chunk in its buffer. This method must be called while holding the lock.
+     */
+    private void receiveChunk(byte[] payload) {
+        long offset = getInt(payload, OFFS_OFFSET);
+        if (offset % mChunk != 0) {
+            return;
+        }
+        long chunk = offset / mChunk;
+        if (chunk < mChunkIndex || chunk >= mChunkIndex + mWindow) {
+            return;
+        }
+        int length = Math.min(payload.length - OFFS_DATA, mChunk);
+        int slot = (int) (chunk % mWindow);
+        System.arraycopy(payload, OFFS_DATA, mSlots[slot], 0, length);
+        mSlotLengths[slot] = length;
+        if (length == 0) {
+            mEndChunk = Math.min(mEndChunk, chunk);
+        }
+        else if (length < mChunk) {
+            mEndChunk = Math.min(mEndChunk, chunk + 1);
+        }
+    }
+
+    /**
+     * To keep the failure of a READ_FILE request with its chunk. When the acknowledgement does not give the offset,
+     * the failure is the one of the oldest chunk neither received nor failed: the device answers the requests in
+     * order. This method must be called while holding the lock.
+     */
+    private void failChunk(byte[] payload, Gaia.Status status) {
+        long chunk;
+        if (payload.length >= OFFS_DATA) {
+            long offset = getInt(payload, OFFS_OFFSET);
+            if (offset % mChunk != 0) {
+                return;
+            }
+            chunk = offset / mChunk;
+        }
+        else {
+            chunk = mChunkIndex;
+            while (chunk < mNextRequest && (mSlotLengths[(int) (chunk % mWindow)] >= 0
+                    || mSlotErrors[(int) (chunk % mWindow)] != null)) {
+                chunk++;
+            }
+        }
+        if (chunk < mChunkIndex || chunk >= mChunkIndex + mWindow || chunk >= mNextRequest) {
+            return;
+        }
+        mSlotErrors[(int) (chunk % mWindow)] = new IOException("Device cannot read the file at offset "
+                + chunk * mChunk + ": " + status);
+    }
+
+    /**
+     * To wait for the current chunk. This method must be called while holding the lock.
+     *
+     * @return the buffer of the current chunk, -1 at the end of the file.
+     */
+    private int waitForChunk() throws IOException {
+        long deadline = System.nanoTime() + mTimeout * 1000000L;
+        while (true) {
+            if (isClosed) {
+                throw new ClosedChannelException();
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            if (mChunkIndex >= mEndChunk) {
+                return -1;
+            }
+            int slot = (int) (mChunkIndex % mWindow);
+            if (mSlotLengths[slot] > 0) {
+                return slot;
+            }
+            if (mSlotLengths[slot] == 0) {
+                return -1;
+            }
+            if (mSlotErrors[slot] != null) {
+                throw mSlotErrors[slot];
+            }
+            DeadlineWait.waitUntil(this, deadline, "READ_FILE");
+        }
+    }
+
+    /**
+     * To request the file size and to open the file in one burst, then to request the first window of chunks.
+     */
+    private void open(String path) throws IOException {
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        dispatcher.subscribe(Gaia.COMMAND_GET_FILE_STATUS, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.subscribe(Gaia.COMMAND_OPEN_FILE, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.subscribe(Gaia.COMMAND_READ_FILE, GaiaDispatcher.Delivery.READER_THREAD, this);
+
+        byte[] name = path.getBytes(PATH_CHARSET);
+        byte[] payload = new byte[name.length + 1];
+        payload[0] = MODE_READ;
+        System.arraycopy(name, 0, payload, 1, name.length);
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_GET_FILE_STATUS, name);
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_OPEN_FILE, payload);
+
+        try {
+            synchronized (this) {
+                long deadline = System.nanoTime() + mTimeout * 1000000L;
+                while (!isOpenAnswered) {
+                    DeadlineWait.waitUntil(this, deadline, "OPEN_FILE");
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        requestChunks();
+    }
+
+    /**
+     * To request the chunks which fit in the window. The requests are sent without holding the lock so the reader
+     * thread can store the acknowledgements meanwhile.
+     */
+    private void requestChunks() {
+        while (true) {
+            long chunk;
+            int handle;
+            synchronized (this) {
+                if (isClosed || mNextRequest >= mEndChunk || mNextRequest >= mChunkIndex + mWindow) {
+                    return;
+                }
+                chunk = mNextRequest++;
+                handle = mHandle;
+            }
+            long offset = chunk * mChunk;
+            byte[] payload = { (byte) handle, (byte) (offset >>> 24), (byte) (offset >>> 16), (byte) (offset >>> 8),
+                    (byte) offset, (byte) mChunk };
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_READ_FILE, payload);
+        }
+    }
+
+    private static long getInt(byte[] bytes, int offset) {
+        return ((long) (bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
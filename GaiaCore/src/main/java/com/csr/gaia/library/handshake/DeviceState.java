@@ -0,0 +1,269 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.handshake;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.capabilities.CapabilitySet;
+import com.csr.gaia.library.values.ApiVersion;
+import com.csr.gaia.library.values.BatteryLevel;
+import com.csr.gaia.library.values.Rssi;
+
+/**
+ * <p>An immutable snapshot of what a handshake knows about the connected device: the answer to each
+ * {@link Item} and the decoded values.</p>
+ * <p>A handshake publishes a new snapshot each time an acknowledgement arrives, a snapshot is never modified once it
+ * has been given to a listener.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class DeviceState {
+
+    /**
+     * All the information a handshake can request from the device.
+     */
+    public enum Item {
+        /**
+         * The state of the LED, from COMMAND_GET_LED_CONTROL.
+         */
+        LED_STATE,
+        /**
+         * The battery level, from COMMAND_GET_CURRENT_BATTERY_LEVEL.
+         */
+        BATTERY_LEVEL,
+        /**
+         * The RSSI, from COMMAND_GET_CURRENT_RSSI.
+         */
+        RSSI,
+        /**
+         * The API version, from COMMAND_GET_API_VERSION.
+         */
+        API_VERSION,
+        /**
+         * The supported features, from the cache or from the probe commands.
+         */
+        CAPABILITIES,
+        /**
+         * The registration of the requested notifications.
+         */
+        NOTIFICATIONS
+    }
+
+    private final String mAddress;
+    /**
+     * The status of the answer for each item, null while the item is requested and not answered.
+     */
+    private final Gaia.Status[] mStatus = new Gaia.Status[Item.values().length];
+    /**
+     * The items which have been requested, as a bitmap of their ordinal.
+     */
+    private int mRequested;
+    private boolean isLedOn;
+    private BatteryLevel mBatteryLevel;
+    private Rssi mRssi;
+    private ApiVersion mApiVersion;
+    private CapabilitySet mCapabilities = CapabilitySet.UNKNOWN;
+    /**
+     * The events which have been successfully registered, as a bitmap of their ordinal.
+     */
+    private long mRegisteredEvents;
+    private boolean isTimedOut;
+    private long mElapsed;
+
+    /**
+     * To build the first state of a handshake, nothing is known.
+     */
+    DeviceState(String address) {
+        mAddress = address;
+    }
+
+    /**
+     * To get a copy of this state which can be modified by the handshake before it is published.
+     */
+    DeviceState copy() {
+        DeviceState copy = new DeviceState(mAddress);
+        System.arraycopy(mStatus, 0, copy.mStatus, 0, mStatus.length);
+        copy.mRequested = mRequested;
+        copy.isLedOn = isLedOn;
+        copy.mBatteryLevel = mBatteryLevel;
+        copy.mRssi = mRssi;
+        copy.mApiVersion = mApiVersion;
+        copy.mCapabilities = mCapabilities;
+        copy.mRegisteredEvents = mRegisteredEvents;
+        copy.isTimedOut = isTimedOut;
+        copy.mElapsed = mElapsed;
+        return copy;
+    }
+
+    void setRequested(Item item) {
+        mRequested |= 1 << item.ordinal();
+    }
+
+    void setStatus(Item item, Gaia.Status status) {
+        mStatus[item.ordinal()] = status;
+    }
+
+    void setLedOn(boolean on) {
+        isLedOn = on;
+    }
+
+    void setBatteryLevel(BatteryLevel level) {
+        mBatteryLevel = level;
+    }
+
+    void setRssi(Rssi rssi) {
+        mRssi = rssi;
+    }
+
+    void setApiVersion(ApiVersion version) {
+        mApiVersion = version;
+    }
+
+    void setCapabilities(CapabilitySet capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    void addRegisteredEvent(Gaia.EventId event) {
+        mRegisteredEvents |= 1L << event.ordinal();
+    }
+
+    void setTimedOut() {
+        isTimedOut = true;
+    }
+
+    void setElapsed(long nanos) {
+        mElapsed = nanos;
+    }
+
+    /**
+     * @return the address of the device.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return true if the item has been requested by the handshake.
+     */
+    public boolean isRequested(Item item) {
+        return (mRequested & (1 << item.ordinal())) != 0;
+    }
+
+    /**
+     * @return true if the item has been answered, whatever the status.
+     */
+    public boolean isAnswered(Item item) {
+        return mStatus[item.ordinal()] != null;
+    }
+
+    /**
+     * @return the status the device answered for this item, null if it has not answered.
+     */
+    public Gaia.Status getStatus(Item item) {
+        return mStatus[item.ordinal()];
+    }
+
+    /**
+     * @return true if the item has been answered with {@link Gaia.Status#SUCCESS SUCCESS}.
+     */
+    public boolean isAvailable(Item item) {
+        return mStatus[item.ordinal()] == Gaia.Status.SUCCESS;
+    }
+
+    /**
+     * @return true if all requested items have been answered.
+     */
+    public boolean isComplete() {
+        for (Item item : Item.values()) {
+            if (isRequested(item) && !isAnswered(item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the handshake gave up waiting for the missing answers.
+     */
+    public boolean isTimedOut() {
+        return isTimedOut;
+    }
+
+    /**
+     * @return the time from the start of the handshake to this snapshot, in nanoseconds.
+     */
+    public long getElapsed() {
+        return mElapsed;
+    }
+
+    /**
+     * @return true if the LED is on, only meaningful if {@link Item#LED_STATE LED_STATE} is available.
+     */
+    public boolean isLedOn() {
+        return isLedOn;
+    }
+
+    /**
+     * @return the battery level, null if it is not known.
+     */
+    public BatteryLevel getBatteryLevel() {
+        return mBatteryLevel;
+    }
+
+    /**
+     * @return the RSSI, null if it is not known.
+     */
+    public Rssi getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * @return the API version, null if it is not known.
+     */
+    public ApiVersion getApiVersion() {
+        return mApiVersion;
+    }
+
+    /**
+     * @return the capabilities known so far.
+     */
+    public CapabilitySet getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * @return true if the notifications of this event have been successfully registered.
+     */
+    public boolean isRegistered(Gaia.EventId event) {
+        return (mRegisteredEvents & (1L << event.ordinal())) != 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("DeviceState [").append(mAddress);
+        for (Item item : Item.values()) {
+            if (isRequested(item)) {
+                builder.append(", ").append(item).append('=').append(isAnswered(item) ? getStatus(item) : "?");
+            }
+        }
+        builder.append(", ").append(mBatteryLevel).append(", ").append(mRssi).append(", ").append(mApiVersion)
+                .append(", ").append(mCapabilities);
+        if (isTimedOut) {
+            builder.append(", timed out");
+        }
+        return builder.append(", ").append(mElapsed / 1000000).append(" ms]").toString();
+    }
+}
@@ -0,0 +1,410 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.handshake;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.capabilities.CapabilityCache;
+import com.csr.gaia.library.capabilities.CapabilityProber;
+import com.csr.gaia.library.capabilities.CapabilitySet;
+import com.csr.gaia.library.values.ApiVersion;
+import com.csr.gaia.library.values.BatteryLevel;
+import com.csr.gaia.library.values.DeviceValue;
+import com.csr.gaia.library.values.DeviceValueDecoder;
+import com.csr.gaia.library.values.Rssi;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * <p>This class requests the state of a newly connected device in one burst: all the requested commands are sent at
+ * once without waiting for any acknowledgement, so the whole state is known after about one round trip instead of
+ * one round trip per command.</p>
+ * <p>The acknowledgements are collected on the reader thread into an immutable {@link DeviceState}. Each new state is
+ * given to the listener on the main executor of the dispatcher as soon as an answer arrives, the last one once all
+ * requested items are answered or once the timeout is reached.</p>
+ * <p>The capabilities are found out by a {@link CapabilityProber}: with a cache, a known device only costs its
+ * application version request.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaHandshake implements GaiaDispatcher.IPacketListener {
+
+    /**
+     * The default time to wait for all answers, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 3000;
+    /**
+     * The timer used for the timeouts of all handshakes.
+     */
+    private static Timer sTimer;
+
+    /**
+     * The link to send the commands to.
+     */
+    private final GaiaLinkCore mLink;
+    /**
+     * The listener to give the states to.
+     */
+    private final IHandshakeListener mListener;
+    /**
+     * The prober used for the {@link DeviceState.Item#CAPABILITIES CAPABILITIES} item.
+     */
+    private final CapabilityProber mProber;
+    /**
+     * The time to wait for all answers, in milliseconds.
+     */
+    private long mTimeout = DEFAULT_TIMEOUT;
+    /**
+     * The last published state.
+     */
+    private DeviceState mState;
+    /**
+     * The events sent for registration and not yet acknowledged.
+     */
+    private final Set<Gaia.EventId> mPendingEvents = EnumSet.noneOf(Gaia.EventId.class);
+    /**
+     * The time the handshake started, from {@link System#nanoTime()}.
+     */
+    private long mStart;
+    private TimerTask mTimeoutTask;
+    private boolean isRunning = false;
+
+    /**
+     * To build a new handshake.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param cache
+     *            the cache for the capabilities of the devices, null to probe them on each handshake.
+     * @param listener
+     *            the listener to give the states to.
+     */
+    public GaiaHandshake(GaiaLinkCore link, CapabilityCache cache, IHandshakeListener listener) {
+        mLink = link;
+        mListener = listener;
+        mProber = new CapabilityProber(link, cache, mCapabilityListener);
+        mState = new DeviceState(link.getAddress());
+    }
+
+    /**
+     * To set the time to wait for all answers.
+     *
+     * @param timeout
+     *            the timeout in milliseconds.
+     */
+    public void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * To start the handshake: all the commands for the requested items are sent at once.
+     *
+     * @param items
+     *            the information to request from the device.
+     * @param events
+     *            the events to register the notifications of, used with {@link DeviceState.Item#NOTIFICATIONS
+     *            NOTIFICATIONS}.
+     */
+    public void start(EnumSet<DeviceState.Item> items, Gaia.EventId... events) {
+        DeviceState state = new DeviceState(mLink.getAddress());
+        for (DeviceState.Item item : items) {
+            if (item != DeviceState.Item.NOTIFICATIONS || events.length > 0) {
+                state.setRequested(item);
+            }
+        }
+
+        synchronized (this) {
+            if (isRunning) {
+                return;
+            }
+            isRunning = true;
+            mStart = System.nanoTime();
+            mState = state;
+            mPendingEvents.clear();
+        }
+
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        for (DeviceState.Item item : items) {
+            int command = getCommand(item);
+            if (command >= 0) {
+                dispatcher.subscribe(command, GaiaDispatcher.Delivery.READER_THREAD, this);
+            }
+        }
+
+        scheduleTimeout();
+
+        // the burst: nothing below waits for an answer
+        for (DeviceState.Item item : items) {
+            switch (item) {
+            case CAPABILITIES:
+                mProber.start(mLink.getAddress());
+                break;
+            case NOTIFICATIONS:
+                for (Gaia.EventId event : events) {
+                    synchronized (this) {
+                        mPendingEvents.add(event);
+                    }
+                    mLink.registerNotification(Gaia.VENDOR_CSR, event);
+                }
+                break;
+            default:
+                mLink.sendCommand(Gaia.VENDOR_CSR, getCommand(item));
+            }
+        }
+    }
+
+    /**
+     * To stop the handshake, the listener is not called anymore.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (!isRunning) {
+                return;
+            }
+            isRunning = false;
+            if (mTimeoutTask != null) {
+                mTimeoutTask.cancel();
+                mTimeoutTask = null;
+            }
+        }
+        mProber.cancel();
+        mLink.getDispatcher().unsubscribe(this);
+    }
+
+    /**
+     * @return the last published state.
+     */
+    public synchronized DeviceState getState() {
+        return mState;
+    }
+
+    /**
+     * @return true if the handshake is waiting for answers.
+     */
+    public synchronized boolean isRunning() {
+        return isRunning;
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        if (!packet.isAcknowledgement()) {
+            return;
+        }
+
+        Gaia.Status status = packet.getStatus();
+        synchronized (this) {
+            if (!isRunning) {
+                return;
+            }
+            DeviceState state = mState.copy();
+
+            switch (packet.getCommand()) {
+            case Gaia.COMMAND_GET_LED_CONTROL:
+                state.setStatus(DeviceState.Item.LED_STATE, status);
+                if (status == Gaia.Status.SUCCESS) {
+                    state.setLedOn(packet.getBoolean());
+                }
+                break;
+
+            case Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL:
+                state.setStatus(DeviceState.Item.BATTERY_LEVEL, status);
+                state.setBatteryLevel((BatteryLevel) decode(packet, status));
+                break;
+
+            case Gaia.COMMAND_GET_CURRENT_RSSI:
+                state.setStatus(DeviceState.Item.RSSI, status);
+                state.setRssi((Rssi) decode(packet, status));
+                break;
+
+            case Gaia.COMMAND_GET_API_VERSION:
+                state.setStatus(DeviceState.Item.API_VERSION, status);
+                state.setApiVersion((ApiVersion) decode(packet, status));
+                break;
+
+            case Gaia.COMMAND_REGISTER_NOTIFICATION:
+                // the acknowledgement gives the event after the status: the registrations sent by the application
+                // at the same time are not ours.
+                byte[] payload = packet.getPayload();
+                Gaia.EventId event = payload != null && payload.length > 1 ? Gaia.EventId.valueOf(payload[1]) : null;
+                if (event == null || !mPendingEvents.remove(event)) {
+                    return;
+                }
+                if (status == Gaia.Status.SUCCESS) {
+                    state.addRegisteredEvent(event);
+                }
+                if (mPendingEvents.isEmpty()) {
+                    // the status of the item is the status of the last registration
+                    state.setStatus(DeviceState.Item.NOTIFICATIONS, status);
+                }
+                break;
+
+            default:
+                return;
+            }
+
+            publish(state);
+        }
+    }
+
+    /**
+     * To decode the value of a successful acknowledgement.
+     */
+    private static DeviceValue decode(GaiaPacket packet, Gaia.Status status) {
+        return status == Gaia.Status.SUCCESS ? DeviceValueDecoder.decode(packet) : null;
+    }
+
+    /**
+     * To publish a new state: the listener gets it on the main executor and the handshake ends if it is complete.
+     * This method must be called while holding the lock of this handshake.
+     */
+    private void publish(final DeviceState state) {
+        state.setElapsed(System.nanoTime() - mStart);
+        mState = state;
+        final boolean complete = state.isComplete() || state.isTimedOut();
+        if (complete) {
+            isRunning = false;
+            if (mTimeoutTask != null) {
+                mTimeoutTask.cancel();
+                mTimeoutTask = null;
+            }
+            mLink.getDispatcher().unsubscribe(this);
+        }
+
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStateChanged(state);
+                if (complete) {
+                    mListener.onHandshakeComplete(state);
+                }
+            }
+        });
+    }
+
+    /**
+     * To end the handshake with the answers received so far once the timeout is reached.
+     */
+    private void scheduleTimeout() {
+        synchronized (GaiaHandshake.class) {
+            if (sTimer == null) {
+                sTimer = new Timer("GaiaHandshake", true);
+            }
+        }
+
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (GaiaHandshake.this) {
+                    if (!isRunning || mTimeoutTask != this) {
+                        return;
+                    }
+                    mTimeoutTask = null;
+                    DeviceState state = mState.copy();
+                    state.setTimedOut();
+                    publish(state);
+                }
+                mProber.cancel();
+            }
+        };
+
+        synchronized (this) {
+            mTimeoutTask = task;
+        }
+        sTimer.schedule(task, mTimeout);
+    }
+
+    /**
+     * To get the command which requests an item.
+     *
+     * @return the command or -1 if the item is not requested with a single command.
+     */
+    private static int getCommand(DeviceState.Item item) {
+        switch (item) {
+        case LED_STATE:
+            return Gaia.COMMAND_GET_LED_CONTROL;
+        case BATTERY_LEVEL:
+            return Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL;
+        case RSSI:
+            return Gaia.COMMAND_GET_CURRENT_RSSI;
+        case API_VERSION:
+            return Gaia.COMMAND_GET_API_VERSION;
+        case NOTIFICATIONS:
+            return Gaia.COMMAND_REGISTER_NOTIFICATION;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * To add the capabilities found by the prober to the state.
+     */
+    private final CapabilityProber.ICapabilityListener mCapabilityListener =
+            new CapabilityProber.ICapabilityListener() {
+        @Override
+        public void onCapabilitiesChanged(CapabilitySet capabilities) {
+            synchronized (GaiaHandshake.this) {
+                if (!isRunning || capabilities.equals(mState.getCapabilities())) {
+                    return;
+                }
+                DeviceState state = mState.copy();
+                state.setCapabilities(capabilities);
+                publish(state);
+            }
+        }
+
+        @Override
+        public void onProbeComplete(CapabilitySet capabilities, boolean fromCache) {
+            synchronized (GaiaHandshake.this) {
+                if (!isRunning) {
+                    return;
+                }
+                DeviceState state = mState.copy();
+                state.setCapabilities(capabilities);
+                state.setStatus(DeviceState.Item.CAPABILITIES, Gaia.Status.SUCCESS);
+                publish(state);
+            }
+        }
+    };
+
+    /**
+     * The interface to implement to get the states collected by a {@link GaiaHandshake}. All methods are called on
+     * the main executor of the dispatcher of the link.
+     */
+    public interface IHandshakeListener {
+
+        /**
+         * Called each time an answer has been added to the state of the device.
+         *
+         * @param state
+         *            the state known so far.
+         */
+        void onStateChanged(DeviceState state);
+
+        /**
+         * Called once, when all requested items are answered or when the timeout is reached.
+         *
+         * @param state
+         *            the final state of the handshake.
+         */
+        void onHandshakeComplete(DeviceState state);
+    }
+}
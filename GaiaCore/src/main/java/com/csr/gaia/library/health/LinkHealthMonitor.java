@@ -0,0 +1,372 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.health;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * <p>This class watches the health of a link with {@link Gaia#COMMAND_NO_OPERATION NO_OPERATION} pings: a ping is
+ * sent once nothing has been received from the device for the idle interval, so a busy link is not loaded with
+ * pings. The round trip time of each ping is added to a {@link RttEstimator}.</p>
+ * <p>A ping is missed if it is not acknowledged within twice the adaptive timeout of the estimator - bounded by
+ * {@link #setPingTimeouts(long, long)} - and another one is sent at once. The link is:</p>
+ * <ul>
+ *     <li>{@link Health#HEALTHY HEALTHY} while its pings are answered in less than the degraded round trip
+ *     time,</li>
+ *     <li>{@link Health#DEGRADED DEGRADED} when the round trip time is longer or a ping has been missed,</li>
+ *     <li>{@link Health#DEAD DEAD} once {@link #DEFAULT_DEAD_MISSES} pings in a row are missed without anything
+ *     received from the device in the meantime.</li>
+ * </ul>
+ * <p>This detects a dead RFCOMM link in a few seconds while the socket can take much longer to fail. The listener
+ * is called on the main executor of the dispatcher of the link when the health changes.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class LinkHealthMonitor implements GaiaDispatcher.IPacketListener {
+
+    /**
+     * The health of a link.
+     */
+    public enum Health {
+        /**
+         * No ping has been answered yet.
+         */
+        UNKNOWN,
+        /**
+         * The pings are answered quickly.
+         */
+        HEALTHY,
+        /**
+         * The pings are answered slowly or some have been missed.
+         */
+        DEGRADED,
+        /**
+         * The device does not answer anymore.
+         */
+        DEAD
+    }
+
+    /**
+     * The default time without anything received before a ping is sent, in milliseconds.
+     */
+    public static final long DEFAULT_IDLE_INTERVAL = 2000;
+    /**
+     * The default shortest time to wait for the acknowledgement of a ping, in milliseconds.
+     */
+    public static final long DEFAULT_MIN_PING_TIMEOUT = 500;
+    /**
+     * The default longest time to wait for the acknowledgement of a ping, in milliseconds.
+     */
+    public static final long DEFAULT_MAX_PING_TIMEOUT = 2000;
+    /**
+     * The default round trip time from which the link is degraded, in milliseconds.
+     */
+    public static final long DEFAULT_DEGRADED_RTT = 500;
+    /**
+     * The default number of pings missed in a row for the link to be dead.
+     */
+    public static final int DEFAULT_DEAD_MISSES = 3;
+    /**
+     * The period of the checks of the monitors, in milliseconds.
+     */
+    private static final long CHECK_PERIOD = 100;
+    /**
+     * The timer used for the checks of all monitors.
+     */
+    private static Timer sTimer;
+
+    private final GaiaLinkCore mLink;
+    private final IHealthListener mListener;
+    private final RttEstimator mEstimator;
+    private long mIdleInterval = DEFAULT_IDLE_INTERVAL;
+    private long mMinPingTimeout = DEFAULT_MIN_PING_TIMEOUT;
+    private long mMaxPingTimeout = DEFAULT_MAX_PING_TIMEOUT;
+    private long mDegradedRtt = DEFAULT_DEGRADED_RTT;
+    private int mDeadMisses = DEFAULT_DEAD_MISSES;
+
+    /**
+     * The sending times of the pings waiting for their acknowledgement, the oldest first, from
+     * {@link System#nanoTime()}.
+     */
+    private final Queue<Long> mPendingPings = new ArrayDeque<>();
+    /**
+     * The time of the last frame received from the device.
+     */
+    private volatile long mLastReceived;
+    /**
+     * The time the last ping was sent.
+     */
+    private long mLastPing;
+    private int mMisses = 0;
+    private long mPings = 0;
+    private long mMissedPings = 0;
+    private Health mHealth = Health.UNKNOWN;
+    private TimerTask mCheckTask;
+
+    /**
+     * To build a new monitor with its own estimator.
+     *
+     * @param link
+     *            the link to watch.
+     * @param listener
+     *            the listener to give the health changes to, can be null.
+     */
+    public LinkHealthMonitor(GaiaLinkCore link, IHealthListener listener) {
+        this(link, new RttEstimator(), listener);
+    }
+
+    /**
+     * To build a new monitor which adds its measures to the given estimator.
+     *
+     * @param link
+     *            the link to watch.
+     * @param estimator
+     *            the estimator to add the round trip times to.
+     * @param listener
+     *            the listener to give the health changes to, can be null.
+     */
+    public LinkHealthMonitor(GaiaLinkCore link, RttEstimator estimator, IHealthListener listener) {
+        mLink = link;
+        mEstimator = estimator;
+        mListener = listener;
+    }
+
+    /**
+     * To set the time without anything received before a ping is sent.
+     *
+     * @param interval
+     *            the interval in milliseconds.
+     */
+    public synchronized void setIdleInterval(long interval) {
+        mIdleInterval = interval;
+    }
+
+    /**
+     * To set the bounds of the time to wait for the acknowledgement of a ping before it is missed.
+     *
+     * @param min
+     *            the shortest timeout in milliseconds.
+     * @param max
+     *            the longest timeout in milliseconds.
+     */
+    public synchronized void setPingTimeouts(long min, long max) {
+        mMinPingTimeout = min;
+        mMaxPingTimeout = Math.max(min, max);
+    }
+
+    /**
+     * To set the smoothed round trip time from which the link is degraded.
+     *
+     * @param rtt
+     *            the round trip time in milliseconds.
+     */
+    public synchronized void setDegradedRtt(long rtt) {
+        mDegradedRtt = rtt;
+    }
+
+    /**
+     * To set the number of pings missed in a row for the link to be dead.
+     *
+     * @param misses
+     *            the number of pings, at least 1.
+     */
+    public synchronized void setDeadMisses(int misses) {
+        mDeadMisses = Math.max(1, misses);
+    }
+
+    /**
+     * To start watching the link, which must be connected.
+     */
+    public void start() {
+        synchronized (LinkHealthMonitor.class) {
+            if (sTimer == null) {
+                sTimer = new Timer("LinkHealthMonitor", true);
+            }
+        }
+
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                check(this);
+            }
+        };
+
+        synchronized (this) {
+            if (mCheckTask != null) {
+                return;
+            }
+            mCheckTask = task;
+            mPendingPings.clear();
+            mMisses = 0;
+            mLastReceived = System.nanoTime();
+            mLastPing = mLastReceived;
+        }
+        mLink.getDispatcher().subscribeAll(GaiaDispatcher.Delivery.READER_THREAD, this);
+        sTimer.schedule(task, CHECK_PERIOD, CHECK_PERIOD);
+    }
+
+    /**
+     * To stop watching the link, the listener is not called anymore.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (mCheckTask == null) {
+                return;
+            }
+            mCheckTask.cancel();
+            mCheckTask = null;
+            mPendingPings.clear();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+    }
+
+    /**
+     * @return the current health of the link.
+     */
+    public synchronized Health getHealth() {
+        return mHealth;
+    }
+
+    /**
+     * @return the estimator of the round trip times of the link, to share with the features which adapt to it.
+     */
+    public RttEstimator getRttEstimator() {
+        return mEstimator;
+    }
+
+    /**
+     * @return the number of pings sent since the creation.
+     */
+    public synchronized long getPings() {
+        return mPings;
+    }
+
+    /**
+     * @return the number of pings missed since the creation.
+     */
+    public synchronized long getMissedPings() {
+        return mMissedPings;
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        long now = System.nanoTime();
+        mLastReceived = now;
+
+        if (!packet.isAcknowledgement() || packet.getCommand() != Gaia.COMMAND_NO_OPERATION) {
+            return;
+        }
+
+        synchronized (this) {
+            Long sent = mPendingPings.poll();
+            if (mCheckTask == null || sent == null) {
+                return;
+            }
+            mEstimator.add((now - sent) / 1000);
+            mMisses = 0;
+            if (mPendingPings.isEmpty()) {
+                setHealth(mEstimator.getSmoothed() / 1000 < mDegradedRtt ? Health.HEALTHY : Health.DEGRADED);
+            }
+        }
+    }
+
+    /**
+     * To check the pending ping and to send a new one if the link is idle or the ping is missed.
+     *
+     * @param task
+     *            the task which runs the check.
+     */
+    private void check(TimerTask task) {
+        long now = System.nanoTime();
+
+        synchronized (this) {
+            if (mCheckTask != task) {
+                return;
+            }
+
+            Long oldest = mPendingPings.peek();
+            if (oldest != null) {
+                long timeout = 2 * mEstimator.getTimeout() / 1000;
+                timeout = Math.min(mMaxPingTimeout, Math.max(mMinPingTimeout, timeout)) * 1000000;
+                if (now - mLastPing < timeout) {
+                    return;
+                }
+                // the last ping is missed: the link is dead if nothing came since the first one was sent
+                mMissedPings++;
+                if (mLastReceived - oldest < 0) {
+                    mMisses++;
+                }
+                setHealth(mMisses >= mDeadMisses ? Health.DEAD : Health.DEGRADED);
+            }
+            else if (now - Math.max(mLastReceived, mLastPing) < mIdleInterval * 1000000) {
+                return;
+            }
+
+            mPendingPings.add(now);
+            mLastPing = now;
+            mPings++;
+        }
+
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_NO_OPERATION);
+    }
+
+    /**
+     * To change the health of the link, the listener is told on the main executor. This method must be called while
+     * holding the lock of this monitor.
+     */
+    private void setHealth(final Health health) {
+        if (health == mHealth) {
+            return;
+        }
+        mHealth = health;
+
+        if (mListener != null) {
+            final RttEstimator.Snapshot rtt = mEstimator.snapshot();
+            mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onHealthChanged(health, rtt);
+                }
+            });
+        }
+    }
+
+    /**
+     * The interface to implement to get the health changes of a link from a {@link LinkHealthMonitor}. It is called
+     * on the main executor of the dispatcher of the link.
+     */
+    public interface IHealthListener {
+
+        /**
+         * Called when the health of the link changes.
+         *
+         * @param health
+         *            the new health.
+         * @param rtt
+         *            the round trip time statistics when the health changed.
+         */
+        void onHealthChanged(Health health, RttEstimator.Snapshot rtt);
+    }
+}
@@ -0,0 +1,239 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.health;
+
+import java.util.Arrays;
+
+/**
+ * <p>This class keeps the round trip times measured on a link: minimum, mean and 99th percentile over the last
+ * {@link #WINDOW} samples, a smoothed value and a jitter estimate.</p>
+ * <p>The smoothed value and its variation follow the TCP retransmission timer (RFC 6298): they give
+ * {@link #getTimeout()}, a timeout which adapts to the link. The jitter is the mean deviation between two consecutive
+ * samples as defined by RTP (RFC 3550). Features which adapt to the link - chunk sizes, polling intervals, command
+ * timeouts - can read an estimator shared by a link health monitor or feed their own samples.</p>
+ * <p>All times are in microseconds. This class is thread safe.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class RttEstimator {
+
+    /**
+     * The number of samples kept for the minimum, mean and percentiles.
+     */
+    public static final int WINDOW = 128;
+    /**
+     * The timeout given while no sample is known, in microseconds.
+     */
+    public static final long INITIAL_TIMEOUT = 1000000;
+    /**
+     * The shortest timeout given by {@link #getTimeout()}, in microseconds.
+     */
+    public static final long MIN_TIMEOUT = 50000;
+
+    private final long[] mSamples = new long[WINDOW];
+    private int mNext = 0;
+    private int mSize = 0;
+    private long mCount = 0;
+    private long mLast = -1;
+    private long mSmoothed = 0;
+    private long mVariation = 0;
+    private long mJitter = 0;
+
+    /**
+     * To add a round trip time.
+     *
+     * @param rtt
+     *            the round trip time in microseconds.
+     */
+    public synchronized void add(long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+
+        mSamples[mNext] = rtt;
+        mNext = (mNext + 1) % WINDOW;
+        mSize = Math.min(mSize + 1, WINDOW);
+        mCount++;
+
+        if (mLast < 0) {
+            mSmoothed = rtt;
+            mVariation = rtt / 2;
+        }
+        else {
+            mVariation += (Math.abs(mSmoothed - rtt) - mVariation) / 4;
+            mSmoothed += (rtt - mSmoothed) / 8;
+            mJitter += (Math.abs(rtt - mLast) - mJitter) / 16;
+        }
+        mLast = rtt;
+    }
+
+    /**
+     * To forget all samples, for instance when the link reconnects.
+     */
+    public synchronized void reset() {
+        mNext = 0;
+        mSize = 0;
+        mCount = 0;
+        mLast = -1;
+        mSmoothed = 0;
+        mVariation = 0;
+        mJitter = 0;
+    }
+
+    /**
+     * @return the number of samples added since the creation or the last reset.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the smoothed round trip time in microseconds, 0 if there is no sample.
+     */
+    public synchronized long getSmoothed() {
+        return mSmoothed;
+    }
+
+    /**
+     * @return the jitter estimate in microseconds.
+     */
+    public synchronized long getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * To get a timeout for an answer which adapts to the link: the smoothed round trip time plus four times its
+     * variation.
+     *
+     * @return the timeout in microseconds, {@link #INITIAL_TIMEOUT} if there is no sample.
+     */
+    public synchronized long getTimeout() {
+        if (mLast < 0) {
+            return INITIAL_TIMEOUT;
+        }
+        return Math.max(MIN_TIMEOUT, mSmoothed + 4 * mVariation);
+    }
+
+    /**
+     * @return a copy of the current statistics.
+     */
+    public synchronized Snapshot snapshot() {
+        long[] samples = Arrays.copyOf(mSamples, mSize);
+        Arrays.sort(samples);
+        return new Snapshot(this, samples);
+    }
+
+    /**
+     * An immutable copy of the statistics of a {@link RttEstimator}.
+     */
+    public static final class Snapshot {
+        private final long mCount;
+        private final long mMin;
+        private final long mMean;
+        private final long mMax;
+        private final long mP99;
+        private final long mSmoothed;
+        private final long mJitter;
+        private final long mTimeout;
+
+        private Snapshot(RttEstimator estimator, long[] sorted) {
+            mCount = estimator.mCount;
+            mSmoothed = estimator.mSmoothed;
+            mJitter = estimator.mJitter;
+            mTimeout = estimator.getTimeout();
+            if (sorted.length == 0) {
+                mMin = 0;
+                mMean = 0;
+                mMax = 0;
+                mP99 = 0;
+            }
+            else {
+                long sum = 0;
+                for (long sample : sorted) {
+                    sum += sample;
+                }
+                mMin = sorted[0];
+                mMax = sorted[sorted.length - 1];
+                mMean = sum / sorted.length;
+                mP99 = sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+            }
+        }
+
+        /**
+         * @return the number of samples since the creation or the last reset of the estimator.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the shortest round trip time of the window, in microseconds.
+         */
+        public long getMin() {
+            return mMin;
+        }
+
+        /**
+         * @return the mean round trip time of the window, in microseconds.
+         */
+        public long getMean() {
+            return mMean;
+        }
+
+        /**
+         * @return the longest round trip time of the window, in microseconds.
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return the 99th percentile of the round trip times of the window, in microseconds.
+         */
+        public long getP99() {
+            return mP99;
+        }
+
+        /**
+         * @return the smoothed round trip time, in microseconds.
+         */
+        public long getSmoothed() {
+            return mSmoothed;
+        }
+
+        /**
+         * @return the jitter estimate, in microseconds.
+         */
+        public long getJitter() {
+            return mJitter;
+        }
+
+        /**
+         * @return the adaptive timeout, in microseconds.
+         */
+        public long getTimeout() {
+            return mTimeout;
+        }
+
+        @Override
+        public String toString() {
+            return "rtt " + mCount + " samples: min " + mMin + " us, mean " + mMean + " us, p99 " + mP99
+                    + " us, max " + mMax + " us, smoothed " + mSmoothed + " us, jitter " + mJitter + " us, timeout "
+                    + mTimeout + " us";
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.notifications;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The {@link NotificationPublisher publishers} of the notifications of a link, one for each
+ * {@link Gaia.EventId event}, built when they are first asked for.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class NotificationCenter {
+
+    private final GaiaDispatcher mDispatcher;
+    private final Executor mExecutor;
+    private final NotificationPublisher[] mPublishers = new NotificationPublisher[Gaia.EventId.values().length];
+
+    /**
+     * To build the publishers of a dispatcher which deliver on its main executor by default.
+     *
+     * @param dispatcher
+     *            the dispatcher of the link.
+     */
+    public NotificationCenter(GaiaDispatcher dispatcher) {
+        this(dispatcher, dispatcher.getMainExecutor());
+    }
+
+    /**
+     * To build the publishers of a dispatcher.
+     *
+     * @param dispatcher
+     *            the dispatcher of the link.
+     * @param executor
+     *            the default executor to deliver the notifications on.
+     */
+    public NotificationCenter(GaiaDispatcher dispatcher, Executor executor) {
+        mDispatcher = dispatcher;
+        mExecutor = executor;
+    }
+
+    /**
+     * To get the publisher of the notifications of an event.
+     *
+     * @param event
+     *            the event.
+     *
+     * @return the publisher, always the same one for an event.
+     */
+    public synchronized NotificationPublisher getPublisher(Gaia.EventId event) {
+        NotificationPublisher publisher = mPublishers[event.ordinal()];
+        if (publisher == null) {
+            publisher = new NotificationPublisher(mDispatcher, event, mExecutor);
+            mPublishers[event.ordinal()] = publisher;
+        }
+        return publisher;
+    }
+
+    /**
+     * To end all the streams: the subscribers get {@link NotificationFlow.ISubscriber#onComplete() onComplete} once
+     * they have their queued notifications. The next publishers asked for are new ones.
+     */
+    public void close() {
+        NotificationPublisher[] publishers;
+        synchronized (this) {
+            publishers = mPublishers.clone();
+            for (int i = 0; i < mPublishers.length; i++) {
+                mPublishers[i] = null;
+            }
+        }
+        for (NotificationPublisher publisher : publishers) {
+            if (publisher != null) {
+                publisher.close();
+            }
+        }
+    }
+}
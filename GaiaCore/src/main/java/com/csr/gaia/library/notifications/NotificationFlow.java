@@ -0,0 +1,108 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.notifications;
+
+/**
+ * <p>The interfaces of a stream of items delivered on demand: a subscriber gets items only as far as it requested
+ * them.</p>
+ * <p>They have the methods and the contract of the interfaces of {@code java.util.concurrent.Flow} which is not
+ * available on Java 7 and before Android API 30: on a newer JVM, an adapter to {@code Flow} only forwards the
+ * calls.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class NotificationFlow {
+
+    private NotificationFlow() {
+    }
+
+    /**
+     * A source of items, as {@code Flow.Publisher}.
+     *
+     * @param <T>
+     *            the type of the items.
+     */
+    public interface IPublisher<T> {
+
+        /**
+         * To add a subscriber: {@link ISubscriber#onSubscribe(ISubscription) onSubscribe} is called with its
+         * subscription before any other method.
+         *
+         * @param subscriber
+         *            the subscriber.
+         */
+        void subscribe(ISubscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items, as {@code Flow.Subscriber}. Its methods are called one at a time.
+     *
+     * @param <T>
+     *            the type of the items.
+     */
+    public interface ISubscriber<T> {
+
+        /**
+         * Called first, with the subscription to request items with.
+         *
+         * @param subscription
+         *            the subscription.
+         */
+        void onSubscribe(ISubscription subscription);
+
+        /**
+         * Called for each item, never more times than requested.
+         *
+         * @param item
+         *            the item.
+         */
+        void onNext(T item);
+
+        /**
+         * Called once when the subscription fails, no other method is called afterwards.
+         *
+         * @param error
+         *            the failure.
+         */
+        void onError(Throwable error);
+
+        /**
+         * Called once when there are no more items, no other method is called afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber, as {@code Flow.Subscription}.
+     */
+    public interface ISubscription {
+
+        /**
+         * To request more items.
+         *
+         * @param n
+         *            the number of items to add to the demand, must be positive. {@code Long.MAX_VALUE} requests all
+         *            the items.
+         */
+        void request(long n);
+
+        /**
+         * To stop receiving items, the subscriber may still get the items being delivered.
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,404 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.notifications;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLog;
+import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.exceptions.NotificationOverflowException;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The notifications of one {@link Gaia.EventId event} as a stream delivered on demand.</p>
+ * <p>The reader thread only puts each notification in the bounded queue of each subscriber, it never waits for a
+ * subscriber. The notifications are delivered on the executor of the subscriber, as far as it requested them. When
+ * a subscriber does not keep up its queue overflows and the {@link Overflow} policy of its subscription applies: a
+ * slow subscriber - the UI, a log on disk - loses notifications or fails, it never slows down the link nor makes the
+ * memory grow.</p>
+ * <p>The publisher subscribes to the dispatcher while it has subscribers. It does not register the notification to
+ * the device, this is still done with the link.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class NotificationPublisher implements NotificationFlow.IPublisher<GaiaPacket> {
+
+    private static final String TAG = "NotificationPublisher";
+
+    /**
+     * All the policies when the queue of a subscriber is full.
+     */
+    public enum Overflow {
+        /**
+         * The oldest notification of the queue is dropped: the subscriber gets the latest ones. With a capacity of 1
+         * it gets the current state, for instance for a display.
+         */
+        LATEST,
+        /**
+         * The new notification is dropped: the subscriber gets the first ones.
+         */
+        DROP,
+        /**
+         * The subscription fails with a {@link NotificationOverflowException}: for the subscribers which must not
+         * miss any notification, such as a log.
+         */
+        BUFFER
+    }
+
+    private final GaiaDispatcher mDispatcher;
+    private final Gaia.EventId mEvent;
+    private final Executor mExecutor;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong mDropped = new AtomicLong();
+    private boolean isAttached = false;
+    private boolean isClosed = false;
+
+    private final GaiaDispatcher.IPacketListener mListener = new GaiaDispatcher.IPacketListener() {
+        @Override
+        public void onPacketReceived(GaiaPacket packet) {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.offer(packet);
+            }
+        }
+    };
+
+    /**
+     * To build a publisher, usually through {@link NotificationCenter#getPublisher(Gaia.EventId)}.
+     *
+     * @param dispatcher
+     *            the dispatcher of the link.
+     * @param event
+     *            the event of the notifications.
+     * @param executor
+     *            the default executor to deliver the notifications on.
+     */
+    public NotificationPublisher(GaiaDispatcher dispatcher, Gaia.EventId event, Executor executor) {
+        mDispatcher = dispatcher;
+        mEvent = event;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return the event of the notifications.
+     */
+    public Gaia.EventId getEvent() {
+        return mEvent;
+    }
+
+    /**
+     * @return the number of notifications lost by all the subscribers because of their overflow policy.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return the number of subscribers.
+     */
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * To subscribe with the {@link Overflow#LATEST LATEST} policy and a capacity of 1 on the default executor: the
+     * subscriber gets the latest notification.
+     *
+     * @param subscriber
+     *            the subscriber.
+     */
+    @Override
+    public void subscribe(NotificationFlow.ISubscriber<? super GaiaPacket> subscriber) {
+        subscribe(subscriber, Overflow.LATEST, 1, mExecutor);
+    }
+
+    /**
+     * To subscribe on the default executor.
+     *
+     * @param subscriber
+     *            the subscriber.
+     * @param overflow
+     *            the policy when the queue of the subscriber is full.
+     * @param capacity
+     *            the number of notifications the queue of the subscriber holds.
+     */
+    public void subscribe(NotificationFlow.ISubscriber<? super GaiaPacket> subscriber, Overflow overflow,
+            int capacity) {
+        subscribe(subscriber, overflow, capacity, mExecutor);
+    }
+
+    /**
+     * To subscribe.
+     *
+     * @param subscriber
+     *            the subscriber.
+     * @param overflow
+     *            the policy when the queue of the subscriber is full.
+     * @param capacity
+     *            the number of notifications the queue of the subscriber holds.
+     * @param executor
+     *            the executor to deliver the notifications on, for instance a single thread which writes to the disk.
+     */
+    public void subscribe(NotificationFlow.ISubscriber<? super GaiaPacket> subscriber, Overflow overflow,
+            int capacity, Executor executor) {
+        if (subscriber == null || overflow == null || executor == null) {
+            throw new NullPointerException("subscriber, overflow and executor must not be null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        Subscription subscription = new Subscription(subscriber, overflow, capacity, executor);
+        boolean closed;
+        synchronized (this) {
+            closed = isClosed;
+            if (!closed) {
+                mSubscriptions.add(subscription);
+                if (!isAttached) {
+                    isAttached = true;
+                    mDispatcher.subscribe(mEvent, GaiaDispatcher.Delivery.READER_THREAD, mListener);
+                }
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        if (closed) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * To end the stream: each subscriber gets the notifications of its queue it requests, then
+     * {@link NotificationFlow.ISubscriber#onComplete() onComplete}.
+     */
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            detach();
+        }
+        for (Subscription subscription : mSubscriptions) {
+            subscription.complete();
+        }
+        mSubscriptions.clear();
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+        if (mSubscriptions.isEmpty()) {
+            detach();
+        }
+    }
+
+    private void detach() {
+        if (isAttached) {
+            isAttached = false;
+            mDispatcher.unsubscribe(mEvent, mListener);
+        }
+    }
+
+    /**
+     * The subscription of one subscriber: its queue and its demand. The notifications are delivered by a drain loop
+     * which runs on the executor of the subscriber, one at a time.
+     */
+    private final class Subscription implements NotificationFlow.ISubscription, Runnable {
+        private final NotificationFlow.ISubscriber<? super GaiaPacket> mSubscriber;
+        private final Overflow mOverflow;
+        private final int mCapacity;
+        private final Executor mExecutor;
+        /**
+         * The notifications not delivered yet, guarded by this subscription.
+         */
+        private final ArrayDeque<GaiaPacket> mQueue = new ArrayDeque<>();
+        private final AtomicLong mRequested = new AtomicLong();
+        /**
+         * The number of times the drain loop has been asked to run: it runs on the executor while this is not 0.
+         */
+        private final AtomicInteger mWork = new AtomicInteger();
+        private volatile boolean isCancelled = false;
+        /**
+         * The failure to give to the subscriber once, guarded by this subscription.
+         */
+        private Throwable mError;
+        private boolean isCompleted = false;
+        private boolean isTerminated = false;
+
+        Subscription(NotificationFlow.ISubscriber<? super GaiaPacket> subscriber, Overflow overflow, int capacity,
+                Executor executor) {
+            mSubscriber = subscriber;
+            mOverflow = overflow;
+            mCapacity = capacity;
+            mExecutor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    if (mError == null) {
+                        mError = new IllegalArgumentException("request must be positive: " + n);
+                    }
+                }
+            }
+            else {
+                long current;
+                long next;
+                do {
+                    current = mRequested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!mRequested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+            synchronized (this) {
+                mQueue.clear();
+            }
+            remove(this);
+        }
+
+        /**
+         * To put a notification in the queue, called on the reader thread.
+         */
+        void offer(GaiaPacket packet) {
+            if (isCancelled) {
+                return;
+            }
+            synchronized (this) {
+                if (isCompleted || mError != null) {
+                    return;
+                }
+                if (mQueue.size() >= mCapacity) {
+                    switch (mOverflow) {
+                    case LATEST:
+                        mQueue.poll();
+                        mQueue.add(packet);
+                        mDropped.incrementAndGet();
+                        break;
+                    case DROP:
+                        mDropped.incrementAndGet();
+                        return;
+                    case BUFFER:
+                    default:
+                        mDropped.addAndGet(mQueue.size() + 1);
+                        mQueue.clear();
+                        mError = new NotificationOverflowException(mEvent, mCapacity);
+                    }
+                }
+                else {
+                    mQueue.add(packet);
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * To end the subscription once the queue is delivered.
+         */
+        void complete() {
+            synchronized (this) {
+                isCompleted = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (mWork.getAndIncrement() == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * The drain loop: to deliver the queue as far as requested, then the end of the stream if any.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                long requested = mRequested.get();
+                long emitted = 0;
+
+                while (emitted != requested && !isCancelled) {
+                    GaiaPacket packet;
+                    synchronized (this) {
+                        packet = mError == null ? mQueue.poll() : null;
+                    }
+                    if (packet == null) {
+                        break;
+                    }
+                    try {
+                        mSubscriber.onNext(packet);
+                    }
+                    catch (RuntimeException e) {
+                        // a subscriber must not throw: it is not called anymore
+                        GaiaLog.w(TAG, mEvent + ": subscriber failed, subscription cancelled", e);
+                        cancel();
+                        return;
+                    }
+                    emitted++;
+                }
+
+                if (emitted > 0 && requested != Long.MAX_VALUE) {
+                    mRequested.addAndGet(-emitted);
+                }
+                if (!isCancelled) {
+                    terminate();
+                }
+
+                missed = mWork.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * To give the failure or the end of the stream to the subscriber, once.
+         */
+        private void terminate() {
+            Throwable error;
+            boolean completed;
+            synchronized (this) {
+                if (isTerminated) {
+                    return;
+                }
+                error = mError;
+                completed = isCompleted && mQueue.isEmpty();
+                if (error == null && !completed) {
+                    return;
+                }
+                isTerminated = true;
+            }
+            isCancelled = true;
+            remove(this);
+            if (error != null) {
+                mSubscriber.onError(error);
+            }
+            else {
+                mSubscriber.onComplete();
+            }
+        }
+    }
+}
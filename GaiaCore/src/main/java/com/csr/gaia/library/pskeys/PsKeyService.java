@@ -0,0 +1,609 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.pskeys;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.Watchdog;
+
+/**
+ * <p>This class reads and writes the PS keys of a device.</p>
+ * <p>The requests are pipelined: up to {@link #setWindow(int) a window} of RETRIEVE or STORE commands are sent
+ * without waiting for their acknowledgement, and each acknowledgement sends the next request. Reading a range of
+ * keys is then bound by the link throughput instead of one round trip per key.</p>
+ * <p>The keys read from a device are collected in a {@link PsKeyStore} which can be saved as a snapshot. To provision
+ * a device from a golden snapshot, {@link #provision(PsKeyStore, boolean) provision} reads the keys of the snapshot,
+ * compares them and only writes the keys which differ.</p>
+ * <p>One operation runs at a time. The acknowledgements are handled on the reader thread of the link, the listener is
+ * called on the main executor of its dispatcher.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class PsKeyService implements GaiaDispatcher.IPacketListener {
+
+    /**
+     * All the operations of this service.
+     */
+    public enum Operation {
+        /**
+         * To read keys from the device.
+         */
+        READ,
+        /**
+         * To write keys to the device.
+         */
+        WRITE,
+        /**
+         * To read keys from the device and to write the ones which differ from a golden store.
+         */
+        PROVISION,
+        /**
+         * To restore the PS store of the device to its defaults with COMMAND_FLOOD_PS.
+         */
+        FLOOD
+    }
+
+    /**
+     * The default number of requests sent without waiting for their acknowledgement.
+     */
+    public static final int DEFAULT_WINDOW = 8;
+    /**
+     * The default time without any acknowledgement after which an operation fails, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 2000;
+    /**
+     * The commands this service sends.
+     */
+    private static final int[] COMMANDS = { Gaia.COMMAND_RETRIEVE_PS_KEY, Gaia.COMMAND_RETRIEVE_FULL_PS_KEY,
+            Gaia.COMMAND_STORE_PS_KEY, Gaia.COMMAND_STORE_FULL_PS_KEY, Gaia.COMMAND_FLOOD_PS };
+    /**
+     * The position of the key in a RETRIEVE acknowledgement payload, after the status.
+     */
+    private static final int OFFS_KEY = 1;
+    /**
+     * The position of the first word in a RETRIEVE acknowledgement payload.
+     */
+    private static final int OFFS_WORDS = 3;
+
+    private final GaiaLinkCore mLink;
+    private final IPsKeyListener mListener;
+    private int mWindow = DEFAULT_WINDOW;
+    private long mTimeout = DEFAULT_TIMEOUT;
+
+    /**
+     * The running operation, null if there is none.
+     */
+    private Operation mOperation;
+    /**
+     * True to use the commands for the full PS - defaults included - instead of the PS store.
+     */
+    private boolean isFull;
+    /**
+     * The keys to read, or the index of the keys to write in {@link #mToWrite}.
+     */
+    private int[] mKeys;
+    /**
+     * The number of requests sent for the current step.
+     */
+    private int mSent;
+    /**
+     * The number of requests acknowledged for the current step.
+     */
+    private int mAnswered;
+    /**
+     * The number of requests which have failed for the current step.
+     */
+    private int mFailed;
+    /**
+     * The keys read from the device.
+     */
+    private PsKeyStore mRead;
+    /**
+     * The keys to write to the device.
+     */
+    private PsKeyStore mToWrite;
+    /**
+     * The golden store of a {@link Operation#PROVISION PROVISION}.
+     */
+    private PsKeyStore mGolden;
+    /**
+     * True while a {@link Operation#PROVISION PROVISION} reads the keys of the device.
+     */
+    private boolean isReading;
+    /**
+     * The time of the last acknowledgement, from {@link System#nanoTime()}.
+     */
+    private long mLastActivity;
+    private Watchdog mWatchdog;
+
+    /**
+     * To build a new service.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param listener
+     *            the listener to inform of the progress of the operations.
+     */
+    public PsKeyService(GaiaLinkCore link, IPsKeyListener listener) {
+        mLink = link;
+        mListener = listener;
+    }
+
+    /**
+     * To set the number of requests sent without waiting for their acknowledgement.
+     *
+     * @param window
+     *            the number of outstanding requests, at least 1.
+     */
+    public synchronized void setWindow(int window) {
+        mWindow = Math.max(1, window);
+    }
+
+    /**
+     * To set the time without any acknowledgement after which an operation fails.
+     *
+     * @param timeout
+     *            the timeout in milliseconds.
+     */
+    public synchronized void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * @return true if an operation is running.
+     */
+    public synchronized boolean isBusy() {
+        return mOperation != null;
+    }
+
+    /**
+     * To read a range of keys. Keys the device does not answer successfully are not in the result.
+     *
+     * @param first
+     *            the first key to read.
+     * @param last
+     *            the last key to read, included.
+     * @param full
+     *            true to read the full PS - defaults included - with COMMAND_RETRIEVE_FULL_PS_KEY.
+     *
+     * @return false if another operation is running.
+     */
+    public boolean read(int first, int last, boolean full) {
+        int[] keys = new int[Math.max(0, last - first + 1)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = first + i;
+        }
+        return read(keys, full);
+    }
+
+    /**
+     * To read a list of keys.
+     *
+     * @param keys
+     *            the keys to read.
+     * @param full
+     *            true to read the full PS with COMMAND_RETRIEVE_FULL_PS_KEY.
+     *
+     * @return false if another operation is running.
+     */
+    public boolean read(int[] keys, boolean full) {
+        if (!begin(Operation.READ, full)) {
+            return false;
+        }
+        startReading(keys);
+        return true;
+    }
+
+    /**
+     * To write keys to the device.
+     *
+     * @param keys
+     *            the keys and values to write.
+     * @param full
+     *            true to write with COMMAND_STORE_FULL_PS_KEY.
+     *
+     * @return false if another operation is running.
+     */
+    public boolean write(PsKeyStore keys, boolean full) {
+        if (!begin(Operation.WRITE, full)) {
+            return false;
+        }
+        startWriting(keys);
+        return true;
+    }
+
+    /**
+     * To make the keys of the device match a golden store: the keys of the store are read from the device and only
+     * the ones which differ are written.
+     *
+     * @param golden
+     *            the keys and values the device must have.
+     * @param full
+     *            true to use the commands of the full PS.
+     *
+     * @return false if another operation is running.
+     */
+    public boolean provision(PsKeyStore golden, boolean full) {
+        if (!begin(Operation.PROVISION, full)) {
+            return false;
+        }
+        synchronized (this) {
+            mGolden = golden;
+        }
+        startReading(golden.getKeys());
+        return true;
+    }
+
+    /**
+     * To restore the PS store of the device to its defaults.
+     *
+     * @return false if another operation is running.
+     */
+    public boolean flood() {
+        if (!begin(Operation.FLOOD, false)) {
+            return false;
+        }
+        synchronized (this) {
+            isReading = false;
+            mToWrite = null;
+            mKeys = new int[1];
+            mSent = 1;
+            mAnswered = 0;
+            mFailed = 0;
+        }
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_FLOOD_PS);
+        return true;
+    }
+
+    /**
+     * To stop the running operation, the listener is not called anymore for it.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mOperation == null) {
+                return;
+            }
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        if (!packet.isAcknowledgement()) {
+            return;
+        }
+
+        boolean step = false;
+        synchronized (this) {
+            if (mOperation == null) {
+                return;
+            }
+            mLastActivity = System.nanoTime();
+            boolean success = packet.getStatus() == Gaia.Status.SUCCESS;
+
+            switch (packet.getCommand()) {
+            case Gaia.COMMAND_RETRIEVE_PS_KEY:
+            case Gaia.COMMAND_RETRIEVE_FULL_PS_KEY:
+                if (!isReading) {
+                    return;
+                }
+                byte[] payload = packet.getPayload();
+                if (success && payload.length >= OFFS_WORDS) {
+                    int key = packet.getShort(OFFS_KEY);
+                    mRead.putBytes(key, payload, OFFS_WORDS, payload.length - OFFS_WORDS);
+                }
+                else {
+                    mFailed++;
+                }
+                break;
+
+            case Gaia.COMMAND_STORE_PS_KEY:
+            case Gaia.COMMAND_STORE_FULL_PS_KEY:
+            case Gaia.COMMAND_FLOOD_PS:
+                if (isReading) {
+                    return;
+                }
+                if (!success) {
+                    mFailed++;
+                }
+                break;
+
+            default:
+                return;
+            }
+
+            mAnswered++;
+            postProgress(mAnswered, mKeys.length);
+            if (mAnswered >= mKeys.length) {
+                step = true;
+            }
+        }
+
+        if (step) {
+            onStepComplete();
+        }
+        else {
+            sendRequests();
+        }
+    }
+
+    /**
+     * To start an operation if none is running.
+     */
+    private boolean begin(Operation operation, boolean full) {
+        synchronized (this) {
+            if (mOperation != null) {
+                return false;
+            }
+            mOperation = operation;
+            isFull = full;
+            mGolden = null;
+            mLastActivity = System.nanoTime();
+        }
+
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        for (int command : COMMANDS) {
+            dispatcher.subscribe(command, GaiaDispatcher.Delivery.READER_THREAD, this);
+        }
+        startWatchdog();
+        return true;
+    }
+
+    /**
+     * To send the first window of RETRIEVE requests.
+     */
+    private void startReading(int[] keys) {
+        synchronized (this) {
+            isReading = true;
+            mKeys = keys;
+            mSent = 0;
+            mAnswered = 0;
+            mFailed = 0;
+            mRead = new PsKeyStore(keys.length);
+        }
+        if (keys.length > 0) {
+            sendRequests();
+        }
+        else {
+            // nothing to read
+            onStepComplete();
+        }
+    }
+
+    /**
+     * To send the first window of STORE requests.
+     */
+    private void startWriting(PsKeyStore keys) {
+        synchronized (this) {
+            isReading = false;
+            mToWrite = keys;
+            mKeys = new int[keys.size()];
+            for (int i = 0; i < mKeys.length; i++) {
+                mKeys[i] = i;
+            }
+            mSent = 0;
+            mAnswered = 0;
+            mFailed = 0;
+        }
+        if (keys.size() > 0) {
+            sendRequests();
+        }
+        else {
+            // nothing to write
+            onStepComplete();
+        }
+    }
+
+    /**
+     * To send the requests of the current step which fit in the window, one key each: the RETRIEVE requests give the
+     * key only, the STORE requests also give its words.
+     */
+    private void sendRequests() {
+        while (true) {
+            byte[] payload;
+            int command;
+            synchronized (this) {
+                if (mOperation == null || mSent >= mKeys.length || mSent - mAnswered >= mWindow) {
+                    return;
+                }
+                int index = mSent++;
+                if (isReading) {
+                    int key = mKeys[index];
+                    command = isFull ? Gaia.COMMAND_RETRIEVE_FULL_PS_KEY : Gaia.COMMAND_RETRIEVE_PS_KEY;
+                    payload = new byte[] { (byte) (key >>> 8), (byte) key };
+                }
+                else {
+                    int position = mKeys[index];
+                    int key = mToWrite.keyAt(position);
+                    payload = new byte[2 + 2 * mToWrite.lengthAt(position)];
+                    payload[0] = (byte) (key >>> 8);
+                    payload[1] = (byte) key;
+                    mToWrite.writeBytes(position, payload, 2);
+                    command = isFull ? Gaia.COMMAND_STORE_FULL_PS_KEY : Gaia.COMMAND_STORE_PS_KEY;
+                }
+            }
+            mLink.sendCommand(Gaia.VENDOR_CSR, command, payload);
+        }
+    }
+
+    /**
+     * Called when all the requests of a step have been acknowledged: a provisioning goes on with the writing of the
+     * differences, the other operations are complete.
+     */
+    private void onStepComplete() {
+        final Operation operation;
+        final PsKeyStore result;
+        final int failed;
+        PsKeyStore changes = null;
+        synchronized (this) {
+            if (mOperation == null) {
+                return;
+            }
+            operation = mOperation;
+            if (operation == Operation.PROVISION && isReading) {
+                changes = mGolden.diff(mRead);
+            }
+        }
+        if (changes != null) {
+            startWriting(changes);
+            return;
+        }
+
+        synchronized (this) {
+            if (mOperation != operation) {
+                return;
+            }
+            result = operation == Operation.READ ? mRead : mToWrite;
+            failed = mFailed;
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onComplete(operation, result == null ? new PsKeyStore() : result, failed);
+            }
+        });
+    }
+
+    /**
+     * To reset the state of the service at the end of an operation. This method must be called while holding the
+     * lock.
+     */
+    private void end() {
+        mOperation = null;
+        mKeys = null;
+        mGolden = null;
+        if (mWatchdog != null) {
+            mWatchdog.stop();
+            mWatchdog = null;
+        }
+    }
+
+    /**
+     * To give the progress of the operation to the listener. This method must be called while holding the lock.
+     */
+    private void postProgress(final int done, final int total) {
+        final Operation operation = mOperation;
+        final boolean reading = isReading;
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(operation, reading, done, total);
+            }
+        });
+    }
+
+    /**
+     * To start the task which fails the operation if the device stops answering.
+     */
+    private void startWatchdog() {
+        Watchdog watchdog;
+        long timeout;
+        synchronized (this) {
+            timeout = mTimeout;
+            watchdog = new Watchdog() {
+                @Override
+                protected void check() {
+                    checkTimeout(this);
+                }
+            };
+            mWatchdog = watchdog;
+        }
+        watchdog.start(timeout);
+    }
+
+    /**
+     * To fail the operation if no acknowledgement has been received for the timeout.
+     */
+    private void checkTimeout(Watchdog watchdog) {
+        final Operation operation;
+        final int done;
+        final int total;
+        synchronized (this) {
+            if (mWatchdog != watchdog || mOperation == null) {
+                watchdog.stop();
+                return;
+            }
+            if (System.nanoTime() - mLastActivity < mTimeout * 1000000L) {
+                return;
+            }
+            operation = mOperation;
+            done = mAnswered;
+            total = mKeys == null ? 0 : mKeys.length;
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onTimeout(operation, done, total);
+            }
+        });
+    }
+
+    /**
+     * The interface to implement to follow the operations of a {@link PsKeyService}. All methods are called on the
+     * main executor of the dispatcher of the link.
+     */
+    public interface IPsKeyListener {
+
+        /**
+         * Called each time a request has been acknowledged.
+         *
+         * @param operation
+         *            the running operation.
+         * @param reading
+         *            true if the keys are being read, false if they are being written.
+         * @param done
+         *            the number of acknowledged requests of the current step.
+         * @param total
+         *            the number of requests of the current step.
+         */
+        void onProgress(Operation operation, boolean reading, int done, int total);
+
+        /**
+         * Called when an operation is complete.
+         *
+         * @param operation
+         *            the complete operation.
+         * @param keys
+         *            the keys read for {@link Operation#READ READ}, the keys written otherwise - for
+         *            {@link Operation#PROVISION PROVISION} only the keys which differed.
+         * @param failed
+         *            the number of requests of the last step which the device did not answer with success.
+         */
+        void onComplete(Operation operation, PsKeyStore keys, int failed);
+
+        /**
+         * Called when the device stopped answering, the operation is abandoned.
+         *
+         * @param operation
+         *            the abandoned operation.
+         * @param done
+         *            the number of acknowledged requests of the current step.
+         * @param total
+         *            the number of requests of the current step.
+         */
+        void onTimeout(Operation operation, int done, int total);
+    }
+}
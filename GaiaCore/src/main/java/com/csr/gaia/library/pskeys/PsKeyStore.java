@@ -0,0 +1,492 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.pskeys;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>A compact store of PS keys and their values.</p>
+ * <p>The keys are kept sorted in an <code>int</code> array and all the values share one <code>char</code> pool - a
+ * PS value is a sequence of 16-bit words - so a store of thousands of keys is a handful of arrays, without any boxing
+ * or object per key. Replacing a value appends it to the pool, the pool is compacted when too much of it is
+ * unused.</p>
+ * <p>A store can be saved to and loaded from a binary snapshot, and compared with another store to find the keys
+ * which have to be written to a device, see {@link #diff(PsKeyStore)}.</p>
+ * <p>This class is not thread safe.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class PsKeyStore {
+
+    /**
+     * The highest PS key.
+     */
+    public static final int MAX_KEY = 0xFFFF;
+    /**
+     * The maximum number of words of a value: a STORE_PS_KEY payload holds the key and the words.
+     */
+    public static final int MAX_WORDS = 126;
+    /**
+     * The first bytes of a snapshot file: "GPSK".
+     */
+    private static final int MAGIC = 0x4750534B;
+    /**
+     * The version of the snapshot format.
+     */
+    private static final int VERSION = 1;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] mKeys;
+    /**
+     * The position of each value in the pool, in the order of the keys.
+     */
+    private int[] mOffsets;
+    /**
+     * The length of each value in words, in the order of the keys.
+     */
+    private int[] mLengths;
+    private int mSize = 0;
+    /**
+     * The words of all the values.
+     */
+    private char[] mPool;
+    /**
+     * The number of words used in the pool, values which have been replaced or removed included.
+     */
+    private int mPoolSize = 0;
+
+    /**
+     * To build an empty store.
+     */
+    public PsKeyStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * To build an empty store.
+     *
+     * @param capacity
+     *            the number of keys the store can hold before growing.
+     */
+    public PsKeyStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mKeys = new int[capacity];
+        mOffsets = new int[capacity];
+        mLengths = new int[capacity];
+        mPool = new char[capacity * 4];
+    }
+
+    /**
+     * @return the number of keys in the store.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the key at a position, the keys are sorted.
+     */
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * @return true if the key is in the store.
+     */
+    public boolean contains(int key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key) >= 0;
+    }
+
+    /**
+     * To get the value of a key.
+     *
+     * @param key
+     *            the PS key.
+     *
+     * @return a copy of the words of the value or null if the key is not in the store.
+     */
+    public int[] get(int key) {
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /**
+     * @return a copy of the words of the value at a position.
+     */
+    public int[] valueAt(int index) {
+        int[] words = new int[mLengths[index]];
+        int offset = mOffsets[index];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = mPool[offset + i];
+        }
+        return words;
+    }
+
+    /**
+     * @return the number of words of the value at a position.
+     */
+    public int lengthAt(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * To set the value of a key.
+     *
+     * @param key
+     *            the PS key.
+     * @param words
+     *            the words of the value, only their low 16 bits are kept.
+     *
+     * @throws IllegalArgumentException
+     *             if the key or the length of the value is out of range.
+     */
+    public void put(int key, int[] words) {
+        char[] value = new char[words.length];
+        for (int i = 0; i < words.length; i++) {
+            value[i] = (char) words[i];
+        }
+        put(key, value, 0, value.length);
+    }
+
+    /**
+     * To set the value of a key from words in big endian order, as they are in a GAIA payload.
+     *
+     * @param key
+     *            the PS key.
+     * @param bytes
+     *            the array which contains the value.
+     * @param offset
+     *            the position of the first byte of the value.
+     * @param length
+     *            the number of bytes of the value, an odd last byte is ignored.
+     *
+     * @throws IllegalArgumentException
+     *             if the key or the length of the value is out of range.
+     */
+    public void putBytes(int key, byte[] bytes, int offset, int length) {
+        char[] value = new char[length / 2];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (char) (((bytes[offset + 2 * i] & 0xFF) << 8) | (bytes[offset + 2 * i + 1] & 0xFF));
+        }
+        put(key, value, 0, value.length);
+    }
+
+    private void put(int key, char[] words, int offset, int length) {
+        if (key < 0 || key > MAX_KEY) {
+            throw new IllegalArgumentException("PS key out of range: " + key);
+        }
+        if (length > MAX_WORDS) {
+            throw new IllegalArgumentException("PS value too long: " + length + " words");
+        }
+
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index >= 0 && equals(index, words, offset, length)) {
+            return;
+        }
+
+        int position = append(words, offset, length);
+        if (index < 0) {
+            index = -index - 1;
+            ensureCapacity(mSize + 1);
+            System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+            System.arraycopy(mOffsets, index, mOffsets, index + 1, mSize - index);
+            System.arraycopy(mLengths, index, mLengths, index + 1, mSize - index);
+            mKeys[index] = key;
+            mSize++;
+        }
+        mOffsets[index] = position;
+        mLengths[index] = length;
+    }
+
+    /**
+     * To remove a key from the store.
+     *
+     * @return true if the key was in the store.
+     */
+    public boolean remove(int key) {
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index < 0) {
+            return false;
+        }
+        int moved = mSize - index - 1;
+        System.arraycopy(mKeys, index + 1, mKeys, index, moved);
+        System.arraycopy(mOffsets, index + 1, mOffsets, index, moved);
+        System.arraycopy(mLengths, index + 1, mLengths, index, moved);
+        mSize--;
+        return true;
+    }
+
+    /**
+     * To remove all keys.
+     */
+    public void clear() {
+        mSize = 0;
+        mPoolSize = 0;
+    }
+
+    /**
+     * To know if the value of a key is the same in both stores.
+     *
+     * @return true if the key is in both stores with the same value, or in none of them.
+     */
+    public boolean sameValue(int key, PsKeyStore other) {
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        int otherIndex = Arrays.binarySearch(other.mKeys, 0, other.mSize, key);
+        if (index < 0 || otherIndex < 0) {
+            return index < 0 && otherIndex < 0;
+        }
+        return equals(index, other.mPool, other.mOffsets[otherIndex], other.mLengths[otherIndex]);
+    }
+
+    /**
+     * <p>To get the keys of this store which have to be written to make a device match it.</p>
+     * <p>Both stores are sorted so they are compared in a single pass.</p>
+     *
+     * @param device
+     *            the keys read from the device.
+     *
+     * @return a new store with the keys of this store which are not in the device store or have another value there.
+     */
+    public PsKeyStore diff(PsKeyStore device) {
+        PsKeyStore changes = new PsKeyStore();
+        int j = 0;
+        for (int i = 0; i < mSize; i++) {
+            int key = mKeys[i];
+            while (j < device.mSize && device.mKeys[j] < key) {
+                j++;
+            }
+            boolean same = j < device.mSize && device.mKeys[j] == key
+                    && equals(i, device.mPool, device.mOffsets[j], device.mLengths[j]);
+            if (!same) {
+                changes.put(key, mPool, mOffsets[i], mLengths[i]);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * To get the keys of this store as an array.
+     *
+     * @return the sorted keys.
+     */
+    public int[] getKeys() {
+        return Arrays.copyOf(mKeys, mSize);
+    }
+
+    /**
+     * To write the value at a position in big endian order, as it is sent in a GAIA payload.
+     *
+     * @param index
+     *            the position of the key.
+     * @param buffer
+     *            the buffer to write to.
+     * @param offset
+     *            the position of the first byte to write.
+     *
+     * @return the number of written bytes.
+     */
+    public int writeBytes(int index, byte[] buffer, int offset) {
+        int position = mOffsets[index];
+        int length = mLengths[index];
+        for (int i = 0; i < length; i++) {
+            char word = mPool[position + i];
+            buffer[offset + 2 * i] = (byte) (word >>> 8);
+            buffer[offset + 2 * i + 1] = (byte) word;
+        }
+        return 2 * length;
+    }
+
+    /**
+     * To save the store in a snapshot file.
+     *
+     * @param file
+     *            the file to write.
+     *
+     * @throws IOException
+     *             if the file cannot be written.
+     */
+    public void save(File file) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            writeTo(output);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    /**
+     * To load a store from a snapshot file.
+     *
+     * @param file
+     *            the file to read.
+     *
+     * @return the loaded store.
+     *
+     * @throws IOException
+     *             if the file cannot be read or is not a snapshot.
+     */
+    public static PsKeyStore load(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return readFrom(input);
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * To write the store as a snapshot: a header, the number of keys and, for each key, its value length in words
+     * and its words.
+     *
+     * @param stream
+     *            the stream to write to, it is not closed.
+     *
+     * @throws IOException
+     *             if writing fails.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        output.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            output.writeShort(mKeys[i]);
+            output.writeByte(mLengths[i]);
+            int offset = mOffsets[i];
+            for (int w = 0; w < mLengths[i]; w++) {
+                output.writeChar(mPool[offset + w]);
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * To read a store from a snapshot written by {@link #writeTo(OutputStream)}.
+     *
+     * @param stream
+     *            the stream to read from, it is not closed.
+     *
+     * @return the read store.
+     *
+     * @throws IOException
+     *             if reading fails or if the stream is not a snapshot.
+     */
+    public static PsKeyStore readFrom(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+        int magic = input.readInt();
+        int version = input.readUnsignedByte();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Not a PS key snapshot or unknown version: " + version);
+        }
+        int count = input.readInt();
+        if (count < 0 || count > MAX_KEY + 1) {
+            throw new IOException("Corrupted PS key snapshot: " + count + " keys");
+        }
+
+        PsKeyStore store = new PsKeyStore(count);
+        char[] words = new char[MAX_WORDS];
+        for (int i = 0; i < count; i++) {
+            int key = input.readUnsignedShort();
+            int length = input.readUnsignedByte();
+            if (length > MAX_WORDS) {
+                throw new IOException("Corrupted PS key snapshot: key " + key + " has " + length + " words");
+            }
+            for (int w = 0; w < length; w++) {
+                words[w] = input.readChar();
+            }
+            store.put(key, words, 0, length);
+        }
+        return store;
+    }
+
+    /**
+     * To compare the value at a position with words.
+     */
+    private boolean equals(int index, char[] words, int offset, int length) {
+        if (mLengths[index] != length) {
+            return false;
+        }
+        int position = mOffsets[index];
+        for (int i = 0; i < length; i++) {
+            if (mPool[position + i] != words[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * To append words to the pool, the pool is compacted or grown if they don't fit.
+     *
+     * @return the position of the words in the pool.
+     */
+    private int append(char[] words, int offset, int length) {
+        if (mPoolSize + length > mPool.length) {
+            int used = 0;
+            for (int i = 0; i < mSize; i++) {
+                used += mLengths[i];
+            }
+            // compacting is worth it only if at least half of the pool is unused
+            if (used * 2 <= mPoolSize) {
+                compact(used + length);
+            }
+            if (mPoolSize + length > mPool.length) {
+                mPool = Arrays.copyOf(mPool, Math.max(mPool.length * 2, mPoolSize + length));
+            }
+        }
+        int position = mPoolSize;
+        System.arraycopy(words, offset, mPool, position, length);
+        mPoolSize += length;
+        return position;
+    }
+
+    /**
+     * To copy the values in use into a new pool, in the order of the keys.
+     */
+    private void compact(int capacity) {
+        char[] pool = new char[Math.max(capacity, DEFAULT_CAPACITY)];
+        int size = 0;
+        for (int i = 0; i < mSize; i++) {
+            System.arraycopy(mPool, mOffsets[i], pool, size, mLengths[i]);
+            mOffsets[i] = size;
+            size += mLengths[i];
+        }
+        mPool = pool;
+        mPoolSize = size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mKeys.length) {
+            int length = Math.max(capacity, mKeys.length * 2);
+            mKeys = Arrays.copyOf(mKeys, length);
+            mOffsets = Arrays.copyOf(mOffsets, length);
+            mLengths = Arrays.copyOf(mLengths, length);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.recorder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * <p>This class reads a recording made by {@link GaiaTrafficRecorder}, record by record, and pretty-prints it.</p>
+ * <p>It only uses the Java standard library so a recording pulled from a device can be decoded on any computer:</p>
+ * <pre>java com.csr.gaia.library.recorder.GaiaTrafficDecoder recording.bin</pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaTrafficDecoder {
+
+    /**
+     * The position of the vendor identifier in a GAIA frame.
+     */
+    private static final int OFFS_VENDOR_ID = 4;
+    /**
+     * The position of the command identifier in a GAIA frame.
+     */
+    private static final int OFFS_COMMAND_ID = 6;
+    /**
+     * The position of the payload in a GAIA frame.
+     */
+    private static final int OFFS_PAYLOAD = 8;
+    /**
+     * The position of the payload length in a GAIA frame.
+     */
+    private static final int OFFS_PAYLOAD_LENGTH = 3;
+    /**
+     * The characters used to display bytes as hexadecimal.
+     */
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The stream the recording is read from.
+     */
+    private final DataInputStream mInput;
+    /**
+     * The buffer in which the frame of the current record is read.
+     */
+    private final byte[] mFrame = new byte[GaiaTrafficRecorder.MAX_FRAME_LENGTH];
+    /**
+     * The direction of the current record.
+     */
+    private int mDirection;
+    /**
+     * The timestamp of the current record in nanoseconds.
+     */
+    private long mTimestamp;
+    /**
+     * The length of the frame of the current record.
+     */
+    private int mLength;
+
+    /**
+     * To build a decoder for a recording, the header of the recording is read and checked.
+     *
+     * @param input
+     *            the stream which contains the recording.
+     *
+     * @throws IOException
+     *             if the header cannot be read or is not a known recording header.
+     */
+    public GaiaTrafficDecoder(InputStream input) throws IOException {
+        mInput = new DataInputStream(input instanceof BufferedInputStream ? input : new BufferedInputStream(input));
+        int magic = mInput.readInt();
+        int version = mInput.readUnsignedByte();
+        if (magic != GaiaTrafficRecorder.MAGIC || version != GaiaTrafficRecorder.VERSION) {
+            throw new IOException("Not a GAIA traffic recording or unknown version: " + version);
+        }
+    }
+
+    /**
+     * To read the next record.
+     *
+     * @return false if the end of the recording has been reached.
+     *
+     * @throws IOException
+     *             if reading fails or if the last record is truncated.
+     */
+    public boolean next() throws IOException {
+        try {
+            mDirection = mInput.readUnsignedByte();
+        }
+        catch (EOFException e) {
+            return false;
+        }
+        mTimestamp = mInput.readLong();
+        mLength = mInput.readUnsignedShort();
+        mInput.readFully(mFrame, 0, mLength);
+        return true;
+    }
+
+    /**
+     * @return the direction of the current record: {@link GaiaTrafficRecorder#DIRECTION_SENT} or
+     *         {@link GaiaTrafficRecorder#DIRECTION_RECEIVED}.
+     */
+    public int getDirection() {
+        return mDirection;
+    }
+
+    /**
+     * @return the timestamp of the current record in nanoseconds, from {@link System#nanoTime()}.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the length of the frame of the current record.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * To get a copy of the frame of the current record.
+     *
+     * @return the frame bytes.
+     */
+    public byte[] getFrame() {
+        byte[] frame = new byte[mLength];
+        System.arraycopy(mFrame, 0, frame, 0, mLength);
+        return frame;
+    }
+
+    /**
+     * To get a readable representation of the current record: the direction, the vendor and command identifiers
+     * and the payload as hexadecimal.
+     *
+     * @return the record as text.
+     */
+    public String formatRecord() {
+        StringBuilder builder = new StringBuilder(16 + 3 * mLength);
+        builder.append(mDirection == GaiaTrafficRecorder.DIRECTION_SENT ? "\u2192 " : "\u2190 ");
+
+        if (mLength < OFFS_PAYLOAD) {
+            builder.append("raw");
+            appendHex(builder, 0, mLength);
+        }
+        else {
+            appendWord(builder, OFFS_VENDOR_ID);
+            builder.append(' ');
+            appendWord(builder, OFFS_COMMAND_ID);
+            int payloadLength = Math.min(mFrame[OFFS_PAYLOAD_LENGTH] & 0xFF, mLength - OFFS_PAYLOAD);
+            appendHex(builder, OFFS_PAYLOAD, payloadLength);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * To print all the records of a recording, with their time relative to the first record.
+     *
+     * @param output
+     *            the stream to print to.
+     *
+     * @return the number of printed records.
+     *
+     * @throws IOException
+     *             if reading fails.
+     */
+    public long print(PrintStream output) throws IOException {
+        long count = 0;
+        long start = 0;
+        long previous = 0;
+        while (next()) {
+            if (count == 0) {
+                start = mTimestamp;
+                previous = mTimestamp;
+            }
+            output.println(String.format("%12.3f ms %+10.3f ms  %s", (mTimestamp - start) / 1000000.0,
+                    (mTimestamp - previous) / 1000000.0, formatRecord()));
+            previous = mTimestamp;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * To append the two bytes of a word as hexadecimal.
+     */
+    private void appendWord(StringBuilder builder, int offset) {
+        appendByte(builder, mFrame[offset]);
+        appendByte(builder, mFrame[offset + 1]);
+    }
+
+    /**
+     * To append bytes of the current frame as hexadecimal, each one preceded by a space.
+     */
+    private void appendHex(StringBuilder builder, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            builder.append(' ');
+            appendByte(builder, mFrame[i]);
+        }
+    }
+
+    /**
+     * To append one byte as hexadecimal.
+     */
+    private static void appendByte(StringBuilder builder, byte value) {
+        builder.append(HEX[(value >> 4) & 0x0F]).append(HEX[value & 0x0F]);
+    }
+
+    /**
+     * To print recordings from the command line.
+     *
+     * @param args
+     *            the paths of the recordings to print, the standard input is read if there is none.
+     *
+     * @throws IOException
+     *             if a recording cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            new GaiaTrafficDecoder(System.in).print(System.out);
+            return;
+        }
+
+        for (String path : args) {
+            InputStream input = new FileInputStream(path);
+            try {
+                System.out.println(path + ":");
+                long count = new GaiaTrafficDecoder(input).print(System.out);
+                System.out.println(count + " records");
+            }
+            finally {
+                input.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.recorder;
+
+import com.csr.gaia.library.GaiaLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>This class records the raw GAIA frames exchanged with a device at a very low cost: each frame is copied with its
+ * direction and a nanosecond timestamp into a ring buffer which is allocated once. When the ring buffer is full the
+ * oldest records are overwritten.</p>
+ * <p>The records can also be spilled into a file through a memory mapped buffer so a whole session can be captured.
+ * The ring buffer and the spill file use the same format and can be read later with {@link GaiaTrafficDecoder}:</p>
+ * <ul>
+ *     <li>a header: the magic number {@link #MAGIC} on 4 bytes and the format {@link #VERSION} on 1 byte.</li>
+ *     <li>a list of records: the direction on 1 byte, the timestamp in nanoseconds on 8 bytes, the length of the
+ *     frame on 2 bytes and the frame bytes. All values are big endian.</li>
+ * </ul>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaTrafficRecorder {
+
+    private static final String TAG = "GaiaTrafficRecorder";
+
+    /**
+     * The magic number which starts a recording: "GAIR".
+     */
+    public static final int MAGIC = 0x47414952;
+    /**
+     * The version of the recording format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The direction of a frame sent to the device.
+     */
+    public static final int DIRECTION_SENT = 0;
+    /**
+     * The direction of a frame received from the device.
+     */
+    public static final int DIRECTION_RECEIVED = 1;
+    /**
+     * The length of the header of a recording.
+     */
+    public static final int FILE_HEADER_LENGTH = 5;
+    /**
+     * The length of the header of a record: direction, timestamp and length.
+     */
+    public static final int RECORD_HEADER_LENGTH = 11;
+    /**
+     * The maximum length of a recorded frame.
+     */
+    public static final int MAX_FRAME_LENGTH = 0xFFFF;
+    /**
+     * The default capacity of the ring buffer in bytes.
+     */
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+    /**
+     * The size of the regions of the spill file which are mapped at once.
+     */
+    private static final int SPILL_REGION_SIZE = 1024 * 1024;
+
+    /**
+     * The ring buffer which contains the records.
+     */
+    private final byte[] mRing;
+    /**
+     * The header of the record being written, to write it in the ring buffer and the spill file at once.
+     */
+    private final byte[] mHeader = new byte[RECORD_HEADER_LENGTH];
+    /**
+     * The position of the oldest record in the ring buffer.
+     */
+    private int mTail = 0;
+    /**
+     * The position at which the next record will be written in the ring buffer.
+     */
+    private int mHead = 0;
+    /**
+     * The number of bytes used in the ring buffer.
+     */
+    private int mUsed = 0;
+    /**
+     * The number of records written since the creation or the last clear.
+     */
+    private long mRecordCount = 0;
+    /**
+     * The number of records which have been overwritten in the ring buffer.
+     */
+    private long mOverwrittenCount = 0;
+    /**
+     * To know if the recorder records the frames it is given.
+     */
+    private volatile boolean isEnabled = true;
+
+    /**
+     * The file the records are spilled to, null if there is none.
+     */
+    private RandomAccessFile mSpillFile;
+    /**
+     * The mapped region of the spill file which is being written.
+     */
+    private MappedByteBuffer mSpillBuffer;
+    /**
+     * The position in the spill file of the mapped region.
+     */
+    private long mSpillOffset;
+
+    /**
+     * To build a recorder with a ring buffer of {@link #DEFAULT_CAPACITY} bytes.
+     */
+    public GaiaTrafficRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * To build a recorder.
+     *
+     * @param capacity
+     *            the capacity of the ring buffer in bytes, it must be able to contain at least one record of the
+     *            maximum length.
+     */
+    public GaiaTrafficRecorder(int capacity) {
+        if (capacity < RECORD_HEADER_LENGTH + MAX_FRAME_LENGTH) {
+            capacity = RECORD_HEADER_LENGTH + MAX_FRAME_LENGTH;
+        }
+        mRing = new byte[capacity];
+    }
+
+    /**
+     * To enable or disable the recording, records already in the ring buffer are kept.
+     *
+     * @param enabled
+     *            true to record the frames.
+     */
+    public void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    /**
+     * To know if the recording is enabled.
+     *
+     * @return true if the frames are recorded.
+     */
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * To record a frame.
+     *
+     * @param direction
+     *            {@link #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED}.
+     * @param frame
+     *            the array which contains the frame.
+     * @param offset
+     *            the position of the frame in the array.
+     * @param length
+     *            the length of the frame, frames longer than {@link #MAX_FRAME_LENGTH} are truncated.
+     */
+    public void record(int direction, byte[] frame, int offset, int length) {
+        if (!isEnabled) {
+            return;
+        }
+
+        long timestamp = System.nanoTime();
+        if (length > MAX_FRAME_LENGTH) {
+            length = MAX_FRAME_LENGTH;
+        }
+
+        synchronized (this) {
+            mHeader[0] = (byte) direction;
+            for (int i = 0; i < 8; i++) {
+                mHeader[1 + i] = (byte) (timestamp >>> (56 - 8 * i));
+            }
+            mHeader[9] = (byte) (length >>> 8);
+            mHeader[10] = (byte) length;
+
+            int size = RECORD_HEADER_LENGTH + length;
+            while (mRing.length - mUsed < size) {
+                dropOldest();
+            }
+            writeRing(mHeader, 0, RECORD_HEADER_LENGTH);
+            writeRing(frame, offset, length);
+            mUsed += size;
+            mRecordCount++;
+
+            if (mSpillBuffer != null) {
+                spill(mHeader, length, frame, offset);
+            }
+        }
+    }
+
+    /**
+     * To start spilling all new records into a file. If a file was already used it is closed first.
+     *
+     * @param file
+     *            the file to write, its content is replaced.
+     *
+     * @throws IOException
+     *             if the file cannot be created or mapped.
+     */
+    public synchronized void startSpill(File file) throws IOException {
+        stopSpill();
+        mSpillFile = new RandomAccessFile(file, "rw");
+        mSpillFile.setLength(0);
+        mSpillOffset = 0;
+        mSpillBuffer = mSpillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SPILL_REGION_SIZE);
+        mSpillBuffer.putInt(MAGIC);
+        mSpillBuffer.put((byte) VERSION);
+    }
+
+    /**
+     * To stop spilling the records and to close the spill file. The file is truncated to the recorded data and
+     * written to the storage.
+     *
+     * @throws IOException
+     *             if the file cannot be closed.
+     */
+    public synchronized void stopSpill() throws IOException {
+        if (mSpillFile == null) {
+            return;
+        }
+
+        try {
+            long length = mSpillOffset + mSpillBuffer.position();
+            mSpillBuffer.force();
+            mSpillBuffer = null;
+            mSpillFile.setLength(length);
+            // the regions left by spill() are written by the system on its own, they are only synced here
+            mSpillFile.getChannel().force(false);
+        }
+        finally {
+            mSpillFile.close();
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * To write the content of the ring buffer, the oldest record first, using the recording format.
+     *
+     * @param output
+     *            the stream to write to.
+     *
+     * @throws IOException
+     *             if writing fails.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        byte[] copy;
+        synchronized (this) {
+            copy = new byte[FILE_HEADER_LENGTH + mUsed];
+            int first = Math.min(mUsed, mRing.length - mTail);
+            System.arraycopy(mRing, mTail, copy, FILE_HEADER_LENGTH, first);
+            System.arraycopy(mRing, 0, copy, FILE_HEADER_LENGTH + first, mUsed - first);
+        }
+        copy[0] = (byte) (MAGIC >>> 24);
+        copy[1] = (byte) (MAGIC >>> 16);
+        copy[2] = (byte) (MAGIC >>> 8);
+        copy[3] = (byte) MAGIC;
+        copy[4] = (byte) VERSION;
+        output.write(copy);
+        output.flush();
+    }
+
+    /**
+     * To remove all records from the ring buffer.
+     */
+    public synchronized void clear() {
+        mTail = 0;
+        mHead = 0;
+        mUsed = 0;
+        mRecordCount = 0;
+        mOverwrittenCount = 0;
+    }
+
+    /**
+     * To get the number of records written since the creation or the last clear.
+     *
+     * @return the number of records.
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * To get the number of records which have been overwritten in the ring buffer.
+     *
+     * @return the number of overwritten records.
+     */
+    public synchronized long getOverwrittenCount() {
+        return mOverwrittenCount;
+    }
+
+    /**
+     * To get the number of bytes used in the ring buffer.
+     *
+     * @return the number of used bytes.
+     */
+    public synchronized int getUsed() {
+        return mUsed;
+    }
+
+    /**
+     * To remove the oldest record from the ring buffer.
+     */
+    private void dropOldest() {
+        int lengthPosition = (mTail + 9) % mRing.length;
+        int length = ((mRing[lengthPosition] & 0xFF) << 8) | (mRing[(lengthPosition + 1) % mRing.length] & 0xFF);
+        int size = RECORD_HEADER_LENGTH + length;
+        mTail = (mTail + size) % mRing.length;
+        mUsed -= size;
+        mOverwrittenCount++;
+    }
+
+    /**
+     * To copy bytes at the head of the ring buffer.
+     *
+     * @param source
+     *            the bytes to copy.
+     * @param offset
+     *            the position of the bytes in the source.
+     * @param length
+     *            the number of bytes to copy.
+     */
+    private void writeRing(byte[] source, int offset, int length) {
+        int first = Math.min(length, mRing.length - mHead);
+        System.arraycopy(source, offset, mRing, mHead, first);
+        System.arraycopy(source, offset + first, mRing, 0, length - first);
+        mHead = (mHead + length) % mRing.length;
+    }
+
+    /**
+     * To write a record into the spill file, the next region of the file is mapped when the current one is full. The
+     * region left is not forced: this runs on the thread which sends or reads the frames. If the file cannot be mapped
+     * anymore the spill is stopped.
+     */
+    private void spill(byte[] header, int length, byte[] frame, int offset) {
+        try {
+            if (mSpillBuffer.remaining() < RECORD_HEADER_LENGTH + length) {
+                long region = mSpillOffset + mSpillBuffer.position();
+                mSpillBuffer = mSpillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, region,
+                        SPILL_REGION_SIZE);
+                mSpillOffset = region;
+            }
+            mSpillBuffer.put(header, 0, RECORD_HEADER_LENGTH);
+            mSpillBuffer.put(frame, offset, length);
+        }
+        catch (IOException e) {
+            GaiaLog.w(TAG, "spill failed, the recording is truncated", e);
+            try {
+                stopSpill();
+            }
+            catch (IOException ignored) {
+                // the spill file is closed anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.session;
+
+import com.csr.gaia.library.GaiaLog;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>This class runs device sessions - blocking protocol code such as a handshake, an upgrade or a PS key
+ * synchronisation - each on its own thread, so the code of a session stays sequential.</p>
+ * <p>On a JVM which has virtual threads each session gets a virtual thread: thousands of sessions waiting for their
+ * devices cost little memory and no platform thread. Virtual threads are found by reflection, the library still
+ * runs on Java 7 and on Android where the sessions get platform threads from a pool instead.</p>
+ * <p>The number of sessions running at once can be bounded: the other ones wait for their turn, a virtual thread
+ * waits without holding a carrier thread. The carrier threads of the virtual threads are shared by the whole JVM,
+ * their number is set by {@link #setCarrierParallelism(int)}.</p>
+ * <p>Sessions are started through a {@link SessionScope} which owns them: a scope is joined or cancelled as a
+ * whole and none of its sessions outlives it.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class SessionExecutor {
+
+    private static final String TAG = "SessionExecutor";
+
+    /**
+     * To run any number of sessions at once.
+     */
+    public static final int UNBOUNDED = 0;
+
+    /**
+     * The factory of virtual threads of the JVM used to check whether they are available, null if they are not.
+     */
+    private static final ThreadFactory VIRTUAL_THREADS = newVirtualThreadFactory("GaiaSession-probe-");
+
+    private final String mName;
+    private final int mMaxSessions;
+    /**
+     * The factory of the session threads when they are virtual, null when the sessions run on platform threads.
+     */
+    private final ThreadFactory mVirtualFactory;
+    /**
+     * The pool of the session threads when they are platform threads, null when they are virtual.
+     */
+    private final ExecutorService mPlatformPool;
+    /**
+     * The sessions allowed to run at once when they are virtual threads, null if they are not bounded.
+     */
+    private final Semaphore mPermits;
+    private final ThreadFactory mHelperFactory;
+    private volatile boolean isShutdown = false;
+
+    /**
+     * To build an executor which uses virtual threads if the JVM has them.
+     *
+     * @param name
+     *            the name of the executor, used to name its threads.
+     * @param maxSessions
+     *            the maximum number of sessions running at once or {@link #UNBOUNDED}.
+     */
+    public SessionExecutor(String name, int maxSessions) {
+        this(name, maxSessions, true);
+    }
+
+    /**
+     * To build an executor.
+     *
+     * @param name
+     *            the name of the executor, used to name its threads.
+     * @param maxSessions
+     *            the maximum number of sessions running at once or {@link #UNBOUNDED}.
+     * @param useVirtualThreads
+     *            true to use virtual threads if the JVM has them, false to always use platform threads.
+     */
+    public SessionExecutor(String name, int maxSessions, boolean useVirtualThreads) {
+        if (maxSessions < 0) {
+            throw new IllegalArgumentException("maxSessions must not be negative: " + maxSessions);
+        }
+        mName = name;
+        mMaxSessions = maxSessions;
+        mVirtualFactory = useVirtualThreads && VIRTUAL_THREADS != null ? newVirtualThreadFactory(name + "-") : null;
+
+        if (mVirtualFactory != null) {
+            mPlatformPool = null;
+            mPermits = maxSessions == UNBOUNDED ? null : new Semaphore(maxSessions, true);
+            mHelperFactory = newVirtualThreadFactory(name + "-helper-");
+        }
+        else {
+            ThreadFactory factory = newPlatformThreadFactory(name + "-");
+            mPlatformPool = maxSessions == UNBOUNDED ? Executors.newCachedThreadPool(factory)
+                    : new ThreadPoolExecutor(maxSessions, maxSessions, 0, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(), factory);
+            mPermits = null;
+            mHelperFactory = newPlatformThreadFactory(name + "-helper-");
+        }
+        GaiaLog.d(TAG, name + ": " + (mVirtualFactory != null ? "virtual" : "platform") + " threads, "
+                + (maxSessions == UNBOUNDED ? "unbounded" : "at most " + maxSessions + " sessions"));
+    }
+
+    /**
+     * @return true if this JVM has virtual threads.
+     */
+    public static boolean isVirtualThreadAvailable() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * <p>To set the number of carrier threads which run the virtual threads of the JVM, by default the number of
+     * processors.</p>
+     * <p>The JVM reads this setting when it starts its first virtual thread: this method has to be called at the
+     * start of the application, before any executor is built.</p>
+     *
+     * @param parallelism
+     *            the number of carrier threads.
+     */
+    public static void setCarrierParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(parallelism));
+        System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", String.valueOf(parallelism));
+    }
+
+    /**
+     * @return the name of this executor.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return true if the sessions run on virtual threads.
+     */
+    public boolean usesVirtualThreads() {
+        return mVirtualFactory != null;
+    }
+
+    /**
+     * @return the maximum number of sessions running at once or {@link #UNBOUNDED}.
+     */
+    public int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    /**
+     * To get a factory for the threads which help the sessions, for instance the readers of their connections: they
+     * are virtual threads when the sessions are, and they are not bounded as a session waits for them.
+     *
+     * @return the factory.
+     */
+    public ThreadFactory getHelperThreadFactory() {
+        return mHelperFactory;
+    }
+
+    /**
+     * To build a scope to start sessions in.
+     *
+     * @param name
+     *            the name of the scope, for the logs.
+     *
+     * @return the scope.
+     */
+    public SessionScope newScope(String name) {
+        if (isShutdown) {
+            throw new IllegalStateException(mName + " is shut down");
+        }
+        return new SessionScope(this, name);
+    }
+
+    /**
+     * To stop this executor: no scope can be built anymore and the sessions which have not started never start. The
+     * scopes still have to be cancelled or joined.
+     */
+    public void shutdown() {
+        isShutdown = true;
+        if (mPlatformPool != null) {
+            mPlatformPool.shutdown();
+        }
+    }
+
+    /**
+     * To run a session on its own thread once a session can run.
+     *
+     * @param session
+     *            the session.
+     */
+    void execute(final SessionScope.Session<?> session) {
+        if (mPlatformPool != null) {
+            mPlatformPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    session.run();
+                }
+            });
+            return;
+        }
+
+        Thread thread = mVirtualFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mPermits != null) {
+                    try {
+                        mPermits.acquire();
+                    }
+                    catch (InterruptedException e) {
+                        session.cancel();
+                        return;
+                    }
+                }
+                try {
+                    session.run();
+                }
+                finally {
+                    if (mPermits != null) {
+                        mPermits.release();
+                    }
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * To get a factory of virtual threads through reflection: {@code Thread.ofVirtual().name(prefix, 0).factory()}.
+     *
+     * @return the factory, null if the JVM has no virtual threads.
+     */
+    private static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (NoSuchMethodException | ClassNotFoundException e) {
+            // before Java 21
+            return null;
+        }
+        catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            // the preview of the Java versions 19 and 20 is not enabled
+            return null;
+        }
+    }
+
+    private static ThreadFactory newPlatformThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
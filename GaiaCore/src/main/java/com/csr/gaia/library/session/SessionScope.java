@@ -0,0 +1,484 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.session;
+
+import com.csr.gaia.library.GaiaLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>A group of sessions started by a {@link SessionExecutor} which ends as a whole: the thread which builds the
+ * scope forks the sessions, then {@link #join() joins} them and {@link #close() closes} the scope. Closing the scope
+ * cancels the sessions which are still running and waits for them, so no session outlives its scope.</p>
+ * <pre>
+ * SessionScope scope = executor.newScope("provisioning");
+ * try {
+ *     for (Device device : devices) {
+ *         results.add(scope.fork(device.getName(), new Callable&lt;Report&gt;() { ... }));
+ *     }
+ *     scope.join();
+ * }
+ * finally {
+ *     scope.close();
+ * }
+ * </pre>
+ * <p>Cancelling a session interrupts its thread and closes the resources it registered through
+ * {@link #closeOnCancel(Closeable)}: a session blocked on a socket or a stream, which does not see interruptions,
+ * is woken up as well.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class SessionScope implements Closeable {
+
+    private static final String TAG = "SessionScope";
+
+    /**
+     * The session which runs on the current thread.
+     */
+    private static final ThreadLocal<Session<?>> CURRENT = new ThreadLocal<>();
+
+    private final SessionExecutor mExecutor;
+    private final String mName;
+    private final List<Session<?>> mSessions = new ArrayList<>();
+    /**
+     * The number of sessions of this scope which are not done.
+     */
+    private int mPending = 0;
+    private boolean isCancelled = false;
+    private boolean isClosed = false;
+    private boolean isFailFast = false;
+    private Throwable mFirstError;
+
+    SessionScope(SessionExecutor executor, String name) {
+        mExecutor = executor;
+        mName = name;
+    }
+
+    /**
+     * To get the session which runs on the current thread.
+     *
+     * @return the session, null if the current thread does not run a session.
+     */
+    public static Session<?> currentSession() {
+        return CURRENT.get();
+    }
+
+    /**
+     * To register a resource of the session of the current thread: it is closed if the session is cancelled. Nothing
+     * is done if the current thread does not run a session.
+     *
+     * @param resource
+     *            the resource, for instance the connection to a device.
+     */
+    public static void closeOnCancel(Closeable resource) {
+        Session<?> session = CURRENT.get();
+        if (session != null) {
+            session.closeOnCancel(resource);
+        }
+    }
+
+    /**
+     * @return the name of this scope.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * To cancel all the sessions of this scope as soon as one of them fails.
+     *
+     * @param failFast
+     *            true to cancel the sessions on the first failure, false to let them run. False by default.
+     */
+    public synchronized void setFailFast(boolean failFast) {
+        isFailFast = failFast;
+    }
+
+    /**
+     * To start a session in this scope.
+     *
+     * @param name
+     *            the name of the session, for instance the address of its device.
+     * @param task
+     *            the code of the session.
+     * @param <T>
+     *            the type of the result of the session.
+     *
+     * @return the session, its result is available once the scope is joined.
+     *
+     * @throws IllegalStateException
+     *             if this scope is cancelled or closed.
+     */
+    public <T> Session<T> fork(String name, Callable<T> task) {
+        Session<T> session = new Session<>(this, name, task);
+        synchronized (this) {
+            if (isClosed || isCancelled) {
+                throw new IllegalStateException(mName + " is " + (isClosed ? "closed" : "cancelled"));
+            }
+            mSessions.add(session);
+            mPending++;
+        }
+        mExecutor.execute(session);
+        return session;
+    }
+
+    /**
+     * To wait for all the sessions of this scope to be done.
+     *
+     * @throws InterruptedException
+     *             if the current thread is interrupted while waiting.
+     */
+    public synchronized void join() throws InterruptedException {
+        while (mPending > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * To wait for all the sessions of this scope to be done, at most for a time.
+     *
+     * @param timeout
+     *            the maximum time to wait, in milliseconds.
+     *
+     * @return true if all the sessions are done, false if the time is over.
+     *
+     * @throws InterruptedException
+     *             if the current thread is interrupted while waiting.
+     */
+    public synchronized boolean join(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (mPending > 0 && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return mPending == 0;
+    }
+
+    /**
+     * To cancel all the sessions of this scope: the sessions which have not started never start, the running ones
+     * are interrupted and their resources closed. No session can be forked anymore.
+     */
+    public void cancel() {
+        List<Session<?>> sessions;
+        synchronized (this) {
+            if (isCancelled) {
+                return;
+            }
+            isCancelled = true;
+            sessions = new ArrayList<>(mSessions);
+        }
+        for (Session<?> session : sessions) {
+            session.cancel();
+        }
+    }
+
+    /**
+     * @return true if this scope has been cancelled.
+     */
+    public synchronized boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * @return the first failure of a session of this scope, null if none failed.
+     */
+    public synchronized Throwable getFirstError() {
+        return mFirstError;
+    }
+
+    /**
+     * @return the sessions forked in this scope, in the order they were forked.
+     */
+    public synchronized List<Session<?>> getSessions() {
+        return Collections.unmodifiableList(new ArrayList<>(mSessions));
+    }
+
+    /**
+     * To close this scope: the sessions which are not done are cancelled and this method waits for them. If the
+     * current thread is interrupted, it still waits and its interrupted status is set again.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        }
+        cancel();
+
+        boolean interrupted = false;
+        synchronized (this) {
+            while (mPending > 0) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called once by each session when it is done.
+     */
+    private void onSessionDone(Session<?> session) {
+        boolean cancel = false;
+        synchronized (this) {
+            mPending--;
+            if (session.mState == Session.State.FAILED) {
+                if (mFirstError == null) {
+                    mFirstError = session.mError;
+                }
+                cancel = isFailFast;
+            }
+            notifyAll();
+        }
+        if (cancel) {
+            cancel();
+        }
+    }
+
+    /**
+     * A session of a {@link SessionScope}.
+     *
+     * @param <T>
+     *            the type of the result of the session.
+     */
+    public static final class Session<T> {
+
+        /**
+         * All the states of a session.
+         */
+        public enum State {
+            /**
+             * The session waits for its turn to run.
+             */
+            WAITING,
+            /**
+             * The session runs on its thread.
+             */
+            RUNNING,
+            /**
+             * The session returned its result.
+             */
+            SUCCEEDED,
+            /**
+             * The session threw an exception.
+             */
+            FAILED,
+            /**
+             * The session has been cancelled, before it started or while it was running.
+             */
+            CANCELLED
+        }
+
+        private final SessionScope mScope;
+        private final String mName;
+        private final Callable<T> mTask;
+        private final List<Closeable> mResources = new ArrayList<>();
+        private volatile State mState = State.WAITING;
+        private T mResult;
+        private Throwable mError;
+        private Thread mThread;
+        private boolean isCancelRequested = false;
+
+        private Session(SessionScope scope, String name, Callable<T> task) {
+            mScope = scope;
+            mName = name;
+            mTask = task;
+        }
+
+        /**
+         * @return the name of the session.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the state of the session.
+         */
+        public State getState() {
+            return mState;
+        }
+
+        /**
+         * @return true if the session succeeded, failed or has been cancelled.
+         */
+        public boolean isDone() {
+            State state = mState;
+            return state == State.SUCCEEDED || state == State.FAILED || state == State.CANCELLED;
+        }
+
+        /**
+         * To get the result of the session once it is done, usually after joining the scope.
+         *
+         * @return the result of the session.
+         *
+         * @throws ExecutionException
+         *             if the session failed, the cause is its failure.
+         * @throws CancellationException
+         *             if the session has been cancelled.
+         * @throws IllegalStateException
+         *             if the session is not done.
+         */
+        public synchronized T get() throws ExecutionException {
+            switch (mState) {
+            case SUCCEEDED:
+                return mResult;
+            case FAILED:
+                throw new ExecutionException(mError);
+            case CANCELLED:
+                throw new CancellationException(mName + " cancelled");
+            default:
+                throw new IllegalStateException(mName + " is not done");
+            }
+        }
+
+        /**
+         * @return the failure of the session, null if it did not fail.
+         */
+        public synchronized Throwable getError() {
+            return mState == State.FAILED ? mError : null;
+        }
+
+        /**
+         * To register a resource closed if this session is cancelled, it is closed at once if the session is already
+         * cancelled.
+         *
+         * @param resource
+         *            the resource, for instance the connection to a device.
+         */
+        public void closeOnCancel(Closeable resource) {
+            synchronized (this) {
+                if (!isCancelRequested) {
+                    mResources.add(resource);
+                    return;
+                }
+            }
+            closeQuietly(resource);
+        }
+
+        /**
+         * To cancel this session: it never starts if it is waiting, otherwise its thread is interrupted and its
+         * resources closed.
+         */
+        public void cancel() {
+            List<Closeable> resources;
+            boolean done = false;
+            synchronized (this) {
+                if (isCancelRequested || isDone()) {
+                    return;
+                }
+                isCancelRequested = true;
+                if (mState == State.WAITING) {
+                    mState = State.CANCELLED;
+                    done = true;
+                }
+                else if (mState == State.RUNNING && mThread != null) {
+                    // interrupted under the lock: once the session is done its thread may run another session
+                    mThread.interrupt();
+                }
+                resources = new ArrayList<>(mResources);
+                mResources.clear();
+            }
+
+            if (done) {
+                mScope.onSessionDone(this);
+                return;
+            }
+            for (Closeable resource : resources) {
+                closeQuietly(resource);
+            }
+        }
+
+        /**
+         * To run the session on the current thread, called by the executor.
+         */
+        void run() {
+            synchronized (this) {
+                if (mState != State.WAITING) {
+                    // cancelled before its turn
+                    return;
+                }
+                mState = State.RUNNING;
+                mThread = Thread.currentThread();
+            }
+
+            CURRENT.set(this);
+            State state;
+            T result = null;
+            Throwable error = null;
+            try {
+                result = mTask.call();
+                state = State.SUCCEEDED;
+            }
+            catch (Throwable e) {
+                error = e;
+                state = State.FAILED;
+            }
+            finally {
+                CURRENT.remove();
+            }
+
+            synchronized (this) {
+                if (state == State.FAILED && isCancelRequested) {
+                    // the failure is the consequence of the cancellation
+                    state = State.CANCELLED;
+                }
+                mResult = result;
+                mError = error;
+                mState = state;
+                mThread = null;
+                mResources.clear();
+            }
+            // a thread of a pool must not keep the interruption of a cancelled session
+            Thread.interrupted();
+            if (state == State.FAILED) {
+                GaiaLog.d(TAG, mScope.mName + "/" + mName + " failed: " + error);
+            }
+            mScope.onSessionDone(this);
+        }
+
+        private static void closeQuietly(Closeable resource) {
+            try {
+                resource.close();
+            }
+            catch (IOException e) {
+                // the session is cancelled anyway
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mName + " " + mState;
+        }
+    }
+}
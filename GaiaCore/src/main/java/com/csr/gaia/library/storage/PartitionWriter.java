@@ -0,0 +1,657 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.storage;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.Watchdog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * <p>This class streams data into a storage partition of the device, for instance to update voice prompts or audio
+ * assets without a VM upgrade.</p>
+ * <p>The steps of a write are: the status of the partition is requested to check its size, the partition is opened
+ * with the CRC of the data, the data is written in chunks, the partition is closed - the device checks the CRC -
+ * and optionally mounted, then its status is requested again as a final check.</p>
+ * <p>The writes are pipelined: a {@link #setWindow(int) window} of writes is kept outstanding, each
+ * acknowledgement sends the next chunk. The listener gets the progress and the throughput on the main executor of
+ * the dispatcher of the link.</p>
+ * <p>The payloads used are:</p>
+ * <ul>
+ *     <li>GET_STORAGE_PARTITION_STATUS: the partition; acknowledged with the status, the partition, its type and
+ *     its size on 4 octets.</li>
+ *     <li>OPEN_STORAGE_PARTITION: the partition, the mode and the CRC-32 of the data on 4 octets; acknowledged with
+ *     the status and the stream identifier.</li>
+ *     <li>WRITE_STORAGE_PARTITION: the stream identifier, the offset on 4 octets and the data.</li>
+ *     <li>WRITE_STREAM: the stream identifier and the data, written in order.</li>
+ *     <li>CLOSE_STORAGE_PARTITION: the stream identifier.</li>
+ *     <li>MOUNT_STORAGE_PARTITION: the partition.</li>
+ * </ul>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class PartitionWriter implements GaiaDispatcher.IPacketListener {
+
+    /**
+     * All the steps of a write.
+     */
+    public enum Step {
+        STATUS, OPEN, WRITE, CLOSE, MOUNT, FINAL_STATUS
+    }
+
+    /**
+     * The default number of outstanding writes.
+     */
+    public static final int DEFAULT_WINDOW = 8;
+    /**
+     * The default time without any acknowledgement after which a write fails, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 3000;
+    /**
+     * The mode of OPEN_STORAGE_PARTITION to overwrite the partition.
+     */
+    private static final int MODE_OVERWRITE = 0x02;
+    /**
+     * The header of a WRITE_STORAGE_PARTITION payload: the stream identifier and the offset.
+     */
+    private static final int PARTITION_HEADER_LENGTH = 5;
+    /**
+     * The header of a WRITE_STREAM payload: the stream identifier.
+     */
+    private static final int STREAM_HEADER_LENGTH = 1;
+    private static final int OFFS_STREAM_ID = 1;
+    private static final int OFFS_PARTITION_SIZE = 3;
+    private static final int[] COMMANDS = { Gaia.COMMAND_GET_STORAGE_PARTITION_STATUS,
+            Gaia.COMMAND_OPEN_STORAGE_PARTITION, Gaia.COMMAND_WRITE_STORAGE_PARTITION, Gaia.COMMAND_WRITE_STREAM,
+            Gaia.COMMAND_CLOSE_STORAGE_PARTITION, Gaia.COMMAND_MOUNT_STORAGE_PARTITION };
+
+    private final GaiaLinkCore mLink;
+    private final IPartitionListener mListener;
+    private int mWindow = DEFAULT_WINDOW;
+    private long mTimeout = DEFAULT_TIMEOUT;
+    private boolean isStreamMode = false;
+    private boolean isMountRequested = true;
+
+    /**
+     * The current step, null if no write is running.
+     */
+    private Step mStep;
+    private int mPartition;
+    private ByteBuffer mData;
+    private long mCrc;
+    private int mStreamId;
+    /**
+     * The number of data bytes per write.
+     */
+    private int mChunk;
+    /**
+     * The number of bytes sent.
+     */
+    private int mSentBytes;
+    /**
+     * The number of bytes acknowledged.
+     */
+    private int mAckedBytes;
+    /**
+     * The number of writes sent and not acknowledged.
+     */
+    private int mOutstanding;
+    private long mStart;
+    private long mWriteStart;
+    private long mLastActivity;
+    private Watchdog mWatchdog;
+
+    /**
+     * To build a new writer.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param listener
+     *            the listener to inform of the progress of the writes.
+     */
+    public PartitionWriter(GaiaLinkCore link, IPartitionListener listener) {
+        mLink = link;
+        mListener = listener;
+    }
+
+    /**
+     * @param window
+     *            the number of writes sent without waiting for their acknowledgement, at least 1.
+     */
+    public synchronized void setWindow(int window) {
+        mWindow = Math.max(1, window);
+    }
+
+    /**
+     * @param timeout
+     *            the time without any acknowledgement after which a write fails, in milliseconds.
+     */
+    public synchronized void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * @param streamMode
+     *            true to write with COMMAND_WRITE_STREAM, false to write with COMMAND_WRITE_STORAGE_PARTITION.
+     */
+    public synchronized void setStreamMode(boolean streamMode) {
+        isStreamMode = streamMode;
+    }
+
+    /**
+     * @param mount
+     *            true to mount the partition once written, so that the device can use it.
+     */
+    public synchronized void setMount(boolean mount) {
+        isMountRequested = mount;
+    }
+
+    /**
+     * @return true if a write is running.
+     */
+    public synchronized boolean isBusy() {
+        return mStep != null;
+    }
+
+    /**
+     * To write a file into a partition. The file is mapped in memory, it is not copied.
+     *
+     * @param partition
+     *            the partition to write.
+     * @param file
+     *            the file to write.
+     *
+     * @return false if a write is already running.
+     *
+     * @throws IOException
+     *             if the file cannot be mapped.
+     */
+    public boolean write(int partition, File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            return write(partition, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * To write data into a partition, from the position to the limit of the buffer.
+     *
+     * @param partition
+     *            the partition to write.
+     * @param data
+     *            the data to write, the buffer must not be modified until the write is complete.
+     *
+     * @return false if a write is already running.
+     */
+    public boolean write(int partition, ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = data.slice();
+        if (slice.hasArray()) {
+            crc.update(slice.array(), slice.arrayOffset(), slice.remaining());
+        }
+        else {
+            byte[] buffer = new byte[4096];
+            ByteBuffer source = slice.duplicate();
+            while (source.hasRemaining()) {
+                int length = Math.min(buffer.length, source.remaining());
+                source.get(buffer, 0, length);
+                crc.update(buffer, 0, length);
+            }
+        }
+
+        synchronized (this) {
+            if (mStep != null) {
+                return false;
+            }
+            mStep = Step.STATUS;
+            mPartition = partition;
+            mData = slice;
+            mCrc = crc.getValue();
+            mChunk = Gaia.MAX_PAYLOAD - (isStreamMode ? STREAM_HEADER_LENGTH : PARTITION_HEADER_LENGTH);
+            mSentBytes = 0;
+            mAckedBytes = 0;
+            mOutstanding = 0;
+            mStart = System.nanoTime();
+            mLastActivity = mStart;
+        }
+
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        for (int command : COMMANDS) {
+            dispatcher.subscribe(command, GaiaDispatcher.Delivery.READER_THREAD, this);
+        }
+        startWatchdog();
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_GET_STORAGE_PARTITION_STATUS, new byte[] { (byte) partition });
+        return true;
+    }
+
+    /**
+     * To stop the running write, the partition is closed without being mounted.
+     */
+    public void cancel() {
+        int streamId;
+        synchronized (this) {
+            if (mStep == null) {
+                return;
+            }
+            streamId = mStep == Step.WRITE ? mStreamId : -1;
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        if (streamId >= 0) {
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_CLOSE_STORAGE_PARTITION, new byte[] { (byte) streamId });
+        }
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        if (!packet.isAcknowledgement()) {
+            return;
+        }
+
+        int command = packet.getCommand();
+        Gaia.Status status = packet.getStatus();
+        byte[] payload = packet.getPayload();
+        Step step;
+        synchronized (this) {
+            step = mStep;
+            if (step == null || command != getCommand(step)) {
+                return;
+            }
+            mLastActivity = System.nanoTime();
+        }
+
+        if (status != Gaia.Status.SUCCESS) {
+            fail(step, status);
+            return;
+        }
+
+        switch (step) {
+        case STATUS:
+            long size = payload.length >= OFFS_PARTITION_SIZE + 4 ? getInt(payload, OFFS_PARTITION_SIZE) : -1;
+            if (size >= 0 && size < mData.remaining()) {
+                fail(step, Gaia.Status.INSUFFICIENT_RESOURCES);
+                return;
+            }
+            next(Step.OPEN);
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_OPEN_STORAGE_PARTITION, new byte[] { (byte) mPartition,
+                    MODE_OVERWRITE, (byte) (mCrc >>> 24), (byte) (mCrc >>> 16), (byte) (mCrc >>> 8), (byte) mCrc });
+            break;
+
+        case OPEN:
+            if (payload.length <= OFFS_STREAM_ID) {
+                fail(step, Gaia.Status.INVALID_PARAMETER);
+                return;
+            }
+            synchronized (this) {
+                mStreamId = payload[OFFS_STREAM_ID] & 0xFF;
+                mWriteStart = System.nanoTime();
+            }
+            if (mData.remaining() == 0) {
+                // nothing to write: no WRITE would be acknowledged
+                next(Step.CLOSE);
+                mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_CLOSE_STORAGE_PARTITION,
+                        new byte[] { (byte) mStreamId });
+                break;
+            }
+            next(Step.WRITE);
+            sendWrites();
+            break;
+
+        case WRITE:
+            int acked;
+            int total;
+            boolean complete;
+            synchronized (this) {
+                mOutstanding--;
+                mAckedBytes = Math.min(mAckedBytes + mChunk, mData.remaining());
+                acked = mAckedBytes;
+                total = mData.remaining();
+                complete = mAckedBytes == total && mOutstanding == 0;
+            }
+            postProgress(acked, total);
+            if (complete) {
+                next(Step.CLOSE);
+                mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_CLOSE_STORAGE_PARTITION,
+                        new byte[] { (byte) mStreamId });
+            }
+            else {
+                sendWrites();
+            }
+            break;
+
+        case CLOSE:
+            if (isMountRequested) {
+                next(Step.MOUNT);
+                mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_MOUNT_STORAGE_PARTITION,
+                        new byte[] { (byte) mPartition });
+            }
+            else {
+                // no mount: straight to the final check
+                sendFinalStatus();
+            }
+            break;
+
+        case MOUNT:
+            sendFinalStatus();
+            break;
+
+        case FINAL_STATUS:
+            complete(payload);
+            break;
+        }
+    }
+
+    /**
+     * To send the writes which fit in the window: WRITE_STORAGE_PARTITION commands which give the offset of their
+     * chunk or, in stream mode, WRITE_STREAM commands which only give the stream identifier.
+     */
+    private void sendWrites() {
+        while (true) {
+            byte[] payload;
+            int command;
+            synchronized (this) {
+                if (mStep != Step.WRITE || mOutstanding >= mWindow || mSentBytes >= mData.remaining()) {
+                    return;
+                }
+                int length = Math.min(mChunk, mData.remaining() - mSentBytes);
+                int header = isStreamMode ? STREAM_HEADER_LENGTH : PARTITION_HEADER_LENGTH;
+                payload = new byte[header + length];
+                payload[0] = (byte) mStreamId;
+                if (!isStreamMode) {
+                    payload[1] = (byte) (mSentBytes >>> 24);
+                    payload[2] = (byte) (mSentBytes >>> 16);
+                    payload[3] = (byte) (mSentBytes >>> 8);
+                    payload[4] = (byte) mSentBytes;
+                }
+                ByteBuffer source = mData.duplicate();
+                source.position(mSentBytes);
+                source.get(payload, header, length);
+                mSentBytes += length;
+                mOutstanding++;
+                command = isStreamMode ? Gaia.COMMAND_WRITE_STREAM : Gaia.COMMAND_WRITE_STORAGE_PARTITION;
+            }
+            mLink.sendCommand(Gaia.VENDOR_CSR, command, payload);
+        }
+    }
+
+    /**
+     * To ask the status of the partition once it is written, to give it with the result.
+     */
+    private void sendFinalStatus() {
+        next(Step.FINAL_STATUS);
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_GET_STORAGE_PARTITION_STATUS, new byte[] { (byte) mPartition });
+    }
+
+    /**
+     * To go to the next step.
+     */
+    private synchronized void next(Step step) {
+        if (mStep != null) {
+            mStep = step;
+        }
+    }
+
+    /**
+     * To end the write successfully with the final status of the partition.
+     */
+    private void complete(byte[] finalStatus) {
+        final Result result;
+        synchronized (this) {
+            if (mStep == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            result = new Result(mPartition, mData.remaining(), mCrc, now - mStart, now - mWriteStart, finalStatus);
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onComplete(result);
+            }
+        });
+    }
+
+    /**
+     * To end the write because of an error, the status is null for a timeout.
+     */
+    private void fail(final Step step, final Gaia.Status status) {
+        int streamId;
+        synchronized (this) {
+            if (mStep == null) {
+                return;
+            }
+            streamId = step == Step.WRITE ? mStreamId : -1;
+            end();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        if (streamId >= 0 && status != null) {
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_CLOSE_STORAGE_PARTITION, new byte[] { (byte) streamId });
+        }
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onError(step, status);
+            }
+        });
+    }
+
+    /**
+     * To reset the state at the end of a write. This method must be called while holding the lock.
+     */
+    private void end() {
+        mStep = null;
+        if (mWatchdog != null) {
+            mWatchdog.stop();
+            mWatchdog = null;
+        }
+    }
+
+    private void postProgress(final int done, final int total) {
+        final long elapsed;
+        synchronized (this) {
+            elapsed = System.nanoTime() - mWriteStart;
+        }
+        mLink.getDispatcher().getMainExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(done, total, elapsed > 0 ? done * 1000000000.0 / elapsed : 0);
+            }
+        });
+    }
+
+    private void startWatchdog() {
+        Watchdog watchdog;
+        long timeout;
+        synchronized (this) {
+            timeout = mTimeout;
+            watchdog = new Watchdog() {
+                @Override
+                protected void check() {
+                    checkTimeout(this);
+                }
+            };
+            mWatchdog = watchdog;
+        }
+        watchdog.start(timeout);
+    }
+
+    private void checkTimeout(Watchdog watchdog) {
+        Step step;
+        synchronized (this) {
+            if (mWatchdog != watchdog || mStep == null) {
+                watchdog.stop();
+                return;
+            }
+            if (System.nanoTime() - mLastActivity < mTimeout * 1000000L) {
+                return;
+            }
+            step = mStep;
+        }
+        fail(step, null);
+    }
+
+    /**
+     * To get the command acknowledged at a step. This method must be called while holding the lock.
+     */
+    private int getCommand(Step step) {
+        switch (step) {
+        case STATUS:
+        case FINAL_STATUS:
+            return Gaia.COMMAND_GET_STORAGE_PARTITION_STATUS;
+        case OPEN:
+            return Gaia.COMMAND_OPEN_STORAGE_PARTITION;
+        case CLOSE:
+            return Gaia.COMMAND_CLOSE_STORAGE_PARTITION;
+        case MOUNT:
+            return Gaia.COMMAND_MOUNT_STORAGE_PARTITION;
+        default:
+            return isStreamMode ? Gaia.COMMAND_WRITE_STREAM : Gaia.COMMAND_WRITE_STORAGE_PARTITION;
+        }
+    }
+
+    private static long getInt(byte[] bytes, int offset) {
+        return ((long) (bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * The results of a successful write.
+     */
+    public static final class Result {
+        private final int mPartition;
+        private final int mLength;
+        private final long mCrc;
+        private final long mDuration;
+        private final long mWriteDuration;
+        private final byte[] mFinalStatus;
+
+        private Result(int partition, int length, long crc, long duration, long writeDuration, byte[] finalStatus) {
+            mPartition = partition;
+            mLength = length;
+            mCrc = crc;
+            mDuration = duration;
+            mWriteDuration = writeDuration;
+            mFinalStatus = finalStatus;
+        }
+
+        /**
+         * @return the written partition.
+         */
+        public int getPartition() {
+            return mPartition;
+        }
+
+        /**
+         * @return the number of bytes written.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return the CRC-32 of the data, checked by the device when the partition is closed.
+         */
+        public long getCrc() {
+            return mCrc;
+        }
+
+        /**
+         * @return the time taken by all the steps, in nanoseconds.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return the time taken by the writes only, in nanoseconds.
+         */
+        public long getWriteDuration() {
+            return mWriteDuration;
+        }
+
+        /**
+         * @return the number of bytes written per second during the writes.
+         */
+        public double getThroughput() {
+            return mWriteDuration > 0 ? mLength * 1000000000.0 / mWriteDuration : 0;
+        }
+
+        /**
+         * @return the payload of the final GET_STORAGE_PARTITION_STATUS acknowledgement.
+         */
+        public byte[] getFinalStatus() {
+            return mFinalStatus.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "Partition " + mPartition + ": " + mLength + " bytes in " + mDuration / 1000000 + " ms, "
+                    + (long) getThroughput() + " B/s, CRC 0x" + Long.toHexString(mCrc);
+        }
+    }
+
+    /**
+     * The interface to implement to follow the writes of a {@link PartitionWriter}. All methods are called on the
+     * main executor of the dispatcher of the link.
+     */
+    public interface IPartitionListener {
+
+        /**
+         * Called each time a write has been acknowledged.
+         *
+         * @param done
+         *            the number of bytes acknowledged.
+         * @param total
+         *            the number of bytes to write.
+         * @param throughput
+         *            the bytes acknowledged per second since the first write.
+         */
+        void onProgress(int done, int total, double throughput);
+
+        /**
+         * Called when the partition has been written, closed, mounted if requested and checked.
+         *
+         * @param result
+         *            the results of the write.
+         */
+        void onComplete(Result result);
+
+        /**
+         * Called when the write failed, the partition is closed if it was open.
+         *
+         * @param step
+         *            the step which failed.
+         * @param status
+         *            the status of the device, null if it stopped answering.
+         */
+        void onError(Step step, Gaia.Status status);
+    }
+}
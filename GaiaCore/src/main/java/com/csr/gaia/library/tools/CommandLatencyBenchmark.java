@@ -0,0 +1,491 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.tools;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This benchmark measures the round trip of representative commands through a {@link GaiaLinkCore} connected to a
+ * {@link SimulatedDevice}: the whole send and receive path of the library is exercised over in-process pipes, which
+ * gives a baseline to compare each change of this path with.</p>
+ * <p>A run starts a number of clients which each send a command, wait for its acknowledgement and send the next one.
+ * The clients go through {@link #COMMANDS} in turn: a battery level request, an equaliser parameter and a TWS volume,
+ * with the payloads the application sends. A run can be loaded with a bulk transfer of
+ * {@link Gaia#COMMAND_HOST_TO_DEVICE_DATA HOST_TO_DEVICE_DATA} frames of {@link Gaia#MAX_PAYLOAD} bytes, sent with a
+ * window of {@link #BULK_WINDOW} frames, to see how the commands are delayed behind it.</p>
+ * <p>Each latency is measured with {@link System#nanoTime()} from the send to the return of the acknowledgement to
+ * the client by {@link GaiaLinkCore#request(int, int, byte[], long)}, the percentiles are exact. The benchmark only
+ * needs the GaiaCore module, it runs on any JVM:</p>
+ * <pre>java -cp GaiaCore.jar com.csr.gaia.library.tools.CommandLatencyBenchmark [iterations] [concurrency...]</pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CommandLatencyBenchmark {
+
+    /**
+     * The commands measured by the benchmark.
+     */
+    public static final int[] COMMANDS = { Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL, Gaia.COMMAND_SET_EQ_PARAMETER,
+            Gaia.COMMAND_SET_TWS_VOLUME };
+    /**
+     * The default number of measured commands per client and run.
+     */
+    public static final int DEFAULT_ITERATIONS = 2000;
+    /**
+     * The default number of commands per client sent before the measures start.
+     */
+    public static final int DEFAULT_WARMUP = 500;
+    /**
+     * The default concurrency levels of {@link #runSuite()}.
+     */
+    public static final int[] DEFAULT_CONCURRENCY = { 1, 4, 16 };
+    /**
+     * The number of bulk frames waiting for their acknowledgement.
+     */
+    public static final int BULK_WINDOW = 4;
+    /**
+     * The time to wait for an acknowledgement before the command is lost, in milliseconds.
+     */
+    private static final long TIMEOUT = 5000;
+
+    private int mIterations = DEFAULT_ITERATIONS;
+    private int mWarmup = DEFAULT_WARMUP;
+    private long mDeviceDelay = 0;
+
+    /**
+     * To set the number of commands each client measures in a run.
+     *
+     * @param iterations
+     *            the number of commands.
+     */
+    public void setIterations(int iterations) {
+        mIterations = iterations;
+    }
+
+    /**
+     * To set the number of commands each client sends before measuring.
+     *
+     * @param warmup
+     *            the number of commands.
+     */
+    public void setWarmup(int warmup) {
+        mWarmup = warmup;
+    }
+
+    /**
+     * To set the time the simulated device takes to process a command.
+     *
+     * @param micros
+     *            the delay in microseconds.
+     */
+    public void setDeviceDelay(long micros) {
+        mDeviceDelay = micros;
+    }
+
+    /**
+     * To run the benchmark at each of the {@link #DEFAULT_CONCURRENCY default concurrency levels}, without and with
+     * the bulk load.
+     *
+     * @return the reports of the runs in order.
+     */
+    public List<Report> runSuite() {
+        return runSuite(DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * To run the benchmark at each of the given concurrency levels, without and with the bulk load.
+     *
+     * @param concurrency
+     *            the numbers of clients.
+     *
+     * @return the reports of the runs in order.
+     */
+    public List<Report> runSuite(int... concurrency) {
+        List<Report> reports = new ArrayList<>();
+        for (int clients : concurrency) {
+            reports.add(run(clients, false));
+            reports.add(run(clients, true));
+        }
+        return reports;
+    }
+
+    /**
+     * To run the benchmark once on a new link and a new simulated device.
+     *
+     * @param concurrency
+     *            the number of clients which send commands at the same time.
+     * @param bulkLoad
+     *            true to send a bulk transfer during the run.
+     *
+     * @return the report of the run.
+     */
+    public Report run(int concurrency, boolean bulkLoad) {
+        SimulatedDevice device = new SimulatedDevice();
+        device.setResponseDelay(mDeviceDelay);
+        device.start();
+        final GaiaLinkCore link = new GaiaLinkCore();
+        link.setDebugLevel(0);
+        link.connect(device.getInputStream(), device.getOutputStream(), "benchmark");
+
+        final Probe[] probes = new Probe[COMMANDS.length];
+        for (int i = 0; i < COMMANDS.length; i++) {
+            probes[i] = new Probe(COMMANDS[i]);
+        }
+
+        Bulk bulk = null;
+        if (bulkLoad) {
+            bulk = new Bulk(link);
+            link.getDispatcher().subscribe(Gaia.COMMAND_HOST_TO_DEVICE_DATA, GaiaDispatcher.Delivery.READER_THREAD,
+                    bulk);
+            bulk.start();
+        }
+
+        final long[][][] samples = new long[concurrency][COMMANDS.length][];
+        final int[][] counts = new int[concurrency][COMMANDS.length];
+        Thread[] clients = new Thread[concurrency];
+        for (int c = 0; c < concurrency; c++) {
+            final int client = c;
+            for (int i = 0; i < COMMANDS.length; i++) {
+                samples[client][i] = new long[mIterations / COMMANDS.length + 1];
+            }
+            clients[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < mWarmup + mIterations; i++) {
+                        int index = (client + i) % COMMANDS.length;
+                        long latency = probes[index].measure(link);
+                        if (i >= mWarmup && latency >= 0) {
+                            samples[client][index][counts[client][index]++] = latency;
+                        }
+                    }
+                }
+            }, "Benchmark-" + c);
+        }
+
+        long start = System.nanoTime();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            try {
+                client.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long duration = System.nanoTime() - start;
+
+        long bulkBytes = 0;
+        if (bulk != null) {
+            bulk.interrupt();
+            bulkBytes = bulk.mBytes.get();
+        }
+        link.disconnect();
+        device.stop();
+
+        List<Result> results = new ArrayList<>();
+        List<long[]> all = new ArrayList<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            List<long[]> command = new ArrayList<>();
+            for (int c = 0; c < concurrency; c++) {
+                command.add(Arrays.copyOf(samples[c][i], counts[c][i]));
+            }
+            all.addAll(command);
+            results.add(new Result(COMMANDS[i], merge(command), probes[i].mLost.get()));
+        }
+        long lost = 0;
+        for (Probe probe : probes) {
+            lost += probe.mLost.get();
+        }
+
+        return new Report(concurrency, bulkLoad, duration, bulkBytes, results, new Result(-1, merge(all), lost));
+    }
+
+    /**
+     * To merge and sort samples.
+     */
+    private static long[] merge(List<long[]> samples) {
+        int length = 0;
+        for (long[] array : samples) {
+            length += array.length;
+        }
+        long[] merged = new long[length];
+        int position = 0;
+        for (long[] array : samples) {
+            System.arraycopy(array, 0, merged, position, array.length);
+            position += array.length;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * To run the benchmark from a command line.
+     *
+     * @param args
+     *            the number of iterations per client then the concurrency levels, all optional.
+     */
+    public static void main(String[] args) {
+        CommandLatencyBenchmark benchmark = new CommandLatencyBenchmark();
+        int[] concurrency = DEFAULT_CONCURRENCY;
+        if (args.length > 0) {
+            benchmark.setIterations(Integer.parseInt(args[0]));
+        }
+        if (args.length > 1) {
+            concurrency = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                concurrency[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        for (Report report : benchmark.runSuite(concurrency)) {
+            System.out.println(report);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * The round trips of one command: the link matches the acknowledgements in the order the clients sent the command.
+     */
+    private static class Probe {
+        final int mCommand;
+        final byte[] mPayload;
+        final AtomicLong mLost = new AtomicLong();
+
+        Probe(int command) {
+            mCommand = command;
+            switch (command) {
+            case Gaia.COMMAND_SET_EQ_PARAMETER:
+                // band 1 gain, no live recalculation
+                mPayload = new byte[] { 0x01, 0x13, 0x00, 0x40, 0x00 };
+                break;
+            case Gaia.COMMAND_SET_TWS_VOLUME:
+                mPayload = new byte[] { 0x00, 0x0A };
+                break;
+            default:
+                mPayload = null;
+            }
+        }
+
+        /**
+         * To send the command and to wait for its acknowledgement.
+         *
+         * @return the round trip in nanoseconds, -1 if the command is lost.
+         */
+        long measure(GaiaLinkCore link) {
+            long sent = System.nanoTime();
+            try {
+                // the link forgets the command if it is not acknowledged in time
+                link.request(Gaia.VENDOR_CSR, mCommand, mPayload, TIMEOUT);
+                return System.nanoTime() - sent;
+            }
+            catch (IOException e) {
+                mLost.incrementAndGet();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * The thread which sends the bulk load.
+     */
+    private static class Bulk extends Thread implements GaiaDispatcher.IPacketListener {
+        final GaiaLinkCore mLink;
+        final Semaphore mWindow = new Semaphore(BULK_WINDOW);
+        final AtomicLong mBytes = new AtomicLong();
+
+        Bulk(GaiaLinkCore link) {
+            super("Benchmark-bulk");
+            setDaemon(true);
+            mLink = link;
+        }
+
+        @Override
+        public void run() {
+            byte[] payload = new byte[Gaia.MAX_PAYLOAD];
+            try {
+                while (!isInterrupted()) {
+                    mWindow.acquire();
+                    mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_HOST_TO_DEVICE_DATA, payload);
+                    mBytes.addAndGet(payload.length);
+                }
+            }
+            catch (InterruptedException e) {
+                // the run is over
+            }
+        }
+
+        @Override
+        public void onPacketReceived(GaiaPacket packet) {
+            if (packet.isAcknowledgement()) {
+                mWindow.release();
+            }
+        }
+    }
+
+    /**
+     * The latencies of one command, or of all commands together.
+     */
+    public static final class Result {
+        private final int mCommand;
+        private final long[] mSorted;
+        private final long mLost;
+
+        private Result(int command, long[] sorted, long lost) {
+            mCommand = command;
+            mSorted = sorted;
+            mLost = lost;
+        }
+
+        /**
+         * @return the command identifier, -1 for all commands together.
+         */
+        public int getCommand() {
+            return mCommand;
+        }
+
+        /**
+         * @return the number of measured round trips.
+         */
+        public int getCount() {
+            return mSorted.length;
+        }
+
+        /**
+         * @return the number of commands which have not been acknowledged in time.
+         */
+        public long getLost() {
+            return mLost;
+        }
+
+        /**
+         * @param percentile
+         *            the percentile between 0 and 100.
+         *
+         * @return the round trip at this percentile in microseconds.
+         */
+        public long getPercentile(double percentile) {
+            if (mSorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(mSorted.length * percentile / 100.0);
+            return mSorted[Math.max(0, Math.min(mSorted.length, rank) - 1)] / 1000;
+        }
+
+        /**
+         * @return the longest round trip in microseconds.
+         */
+        public long getMax() {
+            return mSorted.length == 0 ? 0 : mSorted[mSorted.length - 1] / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return (mCommand < 0 ? "all   " : "0x" + Gaia.hexw(mCommand)) + ": " + mSorted.length
+                    + " round trips, p50 " + getPercentile(50) + " us, p99 " + getPercentile(99) + " us, p999 "
+                    + getPercentile(99.9) + " us, max " + getMax() + " us" + (mLost > 0 ? ", " + mLost + " lost" : "");
+        }
+    }
+
+    /**
+     * The results of one run.
+     */
+    public static final class Report {
+        private final int mConcurrency;
+        private final boolean mBulkLoad;
+        private final long mDuration;
+        private final long mBulkBytes;
+        private final List<Result> mResults;
+        private final Result mAll;
+
+        private Report(int concurrency, boolean bulkLoad, long duration, long bulkBytes, List<Result> results,
+                Result all) {
+            mConcurrency = concurrency;
+            mBulkLoad = bulkLoad;
+            mDuration = duration;
+            mBulkBytes = bulkBytes;
+            mResults = Collections.unmodifiableList(results);
+            mAll = all;
+        }
+
+        /**
+         * @return the number of clients of the run.
+         */
+        public int getConcurrency() {
+            return mConcurrency;
+        }
+
+        /**
+         * @return true if the run was loaded with a bulk transfer.
+         */
+        public boolean isBulkLoad() {
+            return mBulkLoad;
+        }
+
+        /**
+         * @return the duration of the run in nanoseconds.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return the number of bytes sent by the bulk transfer per second.
+         */
+        public double getBulkThroughput() {
+            return mDuration > 0 ? mBulkBytes * 1000000000.0 / mDuration : 0;
+        }
+
+        /**
+         * @return the latencies of each command of {@link #COMMANDS}.
+         */
+        public List<Result> getResults() {
+            return mResults;
+        }
+
+        /**
+         * @return the latencies of all commands together.
+         */
+        public Result getAll() {
+            return mAll;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("concurrency ").append(mConcurrency)
+                    .append(mBulkLoad ? ", bulk load " + (long) getBulkThroughput() + " B/s" : ", no load")
+                    .append(", ").append(mDuration / 1000000).append(" ms");
+            for (Result result : mResults) {
+                builder.append("\n  ").append(result);
+            }
+            builder.append("\n  ").append(mAll);
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A one-way in-process pipe: bytes written to its output stream can be read from its input stream.</p>
+ * <p>Unlike {@link java.io.PipedInputStream} a reader is woken up as soon as bytes are written and the streams can be
+ * used from any thread. Each write is kept whole: the bytes of concurrent writers are never interleaved.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class LoopbackPipe {
+
+    /**
+     * The default capacity of the pipe in bytes.
+     */
+    private static final int DEFAULT_CAPACITY = 8 * 1024;
+
+    private final byte[] mBuffer;
+    private int mReadPosition = 0;
+    private int mCount = 0;
+    private boolean isClosed = false;
+    /**
+     * Held by a writer for its whole write: waiting for room in a full buffer releases the monitor of the pipe, so it
+     * cannot keep a frame whole on its own.
+     */
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return LoopbackPipe.this.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() {
+            synchronized (LoopbackPipe.this) {
+                return mCount;
+            }
+        }
+
+        @Override
+        public void close() {
+            LoopbackPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[] { (byte) value }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                mWriteLock.lockInterruptibly();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Pipe write interrupted.");
+            }
+            try {
+                LoopbackPipe.this.write(buffer, offset, length);
+            }
+            finally {
+                mWriteLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            LoopbackPipe.this.close();
+        }
+    };
+
+    /**
+     * To build a pipe with a default capacity.
+     */
+    public LoopbackPipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * To build a pipe.
+     *
+     * @param capacity
+     *            the number of bytes which can be written before the writer is blocked.
+     */
+    public LoopbackPipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * @return the stream to read the bytes from, it returns -1 once the pipe is closed and empty.
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * @return the stream to write the bytes to.
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * To close the pipe: the writer gets an exception and the reader gets the end of the stream once it has read
+     * the remaining bytes.
+     */
+    public synchronized void close() {
+        isClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        try {
+            while (mCount == 0 && !isClosed) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipe read interrupted.");
+        }
+
+        if (mCount == 0) {
+            return -1;
+        }
+
+        int read = Math.min(length, mCount);
+        int first = Math.min(read, mBuffer.length - mReadPosition);
+        System.arraycopy(mBuffer, mReadPosition, buffer, offset, first);
+        System.arraycopy(mBuffer, 0, buffer, offset + first, read - first);
+        mReadPosition = (mReadPosition + read) % mBuffer.length;
+        mCount -= read;
+        notifyAll();
+        return read;
+    }
+
+    private synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            try {
+                while (mCount == mBuffer.length && !isClosed) {
+                    wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Pipe write interrupted.");
+            }
+
+            if (isClosed) {
+                throw new IOException("Pipe closed.");
+            }
+
+            int writePosition = (mReadPosition + mCount) % mBuffer.length;
+            int written = Math.min(length, Math.min(mBuffer.length - mCount, mBuffer.length - writePosition));
+            System.arraycopy(buffer, offset, mBuffer, writePosition, written);
+            mCount += written;
+            offset += written;
+            length -= written;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.tools;
+
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaLinkMetrics;
+import com.csr.gaia.library.recorder.GaiaTrafficDecoder;
+import com.csr.gaia.library.recorder.GaiaTrafficRecorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>This tool replays the commands of a recorded GAIA session against a {@link GaiaLinkCore} connected to a
+ * {@link SimulatedDevice}, and reports the throughput and the command latencies measured by the link.</p>
+ * <p>The recording uses the format of {@link GaiaTrafficRecorder}: the frames sent to the device are replayed, the
+ * first acknowledgement received for each command is used as the answer of the simulated device. The commands can
+ * be replayed at their original pace, accelerated or as fast as possible.</p>
+ * <p>The latency percentiles are computed from the histograms of {@link GaiaLinkMetrics} and have their resolution,
+ * see {@link GaiaLinkMetrics#LATENCY_BUCKETS}.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class ReplayLoadTester {
+
+    /**
+     * To replay the commands with the time which separated them in the recording.
+     */
+    public static final double SPEED_ORIGINAL = 1.0;
+    /**
+     * To replay the commands without waiting between them.
+     */
+    public static final double SPEED_MAXIMUM = 0;
+
+    private static final int OFFS_PAYLOAD_LENGTH = 3;
+    private static final int OFFS_VENDOR_ID = 4;
+    private static final int OFFS_COMMAND_ID = 6;
+    private static final int OFFS_PAYLOAD = 8;
+    private static final int ACK_MASK = 0x8000;
+    /**
+     * The time between two checks of the commands waiting for their acknowledgement at the end of a replay.
+     */
+    private static final long DRAIN_POLL_INTERVAL = 1000000L;
+
+    /**
+     * The commands to replay in their recorded order.
+     */
+    private final List<Command> mCommands;
+    /**
+     * The acknowledgement payloads by command identifier for the simulated device.
+     */
+    private final Map<Integer, byte[]> mResponses;
+
+    private ReplayLoadTester(List<Command> commands, Map<Integer, byte[]> responses) {
+        mCommands = commands;
+        mResponses = responses;
+    }
+
+    /**
+     * To build a tester from a recording.
+     *
+     * @param input
+     *            the stream which contains the recording.
+     *
+     * @return the tester for the recorded session.
+     *
+     * @throws IOException
+     *             if the recording cannot be read.
+     */
+    public static ReplayLoadTester fromRecording(InputStream input) throws IOException {
+        GaiaTrafficDecoder decoder = new GaiaTrafficDecoder(input);
+        List<Command> commands = new ArrayList<>();
+        Map<Integer, byte[]> responses = new HashMap<>();
+        long start = -1;
+
+        while (decoder.next()) {
+            if (decoder.getLength() < OFFS_PAYLOAD) {
+                continue;
+            }
+
+            byte[] frame = decoder.getFrame();
+            int vendorId = getWord(frame, OFFS_VENDOR_ID);
+            int commandId = getWord(frame, OFFS_COMMAND_ID);
+            int payloadLength = Math.min(frame[OFFS_PAYLOAD_LENGTH] & 0xFF, frame.length - OFFS_PAYLOAD);
+            byte[] payload = null;
+            if (payloadLength > 0) {
+                payload = new byte[payloadLength];
+                System.arraycopy(frame, OFFS_PAYLOAD, payload, 0, payloadLength);
+            }
+
+            if (decoder.getDirection() == GaiaTrafficRecorder.DIRECTION_SENT) {
+                if (start < 0) {
+                    start = decoder.getTimestamp();
+                }
+                commands.add(new Command(decoder.getTimestamp() - start, vendorId, commandId, payload));
+            }
+            else if ((commandId & ACK_MASK) != 0 && payload != null
+                    && !responses.containsKey(commandId & ~ACK_MASK)) {
+                responses.put(commandId & ~ACK_MASK, payload);
+            }
+        }
+
+        return new ReplayLoadTester(Collections.unmodifiableList(commands), responses);
+    }
+
+    /**
+     * @return the number of commands which will be replayed.
+     */
+    public int getCommandCount() {
+        return mCommands.size();
+    }
+
+    /**
+     * @return the duration of the recorded session in nanoseconds, from the first to the last command.
+     */
+    public long getRecordedDuration() {
+        return mCommands.isEmpty() ? 0 : mCommands.get(mCommands.size() - 1).mOffset;
+    }
+
+    /**
+     * To replay the session once.
+     *
+     * @param speed
+     *            {@link #SPEED_ORIGINAL}, {@link #SPEED_MAXIMUM} or an acceleration factor: 2 replays the session twice
+     *            as fast as it was recorded.
+     * @param drainTimeout
+     *            the maximum time in milliseconds to wait for the last acknowledgements once all commands are sent.
+     *
+     * @return the report of the replay.
+     */
+    public Report run(double speed, long drainTimeout) {
+        SimulatedDevice device = new SimulatedDevice();
+        for (Map.Entry<Integer, byte[]> response : mResponses.entrySet()) {
+            device.setResponse(response.getKey(), response.getValue());
+        }
+        device.start();
+
+        GaiaLinkCore link = new GaiaLinkCore();
+        link.connect(device.getInputStream(), device.getOutputStream(), "replay");
+        GaiaLinkMetrics metrics = link.getMetrics();
+        metrics.reset();
+
+        long start = System.nanoTime();
+        for (Command command : mCommands) {
+            if (speed > 0) {
+                long wait = start + (long) (command.mOffset / speed) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            link.sendCommand(command.mVendorId, command.mCommandId, command.mPayload);
+        }
+        long sendDuration = System.nanoTime() - start;
+
+        long deadline = System.nanoTime() + drainTimeout * 1000000L;
+        while (metrics.snapshot().getPendingCommands() > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(DRAIN_POLL_INTERVAL);
+        }
+        long duration = System.nanoTime() - start;
+        GaiaLinkMetrics.Snapshot snapshot = metrics.snapshot();
+
+        link.disconnect();
+        device.stop();
+
+        return new Report(speed, sendDuration, duration, snapshot);
+    }
+
+    private static int getWord(byte[] frame, int offset) {
+        return ((frame[offset] & 0xFF) << 8) | (frame[offset + 1] & 0xFF);
+    }
+
+    /**
+     * A recorded command.
+     */
+    private static class Command {
+        /**
+         * The time of the command from the first recorded command, in nanoseconds.
+         */
+        final long mOffset;
+        final int mVendorId;
+        final int mCommandId;
+        final byte[] mPayload;
+
+        Command(long offset, int vendorId, int commandId, byte[] payload) {
+            mOffset = offset;
+            mVendorId = vendorId;
+            mCommandId = commandId;
+            mPayload = payload;
+        }
+    }
+
+    /**
+     * The results of one replay.
+     */
+    public static final class Report {
+        private final double mSpeed;
+        private final long mSendDuration;
+        private final long mDuration;
+        private final GaiaLinkMetrics.Snapshot mSnapshot;
+        private final GaiaLinkMetrics.CommandSnapshot mLatency;
+
+        private Report(double speed, long sendDuration, long duration, GaiaLinkMetrics.Snapshot snapshot) {
+            mSpeed = speed;
+            mSendDuration = sendDuration;
+            mDuration = duration;
+            mSnapshot = snapshot;
+            mLatency = snapshot.getAllCommands();
+        }
+
+        /**
+         * @return the speed the session has been replayed at.
+         */
+        public double getSpeed() {
+            return mSpeed;
+        }
+
+        /**
+         * @return the time taken to send all commands in nanoseconds.
+         */
+        public long getSendDuration() {
+            return mSendDuration;
+        }
+
+        /**
+         * @return the time taken by the replay, last acknowledgements included, in nanoseconds.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @return the number of acknowledged commands per second.
+         */
+        public double getCommandThroughput() {
+            return mDuration > 0 ? mLatency.getCount() * 1000000000.0 / mDuration : 0;
+        }
+
+        /**
+         * @return the number of bytes exchanged per second in both directions.
+         */
+        public double getByteThroughput() {
+            return mDuration > 0 ? (mSnapshot.getTxBytes() + mSnapshot.getRxBytes()) * 1000000000.0 / mDuration : 0;
+        }
+
+        /**
+         * @param percentile
+         *            the percentile between 0 and 100.
+         *
+         * @return the latency of all commands at this percentile, in microseconds.
+         */
+        public long getLatencyPercentile(double percentile) {
+            return mLatency.getPercentile(percentile);
+        }
+
+        /**
+         * @return the number of commands which had not been acknowledged at the end of the replay.
+         */
+        public long getUnacknowledged() {
+            return mSnapshot.getPendingCommands() + mSnapshot.getLostCommands();
+        }
+
+        /**
+         * @return the metrics of the link at the end of the replay.
+         */
+        public GaiaLinkMetrics.Snapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        @Override
+        public String toString() {
+            return "Replay at " + (mSpeed > 0 ? "x" + mSpeed : "maximum speed") + ": "
+                    + mLatency.getSent() + " commands in " + mDuration / 1000000 + " ms (sent in "
+                    + mSendDuration / 1000000 + " ms), " + (long) getCommandThroughput() + " commands/s, "
+                    + (long) getByteThroughput() + " B/s, latency p50 " + getLatencyPercentile(50) + " us, p90 "
+                    + getLatencyPercentile(90) + " us, p99 " + getLatencyPercentile(99) + " us, max "
+                    + mLatency.getMax() + " us, " + getUnacknowledged() + " unacknowledged";
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.tools;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.exceptions.GaiaFrameException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>An in-process stand-in for a GAIA device. It reads the frames sent by a {@link GaiaLinkCore} and acknowledges each
+ * command: with the payload set for this command through {@link #setResponse(int, byte[])} or with
+ * {@link Gaia.Status#SUCCESS SUCCESS} if there is none.</p>
+ * <p>A link is connected to the device with:</p>
+ * <pre>link.connect(device.getInputStream(), device.getOutputStream(), "simulated");</pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class SimulatedDevice {
+
+    private static final int SOF = 0xFF;
+    private static final int OFFS_FLAGS = 2;
+    private static final int OFFS_PAYLOAD_LENGTH = 3;
+    private static final int OFFS_VENDOR_ID = 4;
+    private static final int OFFS_COMMAND_ID = 6;
+    private static final int OFFS_PAYLOAD = 8;
+    private static final int FLAG_CHECK = 0x01;
+    private static final int ACK_MASK = 0x8000;
+
+    /**
+     * The frames sent by the link to the device.
+     */
+    private final LoopbackPipe mToDevice = new LoopbackPipe();
+    /**
+     * The frames sent by the device to the link.
+     */
+    private final LoopbackPipe mFromDevice = new LoopbackPipe();
+    /**
+     * The acknowledgement payloads by command identifier.
+     */
+    private final ConcurrentHashMap<Integer, byte[]> mResponses = new ConcurrentHashMap<>();
+    /**
+     * The responder which computes the acknowledgements from the commands, null to use the fixed responses.
+     */
+    private volatile IResponder mResponder;
+    private final AtomicLong mReceivedFrames = new AtomicLong();
+    private final AtomicLong mSentFrames = new AtomicLong();
+    /**
+     * The time the device takes to process a command before acknowledging it, in nanoseconds.
+     */
+    private volatile long mResponseDelay = 0;
+    private Thread mThread;
+
+    /**
+     * @return the stream the link reads the device frames from.
+     */
+    public InputStream getInputStream() {
+        return mFromDevice.getInputStream();
+    }
+
+    /**
+     * @return the stream the link writes its frames to.
+     */
+    public OutputStream getOutputStream() {
+        return mToDevice.getOutputStream();
+    }
+
+    /**
+     * To set the payload of the acknowledgement of a command, its first byte is the status.
+     *
+     * @param commandId
+     *            the command identifier without the acknowledgement bit.
+     * @param payload
+     *            the acknowledgement payload, null to acknowledge with {@link Gaia.Status#SUCCESS SUCCESS}.
+     */
+    public void setResponse(int commandId, byte[] payload) {
+        if (payload == null) {
+            mResponses.remove(commandId);
+        }
+        else {
+            mResponses.put(commandId, payload.clone());
+        }
+    }
+
+    /**
+     * To set a responder which computes the acknowledgement of each command from its payload, for commands whose
+     * answer depends on their parameters. The fixed responses are used for the commands it does not answer.
+     *
+     * @param responder
+     *            the responder, null to only use the fixed responses.
+     */
+    public void setResponder(IResponder responder) {
+        mResponder = responder;
+    }
+
+    /**
+     * To set the time the device takes to process a command before acknowledging it.
+     *
+     * @param micros
+     *            the delay in microseconds.
+     */
+    public void setResponseDelay(long micros) {
+        mResponseDelay = micros * 1000;
+    }
+
+    /**
+     * To send a frame to the link which is not an acknowledgement, for instance a notification.
+     *
+     * @param vendorId
+     *            the vendor identifier.
+     * @param commandId
+     *            the command identifier.
+     * @param payload
+     *            the payload, can be null.
+     *
+     * @throws IOException
+     *             if the device is stopped or the frame cannot be built.
+     */
+    public void sendFrame(int vendorId, int commandId, byte[] payload) throws IOException {
+        try {
+            byte[] frame = Gaia.frame(vendorId, commandId, payload);
+            mFromDevice.getOutputStream().write(frame);
+            mSentFrames.incrementAndGet();
+        }
+        catch (GaiaFrameException e) {
+            throw new IOException("Cannot build frame: " + e.toString());
+        }
+    }
+
+    /**
+     * @return the number of frames the device received.
+     */
+    public long getReceivedFrames() {
+        return mReceivedFrames.get();
+    }
+
+    /**
+     * @return the number of frames the device sent.
+     */
+    public long getSentFrames() {
+        return mSentFrames.get();
+    }
+
+    /**
+     * To start processing the frames sent by the link.
+     */
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runDevice();
+                }
+            }, "SimulatedDevice");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * To stop the device: both directions of the connection are closed.
+     */
+    public synchronized void stop() {
+        mToDevice.close();
+        mFromDevice.close();
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * To read the frames from the link and to acknowledge them until the device is stopped.
+     */
+    private void runDevice() {
+        InputStream input = mToDevice.getInputStream();
+        byte[] buffer = new byte[1024];
+        byte[] packet = new byte[Gaia.MAX_PACKET];
+        int packetLength = 0;
+        int expected = Gaia.MAX_PACKET;
+
+        try {
+            int read;
+            while ((read = input.read(buffer, 0, buffer.length)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    int value = buffer[i] & 0xFF;
+                    if (packetLength == 0) {
+                        if (value == SOF) {
+                            packet[packetLength++] = buffer[i];
+                        }
+                        continue;
+                    }
+
+                    packet[packetLength++] = buffer[i];
+                    if (packetLength == OFFS_PAYLOAD_LENGTH + 1) {
+                        expected = value + OFFS_PAYLOAD + ((packet[OFFS_FLAGS] & FLAG_CHECK) != 0 ? 1 : 0);
+                    }
+                    if (packetLength == expected) {
+                        onFrame(packet);
+                        packetLength = 0;
+                        expected = Gaia.MAX_PACKET;
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            // the device has been stopped
+        }
+    }
+
+    /**
+     * To acknowledge a frame sent by the link.
+     *
+     * @param packet
+     *            the frame.
+     *
+     * @throws IOException
+     *             if the device is stopped.
+     */
+    private void onFrame(byte[] packet) throws IOException {
+        mReceivedFrames.incrementAndGet();
+        int vendorId = ((packet[OFFS_VENDOR_ID] & 0xFF) << 8) | (packet[OFFS_VENDOR_ID + 1] & 0xFF);
+        int commandId = ((packet[OFFS_COMMAND_ID] & 0xFF) << 8) | (packet[OFFS_COMMAND_ID + 1] & 0xFF);
+
+        if ((commandId & ACK_MASK) != 0) {
+            // the link acknowledges a notification: nothing to answer
+            return;
+        }
+
+        long delay = mResponseDelay;
+        if (delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+
+        byte[] payload = null;
+        IResponder responder = mResponder;
+        if (responder != null) {
+            int length = Math.min(packet[OFFS_PAYLOAD_LENGTH] & 0xFF, Gaia.MAX_PAYLOAD);
+            byte[] request = new byte[length];
+            System.arraycopy(packet, OFFS_PAYLOAD, request, 0, length);
+            payload = responder.respond(commandId, request);
+        }
+        if (payload == null) {
+            payload = mResponses.get(commandId);
+        }
+        if (payload == null) {
+            payload = new byte[] { (byte) Gaia.Status.SUCCESS.ordinal() };
+        }
+        sendFrame(vendorId, commandId | ACK_MASK, payload);
+    }
+
+    /**
+     * The interface to implement to compute the acknowledgements of a {@link SimulatedDevice}. It is called on the
+     * thread of the device.
+     */
+    public interface IResponder {
+
+        /**
+         * Called for each command received by the device.
+         *
+         * @param commandId
+         *            the command identifier.
+         * @param payload
+         *            the payload of the command.
+         *
+         * @return the acknowledgement payload - its first byte is the status - or null to use the fixed response.
+         */
+        byte[] respond(int commandId, byte[] payload);
+    }
+}
@@ -0,0 +1,487 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.uart;
+
+import com.csr.gaia.library.DeadlineWait;
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaLinkCore;
+import com.csr.gaia.library.GaiaPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * <p>A bridge to a UART of the device, opened with COMMAND_OPEN_UART and given to the application as a pair of
+ * streams.</p>
+ * <p>The bytes written to the {@link #getOutputStream() output stream} are gathered until they fill a WRITE_STREAM
+ * payload or until the stream is flushed, so a sequence of small writes does not cost a frame each. A window of
+ * WRITE_STREAM commands is kept outstanding: a write only blocks when it is full.</p>
+ * <p>The bytes received by the UART come in {@link Gaia.EventId#UART_RECEIVED_DATA UART_RECEIVED_DATA} notifications.
+ * They are copied on the reader thread of the link into a ring buffer which the
+ * {@link #getInputStream() input stream} reads from. If the application does not read fast enough the bytes which
+ * do not fit are dropped, as a UART does on an overrun, and counted: see {@link #getOverrunBytes()}.</p>
+ * <p>The payloads used are:</p>
+ * <ul>
+ *     <li>OPEN_UART: no parameter; acknowledged with the status and the stream identifier.</li>
+ *     <li>WRITE_STREAM: the stream identifier and the data.</li>
+ *     <li>UART_RECEIVED_DATA notification: the event and the data.</li>
+ * </ul>
+ * <p>The streams block: they must not be used on the UI thread nor on the reader thread of the link. Once the link
+ * closes, the input stream gives the bytes already received then the end of the stream, the output stream fails.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class UartBridge implements GaiaDispatcher.IPacketListener, GaiaDispatcher.ILinkListener {
+
+    /**
+     * The default capacity of the receive buffer in bytes.
+     */
+    public static final int DEFAULT_RECEIVE_BUFFER = 16 * 1024;
+    /**
+     * The default number of outstanding WRITE_STREAM commands.
+     */
+    public static final int DEFAULT_WINDOW = 4;
+    /**
+     * The default time to wait for an acknowledgement, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 3000;
+    /**
+     * The largest number of bytes sent in one frame: the WRITE_STREAM payload starts with the stream identifier.
+     */
+    public static final int MAX_FRAME_DATA = Gaia.MAX_PAYLOAD - 1;
+    private static final int OFFS_STREAM_ID = 1;
+    private static final int OFFS_DATA = 1;
+
+    private final GaiaLinkCore mLink;
+    private final int mWindow;
+    private final long mTimeout;
+    /**
+     * The stream identifier given by the device, -1 while it is not known.
+     */
+    private int mStreamId = -1;
+    private boolean isOpenAnswered = false;
+    private IOException mError;
+    private boolean isClosed = false;
+    /**
+     * True once the link has closed: no more bytes can be received.
+     */
+    private boolean isLinkClosed = false;
+
+    /**
+     * The received bytes not read yet, from {@link #mReadPosition} on {@link #mBuffered} bytes.
+     */
+    private final byte[] mRing;
+    private int mReadPosition = 0;
+    private int mBuffered = 0;
+    private long mReceivedBytes = 0;
+    private long mOverrunBytes = 0;
+    private long mOverruns = 0;
+
+    /**
+     * The bytes written and not sent yet, the first one is kept for the stream identifier.
+     */
+    private final byte[] mPending = new byte[Gaia.MAX_PAYLOAD];
+    private int mPendingLength = OFFS_DATA;
+    /**
+     * The number of WRITE_STREAM commands not acknowledged yet.
+     */
+    private int mOutstanding = 0;
+    private long mSentBytes = 0;
+    private long mSentFrames = 0;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return UartBridge.this.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() {
+            synchronized (UartBridge.this) {
+                return mBuffered;
+            }
+        }
+
+        @Override
+        public void close() {
+            UartBridge.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[] { (byte) value }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            UartBridge.this.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            UartBridge.this.flush();
+        }
+
+        @Override
+        public void close() {
+            UartBridge.this.close();
+        }
+    };
+
+    private UartBridge(GaiaLinkCore link, int receiveBuffer, int window, long timeout) {
+        mLink = link;
+        mRing = new byte[Math.max(Gaia.MAX_PAYLOAD, receiveBuffer)];
+        mWindow = Math.max(1, window);
+        mTimeout = timeout;
+    }
+
+    /**
+     * To open the UART of the device with the default receive buffer, window and timeout.
+     *
+     * @see #open(GaiaLinkCore, int, int, long)
+     */
+    public static UartBridge open(GaiaLinkCore link) throws IOException {
+        return open(link, DEFAULT_RECEIVE_BUFFER, DEFAULT_WINDOW, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * To open the UART of the device: the received data notifications are registered and this method blocks until
+     * the device has acknowledged the opening.
+     *
+     * @param link
+     *            the link connected to the device.
+     * @param receiveBuffer
+     *            the capacity of the receive buffer in bytes.
+     * @param window
+     *            the number of WRITE_STREAM commands sent without waiting for their acknowledgement.
+     * @param timeout
+     *            the time to wait for each acknowledgement, in milliseconds.
+     *
+     * @return the bridge.
+     *
+     * @throws IOException
+     *             if the device does not open its UART.
+     */
+    public static UartBridge open(GaiaLinkCore link, int receiveBuffer, int window, long timeout) throws IOException {
+        UartBridge bridge = new UartBridge(link, receiveBuffer, window, timeout);
+        bridge.open();
+        return bridge;
+    }
+
+    /**
+     * @return the stream of the bytes received by the UART.
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * @return the stream of the bytes to send through the UART, call {@link OutputStream#flush() flush()} to send the
+     *         bytes which do not fill a frame.
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @return the number of bytes received by the UART, overruns included.
+     */
+    public synchronized long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    /**
+     * @return the number of received bytes dropped because the receive buffer was full.
+     */
+    public synchronized long getOverrunBytes() {
+        return mOverrunBytes;
+    }
+
+    /**
+     * @return the number of notifications which did not fit entirely in the receive buffer.
+     */
+    public synchronized long getOverruns() {
+        return mOverruns;
+    }
+
+    /**
+     * @return the number of bytes sent to the UART.
+     */
+    public synchronized long getSentBytes() {
+        return mSentBytes;
+    }
+
+    /**
+     * @return the number of WRITE_STREAM frames sent.
+     */
+    public synchronized long getSentFrames() {
+        return mSentFrames;
+    }
+
+    /**
+     * To stop receiving the UART data, the bytes written and not flushed are dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            notifyAll();
+        }
+        mLink.getDispatcher().unsubscribe(this);
+        mLink.getDispatcher().removeLinkListener(this);
+        mLink.cancelNotification(Gaia.VENDOR_CSR, Gaia.EventId.UART_RECEIVED_DATA);
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        byte[] payload = packet.getPayload();
+
+        if (packet.getCommand() == Gaia.COMMAND_EVENT_NOTIFICATION) {
+            if (packet.isAcknowledgement() || packet.getEvent() != Gaia.EventId.UART_RECEIVED_DATA) {
+                return;
+            }
+            synchronized (this) {
+                if (isClosed) {
+                    return;
+                }
+                receive(payload, OFFS_DATA, payload.length - OFFS_DATA);
+                notifyAll();
+            }
+            mLink.sendAcknowledgement(packet, Gaia.Status.SUCCESS);
+            return;
+        }
+
+        if (!packet.isAcknowledgement()) {
+            return;
+        }
+        boolean success = packet.getStatus() == Gaia.Status.SUCCESS;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            switch (packet.getCommand()) {
+            case Gaia.COMMAND_OPEN_UART:
+                if (isOpenAnswered) {
+                    return;
+                }
+                isOpenAnswered = true;
+                if (success && payload.length > OFFS_STREAM_ID) {
+                    mStreamId = payload[OFFS_STREAM_ID] & 0xFF;
+                }
+                else {
+                    mError = new IOException("Device cannot open its UART: " + packet.getStatus());
+                }
+                break;
+
+            case Gaia.COMMAND_WRITE_STREAM:
+                if (mOutstanding == 0) {
+                    return;
+                }
+                mOutstanding--;
+                if (!success) {
+                    mError = new IOException("Device cannot write to its UART: " + packet.getStatus());
+                }
+                break;
+
+            default:
+                return;
+            }
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void onLinkClosed() {
+        if (!isClosed && !isLinkClosed) {
+            isLinkClosed = true;
+            if (mError == null) {
+                mError = new IOException("The link to the device is closed.");
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * To copy received bytes into the ring buffer. This method must be called while holding the lock.
+     */
+    private void receive(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        mReceivedBytes += length;
+        int stored = Math.min(length, mRing.length - mBuffered);
+        if (stored < length) {
+            mOverrunBytes += length - stored;
+            mOverruns++;
+        }
+        int writePosition = (mReadPosition + mBuffered) % mRing.length;
+        int first = Math.min(stored, mRing.length - writePosition);
+        System.arraycopy(data, offset, mRing, writePosition, first);
+        System.arraycopy(data, offset + first, mRing, 0, stored - first);
+        mBuffered += stored;
+    }
+
+    private synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        try {
+            while (mBuffered == 0 && !isClosed && !isLinkClosed) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for UART data.");
+        }
+        if (mBuffered == 0) {
+            return -1;
+        }
+
+        int read = Math.min(length, mBuffered);
+        int first = Math.min(read, mRing.length - mReadPosition);
+        System.arraycopy(mRing, mReadPosition, buffer, offset, first);
+        System.arraycopy(mRing, 0, buffer, offset + first, read - first);
+        mReadPosition = (mReadPosition + read) % mRing.length;
+        mBuffered -= read;
+        return read;
+    }
+
+    /**
+     * To gather bytes in the pending frame, the frame is sent each time it is full.
+     */
+    private void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            byte[] frame = null;
+            synchronized (this) {
+                checkOpen();
+                int copied = Math.min(length, mPending.length - mPendingLength);
+                System.arraycopy(buffer, offset, mPending, mPendingLength, copied);
+                mPendingLength += copied;
+                offset += copied;
+                length -= copied;
+                if (mPendingLength == mPending.length) {
+                    frame = takeFrame();
+                }
+            }
+            if (frame != null) {
+                mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_WRITE_STREAM, frame);
+            }
+        }
+    }
+
+    /**
+     * To send the pending bytes and to wait until the device has acknowledged all the frames.
+     */
+    private void flush() throws IOException {
+        byte[] frame = null;
+        synchronized (this) {
+            checkOpen();
+            if (mPendingLength > OFFS_DATA) {
+                frame = takeFrame();
+            }
+        }
+        if (frame != null) {
+            mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_WRITE_STREAM, frame);
+        }
+
+        synchronized (this) {
+            long deadline = System.nanoTime() + mTimeout * 1000000L;
+            while (true) {
+                checkOpen();
+                if (mOutstanding == 0) {
+                    return;
+                }
+                DeadlineWait.waitUntil(this, deadline, "WRITE_STREAM");
+            }
+        }
+    }
+
+    /**
+     * To take the pending frame once there is room for it in the window. This method must be called while holding
+     * the lock.
+     */
+    private byte[] takeFrame() throws IOException {
+        long deadline = System.nanoTime() + mTimeout * 1000000L;
+        while (mOutstanding >= mWindow) {
+            DeadlineWait.waitUntil(this, deadline, "WRITE_STREAM");
+            checkOpen();
+        }
+        byte[] frame = new byte[mPendingLength];
+        System.arraycopy(mPending, 0, frame, 0, mPendingLength);
+        frame[0] = (byte) mStreamId;
+        mSentBytes += mPendingLength - OFFS_DATA;
+        mSentFrames++;
+        mOutstanding++;
+        mPendingLength = OFFS_DATA;
+        return frame;
+    }
+
+    /**
+     * To open the UART and to wait for its stream identifier.
+     */
+    private void open() throws IOException {
+        GaiaDispatcher dispatcher = mLink.getDispatcher();
+        dispatcher.subscribe(Gaia.COMMAND_OPEN_UART, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.subscribe(Gaia.COMMAND_WRITE_STREAM, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.subscribe(Gaia.EventId.UART_RECEIVED_DATA, GaiaDispatcher.Delivery.READER_THREAD, this);
+        dispatcher.addLinkListener(this);
+        mLink.registerNotification(Gaia.VENDOR_CSR, Gaia.EventId.UART_RECEIVED_DATA);
+        mLink.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_OPEN_UART);
+
+        try {
+            synchronized (this) {
+                long deadline = System.nanoTime() + mTimeout * 1000000L;
+                while (!isOpenAnswered && mError == null) {
+                    DeadlineWait.waitUntil(this, deadline, "OPEN_UART");
+                }
+                if (mError != null) {
+                    throw mError;
+                }
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * To check the bridge can still be used. This method must be called while holding the lock.
+     */
+    private void checkOpen() throws IOException {
+        if (isClosed) {
+            throw new IOException("UART bridge closed.");
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.values;
+
+/**
+ * The version of the GAIA API of a device, as given by the COMMAND_GET_API_VERSION command.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ApiVersion extends DeviceValue {
+
+    /**
+     * The protocol version.
+     */
+    private final int mProtocol;
+    /**
+     * The major version of the API.
+     */
+    private final int mMajor;
+    /**
+     * The minor version of the API.
+     */
+    private final int mMinor;
+
+    /**
+     * To build a new value.
+     *
+     * @param protocol
+     *            the protocol version.
+     * @param major
+     *            the major version of the API.
+     * @param minor
+     *            the minor version of the API.
+     */
+    public ApiVersion(int protocol, int major, int minor) {
+        super(TYPE_API_VERSION, 0);
+        mProtocol = protocol;
+        mMajor = major;
+        mMinor = minor;
+    }
+
+    /**
+     * @return the protocol version.
+     */
+    public int getProtocol() {
+        return mProtocol;
+    }
+
+    /**
+     * @return the major version of the API.
+     */
+    public int getMajor() {
+        return mMajor;
+    }
+
+    /**
+     * @return the minor version of the API.
+     */
+    public int getMinor() {
+        return mMinor;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof ApiVersion)) {
+            return false;
+        }
+        ApiVersion other = (ApiVersion) object;
+        return mProtocol == other.mProtocol && mMajor == other.mMajor && mMinor == other.mMinor;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mProtocol;
+        result = 31 * result + mMajor;
+        result = 31 * result + mMinor;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ApiVersion " + mProtocol + "." + mMajor + "." + mMinor;
+    }
+}
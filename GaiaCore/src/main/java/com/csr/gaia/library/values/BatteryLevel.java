@@ -0,0 +1,70 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.values;
+
+/**
+ * The battery level of a device, as given by the COMMAND_GET_CURRENT_BATTERY_LEVEL command.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class BatteryLevel extends DeviceValue {
+
+    /**
+     * The battery voltage in millivolts.
+     */
+    private final int mMillivolts;
+
+    /**
+     * To build a new value.
+     *
+     * @param millivolts
+     *            the battery voltage in millivolts.
+     */
+    public BatteryLevel(int millivolts) {
+        super(TYPE_BATTERY_LEVEL, 0);
+        mMillivolts = millivolts;
+    }
+
+    /**
+     * @return the battery voltage in millivolts.
+     */
+    public int getMillivolts() {
+        return mMillivolts;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof BatteryLevel)) {
+            return false;
+        }
+        BatteryLevel other = (BatteryLevel) object;
+        return mMillivolts == other.mMillivolts;
+    }
+
+    @Override
+    public int hashCode() {
+        return mMillivolts;
+    }
+
+    @Override
+    public String toString() {
+        return "BatteryLevel " + mMillivolts + " mV";
+    }
+}
@@ -0,0 +1,57 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.values;
+
+/**
+ * <p>The base class of the values decoded from the packets of a device by {@link DeviceValueDecoder}.</p>
+ * <p>A value is immutable. Its key identifies the state of the device it describes - for instance the volume of one
+ * TWS speaker - so a new value replaces the previous value with the same key.</p>
+ */
+public abstract class DeviceValue {
+
+    static final int TYPE_BATTERY_LEVEL = 1;
+    static final int TYPE_RSSI = 2;
+    static final int TYPE_API_VERSION = 3;
+    static final int TYPE_EQ_PARAMETER = 4;
+    static final int TYPE_TWS_VOLUME = 5;
+    static final int TYPE_TWS_ROUTING = 6;
+
+    /**
+     * The key of this value: the type on the high 16 bits and the index on the low ones.
+     */
+    private final int mKey;
+
+    /**
+     * To build a value.
+     *
+     * @param type
+     *            the type of the value.
+     * @param index
+     *            the index of the value among the values of this type, 0 if there is only one value of this type.
+     */
+    DeviceValue(int type, int index) {
+        mKey = (type << 16) | (index & 0xFFFF);
+    }
+
+    /**
+     * @return the key which identifies the state of the device this value describes.
+     */
+    int getKey() {
+        return mKey;
+    }
+}
@@ -0,0 +1,265 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.values;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaDispatcher;
+import com.csr.gaia.library.GaiaPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>This class decodes the acknowledgements of the commands which read the state of a device - battery level, RSSI,
+ * API version, EQ parameters, TWS volume and routing - into {@link DeviceValue} objects.</p>
+ * <p>The decoding runs on the reader thread of the link. The last value of each state is kept and a decoded value is
+ * only posted to the subscribers - on the main executor of the dispatcher - when it differs from the previous one,
+ * so bursts of identical answers don't reach the UI thread.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class DeviceValueDecoder implements GaiaDispatcher.IPacketListener {
+
+    /**
+     * All the commands this decoder decodes the acknowledgements of.
+     */
+    private static final int[] COMMANDS = { Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL, Gaia.COMMAND_GET_CURRENT_RSSI,
+            Gaia.COMMAND_GET_API_VERSION, Gaia.COMMAND_GET_EQ_PARAMETER, Gaia.COMMAND_GET_TWS_VOLUME,
+            Gaia.COMMAND_GET_TWS_AUDIO_ROUTING };
+    /**
+     * The length of the payload of a COMMAND_GET_EQ_PARAMETER acknowledgement: status, parameter and value.
+     */
+    private static final int EQ_PARAMETER_PAYLOAD_LENGTH = 5;
+
+    /**
+     * The executor the values are posted to the subscribers on.
+     */
+    private final Executor mMainExecutor;
+    /**
+     * The last decoded value for each key.
+     */
+    private final ConcurrentHashMap<Integer, DeviceValue> mValues = new ConcurrentHashMap<>();
+    /**
+     * The subscribers for each type of value, the arrays are replaced on each change.
+     */
+    private final ConcurrentHashMap<Class<?>, IValueListener<?>[]> mListeners = new ConcurrentHashMap<>();
+    private final AtomicLong mDecodedCount = new AtomicLong();
+    private final AtomicLong mPostedCount = new AtomicLong();
+
+    /**
+     * To build a decoder for the packets of a dispatcher.
+     *
+     * @param dispatcher
+     *            the dispatcher to subscribe to, on its reader thread.
+     */
+    public DeviceValueDecoder(GaiaDispatcher dispatcher) {
+        mMainExecutor = dispatcher.getMainExecutor();
+        for (int command : COMMANDS) {
+            dispatcher.subscribe(command, GaiaDispatcher.Delivery.READER_THREAD, this);
+        }
+    }
+
+    /**
+     * To subscribe to a type of value. The last known values of this type are posted to the listener straight away.
+     *
+     * @param type
+     *            the class of the values.
+     * @param listener
+     *            the listener to give the values to, on the main executor.
+     */
+    public <T extends DeviceValue> void subscribe(Class<T> type, IValueListener<? super T> listener) {
+        synchronized (mListeners) {
+            IValueListener<?>[] listeners = mListeners.get(type);
+            int length = listeners == null ? 0 : listeners.length;
+            IValueListener<?>[] result = new IValueListener<?>[length + 1];
+            if (listeners != null) {
+                System.arraycopy(listeners, 0, result, 0, length);
+            }
+            result[length] = listener;
+            mListeners.put(type, result);
+        }
+
+        final List<T> current = getValues(type);
+        if (!current.isEmpty()) {
+            @SuppressWarnings("unchecked")
+            final IValueListener<T> target = (IValueListener<T>) listener;
+            mMainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (T value : current) {
+                        target.onValueChanged(value);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * To unsubscribe a listener from all the types of values it subscribed to.
+     *
+     * @param listener
+     *            the listener to unsubscribe.
+     */
+    public void unsubscribe(IValueListener<?> listener) {
+        synchronized (mListeners) {
+            for (Class<?> type : mListeners.keySet()) {
+                IValueListener<?>[] listeners = mListeners.get(type);
+                List<IValueListener<?>> result = new ArrayList<>(listeners.length);
+                for (IValueListener<?> item : listeners) {
+                    if (item != listener) {
+                        result.add(item);
+                    }
+                }
+                if (result.isEmpty()) {
+                    mListeners.remove(type);
+                }
+                else if (result.size() != listeners.length) {
+                    mListeners.put(type, result.toArray(new IValueListener<?>[result.size()]));
+                }
+            }
+        }
+    }
+
+    /**
+     * To get the last known values of a type.
+     *
+     * @param type
+     *            the class of the values.
+     *
+     * @return the values, an empty list if there is none.
+     */
+    public <T extends DeviceValue> List<T> getValues(Class<T> type) {
+        List<T> values = new ArrayList<>();
+        for (DeviceValue value : mValues.values()) {
+            if (type.isInstance(value)) {
+                values.add(type.cast(value));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * To forget all the last known values, for instance when the device is disconnected.
+     */
+    public void clear() {
+        mValues.clear();
+    }
+
+    /**
+     * @return the number of values which have been decoded.
+     */
+    public long getDecodedCount() {
+        return mDecodedCount.get();
+    }
+
+    /**
+     * @return the number of values which have been posted to the subscribers because they had changed.
+     */
+    public long getPostedCount() {
+        return mPostedCount.get();
+    }
+
+    @Override
+    public void onPacketReceived(GaiaPacket packet) {
+        if (!packet.isAcknowledgement() || packet.getStatus() != Gaia.Status.SUCCESS) {
+            return;
+        }
+
+        final DeviceValue value = decode(packet);
+        if (value == null) {
+            return;
+        }
+        mDecodedCount.incrementAndGet();
+
+        DeviceValue previous = mValues.put(value.getKey(), value);
+        if (value.equals(previous)) {
+            return;
+        }
+
+        final IValueListener<?>[] listeners = mListeners.get(value.getClass());
+        if (listeners != null) {
+            mPostedCount.incrementAndGet();
+            mMainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (IValueListener<?> listener : listeners) {
+                        @SuppressWarnings("unchecked")
+                        IValueListener<DeviceValue> target = (IValueListener<DeviceValue>) listener;
+                        target.onValueChanged(value);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * To decode the value contained in a successful acknowledgement.
+     *
+     * @param packet
+     *            the acknowledgement.
+     *
+     * @return the decoded value or null if the command is not known by this decoder or the payload is too short.
+     */
+    public static DeviceValue decode(GaiaPacket packet) {
+        byte[] payload = packet.getPayload();
+        int length = payload == null ? 0 : payload.length;
+
+        switch (packet.getCommand()) {
+        case Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL:
+            return length >= 3 ? new BatteryLevel(packet.getShort(1)) : null;
+
+        case Gaia.COMMAND_GET_CURRENT_RSSI:
+            return length >= 2 ? new Rssi(packet.getByte(1)) : null;
+
+        case Gaia.COMMAND_GET_API_VERSION:
+            return length >= 4 ? new ApiVersion(packet.getByte(1), packet.getByte(2), packet.getByte(3)) : null;
+
+        case Gaia.COMMAND_GET_EQ_PARAMETER:
+            return length >= EQ_PARAMETER_PAYLOAD_LENGTH ? new EqParameter(packet.getShort(1), packet.getShort(3))
+                    : null;
+
+        case Gaia.COMMAND_GET_TWS_VOLUME:
+            return length >= 3 ? new TwsVolume(packet.getByte(1), packet.getByte(2)) : null;
+
+        case Gaia.COMMAND_GET_TWS_AUDIO_ROUTING:
+            return length >= 3 ? new TwsRouting(packet.getByte(1), packet.getByte(2)) : null;
+
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * The interface to implement to receive the values decoded by a {@link DeviceValueDecoder}.
+     *
+     * @param <T>
+     *            the type of values.
+     */
+    public interface IValueListener<T extends DeviceValue> {
+
+        /**
+         * Called on the main executor when a value differs from the last known one.
+         *
+         * @param value
+         *            the new value.
+         */
+        void onValueChanged(T value);
+    }
+}
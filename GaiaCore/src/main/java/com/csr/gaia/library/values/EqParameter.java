@@ -0,0 +1,109 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.values;
+
+/**
+ * <p>The value of one parameter of the user EQ, as given by the COMMAND_GET_EQ_PARAMETER command.</p>
+ * <p>The low byte of the parameter identifier contains the band on its high nibble and the parameter type on its low
+ * nibble.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class EqParameter extends DeviceValue {
+
+    /**
+     * The identifier of the parameter.
+     */
+    private final int mParameterId;
+    /**
+     * The raw 16-bit value of the parameter.
+     */
+    private final int mValue;
+
+    /**
+     * To build a new value.
+     *
+     * @param parameterId
+     *            the identifier of the parameter.
+     * @param value
+     *            the raw 16-bit value of the parameter.
+     */
+    public EqParameter(int parameterId, int value) {
+        super(TYPE_EQ_PARAMETER, parameterId);
+        mParameterId = parameterId;
+        mValue = value;
+    }
+
+    /**
+     * @return the identifier of the parameter.
+     */
+    public int getParameterId() {
+        return mParameterId;
+    }
+
+    /**
+     * @return the raw 16-bit value of the parameter.
+     */
+    public int getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return the band of the parameter.
+     */
+    public int getBand() {
+        return (mParameterId & 0xF0) >>> 4;
+    }
+
+    /**
+     * @return the type of the parameter within its band.
+     */
+    public int getParameterType() {
+        return mParameterId & 0x0F;
+    }
+
+    /**
+     * @return the value interpreted as a signed number, as used for the gains.
+     */
+    public int getSignedValue() {
+        return (short) mValue;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof EqParameter)) {
+            return false;
+        }
+        EqParameter other = (EqParameter) object;
+        return mParameterId == other.mParameterId && mValue == other.mValue;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mParameterId;
+        result = 31 * result + mValue;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "EqParameter 0x" + Integer.toHexString(mParameterId) + " = " + mValue;
+    }
+}
@@ -0,0 +1,86 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.values;
+
+/**
+ * The audio routing of one TWS speaker, as given by the COMMAND_GET_TWS_AUDIO_ROUTING command.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class TwsRouting extends DeviceValue {
+
+    /**
+     * The speaker: 0 for the master, 1 for the slave.
+     */
+    private final int mSpeaker;
+    /**
+     * The channel routed to the speaker.
+     */
+    private final int mChannel;
+
+    /**
+     * To build a new value.
+     *
+     * @param speaker
+     *            the speaker: 0 for the master, 1 for the slave.
+     * @param channel
+     *            the channel routed to the speaker.
+     */
+    public TwsRouting(int speaker, int channel) {
+        super(TYPE_TWS_ROUTING, speaker);
+        mSpeaker = speaker;
+        mChannel = channel;
+    }
+
+    /**
+     * @return the speaker: 0 for the master, 1 for the slave.
+     */
+    public int getSpeaker() {
+        return mSpeaker;
+    }
+
+    /**
+     * @return the channel routed to the speaker.
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof TwsRouting)) {
+            return false;
+        }
+        TwsRouting other = (TwsRouting) object;
+        return mSpeaker == other.mSpeaker && mChannel == other.mChannel;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mSpeaker;
+        result = 31 * result + mChannel;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TwsRouting speaker " + mSpeaker + " = " + mChannel;
+    }
+}
@@ -0,0 +1,86 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library.values;
+
+/**
+ * The volume of one TWS speaker, as given by the COMMAND_GET_TWS_VOLUME command.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class TwsVolume extends DeviceValue {
+
+    /**
+     * The speaker: 0 for the master, 1 for the slave.
+     */
+    private final int mSpeaker;
+    /**
+     * The volume of the speaker.
+     */
+    private final int mVolume;
+
+    /**
+     * To build a new value.
+     *
+     * @param speaker
+     *            the speaker: 0 for the master, 1 for the slave.
+     * @param volume
+     *            the volume of the speaker.
+     */
+    public TwsVolume(int speaker, int volume) {
+        super(TYPE_TWS_VOLUME, speaker);
+        mSpeaker = speaker;
+        mVolume = volume;
+    }
+
+    /**
+     * @return the speaker: 0 for the master, 1 for the slave.
+     */
+    public int getSpeaker() {
+        return mSpeaker;
+    }
+
+    /**
+     * @return the volume of the speaker.
+     */
+    public int getVolume() {
+        return mVolume;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof TwsVolume)) {
+            return false;
+        }
+        TwsVolume other = (TwsVolume) object;
+        return mSpeaker == other.mSpeaker && mVolume == other.mVolume;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mSpeaker;
+        result = 31 * result + mVolume;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TwsVolume speaker " + mSpeaker + " = " + mVolume;
+    }
+}
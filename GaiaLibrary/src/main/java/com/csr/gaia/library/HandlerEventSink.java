@@ -0,0 +1,64 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+import android.os.Handler;
+
+/**
+ * The adapter of {@link GaiaEventSink} to an Android Handler: each event is sent to the handler as a message whose
+ * {@code what} is the ordinal of a {@link GaiaLink.Message}, as {@link GaiaLink#setReceiveHandler(Handler)} does.
+ */
+public class HandlerEventSink extends GaiaEventSink {
+
+    private final Handler mHandler;
+
+    /**
+     * To build a sink which gives the events to a handler.
+     *
+     * @param handler
+     *            the handler to send the messages to.
+     */
+    public HandlerEventSink(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void onConnected(String address) {
+        mHandler.obtainMessage(GaiaLink.Message.CONNECTED.ordinal(), address).sendToTarget();
+    }
+
+    @Override
+    public void onDisconnected() {
+        mHandler.obtainMessage(GaiaLink.Message.DISCONNECTED.ordinal()).sendToTarget();
+    }
+
+    @Override
+    public void onPacket(GaiaPacket packet) {
+        mHandler.obtainMessage(GaiaLink.Message.PACKET.ordinal(), packet).sendToTarget();
+    }
+
+    @Override
+    public void onError(GaiaError error) {
+        mHandler.obtainMessage(GaiaLink.Message.ERROR.ordinal(), error).sendToTarget();
+    }
+
+    @Override
+    public void onStreamed(int length) {
+        mHandler.obtainMessage(GaiaLink.Message.STREAM.ordinal(), length).sendToTarget();
+    }
+}
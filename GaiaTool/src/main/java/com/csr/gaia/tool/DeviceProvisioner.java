@@ -0,0 +1,282 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.tool;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.GaiaStreamSession;
+import com.csr.gaia.library.session.SessionScope;
+import com.csr.vmupgradelibrary.codes.OpCodes;
+import com.csr.vmupgradelibrary.metrics.UpgradeSummary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * To run a {@link ProvisioningJob} on one device at a time: it connects, sends each command and checks its
+ * acknowledgement, runs the upgrade if the job has one and reports the time taken by each step. A provisioner can be
+ * used by several threads at once, each on its own device.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class DeviceProvisioner {
+
+    private final ProvisioningJob mJob;
+    private final int mConnectTimeout;
+    /**
+     * The upgrade image, read once for all devices, null if the job has no upgrade.
+     */
+    private final byte[] mImage;
+    private final byte[] mSyncId;
+    private volatile ThreadFactory mReaderFactory;
+
+    /**
+     * To build a provisioner: the upgrade image of the job is read now.
+     *
+     * @param job
+     *            the job to run on each device.
+     * @param connectTimeout
+     *            the time to wait for a connection, in milliseconds.
+     *
+     * @throws IOException
+     *             if the upgrade image cannot be read.
+     */
+    public DeviceProvisioner(ProvisioningJob job, int connectTimeout) throws IOException {
+        mJob = job;
+        mConnectTimeout = connectTimeout;
+        File image = job.getUpgradeImage();
+        if (image == null) {
+            mImage = null;
+            mSyncId = null;
+        }
+        else {
+            mImage = readFile(image);
+            mSyncId = getSyncId(mImage);
+        }
+    }
+
+    /**
+     * To set the factory of the threads which read the connections, for instance the one of a
+     * {@link com.csr.gaia.library.session.SessionExecutor SessionExecutor}.
+     *
+     * @param factory
+     *            the factory, null for daemon threads.
+     */
+    public void setReaderThreadFactory(ThreadFactory factory) {
+        mReaderFactory = factory;
+    }
+
+    /**
+     * <p>To provision a device, failures are given by the report.</p>
+     * <p>When it runs in a {@link SessionScope}, cancelling the session closes the connection to the device.</p>
+     *
+     * @param target
+     *            the device.
+     *
+     * @return the report of this device.
+     */
+    public Report provision(DeviceTarget target) {
+        Report report = new Report(target);
+        long start = System.nanoTime();
+        GaiaStreamSession session = null;
+        try {
+            List<ProvisioningJob.Step> steps = mJob.getSteps(target);
+            session = target.open(mConnectTimeout, mReaderFactory);
+            SessionScope.closeOnCancel(session);
+            report.mConnectTime = elapsed(start);
+
+            for (ProvisioningJob.Step step : steps) {
+                long stepStart = System.nanoTime();
+                GaiaPacket acknowledgement = session.sendCommand(Gaia.VENDOR_CSR, step.getCommandId(),
+                        step.getPayload(), mJob.getTimeout());
+                report.mSteps.add(step.getName());
+                report.mStepTimes.add(elapsed(stepStart));
+                if (acknowledgement.getStatus() != Gaia.Status.SUCCESS) {
+                    throw new IOException(step.getName() + ": " + Gaia.statusText(acknowledgement.getStatus()));
+                }
+            }
+
+            if (mImage != null) {
+                long stepStart = System.nanoTime();
+                VmUpgradeRunner runner = new VmUpgradeRunner(target, mImage, mSyncId, mJob.getUpgradeTimeout(),
+                        mReaderFactory);
+                try {
+                    report.mUpgrade = runner.run(session, mJob.getUpgradeImage().getName());
+                }
+                finally {
+                    report.mSteps.add("upgrade");
+                    report.mStepTimes.add(elapsed(stepStart));
+                    // the device may have been reconnected during the upgrade
+                    if (runner.getSession() != session) {
+                        session.close();
+                        session = runner.getSession();
+                    }
+                }
+            }
+        }
+        catch (IOException | IllegalArgumentException e) {
+            report.mError = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        finally {
+            if (session != null) {
+                session.close();
+            }
+            report.mTotalTime = elapsed(start);
+        }
+        return report;
+    }
+
+    private static long elapsed(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        if (file.length() > Integer.MAX_VALUE) {
+            throw new IOException("Upgrade image too big: " + file);
+        }
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = input.read(bytes, offset, bytes.length - offset)) >= 0) {
+                offset += read;
+            }
+            if (offset < bytes.length) {
+                throw new IOException("Upgrade image truncated while reading: " + file);
+            }
+        }
+        finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * To get the identifier of an image, as the application: the last bytes of its MD5 checksum.
+     */
+    private static byte[] getSyncId(byte[] image) throws IOException {
+        try {
+            byte[] md5 = MessageDigest.getInstance("MD5").digest(image);
+            return Arrays.copyOfRange(md5, md5.length - OpCodes.UPDATE_SYNC_REQ_LENGTH, md5.length);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available: " + e.toString());
+        }
+    }
+
+    /**
+     * The result of the provisioning of one device and the time taken by each step.
+     */
+    public static final class Report {
+
+        /**
+         * The header of the lines given by {@link #toString()}, tab separated.
+         */
+        public static final String HEADER = "device\taddress\tresult\ttotal_ms\tconnect_ms\tsteps_ms\terror";
+
+        private final DeviceTarget mTarget;
+        private final List<String> mSteps = new ArrayList<>();
+        private final List<Long> mStepTimes = new ArrayList<>();
+        private long mConnectTime = -1;
+        private long mTotalTime;
+        private UpgradeSummary mUpgrade;
+        private String mError;
+
+        private Report(DeviceTarget target) {
+            mTarget = target;
+        }
+
+        /**
+         * @return the device.
+         */
+        public DeviceTarget getTarget() {
+            return mTarget;
+        }
+
+        /**
+         * @return true if all the steps succeeded.
+         */
+        public boolean isSuccessful() {
+            return mError == null;
+        }
+
+        /**
+         * @return the reason of the failure, null if the provisioning succeeded.
+         */
+        public String getError() {
+            return mError;
+        }
+
+        /**
+         * @return the time to connect to the device in milliseconds, -1 if it could not be reached.
+         */
+        public long getConnectTime() {
+            return mConnectTime;
+        }
+
+        /**
+         * @return the time taken by the whole provisioning, in milliseconds.
+         */
+        public long getTotalTime() {
+            return mTotalTime;
+        }
+
+        /**
+         * @return the names of the steps which have been run, the failed one included.
+         */
+        public List<String> getSteps() {
+            return Collections.unmodifiableList(mSteps);
+        }
+
+        /**
+         * @return the time taken by each step in milliseconds, in the order of {@link #getSteps()}.
+         */
+        public List<Long> getStepTimes() {
+            return Collections.unmodifiableList(mStepTimes);
+        }
+
+        /**
+         * @return the summary of the upgrade, null if the job has no upgrade or if it failed.
+         */
+        public UpgradeSummary getUpgrade() {
+            return mUpgrade;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder steps = new StringBuilder();
+            for (int i = 0; i < mSteps.size(); i++) {
+                if (i > 0) {
+                    steps.append(' ');
+                }
+                steps.append(mSteps.get(i)).append(':').append(mStepTimes.get(i));
+            }
+            return mTarget.getIndex() + "\t" + mTarget.getAddress() + "\t" + (isSuccessful() ? "ok" : "failed")
+                    + "\t" + mTotalTime + "\t" + mConnectTime + "\t" + steps + "\t" + (mError == null ? "" : mError);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.tool;
+
+import com.csr.gaia.library.GaiaStreamSession;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A device to provision and the way to reach it, built from a line of the devices file:</p>
+ * <pre>
+ * tcp:&lt;host&gt;:&lt;port&gt; [name]
+ * serial:&lt;device path&gt; [name]
+ * </pre>
+ * <p>A TCP bridge gives the raw bytes of the GAIA connection of one device. A serial port is opened as a file: its
+ * speed and framing have to be set beforehand, for instance with {@code stty}. The optional name replaces the name
+ * of the job for this device.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class DeviceTarget {
+
+    private static final String TCP = "tcp:";
+    private static final String SERIAL = "serial:";
+
+    /**
+     * The position of the device in the devices file, from 1.
+     */
+    private final int mIndex;
+    private final String mAddress;
+    /**
+     * The name given to this device in the devices file, null to use the name of the job.
+     */
+    private final String mName;
+
+    private DeviceTarget(int index, String address, String name) {
+        mIndex = index;
+        mAddress = address;
+        mName = name;
+    }
+
+    /**
+     * To build a target from a line of the devices file.
+     *
+     * @param index
+     *            the position of the device in the file, from 1.
+     * @param line
+     *            the line, without comment.
+     *
+     * @return the target.
+     *
+     * @throws IllegalArgumentException
+     *             if the address is neither a TCP nor a serial address.
+     */
+    public static DeviceTarget parse(int index, String line) {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        String address = space < 0 ? trimmed : trimmed.substring(0, space);
+        String name = space < 0 ? null : trimmed.substring(space + 1).trim();
+
+        if (address.startsWith(TCP)) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= TCP.length()) {
+                throw new IllegalArgumentException("Missing port in " + address);
+            }
+            Integer.parseInt(address.substring(colon + 1));
+        }
+        else if (!address.startsWith(SERIAL) || address.length() == SERIAL.length()) {
+            throw new IllegalArgumentException("Unknown device address: " + address);
+        }
+        return new DeviceTarget(index, address, name == null || name.isEmpty() ? null : name);
+    }
+
+    /**
+     * @return the position of the device in the devices file, from 1.
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return the address of the device, as in the devices file.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return the name given to this device in the devices file, null if there is none.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * To connect to the device: the returned session is started.
+     *
+     * @param timeout
+     *            the time to wait for a TCP connection, in milliseconds.
+     * @param readerFactory
+     *            the factory of the thread which reads the connection, null for a daemon thread.
+     *
+     * @return the session.
+     *
+     * @throws IOException
+     *             if the device cannot be reached.
+     */
+    public GaiaStreamSession open(int timeout, ThreadFactory readerFactory) throws IOException {
+        GaiaStreamSession session;
+        if (mAddress.startsWith(TCP)) {
+            int colon = mAddress.lastIndexOf(':');
+            String host = mAddress.substring(TCP.length(), colon);
+            int port = Integer.parseInt(mAddress.substring(colon + 1));
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                session = new GaiaStreamSession(socket.getInputStream(), socket.getOutputStream(), mAddress);
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+        else {
+            String path = mAddress.substring(SERIAL.length());
+            FileInputStream input = new FileInputStream(path);
+            try {
+                session = new GaiaStreamSession(input, new FileOutputStream(path), mAddress);
+            }
+            catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+        session.start(readerFactory);
+        return session;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + mIndex + " " + mAddress;
+    }
+}
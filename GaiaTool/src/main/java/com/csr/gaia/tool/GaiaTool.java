@@ -0,0 +1,239 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.tool;
+
+import com.csr.gaia.library.GaiaLog;
+import com.csr.gaia.library.session.SessionExecutor;
+import com.csr.gaia.library.session.SessionScope;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>The command line tool to provision many devices with the same job, for instance in a factory or for retail
+ * demonstration units:</p>
+ * <pre>
+ * GaiaTool --job &lt;job.properties&gt; --devices &lt;devices.txt&gt; [--parallel &lt;n&gt;] [--carriers &lt;n&gt;]
+ *          [--connect-timeout &lt;ms&gt;] [--report &lt;report.tsv&gt;]
+ * </pre>
+ * <p>The job is described by {@link ProvisioningJob}, the devices file by {@link DeviceTarget}: one device per line,
+ * the lines starting with # are ignored. At most {@code parallel} devices are provisioned at once, each on its own
+ * session thread: a virtual thread when the JVM has them, {@code carriers} is then the number of platform threads
+ * which run them. A line is printed for each device as soon as it is done, the report file gives all devices in the
+ * order of the devices file.</p>
+ * <p>The exit code is 0 if all devices succeeded, 1 if some failed and 2 if the arguments are wrong.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GaiaTool {
+
+    private static final int DEFAULT_PARALLEL = 4;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private static final int EXIT_SUCCESS = 0;
+    private static final int EXIT_FAILURES = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = "usage: GaiaTool --job <job.properties> --devices <devices.txt> "
+            + "[--parallel <n>] [--carriers <n>] [--connect-timeout <ms>] [--report <report.tsv>]";
+
+    public static void main(String[] args) {
+        File job = null;
+        File devices = null;
+        File reportFile = null;
+        int parallel = DEFAULT_PARALLEL;
+        int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        int carriers = 0;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                case "--job":
+                    job = new File(value);
+                    break;
+                case "--devices":
+                    devices = new File(value);
+                    break;
+                case "--parallel":
+                    parallel = Integer.parseInt(value);
+                    break;
+                case "--connect-timeout":
+                    connectTimeout = Integer.parseInt(value);
+                    break;
+                case "--carriers":
+                    carriers = Integer.parseInt(value);
+                    break;
+                case "--report":
+                    reportFile = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (job == null || devices == null || parallel < 1 || connectTimeout < 0 || carriers < 0) {
+                throw new IllegalArgumentException("Missing or invalid option");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(EXIT_USAGE);
+        }
+
+        if (carriers > 0) {
+            SessionExecutor.setCarrierParallelism(carriers);
+        }
+        // the links log each frame they send and receive
+        GaiaLog.setLevel(GaiaLog.WARN);
+
+        try {
+            DeviceProvisioner provisioner = new DeviceProvisioner(ProvisioningJob.load(job), connectTimeout);
+            List<DeviceProvisioner.Report> reports = run(provisioner, readTargets(devices), parallel);
+            if (reportFile != null) {
+                writeReport(reportFile, reports);
+            }
+
+            int failed = 0;
+            for (DeviceProvisioner.Report report : reports) {
+                if (!report.isSuccessful()) {
+                    failed++;
+                }
+            }
+            System.out.println((reports.size() - failed) + " devices provisioned, " + failed + " failed");
+            System.exit(failed == 0 ? EXIT_SUCCESS : EXIT_FAILURES);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(EXIT_USAGE);
+        }
+    }
+
+    /**
+     * To provision devices with at most a given number of them at once, each device on its own session thread.
+     *
+     * @param provisioner
+     *            the provisioner of the job.
+     * @param targets
+     *            the devices.
+     * @param parallel
+     *            the maximum number of devices provisioned at once.
+     *
+     * @return the reports in the order of the devices.
+     */
+    public static List<DeviceProvisioner.Report> run(final DeviceProvisioner provisioner, List<DeviceTarget> targets,
+            int parallel) {
+        SessionExecutor executor = new SessionExecutor("GaiaTool", parallel);
+        provisioner.setReaderThreadFactory(executor.getHelperThreadFactory());
+        final SessionScope scope = executor.newScope("provisioning");
+        // Ctrl-C closes the connections of the devices being provisioned
+        Thread cancel = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scope.cancel();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(cancel);
+
+        List<SessionScope.Session<DeviceProvisioner.Report>> sessions = new ArrayList<>();
+        List<DeviceProvisioner.Report> reports = new ArrayList<>();
+        try {
+            System.out.println(DeviceProvisioner.Report.HEADER);
+            for (final DeviceTarget target : targets) {
+                sessions.add(scope.fork(target.getAddress(), new Callable<DeviceProvisioner.Report>() {
+                    @Override
+                    public DeviceProvisioner.Report call() {
+                        DeviceProvisioner.Report report = provisioner.provision(target);
+                        System.out.println(report);
+                        return report;
+                    }
+                }));
+            }
+            scope.join();
+            for (SessionScope.Session<DeviceProvisioner.Report> session : sessions) {
+                reports.add(session.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            // provision gives its failures in the report
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            scope.close();
+            executor.shutdown();
+            Runtime.getRuntime().removeShutdownHook(cancel);
+        }
+        return reports;
+    }
+
+    private static List<DeviceTarget> readTargets(File file) throws IOException {
+        List<DeviceTarget> targets = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                Charset.forName("UTF-8")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    targets.add(DeviceTarget.parse(targets.size() + 1, line));
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IOException(file + ": " + e.getMessage());
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        if (targets.isEmpty()) {
+            throw new IOException(file + ": no device");
+        }
+        return targets;
+    }
+
+    private static void writeReport(File file, List<DeviceProvisioner.Report> reports) throws IOException {
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        try {
+            writer.println(DeviceProvisioner.Report.HEADER);
+            for (DeviceProvisioner.Report report : reports) {
+                writer.println(report);
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.tool;
+
+import com.csr.gaia.library.Gaia;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * <p>The configuration to apply to each device, read from a properties file. All keys are optional, the steps run
+ * in this order:</p>
+ * <pre>
+ * name        = Demo speaker {index}     # COMMAND_SET_DEVICE_NAME, {index} and {address} are replaced
+ * eq.user     = on | off                 # COMMAND_SET_USER_EQ_CONTROL
+ * eq.bank     = 2                        # COMMAND_SET_EQ_CONTROL
+ * tws.master  = stereo | left | right | mono   # COMMAND_SET_TWS_AUDIO_ROUTING of the master speaker
+ * tws.slave   = stereo | left | right | mono   # COMMAND_SET_TWS_AUDIO_ROUTING of the slave speaker
+ * led.config  = 01 00 0A ...             # COMMAND_SET_LED_CONFIGURATION, the payload in hexadecimal
+ * led         = on | off                 # COMMAND_SET_LED_CONTROL
+ * tone.config = 01 02 ...                # COMMAND_SET_TONE_CONFIGURATION, the payload in hexadecimal
+ * command.1   = 0x0209 03                # any other command: its identifier then its payload in hexadecimal
+ * upgrade     = /path/to/image.bin       # a VM upgrade, always last
+ * </pre>
+ * <p>Two more keys tune the job: {@code timeout} is the time to wait for each acknowledgement and
+ * {@code upgrade.timeout} the time to wait for each message of the device during an upgrade, in milliseconds.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ProvisioningJob {
+
+    private static final String KEY_NAME = "name";
+    private static final String KEY_USER_EQ = "eq.user";
+    private static final String KEY_EQ_BANK = "eq.bank";
+    private static final String KEY_TWS_MASTER = "tws.master";
+    private static final String KEY_TWS_SLAVE = "tws.slave";
+    private static final String KEY_LED_CONFIG = "led.config";
+    private static final String KEY_LED = "led";
+    private static final String KEY_TONE_CONFIG = "tone.config";
+    private static final String KEY_COMMAND = "command.";
+    private static final String KEY_UPGRADE = "upgrade";
+    private static final String KEY_TIMEOUT = "timeout";
+    private static final String KEY_UPGRADE_TIMEOUT = "upgrade.timeout";
+
+    /**
+     * The highest command identifier, the next bit is the acknowledgement bit.
+     */
+    private static final int MAX_COMMAND_ID = 0x7FFF;
+    private static final int MASTER_SPEAKER = 0x00;
+    private static final int SLAVE_SPEAKER = 0x01;
+    /**
+     * The TWS channels in the order of their values.
+     */
+    private static final String[] CHANNELS = { "stereo", "left", "right", "mono" };
+
+    private final Properties mProperties;
+    private final long mTimeout;
+    private final long mUpgradeTimeout;
+    private final File mUpgradeImage;
+
+    private ProvisioningJob(Properties properties, File directory) {
+        mProperties = properties;
+        mTimeout = Long.parseLong(properties.getProperty(KEY_TIMEOUT, "2000").trim());
+        mUpgradeTimeout = Long.parseLong(properties.getProperty(KEY_UPGRADE_TIMEOUT, "30000").trim());
+        String image = properties.getProperty(KEY_UPGRADE);
+        if (image == null || image.trim().isEmpty()) {
+            mUpgradeImage = null;
+        }
+        else {
+            File file = new File(image.trim());
+            mUpgradeImage = file.isAbsolute() ? file : new File(directory, image.trim());
+        }
+    }
+
+    /**
+     * To read a job: its steps are checked now so that a mistake stops the tool before any device is touched.
+     *
+     * @param file
+     *            the properties file, the path of the upgrade image is relative to its directory.
+     *
+     * @return the job.
+     *
+     * @throws IOException
+     *             if the file cannot be read or a value is not valid.
+     */
+    public static ProvisioningJob load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(file);
+        try {
+            properties.load(input);
+        }
+        finally {
+            input.close();
+        }
+
+        ProvisioningJob job;
+        try {
+            job = new ProvisioningJob(properties, file.getAbsoluteFile().getParentFile());
+            job.getSteps(DeviceTarget.parse(1, "tcp:localhost:0"));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        }
+        if (job.mUpgradeImage != null && !job.mUpgradeImage.isFile()) {
+            throw new IOException(file + ": upgrade image not found: " + job.mUpgradeImage);
+        }
+        return job;
+    }
+
+    /**
+     * @return the time to wait for each acknowledgement, in milliseconds.
+     */
+    public long getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * @return the time to wait for each message of the device during an upgrade, in milliseconds.
+     */
+    public long getUpgradeTimeout() {
+        return mUpgradeTimeout;
+    }
+
+    /**
+     * @return the image of the VM upgrade, null if the job has no upgrade.
+     */
+    public File getUpgradeImage() {
+        return mUpgradeImage;
+    }
+
+    /**
+     * To get the commands to send to a device, the upgrade is not part of them.
+     *
+     * @param target
+     *            the device.
+     *
+     * @return the steps, in order.
+     *
+     * @throws IllegalArgumentException
+     *             if a value of the job is not valid.
+     */
+    public List<Step> getSteps(DeviceTarget target) {
+        List<Step> steps = new ArrayList<>();
+
+        String name = target.getName() != null ? target.getName() : mProperties.getProperty(KEY_NAME);
+        if (name != null) {
+            name = name.trim().replace("{index}", String.valueOf(target.getIndex()))
+                    .replace("{address}", target.getAddress());
+            byte[] bytes = name.getBytes(Charset.forName("UTF-8"));
+            if (bytes.length == 0 || bytes.length > Gaia.MAX_PAYLOAD) {
+                throw new IllegalArgumentException("Device name length must be 1 to " + Gaia.MAX_PAYLOAD + " bytes: "
+                        + name);
+            }
+            steps.add(new Step(KEY_NAME, Gaia.COMMAND_SET_DEVICE_NAME, bytes));
+        }
+
+        String value = getValue(KEY_USER_EQ);
+        if (value != null) {
+            steps.add(new Step(KEY_USER_EQ, Gaia.COMMAND_SET_USER_EQ_CONTROL, parseSwitch(KEY_USER_EQ, value)));
+        }
+        value = getValue(KEY_EQ_BANK);
+        if (value != null) {
+            steps.add(new Step(KEY_EQ_BANK, Gaia.COMMAND_SET_EQ_CONTROL, parseByte(KEY_EQ_BANK, value)));
+        }
+        value = getValue(KEY_TWS_MASTER);
+        if (value != null) {
+            steps.add(new Step(KEY_TWS_MASTER, Gaia.COMMAND_SET_TWS_AUDIO_ROUTING,
+                    new byte[] { MASTER_SPEAKER, parseChannel(KEY_TWS_MASTER, value) }));
+        }
+        value = getValue(KEY_TWS_SLAVE);
+        if (value != null) {
+            steps.add(new Step(KEY_TWS_SLAVE, Gaia.COMMAND_SET_TWS_AUDIO_ROUTING,
+                    new byte[] { SLAVE_SPEAKER, parseChannel(KEY_TWS_SLAVE, value) }));
+        }
+        value = getValue(KEY_LED_CONFIG);
+        if (value != null) {
+            steps.add(new Step(KEY_LED_CONFIG, Gaia.COMMAND_SET_LED_CONFIGURATION, parseHex(KEY_LED_CONFIG, value)));
+        }
+        value = getValue(KEY_LED);
+        if (value != null) {
+            steps.add(new Step(KEY_LED, Gaia.COMMAND_SET_LED_CONTROL, parseSwitch(KEY_LED, value)));
+        }
+        value = getValue(KEY_TONE_CONFIG);
+        if (value != null) {
+            steps.add(new Step(KEY_TONE_CONFIG, Gaia.COMMAND_SET_TONE_CONFIGURATION,
+                    parseHex(KEY_TONE_CONFIG, value)));
+        }
+
+        // the other commands in the order of their number
+        TreeMap<Integer, String> commands = new TreeMap<>();
+        for (String key : mProperties.stringPropertyNames()) {
+            if (key.startsWith(KEY_COMMAND)) {
+                try {
+                    commands.put(Integer.parseInt(key.substring(KEY_COMMAND.length())), key);
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid key " + key + ": expected command.<number>");
+                }
+            }
+        }
+        for (String key : commands.values()) {
+            String[] parts = getValue(key).split("\\s+", 2);
+            int commandId;
+            try {
+                commandId = Integer.decode(parts[0]);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid command identifier for " + key + ": " + parts[0]);
+            }
+            if (commandId < 0 || commandId > MAX_COMMAND_ID) {
+                throw new IllegalArgumentException("Invalid command identifier for " + key + ": " + parts[0]);
+            }
+            byte[] payload = parts.length > 1 ? parseHex(key, parts[1]) : new byte[0];
+            steps.add(new Step(key, commandId, payload));
+        }
+
+        return Collections.unmodifiableList(steps);
+    }
+
+    private String getValue(String key) {
+        String value = mProperties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private static byte[] parseSwitch(String key, String value) {
+        String lower = value.toLowerCase(Locale.US);
+        if (lower.equals("on") || lower.equals("true") || lower.equals("1")) {
+            return new byte[] { 1 };
+        }
+        if (lower.equals("off") || lower.equals("false") || lower.equals("0")) {
+            return new byte[] { 0 };
+        }
+        throw new IllegalArgumentException("Invalid value for " + key + ": " + value + ", expected on or off");
+    }
+
+    private static byte[] parseByte(String key, String value) {
+        try {
+            int number = Integer.decode(value);
+            if (number >= 0 && number <= 0xFF) {
+                return new byte[] { (byte) number };
+            }
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + key + ": " + value + ", expected 0 to 255");
+    }
+
+    private static byte parseChannel(String key, String value) {
+        String lower = value.toLowerCase(Locale.US);
+        for (int i = 0; i < CHANNELS.length; i++) {
+            if (CHANNELS[i].equals(lower) || String.valueOf(i).equals(lower)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid channel for " + key + ": " + value
+                + ", expected stereo, left, right or mono");
+    }
+
+    private static byte[] parseHex(String key, String value) {
+        String digits = value.replaceAll("\\s+", "");
+        if (digits.startsWith("0x") || digits.startsWith("0X")) {
+            digits = digits.substring(2);
+        }
+        if (digits.length() % 2 != 0 || digits.length() / 2 > Gaia.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Invalid payload for " + key + ": " + value);
+        }
+        byte[] bytes = new byte[digits.length() / 2];
+        try {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(digits.substring(i * 2, i * 2 + 2), 16);
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid payload for " + key + ": " + value);
+        }
+        return bytes;
+    }
+
+    /**
+     * A command of the job: it succeeds when the device acknowledges it with
+     * {@link Gaia.Status#SUCCESS SUCCESS}.
+     */
+    public static final class Step {
+        private final String mName;
+        private final int mCommandId;
+        private final byte[] mPayload;
+
+        private Step(String name, int commandId, byte[] payload) {
+            mName = name;
+            mCommandId = commandId;
+            mPayload = payload;
+        }
+
+        /**
+         * @return the key of the step in the job.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the command identifier.
+         */
+        public int getCommandId() {
+            return mCommandId;
+        }
+
+        /**
+         * @return the payload of the command.
+         */
+        public byte[] getPayload() {
+            return mPayload.clone();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.tool;
+
+import com.csr.gaia.library.Gaia;
+import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.GaiaStreamSession;
+import com.csr.gaia.library.session.SessionScope;
+import com.csr.vmupgradelibrary.VMUPacket;
+import com.csr.vmupgradelibrary.VMUpgradeHost;
+import com.csr.vmupgradelibrary.codes.ResumePoints;
+import com.csr.vmupgradelibrary.codes.ReturnCodes;
+import com.csr.vmupgradelibrary.metrics.UpgradeMetrics;
+import com.csr.vmupgradelibrary.metrics.UpgradeSummary;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>To upgrade the VM application of one device over a {@link GaiaStreamSession}, as the application does: the
+ * same {@link VMUpgradeHost} answers the device, without any user to confirm the steps.</p>
+ * <p>The upgrade runs on the calling thread. When the connection is lost - the device reboots to apply the image -
+ * the runner connects again and the device tells where to resume.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class VmUpgradeRunner implements VMUpgradeHost.IVMUpgradeHostListener {
+
+    /**
+     * The number of times the runner connects again to the device during one upgrade.
+     */
+    private static final int MAX_RECONNECTIONS = 5;
+    /**
+     * The time to wait for the device to come back after it has been lost, in milliseconds.
+     */
+    private static final long RECONNECT_TIME = 30000;
+    private static final long RECONNECT_INTERVAL = 1000;
+    /**
+     * Put in the queue of the device messages when the connection is lost.
+     */
+    private static final byte[] CLOSED = new byte[0];
+
+    private final DeviceTarget mTarget;
+    private final byte[] mImage;
+    private final byte[] mSyncId;
+    private final long mTimeout;
+    private final ThreadFactory mReaderFactory;
+    private final UpgradeMetrics mMetrics = new UpgradeMetrics(null);
+    private final VMUpgradeHost mHost = new VMUpgradeHost(mMetrics, this);
+    private final LinkedBlockingQueue<byte[]> mMessages = new LinkedBlockingQueue<>();
+    private GaiaStreamSession mSession;
+    /**
+     * The first failure of the upgrade, the host cannot throw it: it is thrown once the host returns.
+     */
+    private IOException mFailure;
+    private boolean isDone = false;
+
+    /**
+     * To build a runner for one device.
+     *
+     * @param target
+     *            the device, to connect again when the connection is lost.
+     * @param image
+     *            the upgrade image.
+     * @param syncId
+     *            the identifier of the image: the last bytes of its MD5 checksum.
+     * @param timeout
+     *            the time to wait for each message of the device, in milliseconds.
+     * @param readerFactory
+     *            the factory of the thread which reads a new connection, null for a daemon thread.
+     */
+    public VmUpgradeRunner(DeviceTarget target, byte[] image, byte[] syncId, long timeout,
+            ThreadFactory readerFactory) {
+        mTarget = target;
+        mImage = image;
+        mSyncId = syncId;
+        mTimeout = timeout;
+        mReaderFactory = readerFactory;
+        mHost.setImage(image, syncId);
+    }
+
+    /**
+     * To run the upgrade.
+     *
+     * @param session
+     *            the session connected to the device.
+     * @param imageName
+     *            the name of the image, for the summary.
+     *
+     * @return the summary of the upgrade, it is completed if this method returns.
+     *
+     * @throws IOException
+     *             if the upgrade fails: the connection is lost for good, the device does not answer or reports an
+     *             error.
+     */
+    public UpgradeSummary run(GaiaStreamSession session, String imageName) throws IOException {
+        mMetrics.start(imageName, mImage.length, mSyncId);
+        int reconnections = 0;
+        boolean completed = false;
+        try {
+            startSession(session);
+            while (!isDone) {
+                byte[] message = mMessages.poll(mTimeout, TimeUnit.MILLISECONDS);
+                if (message == null) {
+                    throw new IOException("No message from the device for " + mTimeout + " ms, phase "
+                            + mMetrics.getPhase());
+                }
+                if (message == CLOSED) {
+                    if (++reconnections > MAX_RECONNECTIONS) {
+                        throw new IOException("Connection lost " + reconnections + " times");
+                    }
+                    // as the application on a new connection: the device tells which bytes to skip
+                    mHost.restart();
+                    startSession(reconnect());
+                    continue;
+                }
+                mHost.handleVMUPacket(VMUPacket.buildPacketFromBytes(message));
+                throwFailure();
+            }
+            completed = true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upgrade interrupted");
+        }
+        finally {
+            closeUpgrade();
+            if (!completed) {
+                mMetrics.finish(false);
+            }
+        }
+        return mMetrics.finish(true);
+    }
+
+    /**
+     * @return the session the upgrade ended on: the first one is replaced when the connection is lost.
+     */
+    public GaiaStreamSession getSession() {
+        return mSession;
+    }
+
+    // the connection
+
+    private void startSession(GaiaStreamSession session) throws IOException {
+        mSession = session;
+        mMessages.clear();
+        session.setPacketListener(new GaiaStreamSession.IPacketListener() {
+            @Override
+            public void onPacket(GaiaPacket packet) {
+                byte[] payload = packet.getPayload();
+                if (packet.getEvent() == Gaia.EventId.VMU_PACKET && payload.length > 1) {
+                    mMessages.add(Arrays.copyOfRange(payload, 1, payload.length));
+                }
+            }
+
+            @Override
+            public void onClosed() {
+                mMessages.add(CLOSED);
+            }
+        });
+        check(session.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_VM_UPGRADE_CONNECT, null, mTimeout));
+        check(session.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_REGISTER_NOTIFICATION,
+                new byte[] { (byte) Gaia.EventId.VMU_PACKET.ordinal() }, mTimeout));
+        mHost.sync();
+        throwFailure();
+    }
+
+    private GaiaStreamSession reconnect() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + RECONNECT_TIME;
+        IOException failure;
+        do {
+            Thread.sleep(RECONNECT_INTERVAL);
+            try {
+                GaiaStreamSession session = mTarget.open((int) RECONNECT_INTERVAL, mReaderFactory);
+                SessionScope.closeOnCancel(session);
+                return session;
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        } while (System.currentTimeMillis() < deadline);
+        throw new IOException("Device not back after " + RECONNECT_TIME + " ms: " + failure.getMessage());
+    }
+
+    /**
+     * To leave the upgrade mode of the device, errors are ignored: the session may already be lost.
+     */
+    private void closeUpgrade() {
+        GaiaStreamSession session = mSession;
+        if (session == null || !session.isConnected()) {
+            return;
+        }
+        session.setPacketListener(null);
+        try {
+            session.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_CANCEL_NOTIFICATION,
+                    new byte[] { (byte) Gaia.EventId.VMU_PACKET.ordinal() }, mTimeout);
+            session.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_VM_UPGRADE_DISCONNECT, null, mTimeout);
+        }
+        catch (IOException e) {
+            // the device is leaving the upgrade mode anyway
+        }
+    }
+
+    private static void check(GaiaPacket acknowledgement) throws IOException {
+        if (acknowledgement.getStatus() != Gaia.Status.SUCCESS) {
+            throw new IOException("Command 0x" + Gaia.hexw(acknowledgement.getCommand()) + " failed: "
+                    + Gaia.statusText(acknowledgement.getStatus()));
+        }
+    }
+
+    /**
+     * To keep the first failure of the upgrade.
+     */
+    private void fail(IOException failure) {
+        if (mFailure == null) {
+            mFailure = failure;
+        }
+    }
+
+    private void throwFailure() throws IOException {
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    // the host
+
+    @Override
+    public void sendUpgradeControl(byte[] packet) {
+        if (mFailure != null) {
+            return;
+        }
+        try {
+            check(mSession.sendCommand(Gaia.VENDOR_CSR, Gaia.COMMAND_VM_UPGRADE_CONTROL, packet, mTimeout));
+        }
+        catch (IOException e) {
+            fail(e);
+            return;
+        }
+        // the acknowledgement has been received: the host goes on as the application does
+        mHost.onControlAcknowledged();
+    }
+
+    @Override
+    public void schedule(Runnable action, long delay) {
+        if (mFailure != null) {
+            return;
+        }
+        try {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new InterruptedIOException("Upgrade interrupted"));
+            return;
+        }
+        action.run();
+    }
+
+    @Override
+    public void onResumePointChanged(ResumePoints point) {
+    }
+
+    @Override
+    public void askConfirmation(VMUpgradeHost.Confirmation confirmation) {
+        mHost.confirm(confirmation, true);
+    }
+
+    @Override
+    public void onDeviceError(int code) {
+        // the device waits for the confirmation of the error before anything else
+        mHost.confirmError();
+        fail(new IOException("Device error 0x" + Gaia.hexw(code) + ": " + ReturnCodes.getReturnCodesMessage(code)));
+    }
+
+    @Override
+    public void onUpgradeFailed(String message) {
+        fail(new IOException(message));
+    }
+
+    @Override
+    public void onAbortConfirmed() {
+        fail(new IOException("Upgrade aborted by the device"));
+    }
+
+    @Override
+    public void onUpgradePostponed() {
+        fail(new IOException("Upgrade postponed"));
+    }
+
+    @Override
+    public void onUpgradeComplete() {
+        isDone = true;
+    }
+}
@@ -0,0 +1,512 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.vmupgradelibrary;
+
+import com.csr.vmupgradelibrary.codes.OpCodes;
+import com.csr.vmupgradelibrary.codes.ResumePoints;
+import com.csr.vmupgradelibrary.metrics.UpgradeMetrics;
+import com.csr.vmupgradelibrary.metrics.UpgradePhase;
+
+import java.util.Arrays;
+
+/**
+ * <p>This class is the host side of a VM upgrade: it answers the VMU packets of the device, from UPDATE_SYNC_REQ to
+ * UPDATE_COMPLETE_IND, and measures the upgrade with an {@link UpgradeMetrics}.</p>
+ * <p>The packets to send, the delays, the confirmations and the end of the upgrade go through an
+ * {@link IVMUpgradeHostListener}: the application asks the user for the confirmations, a tool or a benchmark gives
+ * them at once.</p>
+ * <p>This class is not thread safe: it must be called by one thread, on which the listener has to run the delayed
+ * actions. The listener can call {@link #onControlAcknowledged()} from
+ * {@link IVMUpgradeHostListener#sendUpgradeControl(byte[]) sendUpgradeControl} when its transport waits for the
+ * acknowledgement.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class VMUpgradeHost {
+
+    /**
+     * The largest number of image bytes in an UPDATE_DATA packet: a GAIA payload less the VMU header and the last
+     * packet flag.
+     */
+    public static final int MAX_DATA_LENGTH = 254 - VMUPacket.LENGTH_REQUIRED_INFORMATION - 1;
+    /**
+     * The number of times UPDATE_START_REQ is sent again while the device is not ready.
+     */
+    public static final int START_ATTEMPTS_MAX = 5;
+    /**
+     * The time between two UPDATE_START_REQ while the device is not ready, in milliseconds.
+     */
+    public static final long START_ATTEMPTS_TIME = 2000;
+
+    /**
+     * The steps of the upgrade which need a confirmation before going on.
+     */
+    public enum Confirmation {
+        /**
+         * UPDATE_TRANSFER_COMPLETE_IND: the device reboots on the new image once confirmed.
+         */
+        TRANSFER_COMPLETE,
+        /**
+         * UPDATE_COMMIT_REQ: the new image is kept once confirmed.
+         */
+        COMMIT,
+        /**
+         * UPDATE_ERASE_SQIF_REQ: the device erases its SQIF once confirmed, it has no alternative.
+         */
+        ERASE_SQIF
+    }
+
+    /**
+     * The listener to send the packets and to inform about the upgrade.
+     */
+    private final IVMUpgradeHostListener mListener;
+    /**
+     * To measure the duration of each phase and the throughput of the transfer.
+     */
+    private final UpgradeMetrics mMetrics;
+    /**
+     * The image to send.
+     */
+    private byte[] mImage;
+    /**
+     * The identifier of the image: the last bytes of its MD5 checksum.
+     */
+    private byte[] mSyncId;
+    /**
+     * The step the device resumes from, null until the device tells it.
+     */
+    private ResumePoints mResumePoint = null;
+    /**
+     * The position in the image of the next byte to send.
+     */
+    private int mStartOffset = 0;
+    /**
+     * To know how many times UPDATE_START_REQ has been sent again.
+     */
+    private int mStartAttempts = 0;
+    /**
+     * To know if the last UPDATE_DATA packet has been sent and the validation starts once it is acknowledged.
+     */
+    private boolean wasLastPacket = false;
+    /**
+     * To know if a confirmation has been declined and the upgrade stops once it is acknowledged.
+     */
+    private boolean hasToPostpone = false;
+    /**
+     * The data of the last UPDATE_ERROR_WARN_IND, to confirm it.
+     */
+    private byte[] mErrorData;
+
+    /**
+     * To build a new host.
+     *
+     * @param metrics
+     *            the metrics to measure the upgrade with, they are started and finished by the caller.
+     * @param listener
+     *            the listener to send the packets and to inform about the upgrade.
+     */
+    public VMUpgradeHost(UpgradeMetrics metrics, IVMUpgradeHostListener listener) {
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    /**
+     * To set the image to send, before {@link #sync()}.
+     *
+     * @param image
+     *            the upgrade image.
+     * @param syncId
+     *            the identifier of the image: the last bytes of its MD5 checksum.
+     */
+    public void setImage(byte[] image, byte[] syncId) {
+        mImage = image;
+        mSyncId = syncId;
+    }
+
+    /**
+     * @return the step the device resumes from, null until the device tells it.
+     */
+    public ResumePoints getResumePoint() {
+        return mResumePoint;
+    }
+
+    /**
+     * @return the position in the image of the next byte to send.
+     */
+    public int getPosition() {
+        return mStartOffset;
+    }
+
+    /**
+     * To start or to resume the upgrade by sending UPDATE_SYNC_REQ: the device answers with its resume point.
+     */
+    public void sync() {
+        mMetrics.enterPhase(UpgradePhase.SYNC);
+        send(OpCodes.UPDATE_SYNC_REQ, mSyncId);
+    }
+
+    /**
+     * To send the image from its beginning: to call on a new connection, the device tells which bytes to skip.
+     */
+    public void restart() {
+        mStartOffset = 0;
+        mStartAttempts = 0;
+        wasLastPacket = false;
+        hasToPostpone = false;
+        mMetrics.onTransferRestarted();
+    }
+
+    /**
+     * To manage a VMU packet received from the device.
+     *
+     * @param packet
+     *            the received packet.
+     */
+    public void handleVMUPacket(VMUPacket packet) {
+        switch (packet.getOpCode()) {
+        case OpCodes.UPDATE_SYNC_CFM:
+            setResumePoint(ResumePoints.valueOf(packet.getFirstData()));
+            sendStartReq();
+            break;
+
+        case OpCodes.UPDATE_START_CFM:
+            receiveStartCFM(packet);
+            break;
+
+        case OpCodes.UPDATE_DATA_BYTES_REQ:
+            receiveDataBytesReq(packet);
+            break;
+
+        case OpCodes.UPDATE_IS_VALIDATION_DONE_CFM:
+            byte[] data = packet.getData();
+            long wait = data.length >= 2 ? Utils.extractLongField(data, 0, 2, false) : 0;
+            mListener.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendValidationDoneReq();
+                }
+            }, wait);
+            break;
+
+        case OpCodes.UPDATE_TRANSFER_COMPLETE_IND:
+            setResumePoint(ResumePoints.TRANSFER_COMPLETE);
+            mListener.askConfirmation(Confirmation.TRANSFER_COMPLETE);
+            break;
+
+        case OpCodes.UPDATE_COMMIT_REQ:
+            setResumePoint(ResumePoints.COMMIT);
+            mListener.askConfirmation(Confirmation.COMMIT);
+            break;
+
+        case OpCodes.UPDATE_ERASE_SQIF_REQ:
+            setResumePoint(ResumePoints.COMMIT);
+            mListener.askConfirmation(Confirmation.ERASE_SQIF);
+            break;
+
+        case OpCodes.UPDATE_COMPLETE_IND:
+            mListener.onUpgradeComplete();
+            break;
+
+        case OpCodes.UPDATE_ERROR_WARN_IND:
+            mErrorData = packet.getData();
+            int code = mErrorData.length >= 2 ? (int) Utils.extractLongField(mErrorData, 0, 2, false) : 0;
+            mListener.onDeviceError(code);
+            break;
+
+        case OpCodes.UPDATE_ABORT_CFM:
+            mListener.onAbortConfirmed();
+            break;
+
+        default:
+            // the other messages do not need an answer
+        }
+    }
+
+    /**
+     * To call when the device acknowledged the last packet given to
+     * {@link IVMUpgradeHostListener#sendUpgradeControl(byte[]) sendUpgradeControl} with a success.
+     */
+    public void onControlAcknowledged() {
+        if (wasLastPacket) {
+            wasLastPacket = false;
+            setResumePoint(ResumePoints.VALIDATION);
+            sendValidationDoneReq();
+        }
+        else if (hasToPostpone) {
+            hasToPostpone = false;
+            mListener.onUpgradePostponed();
+        }
+    }
+
+    /**
+     * To call when the device acknowledged the last packet given to
+     * {@link IVMUpgradeHostListener#sendUpgradeControl(byte[]) sendUpgradeControl} with a failure.
+     */
+    public void onControlFailed() {
+        wasLastPacket = false;
+        hasToPostpone = false;
+    }
+
+    /**
+     * To answer a {@link IVMUpgradeHostListener#askConfirmation(Confirmation) confirmation}.
+     *
+     * @param confirmation
+     *            the step to confirm.
+     * @param accepted
+     *            true to go on, false to postpone the upgrade: the device keeps its resume point. As the erase of
+     *            the SQIF has no alternative, declining it aborts the upgrade.
+     */
+    public void confirm(Confirmation confirmation, boolean accepted) {
+        switch (confirmation) {
+        case TRANSFER_COMPLETE:
+            if (accepted) {
+                mMetrics.enterPhase(UpgradePhase.COMMIT);
+            }
+            hasToPostpone = !accepted;
+            send(OpCodes.UPDATE_TRANSFER_COMPLETE_RES, (byte) (accepted ? OpCodes.UPDATE_TRANSFER_COMPLETE_CONTINUE
+                    : OpCodes.UPDATE_TRANSFER_COMPLETE_ABORT));
+            break;
+
+        case COMMIT:
+            if (accepted) {
+                mMetrics.enterPhase(UpgradePhase.COMMIT);
+            }
+            hasToPostpone = !accepted;
+            send(OpCodes.UPDATE_COMMIT_CFM, (byte) (accepted ? OpCodes.UPDATE_COMMIT_CONTINUE
+                    : OpCodes.UPDATE_COMMIT_ABORT));
+            break;
+
+        case ERASE_SQIF:
+            if (accepted) {
+                send(OpCodes.UPDATE_ERASE_SQIF_CFM, (byte) 0);
+            }
+            else {
+                abort();
+            }
+            break;
+        }
+    }
+
+    /**
+     * To confirm the last {@link IVMUpgradeHostListener#onDeviceError(int) error} of the device with
+     * UPDATE_ERROR_WARN_RES: the device waits for it before anything else.
+     */
+    public void confirmError() {
+        if (mErrorData != null) {
+            send(OpCodes.UPDATE_ERROR_WARN_RES, Arrays.copyOf(mErrorData, OpCodes.UPDATE_ERROR_WARN_RES_LENGTH));
+            mErrorData = null;
+        }
+    }
+
+    /**
+     * To ask the device to abort the upgrade with UPDATE_ABORT_REQ, it answers with UPDATE_ABORT_CFM.
+     */
+    public void abort() {
+        send(OpCodes.UPDATE_ABORT_REQ);
+    }
+
+    /**
+     * To define the step the device resumes from.
+     */
+    private void setResumePoint(ResumePoints point) {
+        mResumePoint = point;
+        mListener.onResumePointChanged(point);
+    }
+
+    /**
+     * To manage an UPDATE_START_CFM: to go to the resume point, to ask again while the device is not ready or to
+     * fail.
+     */
+    private void receiveStartCFM(VMUPacket packet) {
+        byte[] data = packet.getData();
+        if (data.length == 0) {
+            mStartAttempts = 0;
+            mListener.onUpgradeFailed("The device sent an empty UPDATE_START_CFM.");
+            return;
+        }
+        if (data[0] == OpCodes.UPDATE_START_ERROR_APP_NOT_READY && mStartAttempts < START_ATTEMPTS_MAX) {
+            mStartAttempts++;
+            mListener.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendStartReq();
+                }
+            }, START_ATTEMPTS_TIME);
+            return;
+        }
+        mStartAttempts = 0;
+        if (data[0] != OpCodes.UPDATE_START_CFM_SUCCESS) {
+            mListener.onUpgradeFailed(String.format("The device is not ready to start the upgrade: 0x%02X.",
+                    data[0] & 0xFF));
+            return;
+        }
+
+        ResumePoints point = mResumePoint == null ? ResumePoints.DATA_TRANSFER : mResumePoint;
+        switch (point) {
+        case COMMIT:
+            mListener.askConfirmation(Confirmation.COMMIT);
+            break;
+        case TRANSFER_COMPLETE:
+            mListener.askConfirmation(Confirmation.TRANSFER_COMPLETE);
+            break;
+        case IN_PROGRESS:
+            mMetrics.enterPhase(UpgradePhase.COMMIT);
+            send(OpCodes.UPDATE_IN_PROGRESS_RES, (byte) OpCodes.UPDATE_IN_PROGRESS_CONTINUE);
+            break;
+        case VALIDATION:
+            sendValidationDoneReq();
+            break;
+        case DATA_TRANSFER:
+        default:
+            setResumePoint(ResumePoints.DATA_TRANSFER);
+            mMetrics.enterPhase(UpgradePhase.DATA_TRANSFER);
+            send(OpCodes.UPDATE_START_DATA_REQ);
+        }
+    }
+
+    /**
+     * To manage an UPDATE_DATA_BYTES_REQ: to send the next UPDATE_DATA packet, of at most {@link #MAX_DATA_LENGTH}
+     * bytes, after the bytes the device asks to skip.
+     */
+    private void receiveDataBytesReq(VMUPacket packet) {
+        byte[] data = packet.getData();
+        if (data.length != OpCodes.UPDATE_DATA_BYTES_REQ_LENGTH) {
+            mListener.onUpgradeFailed("The device sent an UPDATE_DATA_BYTES_REQ of " + data.length + " bytes.");
+            return;
+        }
+
+        int bytesLength = (int) Utils.extractLongField(data, 0, 4, false);
+        int fileOffset = (int) Utils.extractLongField(data, 4, 4, false);
+        if (bytesLength < 0 || bytesLength > MAX_DATA_LENGTH) {
+            bytesLength = MAX_DATA_LENGTH;
+        }
+        if (fileOffset > 0 && fileOffset + mStartOffset < mImage.length) {
+            mStartOffset += fileOffset;
+            mMetrics.onBytesSkipped(fileOffset);
+        }
+
+        boolean lastPacket = mImage.length - mStartOffset <= bytesLength;
+        int length = Math.min(bytesLength, mImage.length - mStartOffset);
+        byte[] payload = new byte[length + 1];
+        payload[0] = lastPacket ? OpCodes.UPDATE_DATA_LAST_PACKET : OpCodes.UPDATE_DATA_NOT_LAST_PACKET;
+        System.arraycopy(mImage, mStartOffset, payload, 1, length);
+        mMetrics.onBytesSent(length);
+
+        // the state is updated first: the acknowledgement can arrive while the packet is sent
+        if (lastPacket) {
+            wasLastPacket = true;
+        }
+        else {
+            mStartOffset += length;
+        }
+        send(OpCodes.UPDATE_DATA, payload);
+    }
+
+    private void sendStartReq() {
+        mMetrics.enterPhase(UpgradePhase.START);
+        send(OpCodes.UPDATE_START_REQ);
+    }
+
+    private void sendValidationDoneReq() {
+        mMetrics.enterPhase(UpgradePhase.VALIDATION);
+        send(OpCodes.UPDATE_IS_VALIDATION_DONE_REQ);
+    }
+
+    /**
+     * To build a VMU packet and to give it to the listener.
+     */
+    private void send(int opCode, byte... data) {
+        mListener.sendUpgradeControl(new VMUPacket(opCode, data.length, data).getBytes());
+    }
+
+    /**
+     * This interface allows the host to send its packets and to inform about the upgrade. All methods are called on
+     * the thread which calls the host.
+     */
+    public interface IVMUpgradeHostListener {
+
+        /**
+         * Called to send a VMU packet to the device with a VM_UPGRADE_CONTROL command.
+         *
+         * @param packet
+         *            the bytes of the VMU packet.
+         */
+        void sendUpgradeControl(byte[] packet);
+
+        /**
+         * Called to run an action later on the thread which calls the host: to wait for the validation of the image
+         * or for the device to be ready.
+         *
+         * @param action
+         *            the action to run.
+         * @param delay
+         *            the time to wait in milliseconds.
+         */
+        void schedule(Runnable action, long delay);
+
+        /**
+         * Called when the step the device resumes from changes.
+         *
+         * @param point
+         *            the new resume point.
+         */
+        void onResumePointChanged(ResumePoints point);
+
+        /**
+         * Called when a step has to be confirmed, the answer is given with
+         * {@link VMUpgradeHost#confirm(Confirmation, boolean) confirm}.
+         *
+         * @param confirmation
+         *            the step to confirm.
+         */
+        void askConfirmation(Confirmation confirmation);
+
+        /**
+         * Called when the device reports an error or a warning with UPDATE_ERROR_WARN_IND. The device waits for
+         * {@link VMUpgradeHost#confirmError() the confirmation} of an error, a warning can also be followed by
+         * {@link VMUpgradeHost#abort() an abort} or {@link VMUpgradeHost#sync() a new synchronisation}.
+         *
+         * @param code
+         *            the code of the error, see {@link com.csr.vmupgradelibrary.codes.ReturnCodes ReturnCodes}.
+         */
+        void onDeviceError(int code);
+
+        /**
+         * Called when the device sent an unexpected answer and the upgrade cannot go on.
+         *
+         * @param message
+         *            the description of the failure.
+         */
+        void onUpgradeFailed(String message);
+
+        /**
+         * Called when the device confirmed an abort with UPDATE_ABORT_CFM.
+         */
+        void onAbortConfirmed();
+
+        /**
+         * Called once a declined confirmation has been acknowledged: the upgrade has to be left, it resumes from
+         * the same step on the next one.
+         */
+        void onUpgradePostponed();
+
+        /**
+         * Called when the device confirmed the end of the upgrade with UPDATE_COMPLETE_IND.
+         */
+        void onUpgradeComplete();
+    }
+}
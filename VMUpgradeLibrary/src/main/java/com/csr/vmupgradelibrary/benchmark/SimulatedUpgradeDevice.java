@@ -0,0 +1,261 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.vmupgradelibrary.benchmark;
+
+import com.csr.vmupgradelibrary.VMUPacket;
+import com.csr.vmupgradelibrary.codes.OpCodes;
+import com.csr.vmupgradelibrary.codes.ResumePoints;
+
+/**
+ * <p>An in-process stand-in for the VM upgrade side of a device: it answers the VMU packets of a host as a device
+ * does, from UPDATE_SYNC_REQ to UPDATE_COMPLETE_IND.</p>
+ * <p>The device asks for the image with UPDATE_DATA_BYTES_REQ packets of {@link #setChunkSize(int) the chunk size}.
+ * Its resume point and the number of bytes it received survive the disconnections: after a new UPDATE_SYNC_REQ with
+ * the same identifier, the transfer resumes where it stopped. The validation of the image takes
+ * {@link #setValidationTime(long) a given time}, during which UPDATE_IS_VALIDATION_DONE_REQ is answered with an
+ * UPDATE_IS_VALIDATION_DONE_CFM which carries the time to wait. Once the host confirms the transfer with
+ * UPDATE_TRANSFER_COMPLETE_RES, the device reboots.</p>
+ * <p>This class is not thread safe: it must be called by one thread, which also receives its output.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class SimulatedUpgradeDevice {
+
+    /**
+     * The default number of bytes asked with each UPDATE_DATA_BYTES_REQ packet.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 250;
+    /**
+     * The length of the data of an UPDATE_IS_VALIDATION_DONE_CFM packet: the time to wait in milliseconds.
+     */
+    private static final int VALIDATION_DONE_CFM_LENGTH = 2;
+
+    private final IDeviceOutput mOutput;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private long mValidationTime = 0;
+
+    /**
+     * The identifier of the image being received, -1 if there is none.
+     */
+    private long mSyncId = -1;
+    private ResumePoints mResumePoint = ResumePoints.DATA_TRANSFER;
+    /**
+     * The number of image bytes written.
+     */
+    private long mReceived = 0;
+    /**
+     * True if the next UPDATE_DATA_BYTES_REQ has to ask the host to skip the bytes already received.
+     */
+    private boolean mResuming = false;
+    /**
+     * The time at which the validation of the image ends, from {@link System#nanoTime()}.
+     */
+    private long mValidationEnd;
+
+    /**
+     * To build a new device.
+     *
+     * @param output
+     *            the output for the packets of the device.
+     */
+    public SimulatedUpgradeDevice(IDeviceOutput output) {
+        mOutput = output;
+    }
+
+    /**
+     * To set the number of bytes the device asks with each UPDATE_DATA_BYTES_REQ packet.
+     *
+     * @param size
+     *            the number of bytes.
+     */
+    public void setChunkSize(int size) {
+        mChunkSize = size;
+    }
+
+    /**
+     * To set the time the device takes to validate the image.
+     *
+     * @param time
+     *            the time in milliseconds.
+     */
+    public void setValidationTime(long time) {
+        mValidationTime = time;
+    }
+
+    /**
+     * @return the number of image bytes the device has written.
+     */
+    public long getReceivedBytes() {
+        return mReceived;
+    }
+
+    /**
+     * @return the point the upgrade would resume from.
+     */
+    public ResumePoints getResumePoint() {
+        return mResumePoint;
+    }
+
+    /**
+     * To forget the upgrade in progress.
+     */
+    public void reset() {
+        mSyncId = -1;
+        mResumePoint = ResumePoints.DATA_TRANSFER;
+        mReceived = 0;
+        mResuming = false;
+    }
+
+    /**
+     * To give the device a packet sent by the host. Each packet is acknowledged at the transport level before the
+     * device answers it, as a device acknowledges the VM_UPGRADE_CONTROL commands.
+     *
+     * @param bytes
+     *            the VMU packet.
+     */
+    public void onPacket(byte[] bytes) {
+        if (bytes.length < VMUPacket.LENGTH_REQUIRED_INFORMATION) {
+            return;
+        }
+        int opCode = bytes[0] & 0xFF;
+        int length = Math.min(((bytes[1] & 0xFF) << 8) | (bytes[2] & 0xFF),
+                bytes.length - VMUPacket.LENGTH_REQUIRED_INFORMATION);
+        int offset = VMUPacket.LENGTH_REQUIRED_INFORMATION;
+
+        mOutput.acknowledge();
+
+        switch (opCode) {
+        case OpCodes.UPDATE_SYNC_REQ:
+            long syncId = 0;
+            for (int i = 0; i < length; i++) {
+                syncId = (syncId << 8) | (bytes[offset + i] & 0xFF);
+            }
+            if (syncId != mSyncId) {
+                reset();
+                mSyncId = syncId;
+            }
+            mResuming = mReceived > 0;
+            send(OpCodes.UPDATE_SYNC_CFM, (byte) mResumePoint.ordinal(), (byte) (mSyncId >>> 24),
+                    (byte) (mSyncId >>> 16), (byte) (mSyncId >>> 8), (byte) mSyncId);
+            break;
+
+        case OpCodes.UPDATE_START_REQ:
+            send(OpCodes.UPDATE_START_CFM, (byte) OpCodes.UPDATE_START_CFM_SUCCESS);
+            break;
+
+        case OpCodes.UPDATE_START_DATA_REQ:
+            requestBytes();
+            break;
+
+        case OpCodes.UPDATE_DATA:
+            if (length < 1) {
+                return;
+            }
+            mReceived += length - 1;
+            if (bytes[offset] == OpCodes.UPDATE_DATA_LAST_PACKET) {
+                mResumePoint = ResumePoints.VALIDATION;
+                mValidationEnd = System.nanoTime() + mValidationTime * 1000000L;
+            }
+            else {
+                requestBytes();
+            }
+            break;
+
+        case OpCodes.UPDATE_IS_VALIDATION_DONE_REQ:
+            long remaining = (mValidationEnd - System.nanoTime()) / 1000000L;
+            if (remaining > 0) {
+                int wait = (int) Math.min(remaining, 0xFFFF);
+                send(OpCodes.UPDATE_IS_VALIDATION_DONE_CFM, (byte) (wait >>> 8), (byte) wait);
+            }
+            else {
+                mResumePoint = ResumePoints.TRANSFER_COMPLETE;
+                send(OpCodes.UPDATE_TRANSFER_COMPLETE_IND);
+            }
+            break;
+
+        case OpCodes.UPDATE_TRANSFER_COMPLETE_RES:
+            if (length > 0 && bytes[offset] == OpCodes.UPDATE_TRANSFER_COMPLETE_CONTINUE) {
+                mResumePoint = ResumePoints.IN_PROGRESS;
+                mOutput.reboot();
+            }
+            break;
+
+        case OpCodes.UPDATE_IN_PROGRESS_RES:
+            mResumePoint = ResumePoints.COMMIT;
+            send(OpCodes.UPDATE_COMMIT_REQ);
+            break;
+
+        case OpCodes.UPDATE_COMMIT_CFM:
+            if (length > 0 && bytes[offset] == OpCodes.UPDATE_COMMIT_CONTINUE) {
+                reset();
+                send(OpCodes.UPDATE_COMPLETE_IND);
+            }
+            break;
+
+        case OpCodes.UPDATE_ABORT_REQ:
+            reset();
+            send(OpCodes.UPDATE_ABORT_CFM);
+            break;
+
+        default:
+            // UPDATE_ERROR_WARN_RES and the others do not need an answer
+        }
+    }
+
+    /**
+     * To ask the host for the next chunk of the image, and to skip the bytes already received when resuming.
+     */
+    private void requestBytes() {
+        long skip = mResuming ? mReceived : 0;
+        mResuming = false;
+        send(OpCodes.UPDATE_DATA_BYTES_REQ,
+                (byte) (mChunkSize >>> 24), (byte) (mChunkSize >>> 16), (byte) (mChunkSize >>> 8), (byte) mChunkSize,
+                (byte) (skip >>> 24), (byte) (skip >>> 16), (byte) (skip >>> 8), (byte) skip);
+    }
+
+    /**
+     * To send a packet to the host.
+     */
+    private void send(int opCode, byte... data) {
+        mOutput.sendPacket(new VMUPacket(opCode, data.length, data).getBytes());
+    }
+
+    /**
+     * The interface to implement to receive the output of a {@link SimulatedUpgradeDevice}. It is called on the
+     * thread which gives the packets to the device.
+     */
+    public interface IDeviceOutput {
+
+        /**
+         * Called when the device sends a VMU packet to the host.
+         *
+         * @param packet
+         *            the VMU packet.
+         */
+        void sendPacket(byte[] packet);
+
+        /**
+         * Called when the device acknowledges a packet of the host at the transport level.
+         */
+        void acknowledge();
+
+        /**
+         * Called when the device reboots to apply the upgrade: the connection is lost.
+         */
+        void reboot();
+    }
+}
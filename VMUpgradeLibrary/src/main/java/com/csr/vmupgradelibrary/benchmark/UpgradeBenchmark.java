@@ -0,0 +1,597 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.vmupgradelibrary.benchmark;
+
+import com.csr.vmupgradelibrary.VMUPacket;
+import com.csr.vmupgradelibrary.VMUpgradeHost;
+import com.csr.vmupgradelibrary.codes.OpCodes;
+import com.csr.vmupgradelibrary.codes.ResumePoints;
+import com.csr.vmupgradelibrary.metrics.UpgradeMetrics;
+import com.csr.vmupgradelibrary.metrics.UpgradePhase;
+import com.csr.vmupgradelibrary.metrics.UpgradeSummary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>This benchmark runs whole VM upgrades against a {@link SimulatedUpgradeDevice} and measures them with
+ * {@link UpgradeMetrics}, so a change of the upgrade path shows up in numbers before a firmware is rolled out.</p>
+ * <p>The host side is the {@link VMUpgradeHost} of the application: UPDATE_SYNC_REQ, UPDATE_START_REQ,
+ * UPDATE_START_DATA_REQ, one UPDATE_DATA packet for each UPDATE_DATA_BYTES_REQ - of at most {@link #MAX_DATA_LENGTH}
+ * bytes - the validation once the transport acknowledged the last packet, the reboot of the device,
+ * UPDATE_IN_PROGRESS_RES and UPDATE_COMMIT_CFM until UPDATE_COMPLETE_IND. The confirmations the application asks the
+ * user for are given at once.</p>
+ * <p>The packets go through a simulated connection which delays each of them by the latency of the scenario, in
+ * order. A scenario can inject disconnections during the data transfer: the packets in flight are lost, the host
+ * reconnects after {@link #setReconnectTime(long) the reconnection time} and synchronises again, and the device
+ * resumes from the bytes it received. All events run on the thread which calls {@link #run(Scenario)}.</p>
+ * <pre>java com.csr.vmupgradelibrary.benchmark.UpgradeBenchmark</pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class UpgradeBenchmark {
+
+    /**
+     * The largest number of image bytes in an UPDATE_DATA packet: a GAIA payload less the VMU header and the last
+     * packet flag.
+     */
+    public static final int MAX_DATA_LENGTH = VMUpgradeHost.MAX_DATA_LENGTH;
+    /**
+     * The image sizes of the default sweep, in bytes.
+     */
+    public static final int[] DEFAULT_IMAGE_SIZES = { 64 * 1024, 512 * 1024, 2 * 1024 * 1024, 8 * 1024 * 1024 };
+    /**
+     * The latencies of the default sweep, in microseconds.
+     */
+    public static final long[] DEFAULT_LATENCIES = { 0, 100 };
+    /**
+     * The chunk sizes of the default sweep, in bytes.
+     */
+    public static final int[] DEFAULT_CHUNK_SIZES = { 64, MAX_DATA_LENGTH };
+    /**
+     * The numbers of disconnections of the default sweep.
+     */
+    public static final int[] DEFAULT_DISCONNECTIONS = { 0, 2 };
+    /**
+     * The default time the host takes to reconnect after a disconnection, in milliseconds.
+     */
+    public static final long DEFAULT_RECONNECT_TIME = 50;
+    /**
+     * The default time the device takes to reboot, in milliseconds.
+     */
+    public static final long DEFAULT_REBOOT_TIME = 100;
+    /**
+     * The default time after which an upgrade which has not completed is stopped, in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 10 * 60 * 1000;
+
+    private long mReconnectTime = DEFAULT_RECONNECT_TIME;
+    private long mRebootTime = DEFAULT_REBOOT_TIME;
+    private long mValidationTime = 0;
+    private long mTimeout = DEFAULT_TIMEOUT;
+
+    /**
+     * To set the time the host takes to reconnect after a disconnection.
+     *
+     * @param time
+     *            the time in milliseconds.
+     */
+    public void setReconnectTime(long time) {
+        mReconnectTime = time;
+    }
+
+    /**
+     * To set the time the device takes to reboot once the transfer is complete.
+     *
+     * @param time
+     *            the time in milliseconds.
+     */
+    public void setRebootTime(long time) {
+        mRebootTime = time;
+    }
+
+    /**
+     * To set the time the device takes to validate the image.
+     *
+     * @param time
+     *            the time in milliseconds.
+     */
+    public void setValidationTime(long time) {
+        mValidationTime = time;
+    }
+
+    /**
+     * To set the time after which an upgrade which has not completed is stopped.
+     *
+     * @param timeout
+     *            the timeout in milliseconds.
+     */
+    public void setTimeout(long timeout) {
+        mTimeout = timeout;
+    }
+
+    /**
+     * To run the default sweep: all combinations of {@link #DEFAULT_IMAGE_SIZES}, {@link #DEFAULT_LATENCIES},
+     * {@link #DEFAULT_CHUNK_SIZES} and {@link #DEFAULT_DISCONNECTIONS}.
+     *
+     * @return the results in order.
+     */
+    public List<Result> runSweep() {
+        return runSweep(DEFAULT_IMAGE_SIZES, DEFAULT_LATENCIES, DEFAULT_CHUNK_SIZES, DEFAULT_DISCONNECTIONS);
+    }
+
+    /**
+     * To run all combinations of the given parameters.
+     *
+     * @param imageSizes
+     *            the image sizes in bytes.
+     * @param latencies
+     *            the latencies of a packet in microseconds.
+     * @param chunkSizes
+     *            the chunk sizes asked by the device in bytes.
+     * @param disconnections
+     *            the numbers of disconnections during the data transfer.
+     *
+     * @return the results in order.
+     */
+    public List<Result> runSweep(int[] imageSizes, long[] latencies, int[] chunkSizes, int[] disconnections) {
+        List<Result> results = new ArrayList<>();
+        for (int imageSize : imageSizes) {
+            for (long latency : latencies) {
+                for (int chunkSize : chunkSizes) {
+                    for (int count : disconnections) {
+                        results.add(run(new Scenario(imageSize, latency, chunkSize, count)));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * To run one upgrade.
+     *
+     * @param scenario
+     *            the parameters of the upgrade.
+     *
+     * @return the result of the upgrade.
+     */
+    public Result run(Scenario scenario) {
+        return new Session(scenario).run();
+    }
+
+    /**
+     * To run the default sweep from a command line.
+     *
+     * @param args
+     *            not used.
+     */
+    public static void main(String[] args) {
+        System.out.println(Result.HEADER);
+        UpgradeBenchmark benchmark = new UpgradeBenchmark();
+        for (int imageSize : DEFAULT_IMAGE_SIZES) {
+            for (long latency : DEFAULT_LATENCIES) {
+                for (int chunkSize : DEFAULT_CHUNK_SIZES) {
+                    for (int count : DEFAULT_DISCONNECTIONS) {
+                        System.out.println(benchmark.run(new Scenario(imageSize, latency, chunkSize, count)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The parameters of one upgrade.
+     */
+    public static final class Scenario {
+        private final int mImageSize;
+        private final long mLatency;
+        private final int mChunkSize;
+        private final int mDisconnections;
+
+        /**
+         * To build a scenario.
+         *
+         * @param imageSize
+         *            the size of the image in bytes.
+         * @param latency
+         *            the time each packet takes to go through the connection, in microseconds.
+         * @param chunkSize
+         *            the number of bytes the device asks with each UPDATE_DATA_BYTES_REQ.
+         * @param disconnections
+         *            the number of disconnections, evenly spread over the data transfer.
+         */
+        public Scenario(int imageSize, long latency, int chunkSize, int disconnections) {
+            mImageSize = imageSize;
+            mLatency = latency;
+            mChunkSize = chunkSize;
+            mDisconnections = disconnections;
+        }
+
+        public int getImageSize() {
+            return mImageSize;
+        }
+
+        public long getLatency() {
+            return mLatency;
+        }
+
+        public int getChunkSize() {
+            return mChunkSize;
+        }
+
+        public int getDisconnections() {
+            return mDisconnections;
+        }
+    }
+
+    /**
+     * The measures of one upgrade.
+     */
+    public static final class Result {
+        /**
+         * The header of the lines given by {@link #toString()}.
+         */
+        public static final String HEADER = "image_kb latency_us chunk disconnects completed total_ms effective_kbps "
+                + "data_kbps sync_ms start_ms data_ms validation_ms commit_ms frames_tx frames_rx";
+
+        private final Scenario mScenario;
+        private final UpgradeSummary mSummary;
+        private final long[] mPhaseBytes;
+        private final long mFramesSent;
+        private final long mFramesReceived;
+
+        private Result(Scenario scenario, UpgradeSummary summary, long[] phaseBytes, long framesSent,
+                long framesReceived) {
+            mScenario = scenario;
+            mSummary = summary;
+            mPhaseBytes = phaseBytes;
+            mFramesSent = framesSent;
+            mFramesReceived = framesReceived;
+        }
+
+        /**
+         * @return the parameters of the upgrade.
+         */
+        public Scenario getScenario() {
+            return mScenario;
+        }
+
+        /**
+         * @return the summary measured by {@link UpgradeMetrics}: total and phase durations, data throughput.
+         */
+        public UpgradeSummary getSummary() {
+            return mSummary;
+        }
+
+        /**
+         * @return true if the device confirmed the end of the upgrade.
+         */
+        public boolean isCompleted() {
+            return mSummary.isCompleted();
+        }
+
+        /**
+         * @return the size of the image divided by the total duration, in bytes per second.
+         */
+        public double getEffectiveThroughput() {
+            long duration = mSummary.getTotalDuration();
+            return duration > 0 ? mScenario.mImageSize * 1000000000.0 / duration : 0;
+        }
+
+        /**
+         * To get the number of bytes exchanged during a phase in both directions, VMU headers included.
+         *
+         * @param phase
+         *            the phase.
+         *
+         * @return the number of bytes.
+         */
+        public long getPhaseBytes(UpgradePhase phase) {
+            return mPhaseBytes[phase.ordinal()];
+        }
+
+        /**
+         * To get the rate of the bytes exchanged during a phase.
+         *
+         * @param phase
+         *            the phase.
+         *
+         * @return the rate in bytes per second, 0 if the phase did not occur.
+         */
+        public double getPhaseThroughput(UpgradePhase phase) {
+            long duration = mSummary.getPhaseDuration(phase);
+            return duration > 0 ? mPhaseBytes[phase.ordinal()] * 1000000000.0 / duration : 0;
+        }
+
+        /**
+         * @return the number of packets the host sent.
+         */
+        public long getFramesSent() {
+            return mFramesSent;
+        }
+
+        /**
+         * @return the number of packets and acknowledgements the host received.
+         */
+        public long getFramesReceived() {
+            return mFramesReceived;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(mScenario.mImageSize / 1024).append(' ').append(mScenario.mLatency).append(' ')
+                    .append(mScenario.mChunkSize).append(' ').append(mScenario.mDisconnections).append(' ')
+                    .append(isCompleted()).append(' ').append(mSummary.getTotalDuration() / 1000000).append(' ')
+                    .append((long) (getEffectiveThroughput() / 1024)).append(' ')
+                    .append((long) (mSummary.getDataThroughput() / 1024));
+            for (UpgradePhase phase : UpgradePhase.values()) {
+                builder.append(' ').append(mSummary.getPhaseDuration(phase) / 1000000);
+            }
+            builder.append(' ').append(mFramesSent).append(' ').append(mFramesReceived);
+            return builder.toString();
+        }
+    }
+
+    /**
+     * An event of a session: a packet which arrives or a timer.
+     */
+    private static final class Event implements Delayed {
+        final long mTime;
+        final long mSequence;
+        /**
+         * The connection the event belongs to, the event is dropped if it has been lost.
+         */
+        final int mConnection;
+        final Runnable mAction;
+
+        Event(long time, long sequence, int connection, Runnable action) {
+            mTime = time;
+            mSequence = sequence;
+            mConnection = connection;
+            mAction = action;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Event event = (Event) other;
+            if (mTime != event.mTime) {
+                return mTime < event.mTime ? -1 : 1;
+            }
+            return mSequence < event.mSequence ? -1 : (mSequence == event.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * One upgrade: the host, the connection and the device.
+     */
+    private final class Session implements SimulatedUpgradeDevice.IDeviceOutput,
+            VMUpgradeHost.IVMUpgradeHostListener {
+        private final Scenario mScenario;
+        private final byte[] mImage;
+        private final byte[] mSyncId = new byte[OpCodes.UPDATE_SYNC_REQ_LENGTH];
+        private final UpgradeMetrics mMetrics = new UpgradeMetrics(null);
+        private final VMUpgradeHost mHost = new VMUpgradeHost(mMetrics, this);
+        private final SimulatedUpgradeDevice mDevice = new SimulatedUpgradeDevice(this);
+        private final DelayQueue<Event> mEvents = new DelayQueue<>();
+        private final long mLatency;
+        private final long[] mPhaseBytes = new long[UpgradePhase.getLength()];
+        private long mSequence = 0;
+        /**
+         * The current connection, incremented each time the connection is lost.
+         */
+        private int mConnection = 0;
+        /**
+         * The time the last packet of each direction arrives: the packets do not overtake each other.
+         */
+        private long mLastToDevice = 0;
+        private long mLastToHost = 0;
+        private long mFramesSent = 0;
+        private long mFramesReceived = 0;
+        /**
+         * The image positions at which the connection is lost, in order.
+         */
+        private final long[] mDisconnections;
+        private int mNextDisconnection = 0;
+        private boolean isDone = false;
+
+        Session(Scenario scenario) {
+            mScenario = scenario;
+            mLatency = scenario.mLatency * 1000L;
+            mImage = new byte[scenario.mImageSize];
+            Random random = new Random(scenario.mImageSize);
+            random.nextBytes(mImage);
+            random.nextBytes(mSyncId);
+            mHost.setImage(mImage, mSyncId);
+            mDevice.setChunkSize(scenario.mChunkSize);
+            mDevice.setValidationTime(mValidationTime);
+            mDisconnections = new long[scenario.mDisconnections];
+            for (int i = 0; i < mDisconnections.length; i++) {
+                mDisconnections[i] = (long) scenario.mImageSize * (i + 1) / (mDisconnections.length + 1);
+            }
+        }
+
+        Result run() {
+            mMetrics.start("benchmark", mImage.length, mSyncId);
+            mHost.sync();
+
+            long deadline = System.nanoTime() + mTimeout * 1000000L;
+            try {
+                while (!isDone) {
+                    long wait = deadline - System.nanoTime();
+                    Event event = mEvents.poll(wait, TimeUnit.NANOSECONDS);
+                    if (event == null) {
+                        break;
+                    }
+                    if (event.mConnection == mConnection) {
+                        event.mAction.run();
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            UpgradeSummary summary = mMetrics.finish(isDone);
+            return new Result(mScenario, summary, mPhaseBytes, mFramesSent, mFramesReceived);
+        }
+
+        /**
+         * To run an action at a given time, on the current connection.
+         */
+        private void scheduleAt(long time, Runnable action) {
+            mEvents.add(new Event(time, mSequence++, mConnection, action));
+        }
+
+        /**
+         * To lose the connection: the packets in flight are dropped and the host reconnects after a delay.
+         */
+        private void disconnect(long delay) {
+            mConnection++;
+            scheduleAt(System.nanoTime() + delay * 1000000L, new Runnable() {
+                @Override
+                public void run() {
+                    // as the application on a new connection: the device tells which bytes to skip
+                    mHost.restart();
+                    mHost.sync();
+                }
+            });
+        }
+
+        /**
+         * To stop the upgrade: all events are dropped.
+         */
+        private void stop() {
+            mEvents.clear();
+            mConnection++;
+        }
+
+        private void countBytes(int length) {
+            UpgradePhase phase = mMetrics.getPhase();
+            if (phase != null) {
+                mPhaseBytes[phase.ordinal()] += length;
+            }
+        }
+
+        // the connection
+
+        @Override
+        public void sendUpgradeControl(final byte[] packet) {
+            mFramesSent++;
+            countBytes(packet.length);
+            mLastToDevice = Math.max(mLastToDevice, System.nanoTime() + mLatency);
+            scheduleAt(mLastToDevice, new Runnable() {
+                @Override
+                public void run() {
+                    mDevice.onPacket(packet);
+                }
+            });
+
+            if (packet[0] == OpCodes.UPDATE_DATA
+                    && packet[VMUPacket.LENGTH_REQUIRED_INFORMATION] == OpCodes.UPDATE_DATA_NOT_LAST_PACKET
+                    && mNextDisconnection < mDisconnections.length
+                    && mHost.getPosition() >= mDisconnections[mNextDisconnection]) {
+                mNextDisconnection++;
+                disconnect(mReconnectTime);
+            }
+        }
+
+        @Override
+        public void sendPacket(final byte[] packet) {
+            toHost(new Runnable() {
+                @Override
+                public void run() {
+                    mFramesReceived++;
+                    countBytes(packet.length);
+                    mHost.handleVMUPacket(VMUPacket.buildPacketFromBytes(packet));
+                }
+            });
+        }
+
+        @Override
+        public void acknowledge() {
+            toHost(new Runnable() {
+                @Override
+                public void run() {
+                    mFramesReceived++;
+                    mHost.onControlAcknowledged();
+                }
+            });
+        }
+
+        @Override
+        public void reboot() {
+            disconnect(mRebootTime);
+        }
+
+        private void toHost(Runnable action) {
+            mLastToHost = Math.max(mLastToHost, System.nanoTime() + mLatency);
+            scheduleAt(mLastToHost, action);
+        }
+
+        // the host
+
+        @Override
+        public void schedule(Runnable action, long delay) {
+            scheduleAt(System.nanoTime() + delay * 1000000L, action);
+        }
+
+        @Override
+        public void onResumePointChanged(ResumePoints point) {
+        }
+
+        @Override
+        public void askConfirmation(VMUpgradeHost.Confirmation confirmation) {
+            mHost.confirm(confirmation, true);
+        }
+
+        @Override
+        public void onDeviceError(int code) {
+            stop();
+        }
+
+        @Override
+        public void onUpgradeFailed(String message) {
+            stop();
+        }
+
+        @Override
+        public void onAbortConfirmed() {
+            stop();
+        }
+
+        @Override
+        public void onUpgradePostponed() {
+            stop();
+        }
+
+        @Override
+        public void onUpgradeComplete() {
+            isDone = true;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.vmupgradelibrary.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>This class measures the performance of a VM upgrade: the duration of each {@link UpgradePhase}, the throughput
+ * of the data transfer and the time remaining until the end of the transfer.</p>
+ * <p>All durations are measured with the monotonic clock {@link System#nanoTime()} so they are not affected by
+ * changes of the wall clock. The throughput is an exponentially weighted moving average which decays with the time
+ * between two samples rather than with the number of samples, so irregular UPDATE_DATA_BYTES_REQ requests don't
+ * bias it.</p>
+ * <p>A summary of each upgrade is kept - see {@link #getHistory()} - and given to the listener when the upgrade
+ * finishes.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class UpgradeMetrics {
+
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_IN_SECOND = 1000000000.0;
+    /**
+     * The number of nanoseconds in a millisecond.
+     */
+    private static final long NANOS_IN_MILLISECOND = 1000000L;
+    /**
+     * The time constant of the throughput moving average: a sample older than this weighs about a third of a new one.
+     */
+    private static final long THROUGHPUT_TIME_CONSTANT = 2000 * NANOS_IN_MILLISECOND;
+    /**
+     * The minimum time between two throughput samples, sent bytes are accumulated until it is reached.
+     */
+    private static final long MIN_SAMPLE_INTERVAL = 100 * NANOS_IN_MILLISECOND;
+    /**
+     * The maximum number of summaries kept in the history.
+     */
+    private static final int HISTORY_MAX = 16;
+
+    /**
+     * The listener to inform about the upgrade performance.
+     */
+    private final IUpgradeMetricsListener mListener;
+    /**
+     * The summaries of the previous upgrades, the most recent last.
+     */
+    private final LinkedList<UpgradeSummary> mHistory = new LinkedList<>();
+    /**
+     * The duration of each phase for the current upgrade, indexed by the phase ordinal.
+     */
+    private final long[] mPhaseDurations = new long[UpgradePhase.getLength()];
+
+    /**
+     * To know if an upgrade is being measured.
+     */
+    private boolean isRunning = false;
+    /**
+     * The name of the image of the current upgrade.
+     */
+    private String mImageName;
+    /**
+     * The size of the image of the current upgrade.
+     */
+    private long mImageSize;
+    /**
+     * The sync identifier of the image of the current upgrade.
+     */
+    private int mSyncId;
+    /**
+     * The wall clock time at which the current upgrade started.
+     */
+    private long mStartTime;
+    /**
+     * The monotonic time at which the current upgrade started.
+     */
+    private long mStartNanos;
+    /**
+     * The phase the current upgrade is in, null before the first phase.
+     */
+    private UpgradePhase mPhase;
+    /**
+     * The monotonic time at which the current phase started.
+     */
+    private long mPhaseStartNanos;
+    /**
+     * The position in the image of the next byte to send.
+     */
+    private long mPosition;
+    /**
+     * The number of image bytes sent during the current upgrade.
+     */
+    private long mBytesSent;
+    /**
+     * The moving average of the throughput in bytes per second.
+     */
+    private double mThroughput;
+    /**
+     * The monotonic time of the last throughput sample, 0 if there is none yet.
+     */
+    private long mLastSampleNanos;
+    /**
+     * The number of bytes sent since the last throughput sample.
+     */
+    private long mPendingBytes;
+
+    /**
+     * To build a new instance of this class.
+     *
+     * @param listener
+     *            the listener to inform about the upgrade performance, can be null.
+     */
+    public UpgradeMetrics(IUpgradeMetricsListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * To start measuring a new upgrade. If an upgrade was being measured, it is finished as not completed.
+     *
+     * @param imageName
+     *            the name of the image to upgrade.
+     * @param imageSize
+     *            the size of the image in bytes.
+     * @param syncId
+     *            the sync identifier of the image as sent with UPDATE_SYNC_REQ, can be null.
+     */
+    public synchronized void start(String imageName, long imageSize, byte[] syncId) {
+        if (isRunning) {
+            finish(false);
+        }
+
+        isRunning = true;
+        mImageName = imageName;
+        mImageSize = imageSize;
+        mSyncId = 0;
+        if (syncId != null) {
+            for (int i = Math.max(0, syncId.length - 4); i < syncId.length; i++) {
+                mSyncId = (mSyncId << 8) | (syncId[i] & 0xFF);
+            }
+        }
+        mStartTime = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+        mPhase = null;
+        mPhaseStartNanos = mStartNanos;
+        for (int i = 0; i < mPhaseDurations.length; i++) {
+            mPhaseDurations[i] = 0;
+        }
+        mPosition = 0;
+        mBytesSent = 0;
+        restartThroughput();
+    }
+
+    /**
+     * To inform that the upgrade goes into the given phase. The duration of the previous phase is recorded. A phase
+     * can be entered several times - for instance when the update is restarted - its durations are then added.
+     *
+     * @param phase
+     *            the new phase.
+     */
+    public synchronized void enterPhase(UpgradePhase phase) {
+        if (!isRunning || phase == mPhase) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        closePhase(now);
+        mPhase = phase;
+        mPhaseStartNanos = now;
+
+        if (phase == UpgradePhase.DATA_TRANSFER) {
+            restartThroughput();
+        }
+    }
+
+    /**
+     * To inform that the transfer restarts from the beginning of the image, for instance after a disconnection.
+     */
+    public synchronized void onTransferRestarted() {
+        mPosition = 0;
+        restartThroughput();
+    }
+
+    /**
+     * To inform that the device asked to skip some bytes of the image, for instance when it resumes a transfer. These
+     * bytes are not taken into account for the throughput.
+     *
+     * @param length
+     *            the number of skipped bytes.
+     */
+    public synchronized void onBytesSkipped(long length) {
+        if (isRunning && length > 0) {
+            mPosition += length;
+        }
+    }
+
+    /**
+     * To inform that some bytes of the image have been sent to the device.
+     *
+     * @param length
+     *            the number of sent bytes.
+     */
+    public synchronized void onBytesSent(int length) {
+        if (!isRunning || length <= 0) {
+            return;
+        }
+
+        mPosition += length;
+        mBytesSent += length;
+        mPendingBytes += length;
+
+        long now = System.nanoTime();
+        if (mLastSampleNanos == 0) {
+            // the first sample only starts the clock: we don't know yet how long these bytes take to be sent.
+            mLastSampleNanos = now;
+            mPendingBytes = 0;
+        }
+        else if (now - mLastSampleNanos >= MIN_SAMPLE_INTERVAL) {
+            long elapsed = now - mLastSampleNanos;
+            double rate = mPendingBytes * NANOS_IN_SECOND / elapsed;
+            if (mThroughput <= 0) {
+                mThroughput = rate;
+            }
+            else {
+                double alpha = 1 - Math.exp(-(double) elapsed / THROUGHPUT_TIME_CONSTANT);
+                mThroughput += alpha * (rate - mThroughput);
+            }
+            mLastSampleNanos = now;
+            mPendingBytes = 0;
+        }
+
+        if (mListener != null) {
+            mListener.onTransferProgress(getProgress(), mThroughput, getRemainingTime());
+        }
+    }
+
+    /**
+     * To finish measuring the current upgrade.
+     *
+     * @param completed
+     *            true if the device confirmed the end of the upgrade, false if it has been aborted or interrupted.
+     *
+     * @return the summary of the upgrade, null if no upgrade was being measured.
+     */
+    public synchronized UpgradeSummary finish(boolean completed) {
+        if (!isRunning) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        closePhase(now);
+        isRunning = false;
+        mPhase = null;
+
+        UpgradeSummary summary = new UpgradeSummary(mImageName, mImageSize, mSyncId, mStartTime, now - mStartNanos,
+                mPhaseDurations, mBytesSent, completed);
+        mHistory.addLast(summary);
+        if (mHistory.size() > HISTORY_MAX) {
+            mHistory.removeFirst();
+        }
+
+        if (mListener != null) {
+            mListener.onUpgradeFinished(summary);
+        }
+        return summary;
+    }
+
+    /**
+     * To know if an upgrade is being measured.
+     *
+     * @return true if an upgrade has been started and not finished.
+     */
+    public synchronized boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * To get the phase the upgrade is in.
+     *
+     * @return the current phase, null if there is none.
+     */
+    public synchronized UpgradePhase getPhase() {
+        return mPhase;
+    }
+
+    /**
+     * To get the progress of the data transfer.
+     *
+     * @return the percentage of the image which has been sent or skipped.
+     */
+    public synchronized double getProgress() {
+        return mImageSize > 0 ? Math.min(100.0, mPosition * 100.0 / mImageSize) : 0;
+    }
+
+    /**
+     * To get the estimated throughput of the data transfer.
+     *
+     * @return the throughput in bytes per second, 0 if it is not known yet.
+     */
+    public synchronized double getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * To get the estimated time until all the image has been sent.
+     *
+     * @return the remaining time in milliseconds, -1 if it cannot be estimated yet.
+     */
+    public synchronized long getRemainingTime() {
+        if (mThroughput <= 0) {
+            return -1;
+        }
+        long remaining = Math.max(0, mImageSize - mPosition);
+        return (long) (remaining * 1000 / mThroughput);
+    }
+
+    /**
+     * To get the duration of a phase for the current upgrade, the phase in progress included.
+     *
+     * @param phase
+     *            the phase for which we want the duration.
+     *
+     * @return the duration in nanoseconds.
+     */
+    public synchronized long getPhaseDuration(UpgradePhase phase) {
+        long duration = mPhaseDurations[phase.ordinal()];
+        if (isRunning && phase == mPhase) {
+            duration += System.nanoTime() - mPhaseStartNanos;
+        }
+        return duration;
+    }
+
+    /**
+     * To get the summaries of the last upgrades.
+     *
+     * @return a copy of the history, the most recent summary last.
+     */
+    public synchronized List<UpgradeSummary> getHistory() {
+        return new ArrayList<>(mHistory);
+    }
+
+    /**
+     * To record the duration of the current phase and to inform the listener.
+     *
+     * @param now
+     *            the current monotonic time.
+     */
+    private void closePhase(long now) {
+        if (mPhase != null) {
+            long duration = now - mPhaseStartNanos;
+            mPhaseDurations[mPhase.ordinal()] += duration;
+            if (mListener != null) {
+                mListener.onPhaseCompleted(mPhase, duration);
+            }
+        }
+    }
+
+    /**
+     * To restart the throughput estimation.
+     */
+    private void restartThroughput() {
+        mThroughput = 0;
+        mLastSampleNanos = 0;
+        mPendingBytes = 0;
+    }
+
+    /**
+     * This interface allows the metrics to publish information about the upgrade performance.
+     */
+    public interface IUpgradeMetricsListener {
+
+        /**
+         * Called each time some bytes of the image have been sent.
+         *
+         * @param percentage
+         *            the percentage of the image which has been sent.
+         * @param throughput
+         *            the estimated throughput in bytes per second, 0 if it is not known yet.
+         * @param remainingTime
+         *            the estimated remaining time in milliseconds, -1 if it is not known yet.
+         */
+        void onTransferProgress(double percentage, double throughput, long remainingTime);
+
+        /**
+         * Called when the upgrade leaves a phase.
+         *
+         * @param phase
+         *            the phase which has been left.
+         * @param duration
+         *            the time spent in this phase, in nanoseconds.
+         */
+        void onPhaseCompleted(UpgradePhase phase, long duration);
+
+        /**
+         * Called when the upgrade is finished.
+         *
+         * @param summary
+         *            the summary of the upgrade.
+         */
+        void onUpgradeFinished(UpgradeSummary summary);
+    }
+}
@@ -0,0 +1,75 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.vmupgradelibrary.metrics;
+
+/**
+ * All phases of a VM upgrade which are timed by {@link UpgradeMetrics}. The enumeration order follows the order in
+ * which the phases occur during an upgrade.
+ */
+public enum UpgradePhase {
+    /**
+     * From the UPDATE_SYNC_REQ message until the UPDATE_SYNC_CFM message.
+     */
+    SYNC,
+    /**
+     * From the UPDATE_START_REQ message until the UPDATE_START_CFM message, retries included.
+     */
+    START,
+    /**
+     * From the UPDATE_START_DATA_REQ message until the last UPDATE_DATA message has been acknowledged.
+     */
+    DATA_TRANSFER,
+    /**
+     * From the first UPDATE_IS_VALIDATION_DONE_REQ message until the UPDATE_TRANSFER_COMPLETE_IND message.
+     */
+    VALIDATION,
+    /**
+     * From the UPDATE_TRANSFER_COMPLETE_RES message until the UPDATE_COMPLETE_IND message.
+     */
+    COMMIT;
+
+    /**
+     * To keep constantly this array without calling the values() method which is copying an array when it's called.
+     */
+    private static final UpgradePhase[] values = UpgradePhase.values();
+
+    /**
+     * To get the phase matching the corresponding int value in this enumeration.
+     *
+     * @param value
+     *            the int value from which we want the matching phase.
+     *
+     * @return the matching phase or null if there is none.
+     */
+    public static UpgradePhase valueOf(int value) {
+        if (value < 0 || value >= values.length) {
+            return null;
+        }
+
+        return values[value];
+    }
+
+    /**
+     * To get the number of phases in this enumeration.
+     *
+     * @return the number of phases.
+     */
+    public static int getLength() {
+        return values.length;
+    }
+}
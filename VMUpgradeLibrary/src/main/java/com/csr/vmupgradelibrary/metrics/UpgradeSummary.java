@@ -0,0 +1,330 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.vmupgradelibrary.metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The immutable record of one VM upgrade as measured by {@link UpgradeMetrics}.</p>
+ * <p>A summary identifies the image by its name, size and sync identifier - the last bytes of the MD5 checksum sent
+ * with UPDATE_SYNC_REQ - so records from several firmware builds can be compared with each other.</p>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class UpgradeSummary {
+
+    /**
+     * The version of the binary format used by {@link #writeTo(DataOutput)}.
+     */
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS_IN_SECOND = 1000000000.0;
+
+    /**
+     * The name of the upgraded image.
+     */
+    private final String mImageName;
+    /**
+     * The size of the upgraded image in bytes.
+     */
+    private final long mImageSize;
+    /**
+     * The sync identifier of the image.
+     */
+    private final int mSyncId;
+    /**
+     * The wall clock time at which the upgrade started, in milliseconds since the epoch.
+     */
+    private final long mStartTime;
+    /**
+     * The total duration of the upgrade in nanoseconds.
+     */
+    private final long mTotalDuration;
+    /**
+     * The duration of each phase in nanoseconds, indexed by the phase ordinal.
+     */
+    private final long[] mPhaseDurations;
+    /**
+     * The number of image bytes sent during the upgrade.
+     */
+    private final long mBytesSent;
+    /**
+     * True if the device confirmed the end of the upgrade, false if it has been aborted or interrupted.
+     */
+    private final boolean mCompleted;
+
+    /**
+     * To build a new summary.
+     *
+     * @param imageName
+     *            the name of the upgraded image.
+     * @param imageSize
+     *            the size of the upgraded image in bytes.
+     * @param syncId
+     *            the sync identifier of the image.
+     * @param startTime
+     *            the wall clock time at which the upgrade started.
+     * @param totalDuration
+     *            the total duration of the upgrade in nanoseconds.
+     * @param phaseDurations
+     *            the duration of each phase in nanoseconds, indexed by the phase ordinal.
+     * @param bytesSent
+     *            the number of image bytes sent.
+     * @param completed
+     *            true if the upgrade completed.
+     */
+    UpgradeSummary(String imageName, long imageSize, int syncId, long startTime, long totalDuration,
+            long[] phaseDurations, long bytesSent, boolean completed) {
+        mImageName = imageName;
+        mImageSize = imageSize;
+        mSyncId = syncId;
+        mStartTime = startTime;
+        mTotalDuration = totalDuration;
+        mPhaseDurations = new long[UpgradePhase.getLength()];
+        System.arraycopy(phaseDurations, 0, mPhaseDurations, 0,
+                Math.min(phaseDurations.length, mPhaseDurations.length));
+        mBytesSent = bytesSent;
+        mCompleted = completed;
+    }
+
+    /**
+     * To get the name of the upgraded image.
+     *
+     * @return the image name.
+     */
+    public String getImageName() {
+        return mImageName;
+    }
+
+    /**
+     * To get the size of the upgraded image.
+     *
+     * @return the image size in bytes.
+     */
+    public long getImageSize() {
+        return mImageSize;
+    }
+
+    /**
+     * To get the sync identifier of the upgraded image.
+     *
+     * @return the sync identifier.
+     */
+    public int getSyncId() {
+        return mSyncId;
+    }
+
+    /**
+     * To get the time at which the upgrade started.
+     *
+     * @return the start time in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * To get the total duration of the upgrade.
+     *
+     * @return the duration in nanoseconds.
+     */
+    public long getTotalDuration() {
+        return mTotalDuration;
+    }
+
+    /**
+     * To get the duration of one phase of the upgrade.
+     *
+     * @param phase
+     *            the phase for which we want the duration.
+     *
+     * @return the duration in nanoseconds, 0 if the phase did not occur.
+     */
+    public long getPhaseDuration(UpgradePhase phase) {
+        return mPhaseDurations[phase.ordinal()];
+    }
+
+    /**
+     * To get the number of image bytes which have been sent.
+     *
+     * @return the number of bytes.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * To know if the upgrade completed.
+     *
+     * @return true if the device confirmed the end of the upgrade.
+     */
+    public boolean isCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * To get the average throughput of the data transfer phase.
+     *
+     * @return the throughput in bytes per second, 0 if no data has been transferred.
+     */
+    public double getDataThroughput() {
+        long duration = mPhaseDurations[UpgradePhase.DATA_TRANSFER.ordinal()];
+        return duration > 0 ? mBytesSent * NANOS_IN_SECOND / duration : 0;
+    }
+
+    /**
+     * To write this summary using a compact binary format.
+     *
+     * @param output
+     *            the output to write to.
+     *
+     * @throws IOException
+     *             if writing fails.
+     */
+    public void writeTo(DataOutput output) throws IOException {
+        output.writeByte(FORMAT_VERSION);
+        output.writeUTF(mImageName == null ? "" : mImageName);
+        output.writeLong(mImageSize);
+        output.writeInt(mSyncId);
+        output.writeLong(mStartTime);
+        output.writeLong(mTotalDuration);
+        output.writeByte(mPhaseDurations.length);
+        for (long duration : mPhaseDurations) {
+            output.writeLong(duration);
+        }
+        output.writeLong(mBytesSent);
+        output.writeBoolean(mCompleted);
+    }
+
+    /**
+     * To read a summary written with {@link #writeTo(DataOutput)}.
+     *
+     * @param input
+     *            the input to read from.
+     *
+     * @return the read summary.
+     *
+     * @throws IOException
+     *             if reading fails or if the format is unknown.
+     */
+    public static UpgradeSummary readFrom(DataInput input) throws IOException {
+        int version = input.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown upgrade summary format: " + version);
+        }
+        String imageName = input.readUTF();
+        long imageSize = input.readLong();
+        int syncId = input.readInt();
+        long startTime = input.readLong();
+        long totalDuration = input.readLong();
+        long[] phases = new long[input.readUnsignedByte()];
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = input.readLong();
+        }
+        long bytesSent = input.readLong();
+        boolean completed = input.readBoolean();
+        return new UpgradeSummary(imageName, imageSize, syncId, startTime, totalDuration, phases, bytesSent,
+                completed);
+    }
+
+    /**
+     * To append a summary at the end of a history file.
+     *
+     * @param file
+     *            the history file, created if it doesn't exist.
+     * @param summary
+     *            the summary to append.
+     *
+     * @throws IOException
+     *             if writing fails.
+     */
+    public static void appendToFile(File file, UpgradeSummary summary) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            summary.writeTo(output);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    /**
+     * To read all summaries from a history file written with {@link #appendToFile(File, UpgradeSummary)}.
+     *
+     * @param file
+     *            the history file.
+     *
+     * @return the summaries in the order they were written, an empty list if the file doesn't exist.
+     *
+     * @throws IOException
+     *             if reading fails.
+     */
+    public static List<UpgradeSummary> readFromFile(File file) throws IOException {
+        List<UpgradeSummary> summaries = new ArrayList<>();
+        if (!file.exists()) {
+            return summaries;
+        }
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                summaries.add(readFrom(input));
+            }
+        }
+        catch (EOFException e) {
+            // end of the history
+        }
+        finally {
+            input.close();
+        }
+        return summaries;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Upgrade of ").append(mImageName)
+                .append(" (").append(mImageSize).append(" bytes, sync id ")
+                .append(String.format("%08X", mSyncId)).append("): ")
+                .append(mCompleted ? "completed" : "not completed")
+                .append(" in ").append(mTotalDuration / 1000000).append(" ms");
+
+        for (UpgradePhase phase : UpgradePhase.values()) {
+            builder.append(", ").append(phase).append(' ')
+                    .append(mPhaseDurations[phase.ordinal()] / 1000000).append(" ms");
+        }
+
+        builder.append(", ").append(mBytesSent).append(" bytes sent at ")
+                .append((long) getDataThroughput()).append(" B/s");
+        return builder.toString();
+    }
+}
@@ -4,11 +4,16 @@
 
 package com.csr.gaiacontrol.activities;
 
+import android.Manifest;
 import android.bluetooth.BluetoothDevice;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentTransaction;
+import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -16,10 +21,9 @@ import com.csr.gaia.library.GaiaError;
 import com.csr.gaia.library.GaiaLink;
 import com.csr.gaiacontrol.R;
 import com.csr.gaiacontrol.fragments.ConnectionFragment;
+import com.csr.gaiacontrol.models.devices.DeviceRepository;
 
 import java.lang.ref.WeakReference;
-import java.util.Collections;
-import java.util.Set;
 
 /**
  * <p>This class is the connection activity for this application. It allows to display all devices in which the
@@ -38,6 +42,10 @@ public class ConnectionActivity extends ModelActivity implements ConnectionFragm
      * The fragment which controls the display where the user can select a device to control.
      */
     private ConnectionFragment mConnectionFragment;
+    /**
+     * The paired and discovered devices displayed by the fragment.
+     */
+    private DeviceRepository mDeviceRepository;
     /**
      * The device to attempt to connect using GaiaLink.
      */
@@ -67,6 +75,14 @@ public class ConnectionActivity extends ModelActivity implements ConnectionFragm
      * The maximum number of attempts when a device is already connected.
      */
     private static final int NB_ATTEMPTS_CONNECTION_MAX = 2;
+    /**
+     * The request code for the location permission, needed to receive the devices found by a discovery.
+     */
+    private static final int REQUEST_LOCATION_PERMISSION = 1;
+    /**
+     * To know if the location permission has been asked: the user is only asked once per activity.
+     */
+    private boolean isLocationRequested = false;
 
     /**
      * inherited from ModeActivity
@@ -75,6 +91,12 @@ public class ConnectionActivity extends ModelActivity implements ConnectionFragm
         updateListDevices();
     }
 
+    @Override
+    public void onBluetoothDisabled() {
+        mDeviceRepository.clear();
+        super.onBluetoothDisabled();
+    }
+
     /**
      * called from children fragment, inherited from children fragment's interface
      */
@@ -100,6 +122,8 @@ public class ConnectionActivity extends ModelActivity implements ConnectionFragm
         }
         displayWaitingProcess(true);
         mDevice = device;
+        // a running discovery slows down the connection
+        mDeviceRepository.stopDiscovery();
 
         if (mGaiaLink.isConnected()) {
             mWaitingForConnection = true;
@@ -125,6 +149,33 @@ public class ConnectionActivity extends ModelActivity implements ConnectionFragm
         Log.d(TAG,"on Resume() called...");
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mDeviceRepository.stop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDeviceRepository.close();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
+            @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode != REQUEST_LOCATION_PERMISSION) {
+            return;
+        }
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            updateListDevices();
+        }
+        else {
+            makeToast(R.string.toast_location_denied, Toast.LENGTH_LONG);
+        }
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -149,6 +200,7 @@ public class ConnectionActivity extends ModelActivity implements ConnectionFragm
     private void init() {
         // fragments
         mConnectionFragment = ConnectionFragment.newInstance();
+        mDeviceRepository = new DeviceRepository(this, mBtAdapter, mConnectionFragment);
     }
 
     @Override
@@ -157,21 +209,38 @@ public class ConnectionActivity extends ModelActivity implements ConnectionFragm
     }
 
     /**
-     * To update the list of the paired Bluetooth devices list.
+     * To update the list of the paired Bluetooth devices list: the paired devices are loaded in the background and
+     * the devices found by a discovery are added as they come.
      */
     private void updateListDevices() {
         if (mBtAdapter != null && mBtAdapter.isEnabled()) {
-            mConnectionFragment.setListDevices(mBtAdapter.getBondedDevices());
+            mDeviceRepository.start();
+            startDiscovery();
         }
         else {
-            Set<BluetoothDevice> emptySetDevices = Collections.emptySet();
-            mConnectionFragment.setListDevices(emptySetDevices);
+            mDeviceRepository.clear();
+            mConnectionFragment.onDevicesLoaded(0);
         }
     }
 
     /**
-     * When the gaia connection is connected this method is called to start the next activity.
+     * To start a discovery. Since Android 6.0 the devices found are only given to an application which has the
+     * location permission: it is asked first if it has not been granted.
      */
+    private void startDiscovery() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED) {
+            mDeviceRepository.startDiscovery();
+        }
+        else if (!isLocationRequested) {
+            isLocationRequested = true;
+            ActivityCompat.requestPermissions(this, new String[] { Manifest.permission.ACCESS_COARSE_LOCATION },
+                    REQUEST_LOCATION_PERMISSION);
+        }
+    }
+
+    /**
+     * When the gaia connection is connected this method is called to start the next activity.
     private void onConnect() {
         isAttemptingSPP = false;
         iSAttemptingGAIAUUID = false;
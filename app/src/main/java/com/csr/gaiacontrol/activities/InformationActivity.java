@@ -4,6 +4,7 @@
 package com.csr.gaiacontrol.activities;
 
 import java.lang.ref.WeakReference;
+import java.util.EnumSet;
 
 import android.bluetooth.BluetoothDevice;
 import android.os.Bundle;
@@ -19,8 +20,11 @@ import com.csr.gaia.library.Gaia;
 import com.csr.gaia.library.GaiaError;
 import com.csr.gaia.library.GaiaLink;
 import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.handshake.DeviceState;
+import com.csr.gaia.library.handshake.GaiaHandshake;
 import com.csr.gaiacontrol.R;
 import com.csr.gaiacontrol.adapters.InformationListAdapter;
+import com.csr.gaiacontrol.utils.FrameCoalescer;
 import com.csr.gaiacontrol.utils.Utils;
 import com.csr.gaiacontrol.views.DividerItemDecoration;
 
@@ -42,6 +46,14 @@ public class InformationActivity extends ModelActivity implements InformationLis
      * The adapter for the information to display as items in the recycler view.
      */
     private InformationListAdapter mListAdapter;
+    /**
+     * To display the values given to the adapter at most once per frame, whatever the rate the device sends them.
+     */
+    private FrameCoalescer mCoalescer;
+    /**
+     * To request all the information displayed by this activity in one burst.
+     */
+    private GaiaHandshake mHandshake;
 
     @Override
     public String getInformationName(int position) {
@@ -78,13 +90,13 @@ public class InformationActivity extends ModelActivity implements InformationLis
     protected void onResume() {
         super.onResume();
         BluetoothDevice device = mGaiaLink.getBluetoothDevice();
-        mListAdapter.setValue(Information.NAME.ordinal(), device.getName());
-        mListAdapter.setValue(Information.BLUETOOTH_ADDRESS.ordinal(), device.getAddress());
+        mCoalescer.put(Information.NAME.ordinal(), device.getName());
+        mCoalescer.put(Information.BLUETOOTH_ADDRESS.ordinal(), device.getAddress());
 
-        askForBatteryLevel();
-        askForAPIVersion();
-        askForRSSILevel();
-        registerNotification(Gaia.EventId.CHARGER_CONNECTION);
+        // the acknowledgements are handled by handlePacket
+        mHandshake = new GaiaHandshake(mGaiaLink, null, mHandshakeListener);
+        mHandshake.start(EnumSet.of(DeviceState.Item.BATTERY_LEVEL, DeviceState.Item.API_VERSION,
+                DeviceState.Item.RSSI, DeviceState.Item.NOTIFICATIONS), Gaia.EventId.CHARGER_CONNECTION);
     }
 
     @Override
@@ -93,6 +105,10 @@ public class InformationActivity extends ModelActivity implements InformationLis
         // removing all active runnable & notifications
         mHandler.removeCallbacks(mRunnableBattery);
         mHandler.removeCallbacks(mRunnableRSSI);
+        if (mHandshake != null) {
+            mHandshake.cancel();
+        }
+        mCoalescer.clear();
         if (mGaiaLink.isConnected()) {
             cancelNotification(Gaia.EventId.CHARGER_CONNECTION);
         }
@@ -127,6 +143,7 @@ public class InformationActivity extends ModelActivity implements InformationLis
         // specify an adapter for the recycler view
         mListAdapter = new InformationListAdapter(this);
         recyclerView.setAdapter(mListAdapter);
+        mCoalescer = new FrameCoalescer(mFrameListener);
     }
 
     /**
@@ -136,13 +153,6 @@ public class InformationActivity extends ModelActivity implements InformationLis
         sendGaiaPacket(Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL);
     }
 
-    /**
-     * To request the API version from the device.
-     */
-    private void askForAPIVersion() {
-        sendGaiaPacket(Gaia.COMMAND_GET_API_VERSION);
-    }
-
     /**
      * To request the RSSI level from the device.
      */
@@ -204,25 +214,25 @@ public class InformationActivity extends ModelActivity implements InformationLis
             case Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL:
                 if (DEBUG)
                     Log.w(TAG, "Received \"COMMAND_GET_CURRENT_BATTERY_LEVEL\" not supported.");
-                mListAdapter.setValue(Information.BATTERY_LEVEL.ordinal(), getString(R.string.info_not_supported));
+                mCoalescer.put(Information.BATTERY_LEVEL.ordinal(), getString(R.string.info_not_supported));
                 break;
 
             case Gaia.COMMAND_GET_CURRENT_RSSI:
                 if (DEBUG)
                     Log.w(TAG, "Received \"COMMAND_GET_CURRENT_RSSI\" not supported.");
-                mListAdapter.setValue(Information.SIGNAL_LEVEL.ordinal(), getString(R.string.info_not_supported));
+                mCoalescer.put(Information.SIGNAL_LEVEL.ordinal(), getString(R.string.info_not_supported));
                 break;
 
             case Gaia.COMMAND_GET_API_VERSION:
                 if (DEBUG)
                     Log.w(TAG, "Received \"COMMAND_GET_API_VERSION\" not supported.");
-                mListAdapter.setValue(Information.API_VERSION.ordinal(), getString(R.string.info_not_supported));
+                mCoalescer.put(Information.API_VERSION.ordinal(), getString(R.string.info_not_supported));
                 break;
 
             case Gaia.COMMAND_EVENT_NOTIFICATION:
                 if (DEBUG)
                     Log.w(TAG, "Received \"COMMAND_EVENT_NOTIFICATION\" not supported.");
-                mListAdapter.setValue(Information.BATTERY_STATUS.ordinal(), getString(R.string.info_not_supported));
+                mCoalescer.put(Information.BATTERY_STATUS.ordinal(), getString(R.string.info_not_supported));
                 break;
         }
     }
@@ -238,7 +248,7 @@ public class InformationActivity extends ModelActivity implements InformationLis
         if (checkStatus(packet)) {
             int level = Utils.extractIntField(packet.getPayload(), 1, 2, false);
             // we display the received value
-            mListAdapter.setValue(Information.BATTERY_LEVEL.ordinal(), level + " mV");
+            mCoalescer.put(Information.BATTERY_LEVEL.ordinal(), level + " mV");
             // we need to retrieve this information constantly
             mHandler.postDelayed(mRunnableBattery, WAITING_TIME);
         }
@@ -255,7 +265,7 @@ public class InformationActivity extends ModelActivity implements InformationLis
         if (checkStatus(packet)) {
             int level = packet.getByte(1);
             // we display the received value
-            mListAdapter.setValue(Information.SIGNAL_LEVEL.ordinal(), level + " dBm");
+            mCoalescer.put(Information.SIGNAL_LEVEL.ordinal(), level + " dBm");
             // we need to retrieve this information constantly
             mHandler.postDelayed(mRunnableRSSI, WAITING_TIME);
         }
@@ -270,7 +280,7 @@ public class InformationActivity extends ModelActivity implements InformationLis
      */
     private void receiveGetAPIVersion(GaiaPacket packet) {
         if (checkStatus(packet)) {
-            mListAdapter.setValue(Information.API_VERSION.ordinal(), packet.getByte(1) + "." + packet.getByte(2) + "."
+            mCoalescer.put(Information.API_VERSION.ordinal(), packet.getByte(1) + "." + packet.getByte(2) + "."
                     + packet.getByte(3));
         }
     }
@@ -289,7 +299,7 @@ public class InformationActivity extends ModelActivity implements InformationLis
             else {
                 text = getString(R.string.info_battery_status_no_charge);
             }
-            mListAdapter.setValue(Information.BATTERY_STATUS.ordinal(), text);
+            mCoalescer.put(Information.BATTERY_STATUS.ordinal(), text);
             break;
 
         default:
@@ -352,6 +362,32 @@ public class InformationActivity extends ModelActivity implements InformationLis
         return false;
     }
 
+    /**
+     * To give the values merged during a frame to the adapter, the key of a value is the position of its item.
+     */
+    private final FrameCoalescer.IFrameListener mFrameListener = new FrameCoalescer.IFrameListener() {
+        @Override
+        public void onFrameUpdate(int key, Object value) {
+            mListAdapter.setValue(key, (String) value);
+        }
+    };
+
+    /**
+     * To know when the device has answered all the requests sent when this activity is displayed.
+     */
+    private final GaiaHandshake.IHandshakeListener mHandshakeListener = new GaiaHandshake.IHandshakeListener() {
+        @Override
+        public void onStateChanged(DeviceState state) {
+            // the values are displayed from the acknowledgements in handlePacket
+        }
+
+        @Override
+        public void onHandshakeComplete(DeviceState state) {
+            if (DEBUG)
+                Log.i(TAG, "Handshake complete: " + state);
+        }
+    };
+
     /**
      * To start a task to get the battery level from the device.
      */
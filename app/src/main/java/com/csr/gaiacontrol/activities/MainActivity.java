@@ -21,11 +21,23 @@ import com.csr.gaia.library.Gaia;
 import com.csr.gaia.library.GaiaError;
 import com.csr.gaia.library.GaiaLink;
 import com.csr.gaia.library.GaiaPacket;
+import com.csr.gaia.library.capabilities.Capability;
+import com.csr.gaia.library.capabilities.CapabilityCache;
+import com.csr.gaia.library.capabilities.CapabilitySet;
+import com.csr.gaia.library.handshake.DeviceState;
+import com.csr.gaia.library.handshake.GaiaHandshake;
+import com.csr.gaia.library.values.ApiVersion;
+import com.csr.gaia.library.values.BatteryLevel;
+import com.csr.gaia.library.values.DeviceValueDecoder;
+import com.csr.gaia.library.values.Rssi;
 import com.csr.gaiacontrol.R;
 import com.csr.gaiacontrol.utils.Consts;
+import com.csr.gaiacontrol.utils.FrameCoalescer;
 import com.csr.gaiacontrol.utils.Utils;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.EnumSet;
 
 /**
  * <p>This activity is the main activity for this application. It navigates between all other activities depending on
@@ -47,6 +59,18 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
      * The time to wait before to check the state for information as battery level or RSSI signal.
      */
     private static final int TIME_TO_CHECK = 5000;
+    /**
+     * The name of the file in which the capabilities of the devices are kept.
+     */
+    private static final String CAPABILITIES_FILE = "capabilities.bin";
+    /**
+     * The key of the battery level image for the frame coalescer.
+     */
+    private static final int KEY_BATTERY_IMAGE = 0;
+    /**
+     * The key of the signal level image for the frame coalescer.
+     */
+    private static final int KEY_SIGNAL_IMAGE = 1;
     /**
      * To have access to the instance which controls the led.
      */
@@ -79,6 +103,18 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
      * To know the current battery level.
      */
     private int mBatteryLevel = -1;
+    /**
+     * The capabilities of the devices already probed, to display the tiles at once on reconnection.
+     */
+    private CapabilityCache mCapabilityCache;
+    /**
+     * To request the state of the connected device in one burst.
+     */
+    private GaiaHandshake mHandshake;
+    /**
+     * To set the battery and signal images at most once per frame, whatever the rate the device sends the values.
+     */
+    private FrameCoalescer mCoalescer;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -140,6 +176,12 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
     protected void onResume() {
         super.onResume();
 
+        // the values are decoded on the reader thread of the link, we only get them when they change.
+        DeviceValueDecoder decoder = mGaiaLink.getValueDecoder();
+        decoder.subscribe(BatteryLevel.class, mBatteryLevelListener);
+        decoder.subscribe(Rssi.class, mRssiListener);
+        decoder.subscribe(ApiVersion.class, mApiVersionListener);
+
         if (!mGaiaLink.isConnected()) {
             startConnectionActivity();
         }
@@ -155,6 +197,14 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
         // removing all active runnable
         mHandler.removeCallbacks(mRunnableBattery);
         mHandler.removeCallbacks(mRunnableRSSI);
+        if (mHandshake != null) {
+            mHandshake.cancel();
+        }
+        mCoalescer.clear();
+        DeviceValueDecoder decoder = mGaiaLink.getValueDecoder();
+        decoder.unsubscribe(mBatteryLevelListener);
+        decoder.unsubscribe(mRssiListener);
+        decoder.unsubscribe(mApiVersionListener);
         if (mGaiaLink.isConnected()) {
             cancelNotification(Gaia.EventId.CHARGER_CONNECTION);
         }
@@ -181,6 +231,9 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
         findViewById(R.id.bt_tws).setOnClickListener(this);
         findViewById(R.id.bt_update).setOnClickListener(this);
         findViewById(R.id.bt_remote).setOnClickListener(this);
+
+        mCapabilityCache = new CapabilityCache(new File(getFilesDir(), CAPABILITIES_FILE));
+        mCoalescer = new FrameCoalescer(mFrameListener);
     }
 
     @Override
@@ -238,21 +291,23 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
             if (DEBUG)
                 Log.i(TAG, "Received \"COMMAND_GET_CURRENT_BATTERY_LEVEL\" packet with a " + status + " status.");
             if (checkStatus(packet))
-                receivePacketGetCurrentBatteryLevel(packet);
+                // the value is given to mBatteryLevelListener if it changed, we need to retrieve it constantly
+                mHandler.postDelayed(mRunnableBattery, TIME_TO_CHECK);
             break;
 
         case Gaia.COMMAND_GET_CURRENT_RSSI:
             if (DEBUG)
                 Log.i(TAG, "Received \"COMMAND_GET_CURRENT_RSSI\" packet with a " + status + " status.");
             if (checkStatus(packet))
-                receivePacketGetCurrentRSSI(packet);
+                // the value is given to mRssiListener if it changed, we need to retrieve it constantly
+                mHandler.postDelayed(mRunnableRSSI, TIME_TO_CHECK);
             break;
 
         case Gaia.COMMAND_GET_API_VERSION:
             if (DEBUG)
                 Log.i(TAG, "Received \"COMMAND_GET_API_VERSION\" packet with a " + status + " status.");
-            if (checkStatus(packet))
-                receivePacketGetAPIVersion(packet);
+            // the value is given to mApiVersionListener
+            checkStatus(packet);
             break;
 
         case Gaia.COMMAND_EVENT_NOTIFICATION:
@@ -261,64 +316,6 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
             handleNotification(packet);
             break;
 
-        case Gaia.COMMAND_GET_USER_EQ_CONTROL:
-            // to know if the EQ feature is available
-            if (DEBUG)
-                Log.i(TAG, "Received \"COMMAND_GET_USER_EQ_CONTROL\" packet with a " + status + " status.");
-            if (!status.equals(Gaia.Status.NOT_SUPPORTED))
-                findViewById(R.id.bt_equalizer).setVisibility(View.VISIBLE);
-            break;
-
-        case Gaia.COMMAND_GET_3D_ENHANCEMENT_CONTROL:
-            // to know if the EQ feature is available
-            if (DEBUG)
-                Log.i(TAG, "Received \"COMMAND_GET_3D_ENHANCEMENT_CONTROL\" packet with a " + status + " status.");
-            if (!status.equals(Gaia.Status.NOT_SUPPORTED))
-                findViewById(R.id.bt_equalizer).setVisibility(View.VISIBLE);
-            break;
-
-        case Gaia.COMMAND_GET_BASS_BOOST_CONTROL:
-            // to know if the EQ feature is available
-            if (DEBUG)
-                Log.i(TAG, "Received \"COMMAND_GET_BASS_BOOST_CONTROL\" packet with a " + status + " status.");
-            if (!status.equals(Gaia.Status.NOT_SUPPORTED))
-                findViewById(R.id.bt_equalizer).setVisibility(View.VISIBLE);
-            break;
-
-        case Gaia.COMMAND_GET_TWS_AUDIO_ROUTING:
-            // to know if the TWS feature is available
-            if (DEBUG)
-                Log.i(TAG, "Received \"COMMAND_GET_TWS_AUDIO_ROUTING\" packet with a " + status + " status.");
-            if (!status.equals(Gaia.Status.NOT_SUPPORTED))
-                findViewById(R.id.bt_tws).setVisibility(View.VISIBLE);
-            break;
-
-        case Gaia.COMMAND_GET_TWS_VOLUME:
-            // to know if the TWS feature is available
-            if (DEBUG)
-                Log.i(TAG, "Received \"COMMAND_GET_TWS_VOLUME\" packet with a " + status + " status.");
-            if (!status.equals(Gaia.Status.NOT_SUPPORTED))
-                findViewById(R.id.bt_tws).setVisibility(View.VISIBLE);
-            break;
-
-        case Gaia.COMMAND_VM_UPGRADE_CONNECT:
-            // to know if the TWS feature is available
-            if (DEBUG)
-                Log.i(TAG, "Received \"COMMAND_VM_UPGRADE_CONNECT\" packet with a " + status + " status.");
-            if (!status.equals(Gaia.Status.NOT_SUPPORTED)) {
-                findViewById(R.id.bt_update).setVisibility(View.VISIBLE);
-            }
-            sendGaiaPacket(Gaia.COMMAND_VM_UPGRADE_DISCONNECT);
-            break;
-
-            case Gaia.COMMAND_AV_REMOTE_CONTROL:
-                // To know if the remote control feature is available
-                if (DEBUG)
-                    Log.i(TAG, "Received \"COMMAND_AV_REMOTE_CONTROL\" packet with a " + status + " status.");
-                if (!status.equals(Gaia.Status.NOT_SUPPORTED))
-                    findViewById(R.id.bt_remote).setVisibility(View.VISIBLE);
-                break;
-
         default:
             if (DEBUG)
                 Log.d(TAG, "Received packet - command: " + Utils.getIntToHexadecimal(packet.getCommandId())
@@ -342,47 +339,39 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
     }
 
     /**
-     * Called when we receive a packet about the command COMMAND_GET_CURRENT_BATTERY_LEVEL to manage the application
-     * depending on information from the packet.
+     * Called when the battery level of the device changed.
      *
-     * @param packet
-     *            The packet about the received command COMMAND_GET_CURRENT_BATTERY_LEVEL.
+     * @param level
+     *            The new battery level.
      */
-    private void receivePacketGetCurrentBatteryLevel(GaiaPacket packet) {
+    private void receiveBatteryLevel(BatteryLevel level) {
         mImageViewBatteryLevel.setVisibility(View.VISIBLE);
-        mBatteryLevel = Utils.extractIntField(packet.getPayload(), 1, 2, false);
+        mBatteryLevel = level.getMillivolts();
         // we display the received value
         updateDisplayBattery();
-        // we need to retrieve this information constantly
-        mHandler.postDelayed(mRunnableBattery, TIME_TO_CHECK);
     }
 
     /**
-     * Called when we receive a packet about the command COMMAND_GET_CURRENT_RSSI to manage the application depending on
-     * information from the packet.
+     * Called when the RSSI of the device changed.
      *
-     * @param packet
-     *            The packet about the received command COMMAND_GET_CURRENT_RSSI.
+     * @param rssi
+     *            The new RSSI.
      */
-    private void receivePacketGetCurrentRSSI(GaiaPacket packet) {
+    private void receiveRssi(Rssi rssi) {
         mImageViewSignalLevel.setVisibility(View.VISIBLE);
-        int level = packet.getByte(1);
         // we display the received value
-        showSignal(level);
-        // we need to retrieve this information constantly
-        mHandler.postDelayed(mRunnableRSSI, TIME_TO_CHECK);
+        showSignal(rssi.getDbm());
     }
 
     /**
-     * Called when we receive a packet about the command COMMAND_GET_CURRENT_RSSI to manage the application depending on
-     * information from the packet.
+     * Called when we receive the API version of the device.
      *
-     * @param packet
-     *            The packet about the received command COMMAND_GET_CURRENT_RSSI.
+     * @param version
+     *            The API version.
      */
-    private void receivePacketGetAPIVersion(GaiaPacket packet) {
-        String APIText = "API version " + packet.getByte(1) + "." + packet.getByte(2) + "."
-                + packet.getByte(3);
+    private void receiveAPIVersion(ApiVersion version) {
+        String APIText = "API version " + version.getProtocol() + "." + version.getMajor() + "."
+                + version.getMinor();
         mTextViewVersionNumber.setVisibility(View.VISIBLE);
         mTextViewVersionNumber.setText(APIText);
     }
@@ -520,25 +509,22 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
         mTextViewVersionNumber.setText("v0.1");
 
         // get information from device
-
-      /*askForLedState();
-        askForBatteryLevel();
-        askForAPIVersion();
-        askForRSSILevel();
-        askForEQService();
-        askForTWSService();
-        askForUpdateService();
-        askForRemoteService();*/
-
-        registerNotification(Gaia.EventId.CHARGER_CONNECTION);
+        startHandshake();
     }
 
     /**
-     * To request the LED state from the device.
+     * To request all the information about the device at once: LED state, battery level, API version, RSSI, supported
+     * features and charger notifications. The acknowledgements are still handled by {@link #handlePacket(Message)},
+     * the handshake displays the tiles of the supported features as soon as they are known.
      */
-    private void askForLedState() {
+    private void startHandshake() {
         mButtonLed.setVisibility(View.GONE);
-        sendGaiaPacket(Gaia.COMMAND_GET_LED_CONTROL);
+        showCapabilities(CapabilitySet.UNKNOWN);
+        if (mHandshake != null) {
+            mHandshake.cancel();
+        }
+        mHandshake = new GaiaHandshake(mGaiaLink, mCapabilityCache, mHandshakeListener);
+        mHandshake.start(EnumSet.allOf(DeviceState.Item.class), Gaia.EventId.CHARGER_CONNECTION);
     }
 
     /**
@@ -548,13 +534,6 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
         sendGaiaPacket(Gaia.COMMAND_GET_CURRENT_BATTERY_LEVEL);
     }
 
-    /**
-     * To request the API version from the device.
-     */
-    private void askForAPIVersion() {
-        sendGaiaPacket(Gaia.COMMAND_GET_API_VERSION);
-    }
-
     /**
      * To request the RSSI level from the device.
      */
@@ -563,41 +542,24 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
     }
 
     /**
-     * To request the EQ service from the device. We ask for all services the EQ can provide and if at least once is
-     * available - means will return an acknowledgment packet - the EQ tile will be available.
-     */
-    private void askForEQService() {
-        findViewById(R.id.bt_equalizer).setVisibility(View.GONE);
-        sendGaiaPacket(Gaia.COMMAND_GET_3D_ENHANCEMENT_CONTROL);
-        sendGaiaPacket(Gaia.COMMAND_GET_BASS_BOOST_CONTROL);
-        sendGaiaPacket(Gaia.COMMAND_GET_USER_EQ_CONTROL);
-    }
-
-    /**
-     * To request the TWS service from the device. We ask for all services the TWS can provide and if at least once is
-     * available - means will return an acknowledgment packet - the TWS tile will be available.
-     */
-    private void askForTWSService() {
-        findViewById(R.id.bt_tws).setVisibility(View.GONE);
-        sendGaiaPacket(Gaia.COMMAND_GET_TWS_AUDIO_ROUTING);
-        sendGaiaPacket(Gaia.COMMAND_GET_TWS_VOLUME);
-    }
-
-    /**
-     * To request the Update service from the device. We ask for all services the EQ can provide and if at least once is
-     * available - means will return an acknowledgment packet - the Update tile will be available.
+     * To display the tiles of the features the device supports, the tiles of the features which are not known yet
+     * are hidden.
+     *
+     * @param capabilities
+     *            the capabilities of the device.
      */
-    private void askForUpdateService() {
-        findViewById(R.id.bt_update).setVisibility(View.GONE);
-        sendGaiaPacket(Gaia.COMMAND_VM_UPGRADE_CONNECT);
+    private void showCapabilities(CapabilitySet capabilities) {
+        showTile(R.id.bt_equalizer, capabilities.isSupported(Capability.EQUALIZER));
+        showTile(R.id.bt_tws, capabilities.isSupported(Capability.TWS));
+        showTile(R.id.bt_update, capabilities.isSupported(Capability.VM_UPGRADE));
+        showTile(R.id.bt_remote, capabilities.isSupported(Capability.REMOTE_CONTROL));
     }
 
     /**
-     * To request the Remote service from the device.
+     * To display or hide a tile.
      */
-    private void askForRemoteService() {
-        findViewById(R.id.bt_remote).setVisibility(View.GONE);
-        sendGaiaPacket(Gaia.COMMAND_AV_REMOTE_CONTROL);
+    private void showTile(int id, boolean visible) {
+        findViewById(id).setVisibility(visible ? View.VISIBLE : View.GONE);
     }
 
     /**
@@ -609,24 +571,27 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
     private void showSignal(int rssi) {
         // The RSSI is a negative number, Close to zero, the signal is strong, far and away the signal is low.
         // We consider between -60 and 0 the signal stays strength. Then the strength level decreases by 10 until -90.
+        int image;
         if (-60 <= rssi && rssi <= 0) {
-            mImageViewSignalLevel.setImageResource(R.drawable.ic_signal_4);
+            image = R.drawable.ic_signal_4;
         }
         else if (-70 <= rssi && rssi < -60) {
-            mImageViewSignalLevel.setImageResource(R.drawable.ic_signal_3);
+            image = R.drawable.ic_signal_3;
         }
         else if (-80 <= rssi && rssi < -70) {
-            mImageViewSignalLevel.setImageResource(R.drawable.ic_signal_2);
+            image = R.drawable.ic_signal_2;
         }
         else if (-90 <= rssi && rssi < -80) {
-            mImageViewSignalLevel.setImageResource(R.drawable.ic_signal_1);
+            image = R.drawable.ic_signal_1;
         }
         else if (rssi < -90) {
-            mImageViewSignalLevel.setImageResource(R.drawable.ic_signal_0);
+            image = R.drawable.ic_signal_0;
         }
         else {
-            mImageViewSignalLevel.setImageResource(R.drawable.ic_signal_unknown);
+            image = R.drawable.ic_signal_unknown;
         }
+        // the image is only set again if it changed, once per frame.
+        mCoalescer.put(KEY_SIGNAL_IMAGE, image);
     }
 
     /**
@@ -639,65 +604,134 @@ public class MainActivity extends ModelActivity implements View.OnClickListener
         // depending on the percentage for the battery level and if the battery is charging we display the corresponding
         // feature.
         // We pick the number depending on images we have.
+        int image;
         if (isCharging && value >= 95) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_full);
+            image = R.drawable.ic_battery_charging_full;
         }
         else if (value >= 95) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_full);
+            image = R.drawable.ic_battery_full;
         }
         else if (isCharging && value >= 85) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_90);
+            image = R.drawable.ic_battery_charging_90;
         }
         else if (value >= 85) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_90);
+            image = R.drawable.ic_battery_90;
         }
         else if (isCharging && value >= 70) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_80);
+            image = R.drawable.ic_battery_charging_80;
         }
         else if (value >= 70) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_80);
+            image = R.drawable.ic_battery_80;
         }
         else if (isCharging && value >= 55) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_60);
+            image = R.drawable.ic_battery_charging_60;
         }
         else if (value >= 55) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_60);
+            image = R.drawable.ic_battery_60;
         }
         else if (isCharging && value >= 40) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_50);
+            image = R.drawable.ic_battery_charging_50;
         }
         else if (value >= 40) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_50);
+            image = R.drawable.ic_battery_50;
         }
         else if (isCharging && value >= 25) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_30);
+            image = R.drawable.ic_battery_charging_30;
         }
         else if (value >= 25) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_30);
+            image = R.drawable.ic_battery_30;
         }
         else if (isCharging && value >= 10) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_20);
+            image = R.drawable.ic_battery_charging_20;
         }
         else if (value >= 10) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_20);
+            image = R.drawable.ic_battery_20;
         }
         else if (isCharging && value > 2) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_05);
+            image = R.drawable.ic_battery_charging_05;
         }
         else if (value > 2) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_05);
+            image = R.drawable.ic_battery_05;
         }
         else if (isCharging && value >= 0) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_charging_00);
+            image = R.drawable.ic_battery_charging_00;
         }
         else if (value >= 0) {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_00);
+            image = R.drawable.ic_battery_00;
         }
         else {
-            mImageViewBatteryLevel.setImageResource(R.drawable.ic_battery_unknown);
+            image = R.drawable.ic_battery_unknown;
         }
+        // the image is only set again if it changed, once per frame.
+        mCoalescer.put(KEY_BATTERY_IMAGE, image);
     }
 
+    /**
+     * To set the images merged during a frame.
+     */
+    private final FrameCoalescer.IFrameListener mFrameListener = new FrameCoalescer.IFrameListener() {
+        @Override
+        public void onFrameUpdate(int key, Object value) {
+            switch (key) {
+            case KEY_BATTERY_IMAGE:
+                mImageViewBatteryLevel.setImageResource((Integer) value);
+                break;
+            case KEY_SIGNAL_IMAGE:
+                mImageViewSignalLevel.setImageResource((Integer) value);
+                break;
+            }
+        }
+    };
+
+    /**
+     * To display the battery level when it changes.
+     */
+    private final DeviceValueDecoder.IValueListener<BatteryLevel> mBatteryLevelListener =
+            new DeviceValueDecoder.IValueListener<BatteryLevel>() {
+        @Override
+        public void onValueChanged(BatteryLevel value) {
+            receiveBatteryLevel(value);
+        }
+    };
+
+    /**
+     * To display the RSSI when it changes.
+     */
+    private final DeviceValueDecoder.IValueListener<Rssi> mRssiListener =
+            new DeviceValueDecoder.IValueListener<Rssi>() {
+        @Override
+        public void onValueChanged(Rssi value) {
+            receiveRssi(value);
+        }
+    };
+
+    /**
+     * To display the API version when it is received.
+     */
+    private final DeviceValueDecoder.IValueListener<ApiVersion> mApiVersionListener =
+            new DeviceValueDecoder.IValueListener<ApiVersion>() {
+        @Override
+        public void onValueChanged(ApiVersion value) {
+            receiveAPIVersion(value);
+        }
+    };
+
+    /**
+     * To display the tiles of the features as soon as they are known.
+     */
+    private final GaiaHandshake.IHandshakeListener mHandshakeListener = new GaiaHandshake.IHandshakeListener() {
+        @Override
+        public void onStateChanged(DeviceState state) {
+            showCapabilities(state.getCapabilities());
+        }
+
+        @Override
+        public void onHandshakeComplete(DeviceState state) {
+            if (DEBUG)
+                Log.i(TAG, "Handshake complete: " + state);
+        }
+    };
+
     /**
      * To start a task to get the battery level from the device.
      */
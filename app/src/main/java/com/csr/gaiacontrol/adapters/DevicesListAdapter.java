@@ -3,7 +3,8 @@
  **************************************************************************************************/
 package com.csr.gaiacontrol.adapters;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.bluetooth.BluetoothDevice;
 import android.support.v7.widget.RecyclerView;
@@ -12,10 +13,12 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import com.csr.gaiacontrol.R;
+import com.csr.gaiacontrol.models.devices.DeviceRecord;
 import com.csr.gaiacontrol.views.DeviceViewHolder;
 
 /**
- * This adapter allows to display a BluetoothDevice list in a RecyclerView.
+ * This adapter allows to display a BluetoothDevice list in a RecyclerView. The list is updated row by row with the
+ * changes given by a {@link com.csr.gaiacontrol.models.devices.DeviceRepository DeviceRepository}.
  */
 public class DevicesListAdapter extends RecyclerView.Adapter<DeviceViewHolder> implements DeviceViewHolder.IViewHolder {
 
@@ -30,7 +33,7 @@ public class DevicesListAdapter extends RecyclerView.Adapter<DeviceViewHolder> i
     /**
      * The data list for this adapter.
      */
-    private BluetoothDevice[] mListDevices;
+    private final List<DeviceRecord> mListDevices = new ArrayList<>();
     /**
      * The listener for all user interaction.
      */
@@ -64,7 +67,6 @@ public class DevicesListAdapter extends RecyclerView.Adapter<DeviceViewHolder> i
      */
     public DevicesListAdapter(IListAdapterListener listener) {
         this.mListAdapterListener = listener;
-        this.mListDevices = new BluetoothDevice[0];
         mEnabled = true;
     }
 
@@ -76,10 +78,10 @@ public class DevicesListAdapter extends RecyclerView.Adapter<DeviceViewHolder> i
 
     @Override
     public void onBindViewHolder(DeviceViewHolder holder, int position) {
-        // we define the content of this view depending on the data set of this adapter.
-
-        holder.mTextViewDeviceName.setText(mListDevices[position].getName());
-        holder.mTextViewDeviceAddress.setText(mListDevices[position].getAddress());
+        // we define the content of this view depending on the data set of this adapter: the cached name is used.
+        DeviceRecord record = mListDevices.get(position);
+        holder.mTextViewDeviceName.setText(record.getName());
+        holder.mTextViewDeviceAddress.setText(record.getAddress());
 
         holder.itemView.setActivated(position == mSelectedItem);
         holder.itemView.setEnabled(mEnabled);
@@ -94,18 +96,55 @@ public class DevicesListAdapter extends RecyclerView.Adapter<DeviceViewHolder> i
 
     @Override
     public int getItemCount() {
-        return mListDevices.length;
+        return mListDevices.size();
     }
 
     /**
-     * This method allows to define the data for the adapter.
-     * 
-     * @param listDevices
-     *            The list of devices to put on the RecyclerView.
+     * This method allows to add a device to the list.
+     *
+     * @param position
+     *            The position of the new device.
+     * @param record
+     *            The device to add.
      */
-    public void setListDevices(Set<BluetoothDevice> listDevices) {
-        this.mListDevices = listDevices.toArray(new BluetoothDevice[listDevices.size()]);
-        notifyDataSetChanged();
+    public void insertDevice(int position, DeviceRecord record) {
+        mListDevices.add(position, record);
+        if (mSelectedItem >= position) {
+            mSelectedItem++;
+        }
+        notifyItemInserted(position);
+    }
+
+    /**
+     * This method allows to remove a device from the list. If it was the selected device there is no selection
+     * anymore.
+     *
+     * @param position
+     *            The position of the device to remove.
+     */
+    public void removeDevice(int position) {
+        mListDevices.remove(position);
+        notifyItemRemoved(position);
+        if (mSelectedItem == position) {
+            mSelectedItem = ITEM_NULL;
+            mListAdapterListener.onDeviceItemSelected();
+        }
+        else if (mSelectedItem > position) {
+            mSelectedItem--;
+        }
+    }
+
+    /**
+     * This method allows to update the values of a device of the list.
+     *
+     * @param position
+     *            The position of the device.
+     * @param record
+     *            The new values of the device.
+     */
+    public void changeDevice(int position, DeviceRecord record) {
+        mListDevices.set(position, record);
+        notifyItemChanged(position);
     }
 
     /**
@@ -116,7 +155,7 @@ public class DevicesListAdapter extends RecyclerView.Adapter<DeviceViewHolder> i
      */
     public BluetoothDevice getSelectedItem() {
         if (hasSelection())
-            return this.mListDevices[mSelectedItem];
+            return this.mListDevices.get(mSelectedItem).getDevice();
         else
             return null;
     }
@@ -127,7 +166,7 @@ public class DevicesListAdapter extends RecyclerView.Adapter<DeviceViewHolder> i
      * @return true if the view has a selected item and false if none of the items is selected.
      */
     public boolean hasSelection() {
-        return mSelectedItem >= 0 && mSelectedItem < mListDevices.length;
+        return mSelectedItem >= 0 && mSelectedItem < mListDevices.size();
     }
 
     /**
@@ -4,7 +4,9 @@
 package com.csr.gaiacontrol.adapters;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import android.support.v7.widget.RecyclerView;
 import android.text.format.DateFormat;
@@ -13,11 +15,12 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import com.csr.gaiacontrol.R;
+import com.csr.gaiacontrol.models.firmware.FirmwareImage;
 import com.csr.gaiacontrol.utils.Consts;
 import com.csr.gaiacontrol.views.FileViewHolder;
 
 /**
- * This adapter allows to display a File list in a RecyclerView.
+ * This adapter allows to display a list of upgrade files in a RecyclerView.
  */
 public class FilesListAdapter extends RecyclerView.Adapter<FileViewHolder> implements FileViewHolder.IViewHolder {
 
@@ -32,7 +35,7 @@ public class FilesListAdapter extends RecyclerView.Adapter<FileViewHolder> imple
     /**
      * The data list for this adapter.
      */
-    private File[] mFilesList;
+    private List<FirmwareImage> mFilesList;
     /**
      * The listener for all user interactions.
      */
@@ -60,7 +63,7 @@ public class FilesListAdapter extends RecyclerView.Adapter<FileViewHolder> imple
      */
     public FilesListAdapter(IFilesListAdapterListener listener) {
         this.mListener = listener;
-        this.mFilesList = new File[0];
+        this.mFilesList = Collections.emptyList();
     }
 
     @Override
@@ -71,11 +74,12 @@ public class FilesListAdapter extends RecyclerView.Adapter<FileViewHolder> imple
 
     @Override
     public void onBindViewHolder(FileViewHolder holder, int position) {
-        // we define the content of this view depending on the data set of this adapter.
-        holder.mTextViewFileName.setText(mFilesList[position].getName());
-        String date = DateFormat.format(Consts.DATE_FORMAT, new Date(mFilesList[position].lastModified())).toString();
+        // we define the content of this view depending on the indexed data set of this adapter: no disk access.
+        FirmwareImage image = mFilesList.get(position);
+        holder.mTextViewFileName.setText(image.getName());
+        String date = DateFormat.format(Consts.DATE_FORMAT, new Date(image.getLastModified())).toString();
         holder.mTextViewFileLastModification.setText(date);
-        long size = mFilesList[position].length() / 1024;
+        long size = image.getSize() / 1024;
         String sizeText = size + Consts.UNIT_FILE_SIZE;
         holder.mTextViewFileSize.setText(sizeText);
 
@@ -85,23 +89,36 @@ public class FilesListAdapter extends RecyclerView.Adapter<FileViewHolder> imple
 
     @Override
     public int getItemCount() {
-        return mFilesList.length;
+        return mFilesList.size();
     }
 
     /**
-     * This method allows to define the data for this adapter.
+     * This method allows to define the data for this adapter. The selected file stays selected if it is still in the
+     * list.
      *
      * @param filesList
      *            The list of files to display on the RecyclerView.
      */
-    public void setFilesList(File[] filesList) {
+    public void setFilesList(List<FirmwareImage> filesList) {
+        File selected = hasSelection() ? mFilesList.get(mSelectedItem).getFile() : null;
         if (filesList != null) {
             this.mFilesList = filesList;
         }
         else {
-            this.mFilesList = new File[0];
+            this.mFilesList = Collections.emptyList();
+        }
+
+        boolean hadSelection = selected != null;
+        mSelectedItem = ITEM_NULL;
+        for (int i = 0; selected != null && i < mFilesList.size(); i++) {
+            if (mFilesList.get(i).getFile().equals(selected)) {
+                mSelectedItem = i;
+            }
         }
         notifyDataSetChanged();
+        if (hadSelection != hasSelection()) {
+            mListener.onDeviceItemSelected(hasSelection());
+        }
     }
 
     /**
@@ -109,9 +126,9 @@ public class FilesListAdapter extends RecyclerView.Adapter<FileViewHolder> imple
      *
      * @return the selected item by the user or null.
      */
-    public File getSelectedItem() {
+    public FirmwareImage getSelectedItem() {
         if (hasSelection())
-            return this.mFilesList[mSelectedItem];
+            return this.mFilesList.get(mSelectedItem);
         else
             return null;
     }
@@ -122,7 +139,7 @@ public class FilesListAdapter extends RecyclerView.Adapter<FileViewHolder> imple
      * @return true if the view has a selected item and false if none of the items is selected.
      */
     public boolean hasSelection() {
-        return mSelectedItem >= 0 && mSelectedItem < mFilesList.length;
+        return mSelectedItem >= 0 && mSelectedItem < mFilesList.size();
     }
 
     /**
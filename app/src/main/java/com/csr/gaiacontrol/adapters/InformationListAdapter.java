@@ -3,6 +3,8 @@
  **************************************************************************************************/
 package com.csr.gaiacontrol.adapters;
 
+import java.util.List;
+
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -18,6 +20,12 @@ import com.csr.gaiacontrol.views.InformationViewHolder;
  */
 public class InformationListAdapter extends RecyclerView.Adapter<InformationViewHolder> {
 
+    /**
+     * The payload given to {@link #notifyItemChanged(int, Object) notifyItemChanged} when only the value of an item
+     * changed: its name is not bound again.
+     */
+    private static final Object PAYLOAD_VALUE = new Object();
+
     /**
      * The data list for this adapter.
      */
@@ -52,13 +60,25 @@ public class InformationListAdapter extends RecyclerView.Adapter<InformationView
         holder.mTVInformationValue.setText(mList[position]);
     }
 
+    @Override
+    public void onBindViewHolder(InformationViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.contains(PAYLOAD_VALUE)) {
+            // only the value changed: the name stays as it is.
+            holder.mTVInformationValue.setText(mList[position]);
+        }
+        else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
     @Override
     public int getItemCount() {
         return mList.length;
     }
 
     /**
-     * To set the value to display for the corresponding item.
+     * To set the value to display for the corresponding item. Only the value of the item is bound again, and nothing
+     * is done if the value is the one already displayed.
      * 
      * @param position
      *            the position of the item.
@@ -66,8 +86,11 @@ public class InformationListAdapter extends RecyclerView.Adapter<InformationView
      *            the value for the item.
      */
     public void setValue(int position, String value) {
+        if (value == null ? mList[position] == null : value.equals(mList[position])) {
+            return;
+        }
         mList[position] = value;
-        notifyItemChanged(position);
+        notifyItemChanged(position, PAYLOAD_VALUE);
     }
 
     /**
@@ -3,8 +3,6 @@
  **************************************************************************************************/
 package com.csr.gaiacontrol.fragments;
 
-import java.util.Set;
-
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.os.Bundle;
@@ -18,13 +16,15 @@ import android.widget.Button;
 
 import com.csr.gaiacontrol.R;
 import com.csr.gaiacontrol.adapters.DevicesListAdapter;
+import com.csr.gaiacontrol.models.devices.DeviceRecord;
+import com.csr.gaiacontrol.models.devices.DeviceRepository;
 import com.csr.gaiacontrol.views.DividerItemDecoration;
 
 /**
  * This fragment allows to control the view for the connection part to a GAIA device.
  */
 public class ConnectionFragment extends Fragment implements DevicesListAdapter.IListAdapterListener,
-        View.OnClickListener {
+        View.OnClickListener, DeviceRepository.IDeviceRepositoryListener {
 
     /**
      * The listener to interact with the activity which implements this fragment.
@@ -126,15 +126,26 @@ public class ConnectionFragment extends Fragment implements DevicesListAdapter.I
         activateStartButton();
     }
 
-    /**
-     * This method allows to update the list of devices with a new devices set.
-     * 
-     * @param listDevices
-     *            The new list of devices.
-     */
-    public void setListDevices(Set<BluetoothDevice> listDevices) {
-        displayMessageNoDevice(listDevices.size() < 1);
-        mDevicesListAdapter.setListDevices(listDevices);
+    @Override
+    public void onDeviceInserted(int position, DeviceRecord record) {
+        mDevicesListAdapter.insertDevice(position, record);
+        displayMessageNoDevice(false);
+    }
+
+    @Override
+    public void onDeviceRemoved(int position) {
+        mDevicesListAdapter.removeDevice(position);
+        displayMessageNoDevice(mDevicesListAdapter.getItemCount() < 1);
+    }
+
+    @Override
+    public void onDeviceChanged(int position, DeviceRecord record) {
+        mDevicesListAdapter.changeDevice(position, record);
+    }
+
+    @Override
+    public void onDevicesLoaded(int count) {
+        displayMessageNoDevice(count < 1);
     }
 
     /**
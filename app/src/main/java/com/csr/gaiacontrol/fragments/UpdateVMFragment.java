@@ -4,12 +4,14 @@
 package com.csr.gaiacontrol.fragments;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -22,24 +24,33 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.csr.gaia.library.Gaia;
 import com.csr.gaia.library.GaiaPacket;
 import com.csr.gaiacontrol.R;
 import com.csr.gaiacontrol.adapters.FilesListAdapter;
+import com.csr.gaiacontrol.models.firmware.FirmwareImage;
+import com.csr.gaiacontrol.models.firmware.FirmwareIndex;
 import com.csr.gaiacontrol.utils.Consts;
 import com.csr.gaiacontrol.utils.Utils;
 import com.csr.gaiacontrol.views.VMUpdateDialog;
 import com.csr.vmupgradelibrary.VMUPacket;
+import com.csr.vmupgradelibrary.VMUpgradeHost;
 import com.csr.vmupgradelibrary.codes.OpCodes;
 import com.csr.vmupgradelibrary.codes.ResumePoints;
 import com.csr.vmupgradelibrary.codes.ReturnCodes;
+import com.csr.vmupgradelibrary.metrics.UpgradeMetrics;
+import com.csr.vmupgradelibrary.metrics.UpgradePhase;
+import com.csr.vmupgradelibrary.metrics.UpgradeSummary;
 
 /**
  * This fragment allows to display the VM update UI and manage the VM upgrade.
  */
 public class UpdateVMFragment extends Fragment implements View.OnClickListener,
-        FilesListAdapter.IFilesListAdapterListener, VMUpdateDialog.IDialogUpdateListener {
+        FilesListAdapter.IFilesListAdapterListener, VMUpdateDialog.IDialogUpdateListener,
+        UpgradeMetrics.IUpgradeMetricsListener, FirmwareIndex.IFirmwareIndexListener,
+        VMUpgradeHost.IVMUpgradeHostListener {
 
     /**
      * For the debug mode, the tag to display for logs.
@@ -49,6 +60,14 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
      * To know if we are using the application in the debug mode.
      */
     private static final boolean DEBUG = Consts.DEBUG;
+    /**
+     * The file in which the application keeps the summary of each upgrade.
+     */
+    private static final String UPGRADE_HISTORY_FILE = "upgrade_history.bin";
+    /**
+     * The file in which the application keeps the index of the upgrade files.
+     */
+    private static final String FIRMWARE_INDEX_FILE = "firmware_index.bin";
 
     /**
      * The listener to interact with the activity which implements this fragment.
@@ -75,14 +94,6 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
      * To know if the update process is currently running.
      */
     private boolean isUpdating = false;
-    /**
-     * To know how many times we try to start the update.
-     */
-    private int mStartAttempts = 0;
-    /**
-     * The offset to use to upload data on the device.
-     */
-    private int mStartOffset = 0;
     /**
      * The file to upload on the device.
      */
@@ -91,53 +102,30 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
      * To know if an error occurs we just want to abort without disconnecting from the VM update process.
      */
     private boolean isOnlyAborting = false;
-    /**
-     * The maximum value for the data length of a VM update packet.
-     */
-    @SuppressWarnings("FieldCanBeLocal")
-    private final int MAX_DATA = Gaia.MAX_PAYLOAD - VMUPacket.LENGTH_REQUIRED_INFORMATION;
-    /**
-     * To know the maximum of times we will attempt to start the update process.
-     */
-    @SuppressWarnings("FieldCanBeLocal")
-    private final int START_ATTEMPTS_MAX = 5;
-    /**
-     * To know how much time we should between two attempts to start the update process.
-     */
-    @SuppressWarnings("FieldCanBeLocal")
-    private final int START_ATTEMPTS_TIME = 2000;
     /**
      * To know when we received a fatal error and we have to disconnect from the device.
      */
     private boolean hasReceivedFatalError = false;
     /**
-     * To know the error code we received when we received an error.
-     */
-    private byte[] mReceivedErrorCode;
-    /**
-     * To know if the packet with the operation code "UPDATE_DATA" which was sent was the last packet to send.
-     */
-    private boolean wasLastPacket = false;
-    /**
-     * The value of the actual resume point to display to the user.
-     */
-    private ResumePoints mResumePoint = null;
-    /**
-     * To know if the user asked for a disconnection during the update process.
+     * The file to upload on the board.
      */
-    private boolean hasToDisconnect = false;
+    private FirmwareImage mFile;
     /**
-     * The file to upload on the board.
+     * The index of the upgrade files: their size, MD5 checksum and header are read once in the background.
      */
-    private File mFile;
+    private FirmwareIndex mFirmwareIndex;
     /**
      * The text view to display when no file are available.
      */
     private TextView mTVFilesNotAvailable;
     /**
-     * To know when the transfer starts
+     * To measure the duration of each step of the upgrade and the throughput of the transfer.
      */
-    private long mTimeStartTransfer = 0;
+    private UpgradeMetrics mMetrics;
+    /**
+     * The host side of the VM upgrade: it answers the messages of the device.
+     */
+    private VMUpgradeHost mUpgradeHost;
 
     /**
      * The factory method to create a new instance of this fragment using the provided parameters.
@@ -188,19 +176,20 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
     public void abortUpdate() {
         if (isUpdating) {
             isUpdating = false;
+            mMetrics.finish(false);
             if (hasReceivedFatalError) {
-                sendErrorConfirmation(mReceivedErrorCode);
+                mUpgradeHost.confirmError();
                 disconnectUpdate();
             }
             else {
-                sendAbortReq();
+                mUpgradeHost.abort();
             }
         }
     }
 
     @Override
     public ResumePoints getResumePoint() {
-        return mResumePoint;
+        return mUpgradeHost.getResumePoint();
     }
 
     @Override
@@ -208,6 +197,39 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
         displayUpdateAvailable(itemSelected);
     }
 
+    @Override
+    public void onTransferProgress(double percentage, double throughput, long remainingTime) {
+        String time = remainingTime < 0 ? "" : Utils.getStringFromTime(remainingTime);
+        mUpdateDialog.displayTransferProgress(percentage, time);
+    }
+
+    @Override
+    public void onPhaseCompleted(UpgradePhase phase, long duration) {
+        if (DEBUG) Log.d(TAG, "Upgrade phase " + phase + " took " + duration / 1000000 + " ms");
+    }
+
+    @Override
+    public void onUpgradeFinished(UpgradeSummary summary) {
+        if (DEBUG) Log.i(TAG, summary.toString());
+        Activity activity = getActivity();
+        if (activity != null) {
+            final File history = new File(activity.getFilesDir(), UPGRADE_HISTORY_FILE);
+            final UpgradeSummary result = summary;
+            // the history is written off the main thread, the serial executor keeps the summaries in order.
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        UpgradeSummary.appendToFile(history, result);
+                    }
+                    catch (IOException e) {
+                        if (DEBUG) Log.w(TAG, "Saving the upgrade summary failed: " + e.toString());
+                    }
+                }
+            });
+        }
+    }
+
     /**
      * This method allows to manage a VM message from the device using the Gaia protocol.
      *
@@ -218,7 +240,8 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
         byte[] payload = packet.getPayload();
         byte[] data = Arrays.copyOfRange(payload, 1, payload.length);
         VMUPacket vmuPacket = VMUPacket.buildPacketFromBytes(data);
-        handleVMUPacket(vmuPacket);
+        if (DEBUG) Log.d(TAG, "Received VM packet: " + Utils.getStringFromBytes(data));
+        mUpgradeHost.handleVMUPacket(vmuPacket);
     }
 
     @SuppressWarnings("deprecation")
@@ -247,23 +270,14 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
      * This method is called when we received a succeed acknowledgment from the board about a VM_CONTROL GAIA command we sent.
      */
     public void onVMControlSucceed() {
-        if (wasLastPacket) {
-            wasLastPacket = false;
-            setResumePoint(ResumePoints.VALIDATION);
-            sendValidationDoneReq();
-        }
-        else if (hasToDisconnect) {
-            hasToDisconnect = false;
-            disconnectUpdate();
-        }
+        mUpgradeHost.onControlAcknowledged();
     }
 
     /**
      * This method is called when we received a failed acknowledgment from the board about a VM_CONTROL GAIA command we sent.
      */
     public void onVMControlFailed() {
-        wasLastPacket = false;
-        hasToDisconnect = false;
+        mUpgradeHost.onControlFailed();
         displayErrorOrAbort2(getResources().getString(R.string.update_vm_command_failed));
     }
 
@@ -284,7 +298,7 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
         if (mUpdateDialog.isAdded()) {
             showUpdateDialog(false);
         }
-        restartOffset();
+        mUpgradeHost.restart();
     }
 
     /**
@@ -297,16 +311,51 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
     @Override
     public void onResume() {
         super.onResume();
+        // the indexed files are displayed at once, the folder is scanned in the background
+        onImagesChanged(mFirmwareIndex.getImages());
+        mFirmwareIndex.start();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mFirmwareIndex.stop();
+    }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // a new index is built with the next view
+        mFirmwareIndex.close();
+    }
+
+    @Override
+    public void onImagesChanged(List<FirmwareImage> images) {
         // give files list to the adapter to display them
-        File[] listFiles = getFiles();
-        if (listFiles == null || listFiles.length < 1) {
+        if (images.isEmpty()) {
             mTVFilesNotAvailable.setVisibility(View.VISIBLE);
         }
         else {
             mTVFilesNotAvailable.setVisibility(View.INVISIBLE);
         }
-        mFilesAdapter.setFilesList(listFiles);
+        mFilesAdapter.setFilesList(images);
+    }
+
+    @Override
+    public void onImageRead(FirmwareImage image, byte[] bytes) {
+        if (!isUpdating || !image.equals(mFile)) {
+            // the update has been stopped meanwhile
+            return;
+        }
+        if (bytes == null) {
+            isUpdating = false;
+            mFile = null;
+            showUpdateDialog(false);
+            Toast.makeText(getActivity(), R.string.update_error_file_not_read, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mBytesFile = bytes;
+        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONNECT);
     }
 
     /**
@@ -315,10 +364,14 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
     private void startUpdate() {
         showUpdateDialog(true);
         isUpdating = true;
-        restartOffset();
-        if(mFile == null || !mFile.equals(mFilesAdapter.getSelectedItem())) {
+        mUpgradeHost.restart();
+        // the bytes are read again only if another file is selected or if the file has been modified
+        if (mFile == null || mBytesFile == null || !mFile.equals(mFilesAdapter.getSelectedItem())) {
             mFile = mFilesAdapter.getSelectedItem();
-            mBytesFile = Utils.getBytesFromFile(mFile);
+            mBytesFile = null;
+            // the file is read in the background, the update goes on in onImageRead
+            mFirmwareIndex.read(mFile);
+            return;
         }
         mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONNECT);
     }
@@ -327,6 +380,7 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
      * To disconnect from the device about a VM upgrade.
      */
     private void disconnectUpdate() {
+        mMetrics.finish(false);
         showUpdateDialog(false);
         mActivityListener.unregisterForNotifications(Gaia.EventId.VMU_PACKET);
         mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_DISCONNECT);
@@ -385,6 +439,12 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
         displayUpdateAvailable(mFilesAdapter.hasSelection());
 
         mUpdateDialog = VMUpdateDialog.newInstance(this);
+        mMetrics = new UpgradeMetrics(this);
+        mUpgradeHost = new VMUpgradeHost(mMetrics, this);
+
+        String path = Environment.getExternalStorageDirectory().toString() + Consts.VM_UPDATE_FOLDER;
+        mFirmwareIndex = new FirmwareIndex(new File(path),
+                new File(getActivity().getFilesDir(), FIRMWARE_INDEX_FILE), this);
     }
 
     /**
@@ -400,95 +460,42 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
         }
     }
 
-    /**
-     * To define the actual resume point and to display the dialog which provide the information to the user.
-     *
-     * @param point
-     *              The resume point ot define as the actual one.
-     */
-    private void setResumePoint(ResumePoints point) {
-        mResumePoint = point;
-        if (mUpdateDialog.isAdded()) {
-            mUpdateDialog.updateStep();
-        }
+    @Override
+    public void sendUpgradeControl(byte[] packet) {
+        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packet);
+        if (DEBUG) Log.d(TAG, "send VM packet: " + Utils.getStringFromBytes(packet));
     }
 
-    /**
-     * To get files that can be used for the VM update.
-     *
-     * @return an array which contains all files the user can select fur the update.
-     */
-    private File[] getFiles() {
-        String path = Environment.getExternalStorageDirectory().toString() + Consts.VM_UPDATE_FOLDER;
-        File f = new File(path);
-        return f.listFiles();
+    @Override
+    public void schedule(Runnable action, long delay) {
+        mHandler.postDelayed(action, delay);
     }
 
-    /**
-     * To manage the reception of a message about the VM update.
-     *
-     * @param packet
-     *            the received packet.
-     */
-    private void handleVMUPacket(VMUPacket packet) {
-        switch (packet.getOpCode()) {
-            case OpCodes.UPDATE_SYNC_CFM:
-                receiveSyncCFM(packet);
-                break;
-
-            case OpCodes.UPDATE_START_CFM:
-                receiveStartCFM(packet);
-                break;
-
-            case OpCodes.UPDATE_DATA_BYTES_REQ:
-                receiveDataBytesReq(packet);
-                break;
-
-            case OpCodes.UPDATE_ABORT_CFM:
-                receiveAbortCFM();
-                break;
-
-            case OpCodes.UPDATE_ERROR_WARN_IND:
-                handleVMUpdateErrors(packet);
-                break;
-
-            case OpCodes.UPDATE_IS_VALIDATION_DONE_CFM:
-                receiveValidationDoneCFM();
-                break;
-
-            case OpCodes.UPDATE_TRANSFER_COMPLETE_IND:
-                receiveTransferCompleteInd();
-                break;
+    @Override
+    public void onResumePointChanged(ResumePoints point) {
+        if (mUpdateDialog.isAdded()) {
+            mUpdateDialog.updateStep();
+        }
+    }
 
-            case OpCodes.UPDATE_COMMIT_REQ:
-                receiveCommitReq();
+    @Override
+    public void askConfirmation(VMUpgradeHost.Confirmation confirmation) {
+        switch (confirmation) {
+            case TRANSFER_COMPLETE:
+                askForTransferCompleteRes();
                 break;
-
-            case OpCodes.UPDATE_ERASE_SQIF_REQ:
-                receiveEraseSQIFReq();
+            case COMMIT:
+                askForCommitCFM();
                 break;
-
-            case OpCodes.UPDATE_COMPLETE_IND:
-                receiveCompleteInd();
+            case ERASE_SQIF:
+                askForEraseSQIFCFM();
                 break;
-
-            default:
-                if (DEBUG) Log.d(TAG, "Received VM packet: " + Utils.getStringFromBytes(packet.getBytes()));
         }
     }
 
-    /**
-     * To manage errors received during VM Update.
-     *
-     * @param packet
-     *            The received packet.
-     */
-    private void handleVMUpdateErrors(VMUPacket packet) {
-        byte[] data = packet.getData();
-        int code = Utils.extractIntField(data, 0, 2, false);
-
-        if (DEBUG)
-            Log.d(TAG, "Receive VM UPDATE ERRORS with code: " + Utils.getStringFromBytes(data));
+    @Override
+    public void onDeviceError(int code) {
+        if (DEBUG) Log.d(TAG, "Receive VM UPDATE ERRORS with code: " + Utils.getIntToHexadecimal(code));
 
         switch (code) {
             case ReturnCodes.WARN_SYNC_ID_IS_DIFFERENT:
@@ -503,196 +510,18 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
             default:
                 // All return codes where we have to disconnect from the update.
                 hasReceivedFatalError = true;
-                mReceivedErrorCode = data;
-                displayErrorOrAbort(getString(R.string.update_error_dot) + " Error code: " + Utils.getStringFromBytes(data),
+                displayErrorOrAbort(getString(R.string.update_error_dot) + " Error code: 0x" + Utils.getIntToHexadecimal(code),
                         getString(R.string.update_error_dot) + " Error message: " + ReturnCodes.getReturnCodesMessage(code));
         }
     }
 
-    /**
-     * This method is called when we received an UPDATE_SYNC_CFM message. This method starts the next step which is
-     * sending an UPDATE_START_REQ message.
-     */
-    private void receiveSyncCFM(VMUPacket packet) {
-        if (DEBUG) Log.d(TAG, "received UPDATE_SYNC_CFM: " + Utils.getStringFromBytes(packet.getData()));
-        setResumePoint(ResumePoints.valueOf(packet.getFirstData()));
-        sendStartReq();
-    }
-
-    /**
-     * This method is called when we received an UPDATE_START_CFM message. This method read the message and start the
-     * next step which is sending an UPDATE_START_DATA_REQ message or abort the update depending on the received
-     * message.
-     *
-     * @param packet
-     *            The received packet.
-     */
-    private void receiveStartCFM(VMUPacket packet) {
-        byte[] data = packet.getData();
-
-        if (DEBUG) Log.d(TAG, "received UPDATE_START_CFM: " + Utils.getStringFromBytes(data));
-
-        // the packet has to have a content.
-        if (data.length > 0) {
-            if (data[0] == OpCodes.UPDATE_START_CFM_SUCCESS) {
-                mStartAttempts = 0;
-                // the device is ready for the update, we can go to the resume point or to the update beginning.
-                switch (mResumePoint) {
-                    case COMMIT:
-                        askForCommitCFM();
-                        break;
-                    case TRANSFER_COMPLETE:
-                        askForTransferCompleteRes();
-                        break;
-                    case IN_PROGRESS:
-                        sendInProgressRes();
-                        break;
-                    case VALIDATION:
-                        sendValidationDoneReq();
-                    case DATA_TRANSFER:
-                    default:
-                        sendStartDataReq();
-                }
-            }
-            else if (data[0] == OpCodes.UPDATE_START_ERROR_APP_NOT_READY
-                    && mStartAttempts < START_ATTEMPTS_MAX) {
-                // device not ready we will ask it again.
-                mStartAttempts++;
-                mHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        sendStartReq();
-                    }
-                }, START_ATTEMPTS_TIME);
-            }
-            else {
-                // data[0] with a wrong code or too many attempts.
-                mStartAttempts = 0;
-                displayErrorOrAbort2("The board is not ready to start an update.");
-            }
-        }
-        else {
-            // no content on the packet.
-            mStartAttempts = 0;
-            displayErrorOrAbort2("The board sent a wrong information to start the update, please abort and try again.");
-        }
-    }
-
-    /**
-     * This method is called when we received an UPDATE_DATA_BYTES_REQ message. We manage this packet and use it for the
-     * next step which is to upload the file on the device using UPDATE_DATA messages.
-     *
-     * @param packet
-     *            The received packet.
-     */
-    private void receiveDataBytesReq(VMUPacket packet) {
-        byte[] data = packet.getData();
-
-        if (DEBUG) Log.d(TAG, "received UPDATE_DATA_BYTES_REQ: " + Utils.getStringFromBytes(data));
-
-        // manage the UI
-
-        // Checking the data has the good length
-        if (data.length == OpCodes.UPDATE_DATA_BYTES_REQ_LENGTH) {
-            double percentage = mStartOffset * 100.0 / mBytesFile.length;
-
-            if (mStartOffset > 0) {
-                if (mTimeStartTransfer == 0) {
-                    mTimeStartTransfer = Calendar.getInstance().getTimeInMillis();
-                }
-                long remainingTime = (Calendar.getInstance().getTimeInMillis() - mTimeStartTransfer)
-                        * (mBytesFile.length - mStartOffset)
-                        / mStartOffset;
-                mUpdateDialog.displayTransferProgress(percentage, Utils.getStringFromTime(remainingTime));
-            }
-
-            // retrieving information from the received packet
-            int bytesLength = Utils.extractIntField(data, 0, Utils.BYTES_IN_INT, false);
-            int fileOffset = Utils.extractIntField(data, Utils.BYTES_IN_INT, Utils.BYTES_IN_INT, false);
-
-            // if the asked length doesn't fit with possibilities we use the maximum length we can use.
-            if (bytesLength < 0 || bytesLength > MAX_DATA-1) {
-                bytesLength = MAX_DATA - 1;
-            }
-
-            // we check the value for the offset
-            if (fileOffset > 0 && fileOffset+ mStartOffset < mBytesFile.length) {
-                mStartOffset += fileOffset;
-            }
-
-            // to know if we are sending the last data packet.
-            boolean lastPacket = mBytesFile.length- mStartOffset <= bytesLength;
-
-            // we send the data
-            byte[] dataToSend = new byte[bytesLength];
-            Utils.putArrayField(mBytesFile, mStartOffset, dataToSend, 0, dataToSend.length, false);
-            sendData(lastPacket, dataToSend);
-
-            // to reinitialize variables or increment variables
-            if (lastPacket) {
-                wasLastPacket = true;
-            }
-            else {
-                mStartOffset += bytesLength;
-            }
-        }
-        else {
-            displayErrorOrAbort2("The board sent a wrong information during the data transfer, please abort and try again.");
-        }
-    }
-
-    /**
-     * This method is called when we received an UPDATE_IS_VALIDATION_DONE_CFM message. We manage this packet and use it for the
-     * next step which is to send an UPDATE_IS_VALIDATION_DONE_REQ.
-     */
-    private void receiveValidationDoneCFM() {
-        if (DEBUG) Log.d(TAG, "received UPDATE_IS_VALIDATION_DONE_CFM");
-        sendValidationDoneReq();
-    }
-
-    /**
-     * This method is called when we received an UPDATE_TRANSFER_COMPLETE_IND message. We manage this packet and use it for the
-     * next step which is to send a validation to continue the process or to abort it temporally - it will be done later.
-     */
-    private void receiveTransferCompleteInd() {
-        if (DEBUG) Log.d(TAG, "received UPDATE_TRANSFER_COMPLETE_IND");
-        setResumePoint(ResumePoints.TRANSFER_COMPLETE);
-        askForTransferCompleteRes();
-    }
-
-    /**
-     * This method is called when we received an UPDATE_COMMIT_RES message. We manage this packet and use it for the
-     * next step which is to send a validation to continue the process or to abort it temporally - it will be done later.
-     */
-    private void receiveCommitReq() {
-        if (DEBUG) Log.d(TAG, "received UPDATE_COMMIT_RES");
-        setResumePoint(ResumePoints.COMMIT);
-        askForCommitCFM();
-    }
-
-    /**
-     * This method is called when we received an UPDATE_ERASE_SQIF_REQ message. We manage this packet and use it for the
-     * next step which is to display a question to the user to continue the process or to abort it temporally - it will be done later.
-     */
-    private void receiveEraseSQIFReq() {
-        if (DEBUG) Log.d(TAG, "received UPDATE_COMMIT_RES");
-        setResumePoint(ResumePoints.COMMIT);
-        askForEraseSQIFCFM();
-    }
-
-    /**
-     * This method is called when we received an UPDATE_COMPLETE_IND message. We manage this packet and use it for the
-     * next step which is to send a validation to continue the process or to abort it temporally - it will be done later.
-     */
-    private void receiveCompleteInd() {
-        if (DEBUG) Log.d(TAG, "received UPDATE_COMPLETE_IND");
-        displayAlertComplete();
+    @Override
+    public void onUpgradeFailed(String message) {
+        displayErrorOrAbort2(message);
     }
 
-    /**
-     * This method is called when we received an UPDATE_ABORT_CFM message after we asked for an abort to the update process.
-     */
-    private void receiveAbortCFM() {
+    @Override
+    public void onAbortConfirmed() {
         if (DEBUG) Log.d(TAG, "received UPDATE_ABORT_CFM");
         if (isOnlyAborting) {
             onUpdateActivated();
@@ -703,6 +532,16 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
         }
     }
 
+    @Override
+    public void onUpgradePostponed() {
+        disconnectUpdate();
+    }
+
+    @Override
+    public void onUpgradeComplete() {
+        displayAlertComplete();
+    }
+
     /**
      * This method allows the application to ask a confirmation to the user before to continue the process.
      * This method has to be called before to send an UPDATE_TRANSFER_COMPLETE_RES packet.
@@ -715,14 +554,13 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         // the user wants to process, we start the next step.
-                        sendTransferCompleteReq(true);
+                        mUpgradeHost.confirm(VMUpgradeHost.Confirmation.TRANSFER_COMPLETE, true);
                     }
                 })
                 .setNegativeButton(R.string.alert_no, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        sendTransferCompleteReq(false);
-                        hasToDisconnect = true;
+                        mUpgradeHost.confirm(VMUpgradeHost.Confirmation.TRANSFER_COMPLETE, false);
                     }
                 });
         builder.show();
@@ -740,14 +578,13 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         // the user wants to process, we start the next step.
-                        sendCommitCFM(true);
+                        mUpgradeHost.confirm(VMUpgradeHost.Confirmation.COMMIT, true);
                     }
                 })
                 .setNegativeButton(R.string.alert_no, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        sendCommitCFM(false);
-                        hasToDisconnect = true;
+                        mUpgradeHost.confirm(VMUpgradeHost.Confirmation.COMMIT, false);
                     }
                 });
         builder.show();
@@ -765,7 +602,7 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         // the user wants to process, we start the next step.
-                        sendErasSQIFCFM();
+                        mUpgradeHost.confirm(VMUpgradeHost.Confirmation.ERASE_SQIF, true);
                     }
                 });
         builder.show();
@@ -775,151 +612,13 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
      * To send an UPDATE_SYNC_REQ message.
      */
     private void sendSyncReq () {
-        // send the MD5 information here
-        byte[] md5Checksum = Utils.getMD5FromFile(mFilesAdapter.getSelectedItem());
-        int lengthData = OpCodes.UPDATE_SYNC_REQ_LENGTH;
-        byte[] data = new byte[lengthData];
-        // the request only needs to send the last bytes of the md5 checksum
-        Utils.putArrayField(md5Checksum, md5Checksum.length-lengthData, data, 0, data.length, false);
+        // the request only needs to send the last bytes of the md5 checksum: it has been computed by the index
+        mUpgradeHost.setImage(mBytesFile, mFile.getSyncId(OpCodes.UPDATE_SYNC_REQ_LENGTH));
 
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_SYNC_REQ, lengthData, data);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_SYNC_REQ: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_START_REQ message.
-     */
-    private void sendStartReq () {
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_START_REQ, 0, null);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_START_REQ: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_START_DATA_REQ message.
-     */
-    private void sendStartDataReq () {
-        setResumePoint(ResumePoints.DATA_TRANSFER);
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_START_DATA_REQ, 0, null);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_START_DATA_REQ: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send a message to abort the update.
-     */
-    private void sendAbortReq() {
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_ABORT_REQ, 0, null);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_ABORT_REQ: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_DATA packet.
-     *
-     * @param lastPacket
-     *                  to know if we are sending the last packet for the data.
-     * @param data
-     *                  the data to send inside this packet.
-     */
-    private void sendData (boolean lastPacket, byte[] data) {
-        byte[] dataToSend = new byte[data.length+1];
-        dataToSend[0] = lastPacket ? OpCodes.UPDATE_DATA_LAST_PACKET : OpCodes.UPDATE_DATA_NOT_LAST_PACKET;
-        Utils.putArrayField(data, 0, dataToSend, 1, data.length, false);
-        VMUPacket packetToSend = new VMUPacket(OpCodes.UPDATE_DATA, dataToSend.length, dataToSend);
-        byte[] packetBytes = packetToSend.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_DATA, last packet: " + dataToSend[0] + " - data length: " + data.length);
-    }
-
-    /**
-     * To send an UPDATE_IS_VALIDATION_DONE_REQ message.
-     */
-    private void sendValidationDoneReq () {
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_IS_VALIDATION_DONE_REQ, 0, null);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_IS_VALIDATION_DONE_REQ: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_TRANSFER_COMPLETE_RES packet.
-     *
-     * @param process
-     *              To confirm the process should continue, false to abort the process.
-     */
-    private void sendTransferCompleteReq(boolean process) {
-        byte[] data = new byte[1];
-        if (process) {
-            data[0] = OpCodes.UPDATE_TRANSFER_COMPLETE_CONTINUE;
-        }
-        else {
-            data[0] = OpCodes.UPDATE_TRANSFER_COMPLETE_ABORT;
-        }
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_TRANSFER_COMPLETE_RES, 1, data);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_TRANSFER_COMPLETE_RES: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_IN_PROGRESS_RES packet.
-     */
-    private void sendInProgressRes() {
-        byte[] data = new byte[1];
-        data[0] = OpCodes.UPDATE_IN_PROGRESS_CONTINUE;
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_IN_PROGRESS_RES, 1, data);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_IN_PROGRESS_RES: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_COMMIT_CFM packet.
-     *
-     * @param process
-     *              To confirm the process should continue, false to abort the process.
-     */
-    private void sendCommitCFM(boolean process) {
-        byte[] data = new byte[1];
-        if (process) {
-            data[0] = OpCodes.UPDATE_COMMIT_CONTINUE;
-        }
-        else {
-            data[0] = OpCodes.UPDATE_COMMIT_ABORT;
+        if (!mMetrics.isRunning()) {
+            mMetrics.start(mFile.getName(), mFile.getSize(), mFile.getMd5());
         }
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_COMMIT_CFM, 1, data);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_COMMIT_CFM: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_ERASE_SQIF_CFM packet.
-     */
-    private void sendErasSQIFCFM() {
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_ERASE_SQIF_CFM, 1, new byte[0]);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_ERASE_SQIF_CFM: " + Utils.getStringFromBytes(packetBytes));
-    }
-
-    /**
-     * To send an UPDATE_ERROR_WARN_RES packet.
-     *
-     * @param data
-     *              the error code we received and we want to return to the device as an acknowledgment.
-     */
-    private void sendErrorConfirmation(byte[] data) {
-        VMUPacket packet = new VMUPacket(OpCodes.UPDATE_ERROR_WARN_RES, OpCodes.UPDATE_ERROR_WARN_RES_LENGTH, data);
-        byte[] packetBytes = packet.getBytes();
-        mActivityListener.sendPacket(Gaia.COMMAND_VM_UPGRADE_CONTROL, packetBytes);
-        if (DEBUG) Log.d(TAG, "send UPDATE_ABORT_REQ: " + Utils.getStringFromBytes(packetBytes));
+        mUpgradeHost.sync();
     }
 
     /**
@@ -951,6 +650,7 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
      */
     private void displayAlertComplete() {
         isUpdating = false;
+        mMetrics.finish(true);
         mUpdateDialog.dismiss();
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         builder.setMessage(R.string.update_complete).setTitle(R.string.update_complete_title)
@@ -963,14 +663,6 @@ public class UpdateVMFragment extends Fragment implements View.OnClickListener,
         builder.show();
     }
 
-    /**
-     * To restart the offset for the upload.
-     */
-    private void restartOffset() {
-        mStartOffset = 0;
-        mTimeStartTransfer = 0;
-    }
-
     /**
      * This interface allows the fragment to communicate information or call the activity on which it is attached.
      */
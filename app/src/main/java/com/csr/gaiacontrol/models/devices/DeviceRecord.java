@@ -0,0 +1,110 @@
+/**************************************************************************************************
+ * Copyright 2015 Qualcomm Technologies International, Ltd.                                       *
+ **************************************************************************************************/
+
+package com.csr.gaiacontrol.models.devices;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * <p>This class represents a device known by the {@link DeviceRepository}: its name is read once and kept so the
+ * lists do not ask the Bluetooth service for it each time they display the device.</p>
+ * <p>A record is immutable: the repository replaces it when one of its values changes.</p>
+ */
+public class DeviceRecord {
+
+    /**
+     * The value of the RSSI when the device has not been seen by a discovery.
+     */
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+    /**
+     * The value of the last seen time when the device has not been seen by a discovery.
+     */
+    public static final long NEVER_SEEN = 0;
+
+    private final BluetoothDevice mDevice;
+    private final String mName;
+    private final boolean isBonded;
+    private final long mLastSeen;
+    private final int mLastRssi;
+
+    /**
+     * To build a new record.
+     *
+     * @param device
+     *            the Bluetooth device.
+     * @param name
+     *            the name of the device, can be null if it is not known.
+     * @param bonded
+     *            true if the device is paired with this phone.
+     * @param lastSeen
+     *            the time the device was last found by a discovery, {@link #NEVER_SEEN} if it was not.
+     * @param lastRssi
+     *            the RSSI of the device when it was last found, {@link #RSSI_UNKNOWN} if it was not.
+     */
+    DeviceRecord(BluetoothDevice device, String name, boolean bonded, long lastSeen, int lastRssi) {
+        mDevice = device;
+        mName = name;
+        isBonded = bonded;
+        mLastSeen = lastSeen;
+        mLastRssi = lastRssi;
+    }
+
+    /**
+     * @return the Bluetooth device, to connect to it.
+     */
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * @return the Bluetooth address of the device.
+     */
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    /**
+     * @return the cached name of the device, null if it is not known.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return true if the device is paired with this phone.
+     */
+    public boolean isBonded() {
+        return isBonded;
+    }
+
+    /**
+     * @return the time the device was last found by a discovery, {@link #NEVER_SEEN} if it was not.
+     */
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    /**
+     * @return the RSSI of the device when it was last found by a discovery, {@link #RSSI_UNKNOWN} if it was not.
+     */
+    public int getLastRssi() {
+        return mLastRssi;
+    }
+
+    /**
+     * To know if the displayed values of two records of the same device are the same.
+     *
+     * @return true if the name, the bond and the RSSI are the same.
+     */
+    boolean hasSameContent(DeviceRecord record) {
+        return isBonded == record.isBonded && mLastRssi == record.mLastRssi
+                && (mName == null ? record.mName == null : mName.equals(record.mName));
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + getAddress() + (isBonded ? ", bonded" : "")
+                + (mLastRssi != RSSI_UNKNOWN ? ", " + mLastRssi + " dBm" : "") + ")";
+    }
+}
@@ -0,0 +1,406 @@
+/**************************************************************************************************
+ * Copyright 2015 Qualcomm Technologies International, Ltd.                                       *
+ **************************************************************************************************/
+
+package com.csr.gaiacontrol.models.devices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.csr.gaiacontrol.utils.Consts;
+
+/**
+ * <p>This class keeps the list of the devices the application can connect to: the devices paired with the phone and
+ * the devices found by a discovery.</p>
+ * <p>The paired devices and their names are read on a background thread: both are requests to the Bluetooth service.
+ * The names are then kept in the {@link DeviceRecord records} with the time and the RSSI of the last discovery of
+ * each device.</p>
+ * <p>The list is only modified on the UI thread and each change is given to the listener as an insertion, a removal
+ * or a change at a position, so a list view only updates the rows which changed.</p>
+ */
+public class DeviceRepository {
+
+    /**
+     * For the debug mode, the tag to display for logs.
+     */
+    private static final String TAG = "DeviceRepository";
+    /**
+     * To know if we are using the application in the debug mode.
+     */
+    private static final boolean DEBUG = Consts.DEBUG;
+
+    /**
+     * The names of the devices by address, kept for the life of the application so a new screen does not read them
+     * again.
+     */
+    private static final Map<String, String> sNames = new HashMap<>();
+
+    private final Context mContext;
+    private final BluetoothAdapter mBtAdapter;
+    private final IDeviceRepositoryListener mListener;
+    /**
+     * The thread which reads the paired devices.
+     */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * To post the paired devices on the UI thread.
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /**
+     * The devices in their display order.
+     */
+    private final List<DeviceRecord> mDevices = new ArrayList<>();
+    /**
+     * To know if the broadcast receiver is registered.
+     */
+    private boolean isStarted = false;
+    /**
+     * The number of the last load of the paired devices: the results of an older load are not used.
+     */
+    private int mLoad = 0;
+
+    /**
+     * The receiver of the discovery and pairing broadcasts.
+     */
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null || action == null) {
+                return;
+            }
+            String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+
+            switch (action) {
+            case BluetoothDevice.ACTION_FOUND:
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceRecord.RSSI_UNKNOWN);
+                onDeviceFound(device, name, rssi);
+                break;
+            case BluetoothDevice.ACTION_NAME_CHANGED:
+                onNameChanged(device, name);
+                break;
+            case BluetoothDevice.ACTION_BOND_STATE_CHANGED:
+                refresh();
+                break;
+            }
+        }
+    };
+
+    /**
+     * To build a repository.
+     *
+     * @param context
+     *            the context to register the broadcast receiver with.
+     * @param adapter
+     *            the Bluetooth adapter of the phone, can be null if the phone has none.
+     * @param listener
+     *            the listener to inform of the changes of the list, called on the UI thread.
+     */
+    public DeviceRepository(Context context, BluetoothAdapter adapter, IDeviceRepositoryListener listener) {
+        mContext = context;
+        mBtAdapter = adapter;
+        mListener = listener;
+    }
+
+    /**
+     * To start following the discoveries and the pairings, and to load the paired devices in the background. This
+     * method must be called on the UI thread.
+     */
+    public void start() {
+        if (!isStarted) {
+            isStarted = true;
+            IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+            filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+            filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            mContext.registerReceiver(mReceiver, filter);
+        }
+        refresh();
+    }
+
+    /**
+     * To stop following the discoveries and the pairings, a running discovery is cancelled. This method must be
+     * called on the UI thread.
+     */
+    public void stop() {
+        stopDiscovery();
+        if (isStarted) {
+            isStarted = false;
+            mContext.unregisterReceiver(mReceiver);
+        }
+    }
+
+    /**
+     * To stop the repository and to end its background thread: the repository cannot be used anymore. This method
+     * must be called on the UI thread, for instance when the activity is destroyed.
+     */
+    public void close() {
+        stop();
+        mLoad++;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * To start a discovery: the devices found are merged into the list as they come. Since Android 6.0 the devices
+     * found are only given to an application which has the location permission.
+     *
+     * @return true if the discovery has started.
+     */
+    public boolean startDiscovery() {
+        return mBtAdapter != null && mBtAdapter.isEnabled() && (mBtAdapter.isDiscovering()
+                || mBtAdapter.startDiscovery());
+    }
+
+    /**
+     * To cancel a running discovery, it must be done before connecting to a device.
+     */
+    public void stopDiscovery() {
+        if (mBtAdapter != null && mBtAdapter.isDiscovering()) {
+            mBtAdapter.cancelDiscovery();
+        }
+    }
+
+    /**
+     * To load the paired devices again in the background: the new ones are inserted, the ones which are not paired
+     * anymore and have not been discovered are removed.
+     */
+    public void refresh() {
+        final int load = ++mLoad;
+        if (mBtAdapter == null || !mBtAdapter.isEnabled()) {
+            onBondedDevicesLoaded(load, new ArrayList<DeviceRecord>());
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final List<DeviceRecord> bonded = loadBondedDevices();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onBondedDevicesLoaded(load, bonded);
+                        }
+                    });
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // the repository has been closed
+            if (DEBUG) Log.w(TAG, "refresh: the repository is closed.");
+        }
+    }
+
+    /**
+     * To remove all the devices, for instance when the Bluetooth is disabled.
+     */
+    public void clear() {
+        mLoad++;
+        for (int i = mDevices.size() - 1; i >= 0; i--) {
+            mDevices.remove(i);
+            mListener.onDeviceRemoved(i);
+        }
+    }
+
+    /**
+     * @return the devices in their display order.
+     */
+    public List<DeviceRecord> getDevices() {
+        return new ArrayList<>(mDevices);
+    }
+
+    /**
+     * To read the paired devices and their names. This method is called on the background thread.
+     */
+    private List<DeviceRecord> loadBondedDevices() {
+        List<DeviceRecord> records = new ArrayList<>();
+        Set<BluetoothDevice> devices;
+        try {
+            devices = mBtAdapter.getBondedDevices();
+        }
+        catch (RuntimeException e) {
+            if (DEBUG) Log.w(TAG, "Reading the paired devices failed: " + e.toString());
+            return records;
+        }
+        if (devices == null) {
+            return records;
+        }
+        for (BluetoothDevice device : devices) {
+            String name = device.getName();
+            synchronized (sNames) {
+                if (name != null) {
+                    sNames.put(device.getAddress(), name);
+                }
+                else {
+                    name = sNames.get(device.getAddress());
+                }
+            }
+            records.add(new DeviceRecord(device, name, true, DeviceRecord.NEVER_SEEN, DeviceRecord.RSSI_UNKNOWN));
+        }
+        return records;
+    }
+
+    /**
+     * To merge the loaded paired devices into the list.
+     */
+    private void onBondedDevicesLoaded(int load, List<DeviceRecord> bonded) {
+        if (load != mLoad) {
+            return;
+        }
+        Map<String, DeviceRecord> byAddress = new HashMap<>();
+        for (DeviceRecord record : bonded) {
+            byAddress.put(record.getAddress(), record);
+        }
+
+        // the devices which are not paired anymore and have not been discovered are removed
+        for (int i = mDevices.size() - 1; i >= 0; i--) {
+            DeviceRecord current = mDevices.get(i);
+            DeviceRecord loaded = byAddress.remove(current.getAddress());
+            if (loaded != null) {
+                String name = loaded.getName() != null ? loaded.getName() : current.getName();
+                update(i, new DeviceRecord(loaded.getDevice(), name, true, current.getLastSeen(),
+                        current.getLastRssi()));
+            }
+            else if (current.getLastSeen() == DeviceRecord.NEVER_SEEN) {
+                mDevices.remove(i);
+                mListener.onDeviceRemoved(i);
+            }
+            else if (current.isBonded()) {
+                update(i, new DeviceRecord(current.getDevice(), current.getName(), false, current.getLastSeen(),
+                        current.getLastRssi()));
+            }
+        }
+
+        // the new paired devices are added in the order of the system
+        for (DeviceRecord record : bonded) {
+            if (byAddress.containsKey(record.getAddress())) {
+                mDevices.add(record);
+                mListener.onDeviceInserted(mDevices.size() - 1, record);
+            }
+        }
+
+        mListener.onDevicesLoaded(mDevices.size());
+    }
+
+    /**
+     * To merge a device found by the discovery.
+     */
+    private void onDeviceFound(BluetoothDevice device, String name, int rssi) {
+        if (name != null) {
+            synchronized (sNames) {
+                sNames.put(device.getAddress(), name);
+            }
+        }
+        long now = System.currentTimeMillis();
+        int position = indexOf(device.getAddress());
+        if (position < 0) {
+            if (name == null) {
+                synchronized (sNames) {
+                    name = sNames.get(device.getAddress());
+                }
+            }
+            DeviceRecord record = new DeviceRecord(device, name, false, now, rssi);
+            mDevices.add(record);
+            mListener.onDeviceInserted(mDevices.size() - 1, record);
+        }
+        else {
+            DeviceRecord current = mDevices.get(position);
+            update(position, new DeviceRecord(current.getDevice(), name != null ? name : current.getName(),
+                    current.isBonded(), now, rssi));
+        }
+    }
+
+    /**
+     * To update the name of a device.
+     */
+    private void onNameChanged(BluetoothDevice device, String name) {
+        if (name == null) {
+            return;
+        }
+        synchronized (sNames) {
+            sNames.put(device.getAddress(), name);
+        }
+        int position = indexOf(device.getAddress());
+        if (position >= 0) {
+            DeviceRecord current = mDevices.get(position);
+            update(position, new DeviceRecord(current.getDevice(), name, current.isBonded(), current.getLastSeen(),
+                    current.getLastRssi()));
+        }
+    }
+
+    /**
+     * To replace a record, the listener is only informed if a displayed value changed.
+     */
+    private void update(int position, DeviceRecord record) {
+        DeviceRecord previous = mDevices.set(position, record);
+        if (!previous.hasSameContent(record)) {
+            mListener.onDeviceChanged(position, record);
+        }
+    }
+
+    private int indexOf(String address) {
+        for (int i = 0; i < mDevices.size(); i++) {
+            if (mDevices.get(i).getAddress().equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The interface to implement to follow the changes of a {@link DeviceRepository}. All methods are called on the
+     * UI thread.
+     */
+    public interface IDeviceRepositoryListener {
+        /**
+         * This method is called when a device is added to the list.
+         *
+         * @param position
+         *            the position of the new device.
+         * @param record
+         *            the new device.
+         */
+        void onDeviceInserted(int position, DeviceRecord record);
+
+        /**
+         * This method is called when a device is removed from the list.
+         *
+         * @param position
+         *            the position the device had.
+         */
+        void onDeviceRemoved(int position);
+
+        /**
+         * This method is called when a displayed value of a device changed: its name, its pairing or its RSSI.
+         *
+         * @param position
+         *            the position of the device.
+         * @param record
+         *            the new values of the device.
+         */
+        void onDeviceChanged(int position, DeviceRecord record);
+
+        /**
+         * This method is called each time the paired devices have been loaded and merged into the list.
+         *
+         * @param count
+         *            the number of devices in the list.
+         */
+        void onDevicesLoaded(int count);
+    }
+}
@@ -0,0 +1,206 @@
+/**************************************************************************************************
+ * Copyright 2015 Qualcomm Technologies International, Ltd.                                       *
+ **************************************************************************************************/
+
+package com.csr.gaiacontrol.models.firmware;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>This class represents an upgrade file known by the {@link FirmwareIndex}: its size and modification time when
+ * it was indexed, its MD5 checksum and the information read in its header.</p>
+ * <p>The header is read if the file starts with the "APPUHDR" identifier of the upgrade files: the identifier on 8
+ * octets, the length of the header on 4 octets, the device variant on 8 octets, the major and the minor version on 2
+ * octets each.</p>
+ */
+public class FirmwareImage {
+
+    /**
+     * The value of the versions when the file has no header.
+     */
+    public static final int VERSION_UNKNOWN = -1;
+    /**
+     * The identifier upgrade files start with, followed by the header version digit.
+     */
+    private static final String HEADER_PREFIX = "APPUHDR";
+    /**
+     * The number of bytes of a header read by this class.
+     */
+    static final int HEADER_LENGTH = 24;
+    private static final int OFFS_HEADER_ID = 0;
+    private static final int LENGTH_HEADER_ID = 8;
+    private static final int OFFS_VARIANT = 12;
+    private static final int LENGTH_VARIANT = 8;
+    private static final int OFFS_MAJOR = 20;
+    private static final int OFFS_MINOR = 22;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File mFile;
+    private final long mSize;
+    private final long mLastModified;
+    private final byte[] mMd5;
+    private final String mHeaderId;
+    private final String mVariant;
+    private final int mMajor;
+    private final int mMinor;
+
+    /**
+     * To build an image from its indexed information.
+     */
+    FirmwareImage(File file, long size, long lastModified, byte[] md5, String headerId, String variant, int major,
+                  int minor) {
+        mFile = file;
+        mSize = size;
+        mLastModified = lastModified;
+        mMd5 = md5;
+        mHeaderId = headerId;
+        mVariant = variant;
+        mMajor = major;
+        mMinor = minor;
+    }
+
+    /**
+     * To build an image from the first bytes of its file.
+     *
+     * @param header
+     *            the first bytes of the file.
+     * @param length
+     *            the number of bytes of the header which have been read.
+     */
+    static FirmwareImage fromHeader(File file, long size, long lastModified, byte[] md5, byte[] header, int length) {
+        if (length < HEADER_LENGTH || !new String(header, OFFS_HEADER_ID, HEADER_PREFIX.length(), ASCII)
+                .equals(HEADER_PREFIX)) {
+            return new FirmwareImage(file, size, lastModified, md5, null, null, VERSION_UNKNOWN, VERSION_UNKNOWN);
+        }
+        String id = new String(header, OFFS_HEADER_ID, LENGTH_HEADER_ID, ASCII);
+        String variant = new String(header, OFFS_VARIANT, LENGTH_VARIANT, ASCII).trim();
+        int major = ((header[OFFS_MAJOR] & 0xFF) << 8) | (header[OFFS_MAJOR + 1] & 0xFF);
+        int minor = ((header[OFFS_MINOR] & 0xFF) << 8) | (header[OFFS_MINOR + 1] & 0xFF);
+        return new FirmwareImage(file, size, lastModified, md5, id, variant, major, minor);
+    }
+
+    /**
+     * @return the upgrade file.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the name of the upgrade file.
+     */
+    public String getName() {
+        return mFile.getName();
+    }
+
+    /**
+     * @return the size of the file in bytes when it was indexed.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the modification time of the file when it was indexed.
+     */
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the MD5 checksum of the file, empty if the file could not be read.
+     */
+    public byte[] getMd5() {
+        return mMd5.clone();
+    }
+
+    /**
+     * To get the identifier used by UPDATE_SYNC_REQ: the last bytes of the MD5 checksum.
+     *
+     * @param length
+     *            the number of bytes of the identifier.
+     *
+     * @return the identifier.
+     */
+    public byte[] getSyncId(int length) {
+        length = Math.min(length, mMd5.length);
+        return Arrays.copyOfRange(mMd5, mMd5.length - length, mMd5.length);
+    }
+
+    /**
+     * @return true if the file starts with an upgrade file header.
+     */
+    public boolean hasHeader() {
+        return mHeaderId != null;
+    }
+
+    /**
+     * @return the identifier of the header, for instance "APPUHDR2", null if the file has no header.
+     */
+    public String getHeaderId() {
+        return mHeaderId;
+    }
+
+    /**
+     * @return the device variant the file is built for, null if the file has no header.
+     */
+    public String getVariant() {
+        return mVariant;
+    }
+
+    /**
+     * @return the major version of the upgrade, {@link #VERSION_UNKNOWN} if the file has no header.
+     */
+    public int getMajorVersion() {
+        return mMajor;
+    }
+
+    /**
+     * @return the minor version of the upgrade, {@link #VERSION_UNKNOWN} if the file has no header.
+     */
+    public int getMinorVersion() {
+        return mMinor;
+    }
+
+    /**
+     * To know if the file has changed since it was indexed.
+     *
+     * @return true if the size or the modification time of the file are not the indexed ones.
+     */
+    public boolean isStale() {
+        return !matches(mFile.length(), mFile.lastModified());
+    }
+
+    /**
+     * @return true if this image has been indexed with the given size and modification time.
+     */
+    boolean matches(long size, long lastModified) {
+        return mSize == size && mLastModified == lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FirmwareImage)) {
+            return false;
+        }
+        FirmwareImage image = (FirmwareImage) o;
+        return mFile.equals(image.mFile) && mSize == image.mSize && mLastModified == image.mLastModified
+                && Arrays.equals(mMd5, image.mMd5);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mFile.hashCode() + Arrays.hashCode(mMd5);
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " (" + mSize + " bytes"
+                + (hasHeader() ? ", " + mHeaderId + " " + mVariant + " v" + mMajor + "." + mMinor : "") + ")";
+    }
+}
@@ -0,0 +1,446 @@
+/**************************************************************************************************
+ * Copyright 2015 Qualcomm Technologies International, Ltd.                                       *
+ **************************************************************************************************/
+
+package com.csr.gaiacontrol.models.firmware;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.csr.gaiacontrol.utils.Consts;
+import com.csr.gaiacontrol.utils.Utils;
+
+/**
+ * <p>This class keeps the list of the upgrade files of a folder with their size, modification time, MD5 checksum and
+ * header information, so picking a file and starting an upgrade does not need to scan the folder nor to hash the
+ * file.</p>
+ * <p>The folder is scanned on a background thread. A file is only read again if its size or its modification time
+ * changed since it was indexed. The index is kept in a small binary file so the files are not hashed again each time
+ * the application starts. While the index is {@link #start() started} the folder is observed and scanned again when
+ * a file is written, moved or deleted. The content of an image is also {@link #read(FirmwareImage) read} on the
+ * background thread, which ends once the index is {@link #close() closed}.</p>
+ * <p>The listener is called on the UI thread.</p>
+ */
+public class FirmwareIndex {
+
+    /**
+     * For the debug mode, the tag to display for logs.
+     */
+    private static final String TAG = "FirmwareIndex";
+    /**
+     * To know if we are using the application in the debug mode.
+     */
+    private static final boolean DEBUG = Consts.DEBUG;
+    /**
+     * The first bytes of the index file: "GFWI".
+     */
+    private static final int MAGIC = 0x47465749;
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The events of the folder which need a new scan.
+     */
+    private static final int OBSERVED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.DELETE;
+    /**
+     * To sort the images by name.
+     */
+    private static final Comparator<FirmwareImage> BY_NAME = new Comparator<FirmwareImage>() {
+        @Override
+        public int compare(FirmwareImage image1, FirmwareImage image2) {
+            return image1.getName().compareToIgnoreCase(image2.getName());
+        }
+    };
+
+    /**
+     * The folder of the upgrade files.
+     */
+    private final File mFolder;
+    /**
+     * The file the index is stored in.
+     */
+    private final File mIndexFile;
+    /**
+     * The listener to inform of the changes of the list.
+     */
+    private final IFirmwareIndexListener mListener;
+    /**
+     * The thread which scans the folder and reads the files.
+     */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * To post the new lists on the UI thread.
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /**
+     * To avoid queuing a scan when one is already waiting.
+     */
+    private final AtomicBoolean isScanPending = new AtomicBoolean(false);
+    /**
+     * The indexed images by file name, only used on the scanning thread.
+     */
+    private final Map<String, FirmwareImage> mImagesByName = new HashMap<>();
+    /**
+     * The last list of images, sorted by name.
+     */
+    private volatile List<FirmwareImage> mImages = Collections.emptyList();
+    /**
+     * To know if the index file has been read.
+     */
+    private boolean isLoaded = false;
+    /**
+     * To know if the listener has been given a list: the first scan is always given even if the folder is empty.
+     */
+    private boolean hasNotified = false;
+    /**
+     * The observer of the folder while the index is started.
+     */
+    private FileObserver mObserver;
+
+    /**
+     * To build an index.
+     *
+     * @param folder
+     *            the folder of the upgrade files.
+     * @param indexFile
+     *            the file to keep the index in, for instance in the application files directory.
+     * @param listener
+     *            the listener to inform of the changes of the list.
+     */
+    public FirmwareIndex(File folder, File indexFile, IFirmwareIndexListener listener) {
+        mFolder = folder;
+        mIndexFile = indexFile;
+        mListener = listener;
+    }
+
+    /**
+     * To start observing the folder: the folder is scanned at once then each time a file changes. This method must be
+     * called on the UI thread.
+     */
+    public void start() {
+        if (mObserver == null) {
+            mObserver = new FileObserver(mFolder.getPath(), OBSERVED_EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    refresh();
+                }
+            };
+            mObserver.startWatching();
+        }
+        refresh();
+    }
+
+    /**
+     * To stop observing the folder. This method must be called on the UI thread.
+     */
+    public void stop() {
+        if (mObserver != null) {
+            mObserver.stopWatching();
+            mObserver = null;
+        }
+    }
+
+    /**
+     * To stop observing the folder and to end the background thread: the index cannot be used anymore. This method
+     * must be called on the UI thread, for instance when the view which displays the images is destroyed.
+     */
+    public void close() {
+        stop();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * To read the content of an image in the background, the listener is given the bytes on the UI thread.
+     *
+     * @param image
+     *            the image to read.
+     */
+    public void read(final FirmwareImage image) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] bytes = Utils.getBytesFromFile(image.getFile());
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onImageRead(image, bytes);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * To scan the folder again in the background, the listener is called if the list changed.
+     */
+    public void refresh() {
+        if (!mExecutor.isShutdown() && isScanPending.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        isScanPending.set(false);
+                        scan();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // the observer saw a change while the index was closed
+                isScanPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * To get the images found by the last scan, without accessing the disk.
+     *
+     * @return the images sorted by name.
+     */
+    public List<FirmwareImage> getImages() {
+        return mImages;
+    }
+
+    /**
+     * To get the indexed image of a file, without accessing the disk.
+     *
+     * @return the image or null if the file has not been indexed.
+     */
+    public FirmwareImage get(File file) {
+        for (FirmwareImage image : mImages) {
+            if (image.getFile().equals(file)) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * To scan the folder and to index the new and modified files. This method is called on the scanning thread.
+     */
+    private void scan() {
+        if (!isLoaded) {
+            isLoaded = true;
+            load();
+        }
+
+        File[] files = mFolder.listFiles();
+        Map<String, FirmwareImage> found = new HashMap<>();
+        boolean changed = false;
+
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                long size = file.length();
+                long lastModified = file.lastModified();
+                FirmwareImage image = mImagesByName.get(file.getName());
+                if (image == null || !image.matches(size, lastModified)) {
+                    image = index(file, size, lastModified);
+                    changed = true;
+                }
+                found.put(file.getName(), image);
+            }
+        }
+
+        changed |= found.size() != mImagesByName.size();
+        mImagesByName.clear();
+        mImagesByName.putAll(found);
+        if (changed) {
+            save();
+        }
+
+        List<FirmwareImage> images = new ArrayList<>(found.values());
+        Collections.sort(images, BY_NAME);
+        if (!hasNotified || !images.equals(mImages)) {
+            hasNotified = true;
+            final List<FirmwareImage> list = Collections.unmodifiableList(images);
+            mImages = list;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onImagesChanged(list);
+                }
+            });
+        }
+    }
+
+    /**
+     * To read a file once: its MD5 checksum is computed while its header is kept.
+     */
+    private FirmwareImage index(File file, long size, long lastModified) {
+        byte[] header = new byte[FirmwareImage.HEADER_LENGTH];
+        int headerLength = 0;
+        byte[] md5;
+        InputStream input = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            input = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (headerLength < header.length) {
+                    int copied = Math.min(read, header.length - headerLength);
+                    System.arraycopy(buffer, 0, header, headerLength, copied);
+                    headerLength += copied;
+                }
+                digest.update(buffer, 0, read);
+            }
+            md5 = digest.digest();
+        }
+        catch (IOException | NoSuchAlgorithmException e) {
+            if (DEBUG) Log.w(TAG, "Indexing " + file.getName() + " failed: " + e.toString());
+            md5 = new byte[0];
+        }
+        finally {
+            closeQuietly(input);
+        }
+        if (DEBUG) Log.d(TAG, "Indexed " + file.getName());
+        return FirmwareImage.fromHeader(file, size, lastModified, md5, header, headerLength);
+    }
+
+    /**
+     * To read the index file.
+     */
+    private void load() {
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION) {
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = input.readUTF();
+                long size = input.readLong();
+                long lastModified = input.readLong();
+                byte[] md5 = new byte[input.readUnsignedByte()];
+                input.readFully(md5);
+                boolean hasHeader = input.readBoolean();
+                String headerId = hasHeader ? input.readUTF() : null;
+                String variant = hasHeader ? input.readUTF() : null;
+                int major = input.readInt();
+                int minor = input.readInt();
+                mImagesByName.put(name, new FirmwareImage(new File(mFolder, name), size, lastModified, md5, headerId,
+                        variant, major, minor));
+            }
+        }
+        catch (IOException e) {
+            // the files are indexed again
+            if (DEBUG) Log.w(TAG, "Reading the firmware index failed: " + e.toString());
+            mImagesByName.clear();
+        }
+        finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * To write the index file: it is written to a temporary file which is then renamed.
+     */
+    private void save() {
+        File temporary = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+            output.writeInt(mImagesByName.size());
+            for (FirmwareImage image : mImagesByName.values()) {
+                output.writeUTF(image.getName());
+                output.writeLong(image.getSize());
+                output.writeLong(image.getLastModified());
+                byte[] md5 = image.getMd5();
+                output.writeByte(md5.length);
+                output.write(md5);
+                output.writeBoolean(image.hasHeader());
+                if (image.hasHeader()) {
+                    output.writeUTF(image.getHeaderId());
+                    output.writeUTF(image.getVariant());
+                }
+                output.writeInt(image.getMajorVersion());
+                output.writeInt(image.getMinorVersion());
+            }
+            output.close();
+            output = null;
+            if (!temporary.renameTo(mIndexFile)) {
+                if (DEBUG) Log.w(TAG, "Renaming the firmware index failed.");
+            }
+        }
+        catch (IOException e) {
+            if (DEBUG) Log.w(TAG, "Writing the firmware index failed: " + e.toString());
+        }
+        finally {
+            closeQuietly(output);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            //noinspection EmptyCatchBlock
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * The interface to implement to be informed of the changes of a {@link FirmwareIndex}.
+     */
+    public interface IFirmwareIndexListener {
+        /**
+         * This method is called on the UI thread when the list of the images has changed: a file has been added,
+         * modified or removed.
+         *
+         * @param images
+         *            the images sorted by name.
+         */
+        void onImagesChanged(List<FirmwareImage> images);
+
+        /**
+         * This method is called on the UI thread when the content of an image asked with
+         * {@link FirmwareIndex#read(FirmwareImage) read} has been read.
+         *
+         * @param image
+         *            the image which has been read.
+         * @param bytes
+         *            the content of the image, null if the file could not be read.
+         */
+        void onImageRead(FirmwareImage image, byte[] bytes);
+    }
+}
@@ -0,0 +1,144 @@
+/**************************************************************************************************
+ * Copyright 2015 Qualcomm Technologies International, Ltd.                                       *
+ **************************************************************************************************/
+
+package com.csr.gaiacontrol.utils;
+
+import android.util.SparseArray;
+import android.view.Choreographer;
+
+/**
+ * <p>This class merges the state changes to display by key and gives them to its listener at most once per display
+ * frame: when a key changes several times between two frames only its last value is displayed, and a value equal to
+ * the one already displayed for its key is not given again.</p>
+ * <p>The values can be put from any thread, the listener is called on the thread which built this object - the main
+ * thread - before the next frame is drawn.</p>
+ */
+public class FrameCoalescer {
+
+    /**
+     * The choreographer of the thread which displays the values.
+     */
+    private final Choreographer mChoreographer;
+    /**
+     * The listener to give the values to.
+     */
+    private final IFrameListener mListener;
+    /**
+     * The values put since the last frame, by key. Access is synchronized on this array.
+     */
+    private final SparseArray<Object> mPending = new SparseArray<>();
+    /**
+     * The last values given to the listener, by key. Only accessed on the main thread.
+     */
+    private final SparseArray<Object> mDisplayed = new SparseArray<>();
+    /**
+     * To know if a frame callback is posted. Access is synchronized on the pending values.
+     */
+    private boolean mScheduled = false;
+
+    /**
+     * To build a new coalescer. It has to be built on the thread which displays the values.
+     *
+     * @param listener
+     *            the listener to give the values to once per frame.
+     */
+    public FrameCoalescer(IFrameListener listener) {
+        mChoreographer = Choreographer.getInstance();
+        mListener = listener;
+    }
+
+    /**
+     * To set the value to display for a key. It replaces any value put for this key since the last frame.
+     *
+     * @param key
+     *            the key of the value.
+     * @param value
+     *            the value to display, can be null.
+     */
+    public void put(int key, Object value) {
+        synchronized (mPending) {
+            mPending.put(key, value);
+            if (!mScheduled) {
+                mScheduled = true;
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+    }
+
+    /**
+     * To forget the values which haven't been displayed yet and the ones already displayed: the next value put for
+     * each key is displayed even if it is equal to the previous one. To call when the views are displayed again.
+     */
+    public void clear() {
+        synchronized (mPending) {
+            mPending.clear();
+            if (mScheduled) {
+                mScheduled = false;
+                mChoreographer.removeFrameCallback(mFrameCallback);
+            }
+        }
+        mDisplayed.clear();
+    }
+
+    /**
+     * To give the values put since the last frame to the listener.
+     */
+    private void onFrame() {
+        SparseArray<Object> values;
+        synchronized (mPending) {
+            mScheduled = false;
+            if (mPending.size() == 0) {
+                return;
+            }
+            values = mPending.clone();
+            mPending.clear();
+        }
+
+        for (int i = 0; i < values.size(); i++) {
+            int key = values.keyAt(i);
+            Object value = values.valueAt(i);
+            int index = mDisplayed.indexOfKey(key);
+            if (index >= 0 && equals(mDisplayed.valueAt(index), value)) {
+                continue;
+            }
+            mDisplayed.put(key, value);
+            mListener.onFrameUpdate(key, value);
+        }
+    }
+
+    /**
+     * To compare two values which can be null.
+     *
+     * @return true if both values are null or equal.
+     */
+    private static boolean equals(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * The callback which is called by the choreographer before the next frame.
+     */
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame();
+        }
+    };
+
+    /**
+     * This interface allows the coalescer to give the values to display to the element which owns the views.
+     */
+    public interface IFrameListener {
+
+        /**
+         * Called once per frame on the main thread for each key whose value changed since the previous frame.
+         *
+         * @param key
+         *            the key of the value.
+         * @param value
+         *            the value to display.
+         */
+        void onFrameUpdate(int key, Object value);
+    }
+}
@@ -19,6 +19,10 @@ public final class Utils {
     private static final int BITS_IN_BYTE = 8;
     public static final int BITS_IN_HEXADECIMAL = 4;
     private static final int BYTES_IN_SHORT = 2;
+    /**
+     * The characters to display a value as hexadecimal.
+     */
+    private static final char[] HEXADECIMAL_DIGITS = "0123456789abcdef".toCharArray();
 
     /**
      * Extract an <code>int</code> field from an array.
@@ -87,11 +91,12 @@ public final class Utils {
     public static String getStringFromBytes(byte[] value) {
         if (value == null)
             return "null";
-        String out = "";
+        StringBuilder out = new StringBuilder(value.length * 5);
         for (byte b : value) {
-            out += String.format("0x%02x ", b);
+            out.append("0x").append(HEXADECIMAL_DIGITS[(b >> BITS_IN_HEXADECIMAL) & 0x0F])
+                    .append(HEXADECIMAL_DIGITS[b & 0x0F]).append(' ');
         }
-        return out;
+        return out.toString();
     }
 
     /**